@@ -27,6 +27,7 @@ val skiaVersion = "e2ea2eb" // head of branch chrome/m124
 val harfBuzzVersion = "14.2.0"
 val zimgVersion = "fa52dee"
 val nfdVersion = "17b6e8c"
+val jmhVersion = "1.37"
 
 val javaProperties = Properties().apply { file("java.properties").reader().use(::load) }
 val mainClass = javaProperties.getProperty("mainClass")!!
@@ -48,6 +49,10 @@ sourceSets {
         compileClasspath += sourceSets.main.get().output
         runtimeClasspath += sourceSets.main.get().output
     }
+    register("bench") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
 }
 
 
@@ -61,6 +66,9 @@ val natives = Platform.entries.associateWith { platform ->
 
 val demoImplementation by configurations.getting { extendsFrom(configurations.implementation.get()) }
 val demoRuntimeOnly by configurations.getting { extendsFrom(configurations.runtimeOnly.get()) }
+val benchImplementation by configurations.getting { extendsFrom(configurations.implementation.get()) }
+val benchRuntimeOnly by configurations.getting { extendsFrom(configurations.runtimeOnly.get()) }
+val jmhGenerator by configurations.creating
 
 repositories {
     mavenCentral()
@@ -119,6 +127,10 @@ dependencies {
     // Testing
     testImplementation("org.junit.jupiter:junit-jupiter:5.13.3")
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    // Benchmarking
+    benchImplementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+    jmhGenerator("org.openjdk.jmh:jmh-generator-bytecode:$jmhVersion")
 }
 
 configurations.configureEach {
@@ -143,6 +155,30 @@ tasks.withType<KotlinCompile>().configureEach {
     compilerOptions.jvmTarget = JvmTarget.fromTarget(jdkVersion.toString())
 }
 
+// JMH usually generates its benchmark harness with an annotation processor, which doesn't see Kotlin sources. Hence,
+// we instead let JMH scan the compiled benchmark classes, and then compile the generated harness in a separate step.
+val generateBenchHarness by tasks.registering(JavaExec::class) {
+    val classesDir = layout.buildDirectory.dir("classes/kotlin/bench")
+    val outputDir = layout.buildDirectory.dir("generated/jmh")
+    dependsOn("compileBenchKotlin")
+    inputs.dir(classesDir)
+    outputs.dir(outputDir)
+    classpath(jmhGenerator, sourceSets.named("bench").map { it.runtimeClasspath })
+    mainClass = "org.openjdk.jmh.generators.bytecode.JmhBytecodeGenerator"
+    args(
+        classesDir.get().asFile, outputDir.get().dir("java").asFile, outputDir.get().dir("resources").asFile,
+        "reflection"
+    )
+    doFirst { delete(outputDir) }
+}
+
+val compileBenchHarness by tasks.registering(JavaCompile::class) {
+    dependsOn(generateBenchHarness)
+    source(layout.buildDirectory.dir("generated/jmh/java"))
+    classpath = files(sourceSets.named("bench").map { it.runtimeClasspath })
+    destinationDirectory = layout.buildDirectory.dir("classes/java/benchHarness")
+}
+
 
 val writeVersionFile by tasks.registering(WriteFile::class) {
     text = version.toString()
@@ -257,6 +293,24 @@ run {
         jvmArgs = jvmArgs_ + listOf("--add-opens", "java.desktop/javax.swing=ALL-UNNAMED")
     }
 
+    tasks.register<JavaExec>("runBench") {
+        group = "Execution"
+        description = "Runs the benchmarks. Additional JMH options can be passed via --args, e.g., --args='-f 1'."
+        val resultFile = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+        dependsOn(platformNatives)
+        classpath(
+            sourceSets.named("bench").map { it.runtimeClasspath }, compileBenchHarness,
+            layout.buildDirectory.dir("generated/jmh/resources")
+        )
+        mainClass = "org.openjdk.jmh.Main"
+        // JMH forks a fresh JVM for each benchmark, which inherits these arguments.
+        jvmArgs = jvmArgs_
+        // The GC profiler reports the normalized allocation rate, i.e., the bytes allocated per benchmark invocation.
+        // These arguments are supplied by a provider, as --args replaces the regular args, but not provided ones.
+        argumentProviders.add { listOf("-prof", "gc", "-rf", "json", "-rff", resultFile.path) }
+        doFirst { resultFile.parentFile.mkdirs() }
+    }
+
     tasks.test {
         useJUnitPlatform()
         dependsOn(platformNatives)
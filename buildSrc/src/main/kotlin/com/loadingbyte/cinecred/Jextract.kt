@@ -149,6 +149,7 @@ abstract class Jextract : DefaultTask() {
             "hb_buffer_add_utf16",
             "hb_buffer_create",
             "hb_buffer_destroy",
+            "hb_buffer_clear_contents",
             "hb_buffer_get_glyph_infos",
             "hb_buffer_get_glyph_positions",
             "hb_buffer_get_length",
@@ -166,6 +167,7 @@ abstract class Jextract : DefaultTask() {
             "hb_face_count",
             "hb_face_create_or_fail",
             "hb_face_destroy",
+            "hb_face_get_empty",
             "hb_face_get_glyph_count",
             "hb_face_reference_blob",
             "hb_font_create",
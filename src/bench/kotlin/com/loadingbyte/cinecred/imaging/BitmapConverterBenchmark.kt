@@ -0,0 +1,153 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.imaging.Bitmap.Alpha.*
+import com.loadingbyte.cinecred.imaging.Bitmap.YUVCoefficients.Companion.BT709_NCL
+import com.loadingbyte.cinecred.imaging.ColorSpace.Primaries.Companion.BT709
+import com.loadingbyte.cinecred.imaging.ColorSpace.Transfer.Companion.BLENDING
+import com.loadingbyte.cinecred.setupNatives
+import org.bytedeco.ffmpeg.global.avutil.*
+import org.openjdk.jmh.annotations.*
+import java.nio.ByteOrder
+import java.util.concurrent.TimeUnit
+
+
+/**
+ * Measures how long the [BitmapConverter] takes to convert a single frame along the routes that deliveries and the
+ * preview use most. Apart from the time per frame, the GC profiler enabled by the `runBench` task reports the bytes
+ * that are allocated on the heap per frame as `gc.alloc.rate.norm`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class BitmapConverterBenchmark {
+
+    enum class Route {
+        /** Most video containers, like ProRes and DNxHR. */
+        CANVAS_TO_YUV422P10,
+        /** Transparent EXR image sequences. */
+        CANVAS_TO_GBRAPF32,
+        /** Ingesting 16-bit tapes and pictures. */
+        RGB48_TO_RGBAF32,
+        /** The draft mode of the video preview and the deferred image panels. */
+        DRAFT_CANVAS_TO_BGRA,
+        DRAFT_CANVAS_TO_YUV422P10,
+        /** Interlaced video containers, which convert the fields in one go. */
+        INTERLEAVED_CANVAS_TO_YUV422P10,
+        /** Interlaced tapes and video writers, which convert the top and bottom field views separately. */
+        FIELD_VIEWS_CANVAS_TO_YUV422P10
+    }
+
+    @Param("1280x720", "1920x1080", "3840x2160")
+    @JvmField
+    var resolution: String = ""
+
+    @Param
+    @JvmField
+    var route: Route = Route.CANVAS_TO_YUV422P10
+
+    @Param("false", "true")
+    @JvmField
+    var parallel: Boolean = false
+
+    private lateinit var src: Bitmap
+    private lateinit var dst: Bitmap
+    // Each entry holds a converter together with the source and destination views it converts between.
+    private val conversions = mutableListOf<Triple<BitmapConverter, Bitmap, Bitmap>>()
+
+    @Setup(Level.Trial)
+    fun setup() {
+        System.setProperty("java.awt.headless", "true")
+        setupNatives()
+
+        val (w, h) = resolution.split('x').map(String::toInt)
+        val res = Resolution(w, h)
+        val canvasRep = Canvas.compatibleRepresentation(ColorSpace.of(BT709, BLENDING))
+        val yuvRep = Bitmap.Representation(
+            Bitmap.PixelFormat.of(AV_PIX_FMT_YUV422P10), Bitmap.Range.LIMITED, ColorSpace.BT709, BT709_NCL,
+            AVCHROMA_LOC_LEFT, OPAQUE
+        )
+        fun srgbRep(code: Int, alpha: Bitmap.Alpha) =
+            Bitmap.Representation(Bitmap.PixelFormat.of(code), ColorSpace.SRGB, alpha)
+        val (srcRep, dstRep) = when (route) {
+            Route.CANVAS_TO_YUV422P10, Route.DRAFT_CANVAS_TO_YUV422P10, Route.INTERLEAVED_CANVAS_TO_YUV422P10,
+            Route.FIELD_VIEWS_CANVAS_TO_YUV422P10 -> Pair(canvasRep, yuvRep)
+            Route.CANVAS_TO_GBRAPF32 -> Pair(canvasRep, srgbRep(AV_PIX_FMT_GBRAPF32LE, STRAIGHT))
+            Route.RGB48_TO_RGBAF32 -> Pair(srgbRep(AV_PIX_FMT_RGB48LE, OPAQUE), canvasRep)
+            Route.DRAFT_CANVAS_TO_BGRA -> Pair(canvasRep, srgbRep(AV_PIX_FMT_BGRA, PREMULTIPLIED))
+        }
+        val interlaced = route == Route.INTERLEAVED_CANVAS_TO_YUV422P10 ||
+                route == Route.FIELD_VIEWS_CANVAS_TO_YUV422P10
+        val (scan, content) = if (!interlaced) Pair(Bitmap.Scan.PROGRESSIVE, Bitmap.Content.PROGRESSIVE_FRAME) else
+            Pair(Bitmap.Scan.INTERLACED_TOP_FIELD_FIRST, Bitmap.Content.INTERLEAVED_FIELDS)
+        src = Bitmap.allocate(Bitmap.Spec(res, srcRep, scan, content))
+        dst = Bitmap.allocate(Bitmap.Spec(res, dstRep, scan, content))
+        fillWithGradient(src)
+
+        val opaque = dstRep.alpha == OPAQUE
+        val draft = route == Route.DRAFT_CANVAS_TO_BGRA || route == Route.DRAFT_CANVAS_TO_YUV422P10
+        val viewPairs = if (route != Route.FIELD_VIEWS_CANVAS_TO_YUV422P10) listOf(Pair(src.view(), dst.view())) else
+            listOf(Pair(src.topFieldView(), dst.topFieldView()), Pair(src.botFieldView(), dst.botFieldView()))
+        for ((srcView, dstView) in viewPairs) {
+            val converter = BitmapConverter(
+                srcView.spec, dstView.spec, srcView.isAligned, dstView.isAligned, promiseOpaque = opaque,
+                approxTransfer = draft, parallel = parallel
+            )
+            conversions.add(Triple(converter, srcView, dstView))
+        }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        for ((converter, srcView, dstView) in conversions) {
+            converter.close()
+            srcView.close()
+            dstView.close()
+        }
+        conversions.clear()
+        src.close()
+        dst.close()
+    }
+
+    @Benchmark
+    fun convertFrame() {
+        for ((converter, srcView, dstView) in conversions)
+            converter.convert(srcView, dstView)
+    }
+
+    /** Fills the bitmap with a smooth opaque gradient, as garbage memory might contain NaNs or denormals. */
+    private fun fillWithGradient(bitmap: Bitmap) {
+        val (w, h) = bitmap.spec.resolution
+        val pixelFormat = bitmap.spec.representation.pixelFormat
+        when (pixelFormat.code) {
+            AV_PIX_FMT_RGBAF32 -> {
+                val data = FloatArray(h * w * 4)
+                for (y in 0..<h)
+                    for (x in 0..<w) {
+                        val i = (y * w + x) * 4
+                        data[i] = x / w.toFloat()
+                        data[i + 1] = y / h.toFloat()
+                        data[i + 2] = (x + y) / (w + h).toFloat()
+                        data[i + 3] = 1f
+                    }
+                bitmap.put(data, w * 4)
+            }
+            AV_PIX_FMT_RGB48LE -> {
+                val data = ShortArray(h * w * 3)
+                for (y in 0..<h)
+                    for (x in 0..<w) {
+                        val i = (y * w + x) * 3
+                        data[i] = (x * 65535 / w).toShort()
+                        data[i + 1] = (y * 65535 / h).toShort()
+                        data[i + 2] = ((x + y) * 65535 / (w + h)).toShort()
+                    }
+                bitmap.put(data, w * 3, byteOrder = ByteOrder.LITTLE_ENDIAN)
+            }
+            else -> throw IllegalArgumentException("Unsupported source pixel format: $pixelFormat")
+        }
+    }
+
+}
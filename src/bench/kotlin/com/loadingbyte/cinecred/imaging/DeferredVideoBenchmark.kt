@@ -0,0 +1,198 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.FPS
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.imaging.Bitmap.Alpha.OPAQUE
+import com.loadingbyte.cinecred.imaging.Bitmap.YUVCoefficients.Companion.BT709_NCL
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.SRGB
+import com.loadingbyte.cinecred.imaging.Y.Companion.toY
+import com.loadingbyte.cinecred.setupNatives
+import org.bytedeco.ffmpeg.global.avutil.*
+import org.openjdk.jmh.annotations.*
+import java.awt.geom.Ellipse2D
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.createTempDirectory
+import kotlin.random.Random
+
+
+/**
+ * Measures how many frames per second [DeferredVideo.BitmapBackend.materializeFrame] delivers for synthetic videos that
+ * exercise the different paths of the backend and its page cache. As the throughput is measured per frame, the whole
+ * video is rendered by a fresh backend in each invocation, just like a render job would do it.
+ *
+ * When a trial finishes, the page cache statistics accumulated over all invocations are printed, namely the hit rate,
+ * the average time it took to render a chunk, and the peak memory occupied by rendered chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(DeferredVideoBenchmark.FRAMES)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+open class DeferredVideoBenchmark {
+
+    enum class Scenario {
+        /** A page scrolls by an integer number of pixels per frame. */
+        SCROLL,
+        /** A page scrolls by a fractional number of pixels per frame, which yields multiple micro shifts. */
+        FRACTIONAL_SCROLL,
+        /** A page fades in, stays, and then fades out. */
+        FADE,
+        /** The end of one scrolling page overlaps with the start of the next one. */
+        OVERLAP,
+        /** A page with an embedded tape scrolls by. */
+        TAPE
+    }
+
+    @Param("1920x1080", "3840x2160")
+    @JvmField
+    var resolution: String = ""
+
+    @Param
+    @JvmField
+    var scenario: Scenario = Scenario.SCROLL
+
+    @Param("false", "true")
+    @JvmField
+    var randomAccessDraftMode: Boolean = false
+
+    private lateinit var video: DeferredVideo
+    private lateinit var userSpec: Bitmap.Spec
+    private lateinit var frameOrder: IntArray
+    private var tapeDir: Path? = null
+    private var rootTape: Tape? = null
+
+    private var invocations = 0
+    private var pageCacheHits = 0L
+    private var pageCacheMisses = 0L
+    private var pageCacheFallbacks = 0L
+    private var renderedChunks = 0L
+    private var chunkRenderNanos = 0L
+    private var peakChunkBytes = 0L
+
+    @Setup(Level.Trial)
+    fun setup() {
+        System.setProperty("java.awt.headless", "true")
+        setupNatives()
+
+        val (w, h) = resolution.split('x').map(String::toInt)
+        val res = Resolution(w, h)
+        video = DeferredVideo(res, FPS(24, 1))
+        when (scenario) {
+            Scenario.SCROLL ->
+                video.playScroll(drawPage(res, 0), FRAMES, 6.0, -h.toDouble(), FRAMES * 6.0 - h, 1.0)
+            Scenario.FRACTIONAL_SCROLL ->
+                video.playScroll(drawPage(res, 0), FRAMES, 2.25, -h.toDouble(), FRAMES * 2.25 - h, 1.0)
+            Scenario.FADE -> {
+                val page = drawPage(res, 0)
+                video.playFade(page, FRAMES / 4, 0.0, Transition.LINEAR, fadeIn = true)
+                video.playStatic(page, FRAMES / 2, 0.0, 1.0)
+                video.playFade(page, FRAMES / 4, 0.0, Transition.LINEAR, fadeIn = false)
+            }
+            Scenario.OVERLAP -> {
+                // A negative blank rewinds the video, so the second page starts while the first one is still playing.
+                val n = FRAMES * 2 / 3
+                video.playScroll(drawPage(res, 0), n, 4.0, -h.toDouble(), n * 4.0 - h, 1.0)
+                video.playBlank(-(2 * n - FRAMES))
+                video.playScroll(drawPage(res, 1), n, 4.0, -h.toDouble(), n * 4.0 - h, 1.0)
+            }
+            Scenario.TAPE -> {
+                val page = drawPage(res, 0)
+                val tape = createTape(Resolution(w / 3, h / 3))
+                page.drawEmbeddedTape(DeferredImage.EmbeddedTape(tape), w / 3.0, (h / 2.0).toY())
+                video.playScroll(page, FRAMES, 3.0, -h.toDouble(), FRAMES * 3.0 - h, 1.0)
+            }
+        }
+        check(video.numFrames == FRAMES)
+
+        userSpec = Bitmap.Spec(
+            res, Bitmap.Representation(
+                Bitmap.PixelFormat.of(AV_PIX_FMT_YUV422P10), Bitmap.Range.LIMITED, ColorSpace.BT709, BT709_NCL,
+                AVCHROMA_LOC_LEFT, OPAQUE
+            )
+        )
+        // The preview accesses frames in a random order, which is what the random access draft mode is made for.
+        frameOrder = IntArray(FRAMES) { it }
+        if (randomAccessDraftMode)
+            frameOrder.shuffle(Random(0))
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        rootTape?.close()
+        tapeDir?.toFile()?.deleteRecursively()
+
+        val queries = pageCacheHits + pageCacheMisses
+        val estimatedBytes = DeferredVideo.BitmapBackend.estimateNativeBytes(video, userSpec, randomAccessDraftMode)
+        println()
+        println("Page cache hit rate:      %.1f %% of %d queries".format(100.0 * pageCacheHits / queries, queries))
+        println("Page cache fallbacks:     %.1f per video".format(pageCacheFallbacks.toDouble() / invocations))
+        println("Rendered chunks:          %.1f per video".format(renderedChunks.toDouble() / invocations))
+        println("Average chunk render:     %.2f ms".format(chunkRenderNanos / 1e6 / renderedChunks))
+        println("Peak chunk memory:        %.1f MiB".format(peakChunkBytes / 1048576.0))
+        println("Estimated backend memory: %.1f MiB".format(estimatedBytes / 1048576.0))
+    }
+
+    @Benchmark
+    fun materializeVideo() {
+        DeferredVideo.BitmapBackend(
+            video, listOf(DeferredImage.STATIC), listOf(DeferredImage.TAPES), grounding = Color4f.BLACK, userSpec,
+            randomAccessDraftMode = randomAccessDraftMode
+        ).use { backend ->
+            for (frameIdx in frameOrder)
+                backend.materializeFrame(frameIdx)?.close()
+            val stats = backend.stats
+            invocations++
+            pageCacheHits += stats.pageCacheHits
+            pageCacheMisses += stats.pageCacheMisses
+            pageCacheFallbacks += stats.pageCacheFallbacks
+            renderedChunks += stats.renderedChunks
+            chunkRenderNanos += stats.chunkRenderNanos
+            peakChunkBytes = maxOf(peakChunkBytes, stats.peakChunkBytes)
+        }
+    }
+
+    /** Draws a page that is a couple of screens tall and is dotted with blocks resembling credits. */
+    private fun drawPage(res: Resolution, seed: Int): DeferredImage {
+        val (w, h) = res
+        val page = DeferredImage(w.toDouble(), (3.0 * h).toY())
+        val random = Random(seed)
+        val blockH = h / 20.0
+        var y = blockH
+        while (y < 3.0 * h - 2 * blockH) {
+            val color = Color4f(random.nextFloat(), random.nextFloat(), random.nextFloat(), SRGB)
+            page.drawRect(color, w * 0.2, y.toY(), w * 0.25, (blockH * 0.6).toY(), fill = true)
+            page.drawShape(color, Ellipse2D.Double(0.0, 0.0, blockH * 0.6, blockH * 0.6), w * 0.5, y.toY(), fill = true)
+            page.drawRect(Color4f.WHITE, w * 0.55, y.toY(), w * 0.25, (blockH * 0.6).toY(), fill = true)
+            y += blockH
+        }
+        return page
+    }
+
+    /** Writes an image sequence with one solid-colored frame per video frame and returns it as a tape. */
+    private fun createTape(res: Resolution): Tape {
+        val dir = createTempDirectory().also { tapeDir = it }
+        val spec = Bitmap.Spec(res, Bitmap.Representation(Bitmap.PixelFormat.of(AV_PIX_FMT_RGB24), SRGB, OPAQUE))
+        val bitmapWriter = BitmapWriter.PNG(Bitmap.PixelFormat.Family.RGB, hasAlpha = false, SRGB)
+        for (frameIdx in 0..<FRAMES)
+            Bitmap.allocate(spec).use { bitmap ->
+                val pixel = byteArrayOf(frameIdx.toByte(), (255 - frameIdx).toByte(), (frameIdx * 7).toByte())
+                val row = ByteArray(res.widthPx * 3) { pixel[it % 3] }
+                bitmap.put(ByteArray(res.heightPx * row.size) { row[it % row.size] }, row.size)
+                bitmapWriter.convertAndWrite(bitmap, dir.resolve("$frameIdx.png"))
+            }
+        val tape = checkNotNull(Tape.recognize(dir)).also { rootTape = it }
+        val rep = tape.spec.representation
+        return tape.dependentReinterpretedTape(
+            rep.range, SRGB, rep.yuvCoefficients, rep.alpha, Bitmap.Scan.PROGRESSIVE, Bitmap.Content.PROGRESSIVE_FRAME
+        )
+    }
+
+
+    companion object {
+        const val FRAMES = 240
+    }
+
+}
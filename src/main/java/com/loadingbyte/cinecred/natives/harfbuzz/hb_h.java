@@ -1028,6 +1028,64 @@ public class hb_h extends hb_h$shared {
         }
     }
 
+    private static class hb_face_get_empty {
+        public static final FunctionDescriptor DESC = FunctionDescriptor.of(
+            hb_h.C_POINTER    );
+
+        public static final MemorySegment ADDR = SYMBOL_LOOKUP.findOrThrow("hb_face_get_empty");
+
+        public static final MethodHandle HANDLE = Linker.nativeLinker().downcallHandle(ADDR, DESC);
+    }
+
+    /**
+     * Function descriptor for:
+     * {@snippet lang=c :
+     * extern hb_face_t *hb_face_get_empty()
+     * }
+     */
+    public static FunctionDescriptor hb_face_get_empty$descriptor() {
+        return hb_face_get_empty.DESC;
+    }
+
+    /**
+     * Downcall method handle for:
+     * {@snippet lang=c :
+     * extern hb_face_t *hb_face_get_empty()
+     * }
+     */
+    public static MethodHandle hb_face_get_empty$handle() {
+        return hb_face_get_empty.HANDLE;
+    }
+
+    /**
+     * Address for:
+     * {@snippet lang=c :
+     * extern hb_face_t *hb_face_get_empty()
+     * }
+     */
+    public static MemorySegment hb_face_get_empty$address() {
+        return hb_face_get_empty.ADDR;
+    }
+
+    /**
+     * {@snippet lang=c :
+     * extern hb_face_t *hb_face_get_empty()
+     * }
+     */
+    public static MemorySegment hb_face_get_empty() {
+        var mh$ = hb_face_get_empty.HANDLE;
+        try {
+            if (TRACE_DOWNCALLS) {
+                traceDowncall("hb_face_get_empty");
+            }
+            return (MemorySegment)mh$.invokeExact();
+        } catch (Error | RuntimeException ex) {
+           throw ex;
+        } catch (Throwable ex$) {
+           throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
     private static class hb_face_reference_blob {
         public static final FunctionDescriptor DESC = FunctionDescriptor.of(
             hb_h.C_POINTER,
@@ -2118,6 +2176,65 @@ public class hb_h extends hb_h$shared {
         }
     }
 
+    private static class hb_buffer_clear_contents {
+        public static final FunctionDescriptor DESC = FunctionDescriptor.ofVoid(
+            hb_h.C_POINTER
+        );
+
+        public static final MemorySegment ADDR = SYMBOL_LOOKUP.findOrThrow("hb_buffer_clear_contents");
+
+        public static final MethodHandle HANDLE = Linker.nativeLinker().downcallHandle(ADDR, DESC);
+    }
+
+    /**
+     * Function descriptor for:
+     * {@snippet lang=c :
+     * extern void hb_buffer_clear_contents(hb_buffer_t *buffer)
+     * }
+     */
+    public static FunctionDescriptor hb_buffer_clear_contents$descriptor() {
+        return hb_buffer_clear_contents.DESC;
+    }
+
+    /**
+     * Downcall method handle for:
+     * {@snippet lang=c :
+     * extern void hb_buffer_clear_contents(hb_buffer_t *buffer)
+     * }
+     */
+    public static MethodHandle hb_buffer_clear_contents$handle() {
+        return hb_buffer_clear_contents.HANDLE;
+    }
+
+    /**
+     * Address for:
+     * {@snippet lang=c :
+     * extern void hb_buffer_clear_contents(hb_buffer_t *buffer)
+     * }
+     */
+    public static MemorySegment hb_buffer_clear_contents$address() {
+        return hb_buffer_clear_contents.ADDR;
+    }
+
+    /**
+     * {@snippet lang=c :
+     * extern void hb_buffer_clear_contents(hb_buffer_t *buffer)
+     * }
+     */
+    public static void hb_buffer_clear_contents(MemorySegment buffer) {
+        var mh$ = hb_buffer_clear_contents.HANDLE;
+        try {
+            if (TRACE_DOWNCALLS) {
+                traceDowncall("hb_buffer_clear_contents", buffer);
+            }
+            mh$.invokeExact(buffer);
+        } catch (Error | RuntimeException ex) {
+           throw ex;
+        } catch (Throwable ex$) {
+           throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
     private static class hb_buffer_set_direction {
         public static final FunctionDescriptor DESC = FunctionDescriptor.ofVoid(
             hb_h.C_POINTER,
@@ -0,0 +1,446 @@
+package com.loadingbyte.cinecred
+
+import com.loadingbyte.cinecred.common.*
+import com.loadingbyte.cinecred.common.Severity.ERROR
+import com.loadingbyte.cinecred.delivery.MAX_RENDER_PROGRESS
+import com.loadingbyte.cinecred.delivery.RenderFormat
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.CINEFORM_PROFILE
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.DEPTH
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.DNXHR_PROFILE
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.DPX_COMPRESSION
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.EXR_COMPRESSION
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.FPS_SCALING
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.GENERIC_PROFILE
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.HDR
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.PDF_PROFILE
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.PRIMARIES
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.PRORES_PROFILE
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.SCAN
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.SPATIAL_SCALING_LOG2
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.TIFF_COMPRESSION
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.TRANSFER
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.TRANSPARENCY
+import com.loadingbyte.cinecred.delivery.RenderFormat.Property.Companion.YUV
+import com.loadingbyte.cinecred.drawer.DrawnPage
+import com.loadingbyte.cinecred.drawer.DrawnProject
+import com.loadingbyte.cinecred.imaging.Font
+import com.loadingbyte.cinecred.imaging.Picture
+import com.loadingbyte.cinecred.imaging.Tape
+import com.loadingbyte.cinecred.projectio.ParserMsg
+import com.loadingbyte.cinecred.projectio.ProjectIntake
+import com.loadingbyte.cinecred.projectio.STYLING_FILE_NAME
+import com.loadingbyte.cinecred.projectio.readStyling
+import com.loadingbyte.cinecred.ui.comms.RenderFormatCategory
+import com.loadingbyte.cinecred.ui.processProject
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import kotlin.io.path.*
+
+
+const val HEADLESS_RENDER_COMMAND = "--render"
+
+internal const val EXIT_JOB_FAILED = 1
+internal const val EXIT_USAGE = 2
+internal const val EXIT_PROJECT_ERRONEOUS = 3
+
+private val PROPERTIES: Map<String, RenderFormat.Property<*>> = linkedMapOf(
+    "transparency" to TRANSPARENCY,
+    "spatial-scaling-log2" to SPATIAL_SCALING_LOG2,
+    "fps-scaling" to FPS_SCALING,
+    "primaries" to PRIMARIES,
+    "transfer" to TRANSFER,
+    "yuv" to YUV,
+    "hdr" to HDR,
+    "depth" to DEPTH,
+    "scan" to SCAN,
+    "tiff-compression" to TIFF_COMPRESSION,
+    "dpx-compression" to DPX_COMPRESSION,
+    "exr-compression" to EXR_COMPRESSION,
+    "generic-profile" to GENERIC_PROFILE,
+    "prores-profile" to PRORES_PROFILE,
+    "dnxhr-profile" to DNXHR_PROFILE,
+    "cineform-profile" to CINEFORM_PROFILE,
+    "pdf-profile" to PDF_PROFILE
+)
+
+private val USAGE = """
+Usage:
+  cinecred --render <project dir> --format <format> --output <file or dir> [options]
+  cinecred --render <project dir> --jobs <jobs.toml> [--credits-timeout <seconds>]
+
+Options of every invocation:
+  --credits-timeout <seconds>        Give up if the credits haven't loaded by then (default: wait indefinitely)
+
+Options of a single job:
+  --category <video|whole_page|tape_timeline>  Format category (default: video)
+  --credits <file name>              Credits file to render (default: the first one)
+  --spreadsheet <name>               Spreadsheet in the credits file (default: the first one)
+  --pages <first>-<last>             Range of pages to render, 1-based (default: all)
+  --pattern <filename pattern>       Filenames of sequences, with #'s standing for the frame number
+  --resolution <width>x<height>      Resolution of raster formats (default: from the styling)
+  --set <property>=<value>           Configure the format, e.g., --set fps-scaling=2 --set transparency=matte
+
+A jobs file contains a [[job]] table for each job, whose keys are the above option names without the dashes.
+The "set" key holds a table of properties. Relative paths are resolved against the jobs file's folder.
+
+Properties: ${PROPERTIES.keys.joinToString()}
+""".trimIndent()
+
+
+/**
+ * Renders a project without ever bringing up the UI, and returns the process exit code. This is meant for build
+ * servers and other automation, which is why all output is plain text and every failure is reflected in the exit code.
+ */
+fun mainHeadless(args: Array<String>): Int {
+    val invocation = try {
+        parseInvocation(args)
+    } catch (e: UsageException) {
+        System.err.println(e.message)
+        System.err.println()
+        System.err.println(USAGE)
+        return EXIT_USAGE
+    }
+    val projectDir = invocation.projectDir
+    val jobSpecs = invocation.jobSpecs
+
+    if (!projectDir.resolve(STYLING_FILE_NAME).isRegularFile()) {
+        System.err.println("Not a project dir: $projectDir")
+        return EXIT_USAGE
+    }
+
+    // The headless property must be set before anything touches AWT, and it also tells setupNatives() to not load
+    // libraries that only the UI needs.
+    System.setProperty("java.awt.headless", "true")
+    setupNatives()
+    System.setProperty("pdfbox.fontcache", CONFIG_DIR.absolutePathString())
+
+    // The drawn project refers to the pictures and tapes of the project intake, so keep it open until all jobs are done.
+    return loadAndProcessProject(projectDir, invocation.creditsTimeoutSeconds) { drawnProject ->
+        runJobs(drawnProject, jobSpecs)
+    } ?: EXIT_PROJECT_ERRONEOUS
+}
+
+
+private fun runJobs(drawnProject: DrawnProject, jobSpecs: List<JobSpec>): Int {
+    var numFailed = 0
+    for ((idx, jobSpec) in jobSpecs.withIndex()) {
+        println("Job ${idx + 1}/${jobSpecs.size}: ${jobSpec.format} \u2192 ${jobSpec.output}")
+        try {
+            runJob(drawnProject, jobSpec)
+        } catch (e: UsageException) {
+            System.err.println("  Skipped: ${e.message}")
+            numFailed++
+        } catch (e: Exception) {
+            LOGGER.error("Render job {} failed.", idx + 1, e)
+            System.err.println("  Failed: ${e.userNotification}")
+            numFailed++
+        }
+    }
+
+    println("${jobSpecs.size - numFailed} of ${jobSpecs.size} jobs succeeded.")
+    return if (numFailed == 0) 0 else EXIT_JOB_FAILED
+}
+
+
+internal class Invocation(
+    val projectDir: Path,
+    val jobSpecs: List<JobSpec>,
+    /** Null means that we wait for the credits indefinitely. */
+    val creditsTimeoutSeconds: Long?
+)
+
+
+/** @throws UsageException If the arguments are malformed. */
+internal fun parseInvocation(args: Array<String>): Invocation {
+    val opts = parseOptions(args)
+    val projectDir = (opts.remove("") ?: throw UsageException("Missing project dir.")).toPath().absolute()
+    val creditsTimeoutSeconds = opts.remove("credits-timeout")?.let { str ->
+        str.trim().toLongOrNull()?.takeIf { it > 0 } ?: throw UsageException("Bad credits timeout: $str")
+    }
+    val jobsFile = opts.remove("jobs")
+    val jobSpecs = if (jobsFile != null) {
+        if (opts.isNotEmpty())
+            throw UsageException("When using a jobs file, no other options may be passed.")
+        try {
+            readJobsFile(jobsFile.toPath().absolute())
+        } catch (e: IOException) {
+            throw UsageException("Cannot read the jobs file: ${e.message}")
+        }
+    } else
+        listOf(JobSpec.parse(opts, Path("").absolute()))
+    return Invocation(projectDir, jobSpecs, creditsTimeoutSeconds)
+}
+
+
+/** The intake pushes from its own threads, so the fields are volatile to make the pushes visible to the caller. */
+private class PushedAuxiliaries {
+    @Volatile var projectFonts: Map<String, Font> = emptyMap()
+    @Volatile var pictureLoaders: Map<String, Picture.Loader> = emptyMap()
+    @Volatile var tapes: Map<String, Tape> = emptyMap()
+}
+
+
+/**
+ * Loads and processes the project, and then passes it to [action] while the project's auxiliary files are still open.
+ *
+ * @return The result of [action], or null if the project is erroneous.
+ */
+private fun <R> loadAndProcessProject(
+    projectDir: Path, creditsTimeoutSeconds: Long?, action: (DrawnProject) -> R
+): R? {
+    val pushed = PushedAuxiliaries()
+    val creditsFuture = CompletableFuture<Pair<List<ProjectIntake.CreditsWorkbook>, List<ParserMsg>>>()
+
+    // The intake pushes the auxiliary files before its constructor returns, and the credits later from its own thread.
+    // Online credits may only arrive with a later push, so as long as they are pending, we wait for that push.
+    val intake = ProjectIntake(projectDir, object : ProjectIntake.Callbacks {
+        override fun pushCreditsWorkbooks(
+            creditsWorkbooks: Collection<ProjectIntake.CreditsWorkbook>, log: List<ParserMsg>, pollable: Boolean
+        ) {
+            if (!pollable || log.isNotEmpty() || creditsWorkbooks.any { it.spreadsheets.isNotEmpty() })
+                creditsFuture.complete(Pair(creditsWorkbooks.sortedWithCollator(caseInsensitiveCollator()) {
+                    it.fileName
+                }, log))
+        }
+
+        override fun pushProjectFonts(projectFonts: Map<String, Font>) {
+            pushed.projectFonts = projectFonts
+        }
+
+        override fun pushPictureLoaders(pictureLoaders: Map<String, Picture.Loader>) {
+            pushed.pictureLoaders = pictureLoaders
+        }
+
+        override fun pushTapes(tapes: Map<String, Tape>) {
+            pushed.tapes = tapes
+        }
+    })
+
+    val projectFonts = pushed.projectFonts
+    val pictureLoaders = pushed.pictureLoaders
+    val tapes = pushed.tapes
+
+    try {
+        val styling = try {
+            readStyling(projectDir.resolve(STYLING_FILE_NAME), projectFonts, pictureLoaders, tapes)
+        } catch (e: IOException) {
+            LOGGER.error("Could not read the styling file.", e)
+            System.err.println("Cannot read the styling file: ${e.userNotification}")
+            return null
+        }
+
+        val (creditsWorkbooks, ioLog) = try {
+            if (creditsTimeoutSeconds == null) creditsFuture.get() else
+                creditsFuture.get(creditsTimeoutSeconds, TimeUnit.SECONDS)
+        } catch (_: TimeoutException) {
+            System.err.println("Timed out while waiting for the credits to load.")
+            return null
+        }
+
+        val startTime = System.nanoTime()
+        val processed = processProject(creditsWorkbooks, projectFonts, pictureLoaders, tapes, styling)
+        val log = ioLog + processed.log
+        for (msg in log.sortedByDescending(ParserMsg::severity))
+            System.err.println(formatLogMsg(msg))
+        for (violation in processed.constraintViolations)
+            if (violation.severity == ERROR)
+                System.err.println("ERROR  Styling: ${stripHtml(violation.msg ?: "")}")
+
+        val drawnProject = processed.drawnProject
+        if (drawnProject == null || log.any { it.severity == ERROR }) {
+            System.err.println("The project is erroneous and cannot be rendered.")
+            return null
+        }
+        println("Processed the project in %.1f s.".format((System.nanoTime() - startTime) / 1e9))
+        return action(drawnProject)
+    } finally {
+        intake.close()
+    }
+}
+
+
+private fun runJob(drawnProject: DrawnProject, spec: JobSpec) {
+    val category = RenderFormatCategory.entries.find { it.name.equals(spec.category, ignoreCase = true) }
+        ?: throw UsageException("Unknown format category: ${spec.category}")
+    val format = category.formats.find { it.label.equals(spec.format, ignoreCase = true) }
+        ?: throw UsageException(
+            "Unknown ${category.name.lowercase()} format: ${spec.format}. " +
+                    "Available: ${category.formats.joinToString { it.label }}"
+        )
+
+    val drawnCreditsBook = if (spec.credits == null) drawnProject.drawnCreditsBooks.firstOrNull() else
+        drawnProject.drawnCreditsBooks.find { it.creditsBook.fileName == spec.credits }
+    val drawnCredits = drawnCreditsBook?.drawnCredits?.let { drawnCredits ->
+        if (spec.spreadsheet == null) drawnCredits.firstOrNull() else
+            drawnCredits.find { it.credits.spreadsheetName == spec.spreadsheet }
+    } ?: throw UsageException("No such credits: ${spec.credits ?: ""} ${spec.spreadsheet ?: ""}".trim())
+
+    val lookup = RenderFormat.Config.Lookup()
+    for ((key, value) in spec.properties) {
+        val property = PROPERTIES[key] ?: throw UsageException("Unknown property: $key")
+        // The format's configs contain all values that are actually supported, which may exceed the standard options.
+        val options = format.configs.mapNotNullTo(LinkedHashSet()) { config ->
+            if (property in config) config[property] else null
+        }
+        val option = options.find { it.toString().equals(value, ignoreCase = true) } ?: throw UsageException(
+            "Format ${format.label} doesn't support $key=$value. Available: ${options.joinToString()}"
+        )
+        @Suppress("UNCHECKED_CAST")
+        lookup[property as RenderFormat.Property<Any?>] = option
+    }
+    val config = lookup.findConfig(format)
+        ?: throw UsageException("Format ${format.label} doesn't support this combination of properties.")
+
+    val drawnPages = drawnCredits.drawnPages
+    val pageRange = spec.pages ?: drawnPages.indices
+    if (pageRange.isEmpty() || pageRange.first < 0 || pageRange.last > drawnPages.lastIndex)
+        throw UsageException("The credits only have ${drawnPages.size} pages.")
+    val pageDefImages = drawnPages.slice(pageRange).map(DrawnPage::defImage)
+    val video = if (category == RenderFormatCategory.WHOLE_PAGE) null else drawnCredits.video.sub(
+        // Special cases for the first and large image ensure that surrounding black frames are retained.
+        if (pageRange.first == 0) null else pageDefImages.first(),
+        if (pageRange.last == drawnPages.lastIndex) null else pageDefImages.last()
+    )
+
+    val filenameHashPattern = if (!format.fileSeq) "" else
+        spec.pattern ?: ("#".repeat(if (video == null) 2 else 7) + "." + format.defaultFileExt)
+    val filenamePattern = filenameHashPattern.replace(Regex("#+")) { match -> "%0${match.value.length}d" }
+
+    val job = format.createRenderJob(
+        config, RenderFormat.Sliders(spec.resolution), drawnProject.project.styling, pageDefImages, video,
+        spec.output, filenamePattern
+    )
+
+    val startTime = System.nanoTime()
+    var prevDecile = -1
+    job.render { progress ->
+        val decile = progress * 10 / MAX_RENDER_PROGRESS
+        if (decile != prevDecile) {
+            prevDecile = decile
+            println("  ${decile * 10}%")
+        }
+    }
+    val seconds = (System.nanoTime() - startTime) / 1e9
+    if (video == null)
+        println("  Done in %.1f s.".format(seconds))
+    else {
+        val fpsScaling = if (FPS_SCALING in config) config[FPS_SCALING] else 1
+        val numFrames = video.copy(fpsScaling = fpsScaling).numFrames
+        println("  Done in %.1f s (%d frames, %.1f frames/s).".format(seconds, numFrames, numFrames / seconds))
+    }
+}
+
+
+internal class JobSpec(
+    val category: String,
+    val format: String,
+    val output: Path,
+    val credits: String?,
+    val spreadsheet: String?,
+    val pages: IntRange?,
+    val pattern: String?,
+    val resolution: Resolution?,
+    val properties: Map<String, String>
+) {
+    companion object {
+        /** Consumes the passed options, and throws if some unknown ones remain. */
+        fun parse(opts: MutableMap<String, String>, baseDir: Path, properties: Map<String, String>? = null): JobSpec {
+            val format = opts.remove("format") ?: throw UsageException("Missing format.")
+            val output = opts.remove("output") ?: throw UsageException("Missing output.")
+            val spec = JobSpec(
+                category = opts.remove("category") ?: RenderFormatCategory.VIDEO.name,
+                format = format,
+                output = baseDir.resolve(output.toPath()).normalize(),
+                credits = opts.remove("credits"),
+                spreadsheet = opts.remove("spreadsheet"),
+                pages = opts.remove("pages")?.let { str ->
+                    val parts = str.split('-').map { it.trim().toIntOrNull() }
+                    if (parts.size !in 1..2 || null in parts) throw UsageException("Bad pages: $str")
+                    parts.first()!! - 1..parts.last()!! - 1
+                },
+                pattern = opts.remove("pattern"),
+                resolution = opts.remove("resolution")?.let { str ->
+                    val parts = str.split('x').mapNotNull { it.trim().toIntOrNull() }
+                    if (parts.size != 2 || parts.any { it <= 0 }) throw UsageException("Bad resolution: $str")
+                    Resolution(parts[0], parts[1])
+                },
+                properties = properties ?: opts.filterKeys { it.startsWith("set:") }
+                    .mapKeys { (key, _) -> key.removePrefix("set:") }
+                    .also { opts.keys.removeAll { it.startsWith("set:") } }
+            )
+            if (opts.isNotEmpty())
+                throw UsageException("Unknown options: ${opts.keys.joinToString()}")
+            return spec
+        }
+    }
+}
+
+
+internal class UsageException(message: String) : Exception(message)
+
+
+/** Collects `--key value` pairs into a map, storing `--set k=v` as "set:k", and the single positional arg as "". */
+internal fun parseOptions(args: Array<String>): MutableMap<String, String> {
+    val opts = LinkedHashMap<String, String>()
+    var idx = 0
+    while (idx < args.size) {
+        val arg = args[idx++]
+        if (!arg.startsWith("--")) {
+            if (opts.put("", arg) != null)
+                throw UsageException("Unexpected argument: $arg")
+            continue
+        }
+        val value = args.getOrNull(idx++) ?: throw UsageException("Missing value for $arg.")
+        if (arg == "--set") {
+            val eq = value.indexOf('=')
+            if (eq <= 0)
+                throw UsageException("Expected <property>=<value>, but got: $value")
+            opts["set:" + value.substring(0, eq).trim()] = value.substring(eq + 1).trim()
+        } else
+            opts[arg.substring(2)] = value
+    }
+    return opts
+}
+
+
+/** @throws IOException */
+internal fun readJobsFile(jobsFile: Path): List<JobSpec> {
+    val toml = readToml(jobsFile)
+    val jobs = toml["job"] as? List<*>
+    if (jobs.isNullOrEmpty())
+        throw UsageException("The jobs file doesn't contain any [[job]] tables.")
+    return jobs.map { job ->
+        val table = job as? Map<*, *> ?: throw UsageException("Malformed [[job]] table in the jobs file.")
+        val opts = LinkedHashMap<String, String>()
+        var properties: Map<String, String> = emptyMap()
+        for ((key, value) in table)
+            if (key == "set")
+                properties = (value as? Map<*, *> ?: throw UsageException("The \"set\" key must hold a table."))
+                    .entries.associate { (k, v) -> k.toString() to v.toString() }
+            else
+                opts[key.toString()] = value.toString()
+        JobSpec.parse(opts, jobsFile.parent, properties)
+    }
+}
+
+
+private fun String.toPath(): Path =
+    toPathSafely() ?: throw UsageException("Not a valid path: $this")
+
+
+private fun formatLogMsg(msg: ParserMsg): String = buildString {
+    append(msg.severity.name.padEnd(7))
+    val location = listOfNotNull(
+        msg.fileName, msg.spreadsheetName, msg.recordNo?.let { "record $it" }, msg.colHeader
+    )
+    if (location.isNotEmpty())
+        append(location.joinToString(" \u2192 ")).append(": ")
+    append(stripHtml(msg.msg))
+}
+
+
+private fun stripHtml(str: String): String =
+    str.replace(Regex("<[^>]*>"), "")
@@ -10,6 +10,7 @@ import com.formdev.flatlaf.util.HSLColor
 import com.formdev.flatlaf.util.SystemInfo
 import com.loadingbyte.cinecred.common.*
 import com.loadingbyte.cinecred.imaging.DeckLink
+import com.loadingbyte.cinecred.ui.CACHE_BUDGET_PREFERENCE
 import com.loadingbyte.cinecred.ui.UIFactory
 import com.loadingbyte.cinecred.ui.UI_LOCALE_PREFERENCE
 import com.loadingbyte.cinecred.ui.comms.MasterCtrlComms
@@ -40,6 +41,7 @@ import javax.swing.*
 import kotlin.concurrent.schedule
 import kotlin.io.path.absolute
 import kotlin.io.path.absolutePathString
+import kotlin.system.exitProcess
 
 
 private const val SINGLETON_APP_ID = "com.loadingbyte.cinecred"
@@ -52,6 +54,14 @@ private val hasCrashed = AtomicBoolean()
 
 
 fun main(args: Array<String>) {
+    // When asked to render from the command line, never bring up the UI and don't register as the singleton instance,
+    // so that multiple headless renders as well as the regular application can run at the same time.
+    if (args.firstOrNull() == HEADLESS_RENDER_COMMAND) {
+        setupConsoleLogging()
+        setDisposableBudget(CACHE_BUDGET_PREFERENCE.get())
+        exitProcess(mainHeadless(args.copyOfRange(1, args.size)))
+    }
+
     // Cinecred is a singleton application. When the application is launched a second time, we just simulate
     // a second application instance in the same VM.
     if (Singleton.invoke(SINGLETON_APP_ID, args))
@@ -62,17 +72,15 @@ fun main(args: Array<String>) {
     // controlled fashion and inform the user. We also ask whether to send a crash report.
     Thread.setDefaultUncaughtExceptionHandler(UncaughtHandler)
 
-    // Remove all existing handlers from the root logger.
-    val rootLogger = Logger.getLogger("")
-    for (handler in rootLogger.handlers)
-        rootLogger.removeHandler(handler)
-    // Add new logging handlers.
-    rootLogger.addHandler(ConsoleHandler().apply { formatter = JULFormatter })
-    rootLogger.addHandler(JULBuilderHandler)
+    // Set up logging, and additionally record the log so that it can be shown to the user and put into crash reports.
+    setupConsoleLogging().addHandler(JULBuilderHandler)
 
     // Set up the native libraries.
     setupNatives()
 
+    // Limit the memory of our caches as configured by the user. This also happens for headless renders above.
+    setDisposableBudget(CACHE_BUDGET_PREFERENCE.get())
+
     // Make PDFBox store its font cache in our config directory.
     System.setProperty("pdfbox.fontcache", CONFIG_DIR.absolutePathString())
 
@@ -89,6 +97,17 @@ fun main(args: Array<String>) {
 }
 
 
+private fun setupConsoleLogging(): Logger {
+    // Remove all existing handlers from the root logger.
+    val rootLogger = Logger.getLogger("")
+    for (handler in rootLogger.handlers)
+        rootLogger.removeHandler(handler)
+    // Add a new logging handler.
+    rootLogger.addHandler(ConsoleHandler().apply { formatter = JULFormatter })
+    return rootLogger
+}
+
+
 fun setupNatives() {
     if (didSetupNatives.getAndSet(true))
         return
@@ -99,7 +118,8 @@ fun setupNatives() {
     System.loadLibrary("skiacapi")
     System.loadLibrary("harfbuzz")
     System.loadLibrary("zimg")
-    if (SystemInfo.isLinux)
+    // The native file dialogs are only needed by the UI, and their dependencies might be missing on headless machines.
+    if (SystemInfo.isLinux && !GraphicsEnvironment.isHeadless())
         System.loadLibrary("nfd")
     System.loadLibrary("decklinkcapi")
 
@@ -25,6 +25,7 @@ import java.text.MessageFormat
 import java.text.NumberFormat
 import java.util.*
 import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import javax.swing.JComponent
@@ -145,6 +146,36 @@ inline fun <V> throwableAwareValuedTask(crossinline task: () -> V) = Callable<V?
     }
 }
 
+/**
+ * Like [map], but transforms the elements concurrently on the [GLOBAL_THREAD_POOL]. The list is split into at most one
+ * contiguous batch per processor, and the calling thread transforms the first batch itself. If any transformation
+ * throws, this function still waits for all other batches before rethrowing.
+ */
+fun <T, R> List<T>.mapInParallel(transform: (T) -> R): List<R> {
+    val numBatches = size.coerceAtMost(Runtime.getRuntime().availableProcessors())
+    if (numBatches <= 1)
+        return map(transform)
+    val batches = List(numBatches) { b -> subList(size * b / numBatches, size * (b + 1) / numBatches) }
+    val futures = batches.subList(1, numBatches).map { batch ->
+        GLOBAL_THREAD_POOL.submit(Callable { batch.map(transform) })
+    }
+    val results = ArrayList<R>(size)
+    var failure: Throwable? = null
+    try {
+        results.addAll(batches[0].map(transform))
+    } catch (t: Throwable) {
+        failure = t
+    }
+    for (future in futures)
+        try {
+            results.addAll(future.get())
+        } catch (e: ExecutionException) {
+            if (failure == null) failure = e.cause
+        }
+    failure?.let { throw it }
+    return results
+}
+
 
 /** @throws IOException */
 fun execProcess(
@@ -261,18 +292,23 @@ fun Path.walkSafely(): List<Path> {
 }
 
 
-/** @throws IOException */
-fun Path.cleanDirectory() {
+/**
+ * Deletes everything inside this directory except for the [retained] files.
+ *
+ * @throws IOException
+ */
+fun Path.cleanDirectory(retained: Set<Path> = emptySet()) {
     Files.walkFileTree(this, object : SimpleFileVisitor<Path>() {
         override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
-            file.deleteIfExists()
+            if (file !in retained)
+                file.deleteIfExists()
             return FileVisitResult.CONTINUE
         }
 
         override fun postVisitDirectory(dir: Path, exc: IOException?): FileVisitResult {
             if (exc != null)
                 throw exc
-            if (dir != this@cleanDirectory)
+            if (dir != this@cleanDirectory && retained.none { it.startsWith(dir) })
                 dir.deleteIfExists()
             return FileVisitResult.CONTINUE
         }
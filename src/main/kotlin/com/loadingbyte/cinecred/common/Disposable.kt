@@ -1,51 +1,140 @@
 package com.loadingbyte.cinecred.common
 
+import com.google.gson.GsonBuilder
 import java.lang.management.ManagementFactory
 import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
+import kotlin.math.min
 
 
 class SizedValue<V : Any>(val value: V, val bytes: Long)
 
 
-class DisposableReference<V : Any>(sizedValue: SizedValue<V>) : AutoCloseable {
+/** Groups disposable values for the purposes of budgeting and statistics. */
+enum class DisposableCategory { PAGE_CHUNKS, TAPE_PREVIEWS, PICTURES, FONT_CASES, OTHER }
+
+
+/**
+ * Moves values that the tracker evicts from memory to a slower tier, like the disk, from where they can be restored
+ * faster than they could be recomputed. As [spill] is called while the tracker is locked, it must return quickly and
+ * defer the actual work to another thread. Also, it must not keep a reference to the [DisposableReference] whose value
+ * it spills, as that would prevent the reference from ever being garbage collected.
+ */
+fun interface DisposableSpiller<V : Any> {
+    fun spill(value: V): SpilledValue<V>
+}
+
+interface SpilledValue<V : Any> : AutoCloseable {
+    /** Whether [restore] might still succeed, i.e., the value has not been dropped from the slower tier. */
+    val isRestorable: Boolean
+    /** Returns a copy of the value, or null if it has not been stored yet or has been dropped since. */
+    fun restore(): SizedValue<V>?
+}
+
+
+/**
+ * If a [spiller] is given, the value is handed to it when the tracker evicts it, and [get] transparently restores it
+ * from there. As such, a value that has been restored is a copy, and values must not be modified once they have been
+ * handed to this reference.
+ */
+class DisposableReference<V : Any>(
+    sizedValue: SizedValue<V>,
+    private val category: DisposableCategory = DisposableCategory.OTHER,
+    spiller: DisposableSpiller<V>? = null
+) : AutoCloseable {
 
     private val trackerKey = Any()
-    private val cleanable = CLEANER.register(this, CleanerAction(trackerKey))
+    private val spillSlot = if (spiller == null) null else SpillSlot(spiller)
+    private val cleanable = CLEANER.register(this, CleanerAction(trackerKey, spillSlot))
 
     init {
-        DisposableTracker.put(trackerKey, sizedValue)
+        DisposableTracker.put(trackerKey, category, sizedValue, spillSlot)
     }
 
-    constructor(value: V, bytes: Long) : this(SizedValue(value, bytes))
+    constructor(
+        value: V,
+        bytes: Long,
+        category: DisposableCategory = DisposableCategory.OTHER,
+        spiller: DisposableSpiller<V>? = null
+    ) : this(SizedValue(value, bytes), category, spiller)
+
+    fun get(): V? {
+        peek()?.let { return it }
+        val spillSlot = this.spillSlot ?: return null
+        // Synchronize so that concurrent callers don't restore the same value multiple times.
+        synchronized(spillSlot) {
+            if (spillSlot.closed)
+                return null
+            peek()?.let { return it }
+            val restored = spillSlot.spilled?.restore() ?: return null
+            DisposableTracker.put(trackerKey, category, restored, spillSlot)
+            DisposableTracker.countRestore(category)
+            return restored.value
+        }
+    }
 
+    /** Like [get], but doesn't restore a value that has been spilled. */
     @Suppress("UNCHECKED_CAST")
-    fun get(): V? =
-        DisposableTracker.get(trackerKey) as V?
+    fun peek(): V? =
+        DisposableTracker.get(trackerKey, category) as V?
 
     override fun close() {
         cleanable.clean()
     }
 
+    /** Doesn't restore a value that has been spilled, as there is no point in doing so only to dispose of it. */
     fun getAndClose(): V? =
-        get().also { close() }
+        peek().also { close() }
 
-    private class CleanerAction(private val trackerKey: Any) : Runnable {
+    private class CleanerAction(private val trackerKey: Any, private val spillSlot: SpillSlot<*>?) : Runnable {
         override fun run() {
+            // Mark the slot as closed before removing the value, so that no concurrent get() can restore it afterward.
+            spillSlot?.let { synchronized(it) { it.closed = true } }
             DisposableTracker.remove(trackerKey)
+            spillSlot?.spilled?.close()
         }
     }
 
 }
 
 
-class DisposableCache<K : Any, V : Any> : AutoCloseable {
+/**
+ * Remembers where the value of a [DisposableReference] has been spilled to. The tracker accesses it while holding its
+ * lock, so to avoid deadlocks, it must never synchronize on the slot; the volatile fields suffice for its purposes.
+ */
+private class SpillSlot<V : Any>(private val spiller: DisposableSpiller<V>) {
+
+    @Volatile var spilled: SpilledValue<V>? = null
+    @Volatile var closed = false
+
+    @Suppress("UNCHECKED_CAST")
+    fun onEvict(value: Any) {
+        val prevSpilled = spilled
+        // A restored value is a copy of the spilled one, so if the spilled one is still around, there's nothing to do.
+        if (closed || prevSpilled != null && prevSpilled.isRestorable)
+            return
+        spilled = spiller.spill(value as V)
+        prevSpilled?.close()
+        // If the reference has been closed in the meantime, its cleaner action might have missed the new spill.
+        if (closed)
+            spilled?.close()
+    }
+
+}
+
+
+class DisposableCache<K : Any, V : Any>(
+    private val category: DisposableCategory = DisposableCategory.OTHER
+) : AutoCloseable {
 
     private val cacheId = Any()
-    // The key set is only accessed or modified when the MemoryTracker lock is held, hence we don't need more locking.
-    private val trackerKeys = Collections.newSetFromMap(WeakHashMap<TrackerKey, Boolean>())
+    // The key set is modified while the tracker computes a new entry, which may happen concurrently for different keys.
+    private val trackerKeys = Collections.synchronizedSet(Collections.newSetFromMap(WeakHashMap<TrackerKey, Boolean>()))
     private val cleanable = CLEANER.register(this, CleanerAction(trackerKeys))
 
     inline fun get(key: K, crossinline compute: () -> SizedValue<V>): V =
@@ -54,7 +143,7 @@ class DisposableCache<K : Any, V : Any> : AutoCloseable {
     fun getAsync(key: K, compute: () -> CompletableFuture<SizedValue<V>>): CompletableFuture<V> {
         val trackerKey = TrackerKey(cacheId, key)
         var computeFuture: CompletableFuture<SizedValue<*>>? = null
-        val getFuture = DisposableTracker.cache(trackerKey) {
+        val getFuture = DisposableTracker.cache(trackerKey, category) {
             trackerKeys += trackerKey
             CompletableFuture<SizedValue<*>>().also { computeFuture = it }
         }
@@ -70,7 +159,7 @@ class DisposableCache<K : Any, V : Any> : AutoCloseable {
 
     @Suppress("UNCHECKED_CAST")
     fun getAllAsync(): List<CompletableFuture<V>> =
-        DisposableTracker.getAllAsync(trackerKeys) as List<CompletableFuture<V>>
+        DisposableTracker.getAllAsync(synchronized(trackerKeys) { trackerKeys.toList() }) as List<CompletableFuture<V>>
 
     override fun close() {
         cleanable.clean()
@@ -78,92 +167,429 @@ class DisposableCache<K : Any, V : Any> : AutoCloseable {
 
     private data class TrackerKey(private val cacheId: Any, private val cacheKey: Any)
 
-    private class CleanerAction(private val trackerKeys: Iterable<TrackerKey>) : Runnable {
+    private class CleanerAction(private val trackerKeys: MutableSet<TrackerKey>) : Runnable {
         override fun run() {
-            DisposableTracker.removeAll(trackerKeys)
+            DisposableTracker.removeAll(synchronized(trackerKeys) { trackerKeys.toList() })
         }
     }
 
 }
 
 
-private object DisposableTracker {
+/**
+ * The amount of system memory available in total. To find it out, we take the maximum heap size, then divide by the
+ * maximum heap size to RAM ratio specified at VM start up. If the VM was started without that option, for example by an
+ * IDE, it uses its default ratio of 25%.
+ */
+val TOTAL_SYSTEM_MEMORY: Long by lazy {
+    val opt = "-XX:MaxRAMPercentage"
+    val arg = ManagementFactory.getRuntimeMXBean().inputArguments.find { it.startsWith(opt) }
+    val ratio = if (arg == null) 0.25 else arg.substring(opt.length + 1).toDouble() / 100.0
+    (Runtime.getRuntime().maxMemory() / ratio).toLong()
+}
 
-    private val maxBytes: Long
 
-    init {
-        // We want to limit memory-tracked objects to use at most 20% of the available memory. To find out how much
-        // system memory is available in total, we find the maximum heap size, then divide by the maximum heap size to
-        // RAM ratio specified at VM start up.
-        val opt = "-XX:MaxRAMPercentage"
-        val arg = ManagementFactory.getRuntimeMXBean().inputArguments.find { it.startsWith(opt) }
-        checkNotNull(arg) { "Expected the VM to be run with $opt." }
-        val ratio = arg.substring(opt.length + 1).toDouble() / 100.0
-        maxBytes = (0.2 * (Runtime.getRuntime().maxMemory() / ratio)).toLong()
+/**
+ * Lets all disposable values together occupy at most [totalPercent] of the [TOTAL_SYSTEM_MEMORY]. Each category can
+ * additionally be capped to a percentage of that budget; categories without a cap may use up the entire budget.
+ */
+data class DisposableBudget(val totalPercent: Int, val categoryPercents: Map<DisposableCategory, Int> = emptyMap()) {
+    companion object {
+        val DEFAULT = DisposableBudget(20)
     }
+}
 
-    private val lock = ReentrantLock()
-    private val map = LinkedHashMap<Any, CompletableFuture<SizedValue<*>>>(16, 0.75f, true)
-    private var curBytes = 0L
+fun setDisposableBudget(budget: DisposableBudget) {
+    DisposableTracker.setBudget(budget)
+}
 
-    fun get(key: Any): Any? =
-        lock.withLock {
-            map[key]
-        }?.let { future -> future.get().value }
 
-    fun getAllAsync(keys: Iterable<Any>): List<CompletableFuture<*>> {
-        return lock.withLock {
-            keys.mapNotNull { key -> map[key]?.thenApply(SizedValue<*>::value) }
+/** A snapshot of the counters that the tracker keeps for one category of disposable values. */
+class DisposableStats(
+    val category: DisposableCategory,
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val evictedBytes: Long,
+    val restores: Long,
+    val entries: Int,
+    val usedBytes: Long,
+    val maxBytes: Long
+)
+
+/** Returns the statistics of each category, ordered like the categories. */
+fun getDisposableStats(): List<DisposableStats> = DisposableTracker.stats()
+
+fun disposableStatsToJSON(stats: List<DisposableStats>): String {
+    val root = mapOf(
+        "totalSystemMemory" to TOTAL_SYSTEM_MEMORY,
+        "categories" to stats.map { s ->
+            mapOf(
+                "category" to s.category.name, "hits" to s.hits, "misses" to s.misses, "evictions" to s.evictions,
+                "evictedBytes" to s.evictedBytes, "restores" to s.restores, "entries" to s.entries,
+                "usedBytes" to s.usedBytes, "maxBytes" to s.maxBytes
+            )
         }
+    )
+    return GsonBuilder().setPrettyPrinting().create().toJson(root)
+}
+
+
+/**
+ * Keeps the memory occupied by all disposable values below a budget, using a policy that resembles W-TinyLFU: new
+ * values enter a small LRU window, and when they leave it, they are only admitted to the main space if they have been
+ * accessed more frequently than all the values they would displace; otherwise, they are dropped themselves. That way,
+ * a large value that is only used once can't push out lots of small values that are used all the time. Only values that
+ * are larger than the window itself skip the competition, as they never get the chance to be accessed while in the
+ * window. The main space is a segmented LRU, whose protected segment holds the values that have been accessed again
+ * after their admission.
+ *
+ * Lookups don't take the lock. Instead, they record their access in striped buffers, which are drained into the policy
+ * whenever they fill up or the lock is held anyway. If a buffer is full, an access may get lost, which is harmless.
+ *
+ * On top of that, each [DisposableCategory] that exceeds its cap gives up its least recently used values.
+ *
+ * Evicted values whose reference has a [DisposableSpiller] are handed to it, so that they can later be restored.
+ */
+private object DisposableTracker {
+
+    private val map = ConcurrentHashMap<Any, Node>()
+    private val readBuffers = Array(Runtime.getRuntime().availableProcessors()) {
+        ArrayBlockingQueue<Node>(READ_BUFFER_CAPACITY)
     }
 
-    fun put(key: Any, sv: SizedValue<*>) {
+    private val numCategories = DisposableCategory.entries.size
+    private val hits = Array(numCategories) { LongAdder() }
+    private val misses = Array(numCategories) { LongAdder() }
+    private val evictions = Array(numCategories) { LongAdder() }
+    private val evictedBytes = Array(numCategories) { LongAdder() }
+    private val restores = Array(numCategories) { LongAdder() }
+
+    // These fields are only accessed while holding the lock.
+    private val lock = ReentrantLock()
+    private var maxBytes = 0L
+    private var maxWindowBytes = 0L
+    private var maxProtectedBytes = 0L
+    private val categoryMaxBytes = LongArray(numCategories)
+    private val categoryBytes = LongArray(numCategories)
+    private val categoryEntries = IntArray(numCategories)
+    // The values of each category across all segments, ordered from least to most recently used.
+    private val categoryLRUs = Array(numCategories) { LinkedHashSet<Node>() }
+    private val window = LinkedHashSet<Node>()
+    private val probation = LinkedHashSet<Node>()
+    private val protectedSegment = LinkedHashSet<Node>()
+    private var windowBytes = 0L
+    private var mainBytes = 0L
+    private var protectedBytes = 0L
+    private val sketch = FrequencySketch()
+
+    init {
+        setBudget(DisposableBudget.DEFAULT)
+    }
+
+    fun setBudget(budget: DisposableBudget) {
         lock.withLock {
-            if (map.put(key, CompletableFuture.completedFuture(sv)) != null)
-                throw UnsupportedOperationException("Cannot override previous mappings.")
-            curBytes += sv.bytes
+            maxBytes = budget.totalPercent * TOTAL_SYSTEM_MEMORY / 100
+            maxWindowBytes = maxBytes / 10
+            maxProtectedBytes = (maxBytes - maxWindowBytes) / 5 * 4
+            for (category in DisposableCategory.entries)
+                categoryMaxBytes[category.ordinal] = (budget.categoryPercents[category] ?: 100) * maxBytes / 100
+            demoteIfFull()
             evictIfFull()
         }
     }
 
-    fun cache(key: Any, compute: () -> CompletableFuture<SizedValue<*>>): CompletableFuture<*> {
-        val future: CompletableFuture<SizedValue<*>>
-        lock.withLock {
-            future = map.computeIfAbsent(key) {
-                compute().also { future -> future.thenAccept { sv -> lock.withLock { curBytes += sv.bytes } } }
+    fun stats(): List<DisposableStats> {
+        // Read the counters outside the lock, as they are only loosely related to the sizes anyway.
+        val hits = hits.map(LongAdder::sum)
+        val misses = misses.map(LongAdder::sum)
+        val evictions = evictions.map(LongAdder::sum)
+        val evictedBytes = evictedBytes.map(LongAdder::sum)
+        val restores = restores.map(LongAdder::sum)
+        return lock.withLock {
+            DisposableCategory.entries.map { category ->
+                val c = category.ordinal
+                DisposableStats(
+                    category, hits[c], misses[c], evictions[c], evictedBytes[c], restores[c], categoryEntries[c],
+                    categoryBytes[c], categoryMaxBytes[c]
+                )
             }
-            evictIfFull()
         }
-        return future.thenApply(SizedValue<*>::value)
     }
 
-    fun remove(key: Any) {
-        lock.withLock {
-            map.remove(key)?.thenAccept { sv -> lock.withLock { curBytes -= sv.bytes } }
+    fun get(key: Any, category: DisposableCategory): Any? {
+        val node = map[key]
+        if (node == null) {
+            misses[category.ordinal].increment()
+            return null
+        }
+        hits[category.ordinal].increment()
+        recordAccess(node)
+        return node.future.get().value
+    }
+
+    fun getAllAsync(keys: Iterable<Any>): List<CompletableFuture<*>> =
+        keys.mapNotNull { key -> map[key]?.future?.thenApply(SizedValue<*>::value) }
+
+    fun put(key: Any, category: DisposableCategory, sv: SizedValue<*>, spillSlot: SpillSlot<*>? = null) {
+        val node = Node(key, category, CompletableFuture.completedFuture(sv), spillSlot)
+        if (map.putIfAbsent(key, node) != null)
+            throw UnsupportedOperationException("Cannot override previous mappings.")
+        lock.withLock { add(node, sv.bytes) }
+    }
+
+    fun cache(
+        key: Any,
+        category: DisposableCategory,
+        compute: () -> CompletableFuture<SizedValue<*>>
+    ): CompletableFuture<*> {
+        var created: Node? = null
+        val node = map[key] ?: map.computeIfAbsent(key) { Node(key, category, compute()).also { created = it } }
+        if (created == null) {
+            hits[category.ordinal].increment()
+            recordAccess(node)
+        } else {
+            misses[category.ordinal].increment()
+            node.future.thenAccept { sv -> lock.withLock { add(node, sv.bytes) } }
         }
+        return node.future.thenApply(SizedValue<*>::value)
+    }
+
+    fun countRestore(category: DisposableCategory) {
+        restores[category.ordinal].increment()
+    }
+
+    fun remove(key: Any) {
+        val node = map.remove(key) ?: return
+        lock.withLock { unlink(node) }
     }
 
     fun removeAll(keys: Iterable<Any>) {
-        lock.withLock {
-            keys.mapNotNull { key ->
-                map.remove(key)?.thenAccept { sv -> lock.withLock { curBytes -= sv.bytes } }
+        val nodes = keys.mapNotNull(map::remove)
+        if (nodes.isNotEmpty())
+            lock.withLock { nodes.forEach(::unlink) }
+    }
+
+    private fun recordAccess(node: Node) {
+        val buffer = readBuffers[(Thread.currentThread().threadId() % readBuffers.size).toInt()]
+        if ((!buffer.offer(node) || buffer.remainingCapacity() < READ_BUFFER_CAPACITY / 2) && lock.tryLock())
+            try {
+                drainReadBuffers()
+            } finally {
+                lock.unlock()
             }
+    }
+
+    // Note: The following functions must be called while holding the lock.
+
+    private fun drainReadBuffers() {
+        for (buffer in readBuffers)
+            while (true) {
+                val node = buffer.poll() ?: break
+                sketch.increment(node.key)
+                if (node.segment != null)
+                    moveToTail(categoryLRUs[node.category.ordinal], node)
+                when (node.segment) {
+                    Segment.WINDOW -> moveToTail(window, node)
+                    Segment.PROBATION -> {
+                        // A value that is accessed again after its admission gets promoted to the protected segment.
+                        probation.remove(node)
+                        protectedSegment.add(node)
+                        protectedBytes += node.bytes
+                        node.segment = Segment.PROTECTED
+                        demoteIfFull()
+                    }
+                    Segment.PROTECTED -> moveToTail(protectedSegment, node)
+                    null -> {}
+                }
+            }
+    }
+
+    private fun demoteIfFull() {
+        while (protectedBytes > maxProtectedBytes) {
+            val demoted = protectedSegment.first()
+            protectedSegment.remove(demoted)
+            protectedBytes -= demoted.bytes
+            probation.add(demoted)
+            demoted.segment = Segment.PROBATION
         }
     }
 
-    // Note: Must be called while holding the lock.
+    private fun add(node: Node, bytes: Long) {
+        // If the node has been removed while its value was still being computed, forget about it.
+        if (node.removed)
+            return
+        node.bytes = bytes
+        node.accounted = true
+        categoryBytes[node.category.ordinal] += bytes
+        categoryEntries[node.category.ordinal]++
+        categoryLRUs[node.category.ordinal].add(node)
+        sketch.increment(node.key)
+        window.add(node)
+        windowBytes += bytes
+        node.segment = Segment.WINDOW
+        drainReadBuffers()
+        evictIfFull()
+    }
+
     private fun evictIfFull() {
-        if (curBytes > maxBytes) {
-            val iter = map.iterator()
-            while (curBytes > maxBytes && iter.hasNext()) {
-                val future = iter.next().value
-                // Only evict completed futures. If there are actually pending futures to be evicted (highly unlikely),
-                // that will be done at a later date once they're completed.
-                if (future.isDone)
-                    curBytes -= future.get().bytes
-                iter.remove()
+        // Values that overflow the window have to compete for admission to the main space.
+        while (windowBytes > maxWindowBytes) {
+            val candidate = window.first()
+            window.remove(candidate)
+            windowBytes -= candidate.bytes
+            candidate.segment = null
+            admit(candidate)
+        }
+        // The main space may use the part of the window's share that is currently unused, so when the window grows
+        // again, the main space might need to shrink.
+        while (windowBytes + mainBytes > maxBytes)
+            evict(probation.firstOrNull() ?: protectedSegment.firstOrNull() ?: window.first())
+        // Categories exceeding their cap give up their least recently used values, regardless of how popular they are.
+        for (category in DisposableCategory.entries)
+            while (categoryBytes[category.ordinal] > categoryMaxBytes[category.ordinal])
+                evict(categoryLRUs[category.ordinal].first())
+    }
+
+    private fun admit(candidate: Node) {
+        val excessBytes = windowBytes + mainBytes + candidate.bytes - maxBytes
+        // A value that is larger than the window has been pushed out of it right away, so it couldn't have been
+        // accessed more than once yet, and would hence always lose the competition, even if it is about to be used
+        // all the time. So instead, admit it to the probation segment, where it ages like any other value.
+        if (excessBytes > 0 && candidate.bytes <= maxWindowBytes) {
+            // Collect the least recently used values that would need to make room for the candidate. If any of them
+            // is accessed at least as frequently as the candidate, the candidate is dropped instead.
+            val candidateFreq = sketch.frequency(candidate.key)
+            val victims = mutableListOf<Node>()
+            var freedBytes = 0L
+            for (victim in probation.asSequence() + protectedSegment.asSequence()) {
+                if (freedBytes >= excessBytes)
+                    break
+                if (sketch.frequency(victim.key) >= candidateFreq)
+                    break
+                victims.add(victim)
+                freedBytes += victim.bytes
+            }
+            if (freedBytes < excessBytes) {
+                evict(candidate)
+                return
+            }
+            victims.forEach(::evict)
+        }
+        probation.add(candidate)
+        mainBytes += candidate.bytes
+        candidate.segment = Segment.PROBATION
+    }
+
+    private fun evict(node: Node) {
+        map.remove(node.key, node)
+        unlink(node)
+        evictions[node.category.ordinal].increment()
+        evictedBytes[node.category.ordinal].add(node.bytes)
+        // Only nodes whose value has been computed are ever evicted.
+        node.spillSlot?.onEvict(node.future.getNow(null).value)
+    }
+
+    private fun unlink(node: Node) {
+        node.removed = true
+        if (node.accounted) {
+            node.accounted = false
+            categoryBytes[node.category.ordinal] -= node.bytes
+            categoryEntries[node.category.ordinal]--
+            categoryLRUs[node.category.ordinal].remove(node)
+        }
+        when (node.segment) {
+            Segment.WINDOW -> {
+                window.remove(node)
+                windowBytes -= node.bytes
+            }
+            Segment.PROBATION -> {
+                probation.remove(node)
+                mainBytes -= node.bytes
+            }
+            Segment.PROTECTED -> {
+                protectedSegment.remove(node)
+                mainBytes -= node.bytes
+                protectedBytes -= node.bytes
             }
+            null -> {}
         }
+        node.segment = null
+    }
+
+    private fun moveToTail(set: LinkedHashSet<Node>, node: Node) {
+        set.remove(node)
+        set.add(node)
+    }
+
+    private const val READ_BUFFER_CAPACITY = 64
+
+
+    private enum class Segment { WINDOW, PROBATION, PROTECTED }
+
+
+    private class Node(
+        val key: Any,
+        val category: DisposableCategory,
+        val future: CompletableFuture<SizedValue<*>>,
+        val spillSlot: SpillSlot<*>? = null
+    ) {
+        // The following fields are only accessed while holding the lock.
+        var bytes = 0L
+        var segment: Segment? = null
+        var removed = false
+        var accounted = false
+    }
+
+
+    /**
+     * Estimates how often keys have been accessed using a count-min sketch with 4 rows of counters that saturate at
+     * 15. Once enough accesses have been counted, all counters are halved, so that the popularity of keys can change.
+     */
+    private class FrequencySketch {
+
+        private val counters = ByteArray(4 * WIDTH)
+        private var additions = 0
+
+        fun frequency(key: Any): Int {
+            val hash = spread(key.hashCode())
+            var freq = 15
+            for (row in 0..<4)
+                freq = min(freq, counters[index(hash, row)].toInt())
+            return freq
+        }
+
+        fun increment(key: Any) {
+            val hash = spread(key.hashCode())
+            var incremented = false
+            for (row in 0..<4) {
+                val idx = index(hash, row)
+                if (counters[idx] < 15) {
+                    counters[idx]++
+                    incremented = true
+                }
+            }
+            if (incremented && ++additions == 10 * WIDTH) {
+                for (idx in counters.indices)
+                    counters[idx] = (counters[idx].toInt() ushr 1).toByte()
+                additions /= 2
+            }
+        }
+
+        private fun index(hash: Int, row: Int): Int =
+            row * WIDTH + ((hash * ROW_SEEDS[row]) ushr (32 - WIDTH_BITS))
+
+        private fun spread(hash: Int): Int {
+            val h = hash * -0x61c88647
+            return h xor (h ushr 16)
+        }
+
+        companion object {
+            private const val WIDTH_BITS = 13
+            private const val WIDTH = 1 shl WIDTH_BITS
+            private val ROW_SEEDS = intArrayOf(-0x3361d2af, 0x27d4eb2f, -0x7a1435b3, 0x165667b1)
+        }
+
     }
 
 }
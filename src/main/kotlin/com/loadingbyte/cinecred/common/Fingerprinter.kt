@@ -0,0 +1,135 @@
+package com.loadingbyte.cinecred.common
+
+import java.awt.Shape
+import java.awt.geom.AffineTransform
+import java.awt.geom.PathIterator
+import java.io.InputStream
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout.JAVA_BYTE
+import java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED
+
+
+/**
+ * Accumulates values into a 64-bit hash. Unlike [hashCode], the result is stable across program runs and machines, so
+ * it can be persisted to later find out whether some output is still up-to-date. It is not meant for security purposes.
+ *
+ * If some input can't be determined, e.g., because a file can't be read, the fingerprint is [UNKNOWN]. As an unknown
+ * fingerprint never [matches] anything, the output is then always considered outdated.
+ */
+class Fingerprinter {
+
+    private var hash = SEED
+    private var unknown = false
+
+    fun putLong(value: Long): Fingerprinter {
+        hash = java.lang.Long.rotateLeft(hash xor mix(value), 27) * 5L + 0x52dce729L
+        return this
+    }
+
+    fun putInt(value: Int): Fingerprinter = putLong(value.toLong())
+    fun putBoolean(value: Boolean): Fingerprinter = putLong(if (value) 1L else 0L)
+    fun putDouble(value: Double): Fingerprinter = putLong(value.toRawBits())
+    fun putFloat(value: Float): Fingerprinter = putLong(value.toRawBits().toLong())
+
+    fun putString(value: String): Fingerprinter {
+        putInt(value.length)
+        for (char in value)
+            putInt(char.code)
+        return this
+    }
+
+    fun putBytes(bytes: ByteArray): Fingerprinter = putBytes(MemorySegment.ofArray(bytes))
+
+    fun putBytes(seg: MemorySegment): Fingerprinter {
+        val size = seg.byteSize()
+        putLong(size)
+        val numLongs = size / 8
+        for (idx in 0L..<numLongs)
+            putLong(seg.getAtIndex(JAVA_LONG_UNALIGNED, idx))
+        for (offset in numLongs * 8..<size)
+            putLong(seg.get(JAVA_BYTE, offset).toLong())
+        return this
+    }
+
+    /** Consumes the stream, but doesn't close it. */
+    fun putStream(stream: InputStream): Fingerprinter {
+        val buf = ByteArray(65536)
+        while (true) {
+            val n = stream.readNBytes(buf, 0, buf.size)
+            if (n == 0) break
+            putBytes(MemorySegment.ofArray(buf).asSlice(0, n.toLong()))
+        }
+        return this
+    }
+
+    /** Puts a nested fingerprint. If it is [UNKNOWN], the resulting fingerprint will be unknown as well. */
+    fun putFingerprint(fingerprint: Long): Fingerprinter {
+        if (fingerprint == UNKNOWN)
+            unknown = true
+        return putLong(fingerprint)
+    }
+
+    /** Makes the resulting fingerprint [UNKNOWN], which is to be used when some input can't be determined. */
+    fun putUnknown(): Fingerprinter {
+        unknown = true
+        return this
+    }
+
+    fun putTransform(transform: AffineTransform): Fingerprinter {
+        val matrix = DoubleArray(6)
+        transform.getMatrix(matrix)
+        for (elem in matrix)
+            putDouble(elem)
+        return this
+    }
+
+    fun putShape(shape: Shape): Fingerprinter {
+        val coords = DoubleArray(6)
+        val iter = shape.getPathIterator(null)
+        putInt(iter.windingRule)
+        while (!iter.isDone) {
+            val type = iter.currentSegment(coords)
+            putInt(type)
+            val numCoords = when (type) {
+                PathIterator.SEG_MOVETO, PathIterator.SEG_LINETO -> 2
+                PathIterator.SEG_QUADTO -> 4
+                PathIterator.SEG_CUBICTO -> 6
+                else -> 0
+            }
+            for (idx in 0..<numCoords)
+                putDouble(coords[idx])
+            iter.next()
+        }
+        return this
+    }
+
+    fun finish(): Long {
+        if (unknown)
+            return UNKNOWN
+        // Make sure that a regular fingerprint can never be mistaken for an unknown one.
+        val fingerprint = mix(hash)
+        return if (fingerprint == UNKNOWN) SEED else fingerprint
+    }
+
+
+    companion object {
+
+        const val UNKNOWN = 0L
+
+        private const val SEED = 0x6a09e667f3bcc908L
+
+        /** Two fingerprints match if they are equal and known, so that unknown ones always force a re-render. */
+        fun matches(fingerprint1: Long, fingerprint2: Long): Boolean =
+            fingerprint1 != UNKNOWN && fingerprint1 == fingerprint2
+
+        // The finalizer of MurmurHash3, which spreads each input bit over the whole output.
+        private fun mix(value: Long): Long {
+            var h = value
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return h xor (h ushr 33)
+        }
+
+    }
+
+}
@@ -1,9 +1,6 @@
 package com.loadingbyte.cinecred.delivery
 
-import com.loadingbyte.cinecred.common.cleanDirectory
-import com.loadingbyte.cinecred.common.createDirectoriesSafely
-import com.loadingbyte.cinecred.common.throwableAwareTask
-import com.loadingbyte.cinecred.common.userNotification
+import com.loadingbyte.cinecred.common.*
 import com.loadingbyte.cinecred.delivery.RenderFormat.Config
 import com.loadingbyte.cinecred.delivery.RenderFormat.Config.Assortment.Companion.choice
 import com.loadingbyte.cinecred.delivery.RenderFormat.Config.Assortment.Companion.fixed
@@ -28,16 +25,21 @@ import com.loadingbyte.cinecred.imaging.ColorSpace.Transfer.Companion.BLENDING
 import com.loadingbyte.cinecred.imaging.ColorSpace.Transfer.Companion.LINEAR
 import com.loadingbyte.cinecred.imaging.DeferredImage.Companion.STATIC
 import com.loadingbyte.cinecred.imaging.DeferredImage.Companion.TAPES
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.WRITE
 import com.loadingbyte.cinecred.project.Scan
 import com.loadingbyte.cinecred.project.Styling
 import org.bytedeco.ffmpeg.global.avutil.*
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
 import java.nio.file.Path
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Executors
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
-import kotlin.io.path.exists
+import kotlin.io.path.*
+import kotlin.math.min
 import kotlin.math.pow
 
 
@@ -54,26 +56,160 @@ class ImageSequenceRenderJob private constructor(
     override val prefix: Path
         get() = dir
 
-    override fun render(progressCallback: (Int) -> Unit) {
-        if (dir.exists())
-            dir.cleanDirectory()
-        dir.createDirectoriesSafely()
+    override val metrics = RenderMetrics(dir.fileName.toString())
 
-        val embedAlpha = config[TRANSPARENCY] == TRANSPARENT
+    override val demand: RenderJob.Demand
+        get() {
+            val scaledVideo = scaleVideo()
+            val backendSpec = backendSpec(scaledVideo, createBitmapWriter(scaledVideo))
+            val numWorkers = Runtime.getRuntime().availableProcessors() - 1
+            return RenderJob.Demand(
+                nativeBytes = DeferredVideo.BitmapBackend.estimateNativeBytes(scaledVideo, backendSpec) +
+                        numWorkers * WRITER_BACKLOG * backendSpec.estimatedBytes,
+                cores = numWorkers + 1
+            )
+        }
+
+    override fun render(progressCallback: (Int) -> Unit) {
         val matte = config[TRANSPARENCY] == MATTE
-        val family = if (matte) GRAY else RGB
         val colorSpace = if (matte) null else ColorSpace.of(config[PRIMARIES], config[TRANSFER])
         val ceiling = if (config.getOrDefault(HDR) || colorSpace?.transfer?.isHDR == true) null else 1f
-        val scan = config[SCAN]
         val grounding = if (config[TRANSPARENCY] == GROUNDED) styling.global.grounding else null
+        val scaledVideo = scaleVideo()
+        val bitmapWriter = createBitmapWriter(scaledVideo)
+        val backendSpec = backendSpec(scaledVideo, bitmapWriter)
+
+        val fingerprints = fingerprintFrames(scaledVideo, grounding)
+        val upToDate = prepareDirectory(fingerprints)
+
+        DeferredVideo.BitmapBackend(
+            scaledVideo, listOf(STATIC), listOf(TAPES), grounding, backendSpec, ceiling, metrics = metrics
+        ).use { backend ->
+            val numFrames = scaledVideo.numFrames
+            val numWorkers = Runtime.getRuntime().availableProcessors() - 1
+            val executor = Executors.newFixedThreadPool(numWorkers) { Thread(it, "ImageSequenceWriter") }
+            try {
+                val done = CountDownLatch(numFrames)
+                val backlogCapacity = numWorkers * WRITER_BACKLOG
+                val backlog = Semaphore(backlogCapacity)
+                val writerExc = AtomicReference<Exception?>()
+                for (frameIdx in 0..<numFrames) {
+                    if (upToDate[frameIdx]) {
+                        done.countDown()
+                        continue
+                    }
+                    val colorBitmap = backend.materializeFrame(frameIdx)!!
+                    val bitmap = if (!matte) colorBitmap else colorBitmap.use(Bitmap::alphaPlaneView)
+                    val file = frameFile(frameIdx)
+                    metrics.sampleQueue("writerBacklog", backlogCapacity - backlog.availablePermits(), backlogCapacity)
+                    backlog.acquire()
+                    executor.submit(throwableAwareTask {
+                        try {
+                            bitmap.use { metrics.measure(WRITE) { bitmapWriter.write(bitmap, file) } }
+                            if (!Thread.interrupted())
+                                progressCallback(MAX_RENDER_PROGRESS * (numFrames - done.count.toInt()) / numFrames)
+                        } catch (_: InterruptedException) {
+                            // Return.
+                        } catch (e: Exception) {
+                            writerExc.set(e)
+                        } finally {
+                            backlog.release()
+                            done.countDown()
+                        }
+                    })
+                    writerExc.get()?.let { e -> throw RuntimeException(e.userNotification, e) }
+                    if (Thread.interrupted())
+                        throw InterruptedException()
+                }
+                done.await()
+                writerExc.get()?.let { e -> throw RuntimeException(e.userNotification, e) }
+                writeManifest(dir.resolve(MANIFEST_FILE_NAME), fingerprints)
+            } finally {
+                executor.shutdownNow()
+                executor.awaitTermination(1, TimeUnit.SECONDS)
+            }
+        }
+    }
+
+
+    /**
+     * Besides the content of each frame, the fingerprints also cover all settings that influence how the frame files
+     * look, so that a frame file from a previous render can be reused if and only if its fingerprint is unchanged.
+     */
+    private fun fingerprintFrames(scaledVideo: DeferredVideo, grounding: Color4f?): LongArray {
+        val jobFp = Fingerprinter().putString(VERSION).putString(format.label)
+        for (property in FINGERPRINTED_PROPERTIES)
+            jobFp.putString(if (property in config) config[property].toString() else "")
+        jobFp.putString(grounding?.toString() ?: "")
+        val jobFingerprint = jobFp.finish()
+
+        val layers = listOf(STATIC, TAPES)
+        // An interlaced frame consists of two fields, which the backend renders from a video with doubled frame rate.
+        val frameFingerprints = if (config[SCAN] == Scan.PROGRESSIVE) scaledVideo.fingerprintFrames(layers) else {
+            val fieldFingerprints = scaledVideo.copy(fpsScaling = 2).fingerprintFrames(layers)
+            LongArray(scaledVideo.numFrames) { frameIdx ->
+                Fingerprinter()
+                    .putFingerprint(fieldFingerprints[2 * frameIdx]).putFingerprint(fieldFingerprints[2 * frameIdx + 1])
+                    .finish()
+            }
+        }
+        return LongArray(frameFingerprints.size) { frameIdx ->
+            Fingerprinter().putFingerprint(jobFingerprint).putFingerprint(frameFingerprints[frameIdx]).finish()
+        }
+    }
+
+    /**
+     * Compares the new fingerprints with those recorded by the previous render into the same directory, deletes all
+     * files that are outdated or unknown, and returns which frames are still up-to-date and hence needn't be rendered.
+     */
+    private fun prepareDirectory(fingerprints: LongArray): BooleanArray {
+        val upToDate = BooleanArray(fingerprints.size)
+        if (dir.exists()) {
+            val manifestFile = dir.resolve(MANIFEST_FILE_NAME)
+            val oldFingerprints = try {
+                readManifest(manifestFile)
+            } catch (e: IOException) {
+                LOGGER.warn("Cannot read the frame fingerprints of a previous render, so rendering all frames.", e)
+                null
+            }
+            // If this render is aborted halfway, the next one must not trust the manifest anymore, so we remove it
+            // until the render is complete.
+            manifestFile.deleteIfExists()
+            val retained = HashSet<Path>()
+            if (oldFingerprints != null)
+                for (frameIdx in 0..<min(fingerprints.size, oldFingerprints.size)) {
+                    val file = frameFile(frameIdx)
+                    val matches = Fingerprinter.matches(fingerprints[frameIdx], oldFingerprints[frameIdx])
+                    if (matches && file.isRegularFile()) {
+                        upToDate[frameIdx] = true
+                        retained.add(file)
+                    }
+                }
+            dir.cleanDirectory(retained)
+        }
+        dir.createDirectoriesSafely()
+        return upToDate
+    }
+
+    private fun frameFile(frameIdx: Int): Path =
+        dir.resolve(filenamePattern.format(frameIdx + 1))
+
+    private fun scaleVideo(): DeferredVideo {
         var scaledVideo = video.copy(2.0.pow(config[SPATIAL_SCALING_LOG2]), fpsScaling = config[FPS_SCALING])
         if (sliders.resolution != null)
             scaledVideo = scaledVideo.copy(
                 resolutionPaddingH = (sliders.resolution.widthPx - scaledVideo.resolution.widthPx) / 2.0,
                 resolutionPaddingV = (sliders.resolution.heightPx - scaledVideo.resolution.heightPx) / 2.0,
             )
+        return scaledVideo
+    }
 
-        val bitmapWriter = when (format) {
+    private fun createBitmapWriter(scaledVideo: DeferredVideo): BitmapWriter {
+        val embedAlpha = config[TRANSPARENCY] == TRANSPARENT
+        val matte = config[TRANSPARENCY] == MATTE
+        val family = if (matte) GRAY else RGB
+        val colorSpace = if (matte) null else ColorSpace.of(config[PRIMARIES], config[TRANSFER])
+        return when (format) {
             PNG -> BitmapWriter.PNG(family, embedAlpha, colorSpace, config[DEPTH])
             TIFF -> BitmapWriter.TIFF(family, embedAlpha, colorSpace, config[DEPTH], config[TIFF_COMPRESSION])
             DPX -> BitmapWriter.DPX(family, embedAlpha, colorSpace, config[DEPTH], config[DPX_COMPRESSION])
@@ -82,8 +218,11 @@ class ImageSequenceRenderJob private constructor(
             )
             else -> throw IllegalArgumentException()
         }
+    }
 
-        val backendRep = if (!matte) bitmapWriter.representation else {
+    private fun backendSpec(scaledVideo: DeferredVideo, bitmapWriter: BitmapWriter): Bitmap.Spec {
+        val scan = config[SCAN]
+        val backendRep = if (config[TRANSPARENCY] != MATTE) bitmapWriter.representation else {
             val pxFmtCode = when (bitmapWriter.representation.pixelFormat.code) {
                 AV_PIX_FMT_GRAY8 -> AV_PIX_FMT_GBRAP
                 AV_PIX_FMT_GRAY10BE -> AV_PIX_FMT_GBRAP10BE
@@ -100,7 +239,7 @@ class ImageSequenceRenderJob private constructor(
                 Bitmap.PixelFormat.of(pxFmtCode), ColorSpace.of(BT709, BLENDING), Bitmap.Alpha.PREMULTIPLIED
             )
         }
-        val backendSpec = Bitmap.Spec(
+        return Bitmap.Spec(
             scaledVideo.resolution, backendRep,
             scan = when (scan) {
                 Scan.PROGRESSIVE -> Bitmap.Scan.PROGRESSIVE
@@ -112,51 +251,45 @@ class ImageSequenceRenderJob private constructor(
                 Scan.INTERLACED_TOP_FIELD_FIRST, Scan.INTERLACED_BOT_FIELD_FIRST -> Bitmap.Content.INTERLEAVED_FIELDS
             }
         )
+    }
 
-        DeferredVideo.BitmapBackend(
-            scaledVideo, listOf(STATIC), listOf(TAPES), grounding, backendSpec, ceiling
-        ).use { backend ->
-            val numFrames = scaledVideo.numFrames
-            val numWorkers = Runtime.getRuntime().availableProcessors() - 1
-            val executor = Executors.newFixedThreadPool(numWorkers) { Thread(it, "ImageSequenceWriter") }
-            try {
-                val done = CountDownLatch(numFrames)
-                val backlog = Semaphore(numWorkers * 5)
-                val writerExc = AtomicReference<Exception?>()
-                for (frameIdx in 0..<numFrames) {
-                    val colorBitmap = backend.materializeFrame(frameIdx)!!
-                    val bitmap = if (!matte) colorBitmap else colorBitmap.use(Bitmap::alphaPlaneView)
-                    val file = dir.resolve(filenamePattern.format(frameIdx + 1))
-                    backlog.acquire()
-                    executor.submit(throwableAwareTask {
-                        try {
-                            bitmap.use { bitmapWriter.write(bitmap, file) }
-                            if (!Thread.interrupted())
-                                progressCallback(MAX_RENDER_PROGRESS * (numFrames - done.count.toInt()) / numFrames)
-                        } catch (_: InterruptedException) {
-                            // Return.
-                        } catch (e: Exception) {
-                            writerExc.set(e)
-                        } finally {
-                            backlog.release()
-                            done.countDown()
-                        }
-                    })
-                    writerExc.get()?.let { e -> throw RuntimeException(e.userNotification, e) }
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                }
-                done.await()
-                writerExc.get()?.let { e -> throw RuntimeException(e.userNotification, e) }
-            } finally {
-                executor.shutdownNow()
-                executor.awaitTermination(1, TimeUnit.SECONDS)
+
+    companion object {
+
+        private const val WRITER_BACKLOG = 5
+        private const val MANIFEST_FILE_NAME = ".cinecred-frames"
+        private const val MANIFEST_MAGIC = 0x43434652  // "CCFR"
+
+        /**
+         * Returns the frame fingerprints recorded in the given manifest file, or null if there is no such file or it is
+         * not a manifest.
+         *
+         * @throws IOException
+         */
+        internal fun readManifest(manifestFile: Path): LongArray? {
+            if (!manifestFile.isRegularFile())
+                return null
+            DataInputStream(manifestFile.inputStream().buffered()).use { input ->
+                if (input.readInt() != MANIFEST_MAGIC)
+                    return null
+                return LongArray(input.readInt()) { input.readLong() }
             }
         }
-    }
 
+        /** @throws IOException */
+        internal fun writeManifest(manifestFile: Path, fingerprints: LongArray) {
+            DataOutputStream(manifestFile.outputStream().buffered()).use { output ->
+                output.writeInt(MANIFEST_MAGIC)
+                output.writeInt(fingerprints.size)
+                for (fingerprint in fingerprints)
+                    output.writeLong(fingerprint)
+            }
+        }
 
-    companion object {
+        private val FINGERPRINTED_PROPERTIES = listOf(
+            TRANSPARENCY, SPATIAL_SCALING_LOG2, FPS_SCALING, PRIMARIES, TRANSFER, HDR, DEPTH, SCAN,
+            TIFF_COMPRESSION, DPX_COMPRESSION, EXR_COMPRESSION
+        )
 
         private val PNG = Format(
             "png",
@@ -177,7 +310,9 @@ class ImageSequenceRenderJob private constructor(
                     choice(TRANSPARENCY, GROUNDED, TRANSPARENT) * choice(PRIMARIES) * fixed(TRANSFER, LINEAR)
                             * choice(HDR)
                             + fixed(TRANSPARENCY, MATTE)
-                    )
+                    ) -
+                    // B44 only compresses half floats and would store full floats uncompressed.
+                    fixed(DEPTH, 32) * fixed(EXR_COMPRESSION, BitmapWriter.EXR.Compression.B44)
         )
 
         val FORMATS = listOf<RenderFormat>(PNG, TIFF, DPX, EXR)
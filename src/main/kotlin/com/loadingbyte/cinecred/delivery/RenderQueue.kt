@@ -1,11 +1,11 @@
 package com.loadingbyte.cinecred.delivery
 
 import com.loadingbyte.cinecred.common.LOGGER
+import com.loadingbyte.cinecred.common.TOTAL_SYSTEM_MEMORY
+import com.loadingbyte.cinecred.imaging.RenderMetrics
 import java.nio.file.Path
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.CopyOnWriteArrayList
-import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Executors
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 
@@ -14,11 +14,36 @@ const val MAX_RENDER_PROGRESS = 1000
 
 
 interface RenderJob {
+
     val prefix: Path
+
+    /**
+     * A rough estimate of the resources the job occupies while rendering, which the [RenderQueue] uses to decide how
+     * many jobs it can run at the same time. It is queried once per job, on a background thread of the queue, as the
+     * estimation might take a moment.
+     */
+    val demand: Demand
+        get() = Demand(nativeBytes = 0L, cores = 1)
+
+    /** If not null, the job records where its rendering time goes, so that it can be inspected while rendering. */
+    val metrics: RenderMetrics?
+        get() = null
+
     fun render(progressCallback: (Int) -> Unit)
+
+    class Demand(val nativeBytes: Long, val cores: Int)
+
 }
 
 
+/**
+ * Runs submitted jobs in the background. Multiple jobs are rendered at the same time as long as their combined
+ * [RenderJob.Demand] fits into the machine's cores and native memory budget. Jobs are started in the order of their
+ * submission. To not starve large jobs, a job that does not fit yet blocks all jobs after it until enough resources
+ * have been freed up.
+ *
+ * Each category is paused until it is explicitly unpaused. Pausing a category does not affect its already running jobs.
+ */
 object RenderQueue {
 
     private class SubmittedJob(
@@ -26,101 +51,53 @@ object RenderQueue {
         val job: RenderJob,
         val progressCallback: (Int) -> Unit,
         val finishCallback: (Exception?) -> Unit
-    )
-
-    private val thread: Thread
+    ) {
+        /** Null as long as the demand is still being estimated. */
+        var demand: RenderJob.Demand? = null
+        var thread: Thread? = null
+    }
 
-    private val willPauseCategories = ConcurrentHashMap.newKeySet<Any>()
-    private val willUnpauseCategories = LinkedBlockingQueue<Any>()
-    private val queuedJobs = ConcurrentHashMap<Any, ConcurrentLinkedQueue<SubmittedJob>>()
+    private val numCores = Runtime.getRuntime().availableProcessors()
+    // Most of the memory is reserved for the heap, which is where the DisposableTracker keeps its caches. The native
+    // memory of render jobs comes on top, so we only let them have a moderate share.
+    private val maxNativeBytes by lazy { (0.3 * TOTAL_SYSTEM_MEMORY).toLong() }
 
-    private val pollJobLock = ReentrantLock()
-    private var runningJob: SubmittedJob? = null
+    private val lock = ReentrantLock()
+    private val unpausedCategories = HashSet<Any>()
+    private val queuedJobs = ArrayList<SubmittedJob>()
+    private val runningJobs = ArrayList<SubmittedJob>()
+    private var usedNativeBytes = 0L
+    private var usedCores = 0
 
     private val prefixHistory = CopyOnWriteArrayList<Path>()
 
-    init {
-        thread = Thread({
-            while (true) {
-                val category = try {
-                    willUnpauseCategories.take()
-                } catch (_: InterruptedException) {
-                    continue
-                }
-
-                val queue = queuedJobs[category] ?: continue
-
-                while (true) {
-                    // If the category should be paused now, continue with the next unpaused category.
-                    if (category in willPauseCategories)
-                        break
-
-                    // Get the next job from the current category's queue.
-                    val job: SubmittedJob?
-                    pollJobLock.withLock {
-                        job = queue.poll()
-                        runningJob = job
-                    }
-                    // If the queue is empty, continue with the next unpaused category.
-                    if (job == null)
-                        break
-
-                    try {
-                        // Start rendering.
-                        job.progressCallback(0)
-                        job.job.render(job.progressCallback)
-                        pollJobLock.withLock { runningJob = null }
-                        job.progressCallback(MAX_RENDER_PROGRESS)
-                        job.finishCallback(null)
-                    } catch (e: Exception) {
-                        // Note that this catch also catches InterruptedExceptions,
-                        // which occurs when a job is cancelled while it is running.
-                        pollJobLock.withLock { runningJob = null }
-                        if (e !is InterruptedException)
-                            LOGGER.error("Error while rendering", e)
-                        job.finishCallback(e)
-                    }
-                }
-            }
-        }, "RenderQueue").apply { isDaemon = true; start() }
+    private val demandEstimator = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "RenderQueueDemandEstimator").apply { isDaemon = true }
     }
 
     fun setPaused(category: Any, paused: Boolean) {
-        if (paused) {
-            willPauseCategories.add(category)
-            willUnpauseCategories.remove(category)
-        } else {
-            // Important that we first remove the category from willPause and then add it to willUnpause.
-            // If we did it the other way around, the category could be polled from willUnpause, but then
-            // immediately discarded again as it's still in willPause.
-            willPauseCategories.remove(category)
-            willUnpauseCategories.add(category)
+        lock.withLock {
+            if (paused)
+                unpausedCategories.remove(category)
+            else if (unpausedCategories.add(category))
+                startJobs()
         }
     }
 
     fun hasUnfinishedJobs(category: Any): Boolean =
-        pollJobLock.withLock {
-            runningJob?.category == category || !queuedJobs[category].isNullOrEmpty()
+        lock.withLock {
+            runningJobs.any { it.category == category } || queuedJobs.any { it.category == category }
         }
 
     fun getNumberOfRemainingJobs(): Int =
-        pollJobLock.withLock {
-            var n = 0
-            if (runningJob != null) n++
-            for (queue in queuedJobs.values) n += queue.size
-            n
+        lock.withLock {
+            runningJobs.size + queuedJobs.size
         }
 
-    fun isRenderedFileOfRemainingJob(file: Path): Boolean {
-        pollJobLock.withLock {
-            runningJob?.let { if (file.startsWith(it.job.prefix)) return true }
-            for (queue in queuedJobs.values)
-                for (job in queue)
-                    if (file.startsWith(job.job.prefix))
-                        return true
-            return false
+    fun isRenderedFileOfRemainingJob(file: Path): Boolean =
+        lock.withLock {
+            runningJobs.any { file.startsWith(it.job.prefix) } || queuedJobs.any { file.startsWith(it.job.prefix) }
         }
-    }
 
     fun isRenderedFile(file: Path): Boolean =
         prefixHistory.any(file::startsWith)
@@ -131,47 +108,108 @@ object RenderQueue {
         progressCallback: (Int) -> Unit,
         finishCallback: (Exception?) -> Unit
     ) {
-        val queue = queuedJobs.computeIfAbsent(category) { ConcurrentLinkedQueue() }
-        queue.add(SubmittedJob(category, job, progressCallback, finishCallback))
+        val subJob = lock.withLock {
+            SubmittedJob(category, job, progressCallback, finishCallback).also(queuedJobs::add)
+        }
         prefixHistory.add(job.prefix)
+        // This method is usually called from the UI thread, so estimate the demand in the background, and only then
+        // consider starting the job. Until then, the job already counts as queued and can be canceled as usual.
+        demandEstimator.execute {
+            val demand = try {
+                job.demand
+            } catch (e: Exception) {
+                LOGGER.error("Cannot estimate the demand of a render job.", e)
+                RenderJob.Demand(nativeBytes = 0L, cores = 1)
+            }
+            lock.withLock {
+                subJob.demand = demand
+                startJobs()
+            }
+        }
     }
 
     fun cancelJob(category: Any, job: RenderJob) {
-        pollJobLock.withLock {
+        lock.withLock {
             // If the job hasn't started yet, remove it from the queue and call its finish callback.
-            queuedJobs[category]?.let { queue ->
-                queue.find { it.job == job }?.let { subJob ->
-                    queue.remove(subJob)
-                    subJob.finishCallback(null)
-                }
+            queuedJobs.find { it.category == category && it.job == job }?.let { subJob ->
+                queuedJobs.remove(subJob)
+                subJob.finishCallback(null)
             }
-            // If the job is currently running, immediately interrupt the rendering thread.
-            if (runningJob?.job == job)
-                thread.interrupt()
+            // If the job is currently running, immediately interrupt its rendering thread.
+            runningJobs.find { it.category == category && it.job == job }?.thread?.interrupt()
         }
     }
 
     fun cancelAllJobs(category: Any) {
-        pollJobLock.withLock {
-            queuedJobs[category]?.let { queue ->
-                for (subJob in queue)
+        lock.withLock {
+            val iter = queuedJobs.iterator()
+            for (subJob in iter)
+                if (subJob.category == category) {
+                    iter.remove()
                     subJob.finishCallback(null)
-                queue.clear()
-            }
-            if (runningJob?.category == category)
-                thread.interrupt()
+                }
+            for (subJob in runningJobs)
+                if (subJob.category == category)
+                    subJob.thread?.interrupt()
         }
     }
 
     fun cancelAllJobs() {
-        pollJobLock.withLock {
-            for (queue in queuedJobs.values) {
-                for (subJob in queue)
-                    subJob.finishCallback(null)
-                queue.clear()
-            }
-            if (runningJob != null)
-                thread.interrupt()
+        lock.withLock {
+            for (subJob in queuedJobs)
+                subJob.finishCallback(null)
+            queuedJobs.clear()
+            for (subJob in runningJobs)
+                subJob.thread?.interrupt()
+        }
+    }
+
+    // Note: Must be called while holding the lock.
+    private fun startJobs() {
+        while (true) {
+            val subJob = queuedJobs.find { it.category in unpausedCategories } ?: return
+            // If the next job's demand is not yet known, wait for it, so that the start order is retained.
+            val demand = subJob.demand ?: return
+            val nativeBytes = demand.nativeBytes
+            val cores = demand.cores.coerceIn(1, numCores)
+            // A job is always admitted if nothing else is running, as otherwise, a job whose demand exceeds the budget
+            // would never start.
+            if (runningJobs.isNotEmpty() &&
+                (usedNativeBytes + nativeBytes > maxNativeBytes || usedCores + cores > numCores)
+            ) return
+            queuedJobs.remove(subJob)
+            runningJobs.add(subJob)
+            usedNativeBytes += nativeBytes
+            usedCores += cores
+            subJob.thread = Thread({ runJob(subJob) }, "RenderQueue").apply { isDaemon = true; start() }
+        }
+    }
+
+    private fun finishJob(subJob: SubmittedJob) {
+        lock.withLock {
+            runningJobs.remove(subJob)
+            val demand = subJob.demand!!
+            usedNativeBytes -= demand.nativeBytes
+            usedCores -= demand.cores.coerceIn(1, numCores)
+            startJobs()
+        }
+    }
+
+    private fun runJob(subJob: SubmittedJob) {
+        try {
+            // Start rendering.
+            subJob.progressCallback(0)
+            subJob.job.render(subJob.progressCallback)
+            finishJob(subJob)
+            subJob.progressCallback(MAX_RENDER_PROGRESS)
+            subJob.finishCallback(null)
+        } catch (e: Exception) {
+            // Note that this catch also catches InterruptedExceptions,
+            // which occurs when a job is cancelled while it is running.
+            finishJob(subJob)
+            if (e !is InterruptedException)
+                LOGGER.error("Error while rendering", e)
+            subJob.finishCallback(e)
         }
     }
 
@@ -2,6 +2,7 @@ package com.loadingbyte.cinecred.delivery
 
 import com.formdev.flatlaf.util.SystemInfo
 import com.loadingbyte.cinecred.common.LOGGER
+import com.loadingbyte.cinecred.common.Resolution
 import com.loadingbyte.cinecred.common.createDirectoriesSafely
 import com.loadingbyte.cinecred.common.userNotification
 import com.loadingbyte.cinecred.delivery.RenderFormat.CineFormProfile.*
@@ -43,12 +44,23 @@ import com.loadingbyte.cinecred.imaging.ColorSpace.Transfer.Companion.SRGB
 import com.loadingbyte.cinecred.imaging.ColorSpace.Transfer.Companion.ST428
 import com.loadingbyte.cinecred.imaging.DeferredImage.Companion.STATIC
 import com.loadingbyte.cinecred.imaging.DeferredImage.Companion.TAPES
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.MATTE
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.WRITE
 import com.loadingbyte.cinecred.project.Scan
 import com.loadingbyte.cinecred.project.Styling
 import org.bytedeco.ffmpeg.global.avcodec.*
 import org.bytedeco.ffmpeg.global.avutil.*
 import java.nio.file.Path
-import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.extension
+import kotlin.io.path.nameWithoutExtension
 import kotlin.math.pow
 
 
@@ -64,6 +76,8 @@ class VideoContainerRenderJob private constructor(
     override val prefix: Path
         get() = file
 
+    override val metrics = RenderMetrics(file.fileName.toString())
+
     override fun render(progressCallback: (Int) -> Unit) {
         // Make sure that the parent directory exists.
         file.parent.createDirectoriesSafely()
@@ -81,22 +95,39 @@ class VideoContainerRenderJob private constructor(
             }
     }
 
-    private fun render(progressCallback: (Int) -> Unit, settings: VideoWriterSettings) {
-        val yuv = settings.pixelFormat.family == Bitmap.PixelFormat.Family.YUV
-        val matte = config[TRANSPARENCY] == MATTE
-        val colorSpace = if (matte) ColorSpace.of(BT709, LINEAR) else ColorSpace.of(config[PRIMARIES], config[TRANSFER])
-        val ceiling = if (colorSpace.transfer.isHDR) null else 1f
-        val scan = config[SCAN]
-        val grounding = if (config[TRANSPARENCY] == GROUNDED) styling.global.grounding else null
+    override val demand: RenderJob.Demand
+        get() {
+            val scaledVideo = scaleVideo()
+            val writerSpec = writerSpec(format.videoWriterSettings(config).first(), scaledVideo.resolution)
+            val backendSpec = backendSpec(writerSpec)
+            val (numSegments, numMaterializers) = parallelism(scaledVideo)
+            val numBackends = numSegments * numMaterializers
+            val numBufferedFrames = numSegments * (REORDER_BUFFER_SLACK + numMaterializers * MATERIALIZER_BLOCK)
+            return RenderJob.Demand(
+                nativeBytes = numBackends * DeferredVideo.BitmapBackend.estimateNativeBytes(scaledVideo, backendSpec) +
+                        numBufferedFrames * writerSpec.estimatedBytes,
+                // Each backend occupies one core, and each encoder another one.
+                cores = numBackends + numSegments
+            )
+        }
+
+    private fun scaleVideo(): DeferredVideo {
         var scaledVideo = video.copy(2.0.pow(config[SPATIAL_SCALING_LOG2]), fpsScaling = config[FPS_SCALING])
         if (sliders.resolution != null)
             scaledVideo = scaledVideo.copy(
                 resolutionPaddingH = (sliders.resolution.widthPx - scaledVideo.resolution.widthPx) / 2.0,
                 resolutionPaddingV = (sliders.resolution.heightPx - scaledVideo.resolution.heightPx) / 2.0,
             )
+        return scaledVideo
+    }
 
-        val writerSpec = Bitmap.Spec(
-            scaledVideo.resolution,
+    private fun writerSpec(settings: VideoWriterSettings, resolution: Resolution): Bitmap.Spec {
+        val yuv = settings.pixelFormat.family == Bitmap.PixelFormat.Family.YUV
+        val matte = config[TRANSPARENCY] == MATTE
+        val colorSpace = if (matte) ColorSpace.of(BT709, LINEAR) else ColorSpace.of(config[PRIMARIES], config[TRANSFER])
+        val scan = config[SCAN]
+        return Bitmap.Spec(
+            resolution,
             Bitmap.Representation(
                 settings.pixelFormat,
                 if (!yuv) Bitmap.Range.FULL else Bitmap.Range.LIMITED,
@@ -115,94 +146,266 @@ class VideoContainerRenderJob private constructor(
                 Scan.INTERLACED_TOP_FIELD_FIRST, Scan.INTERLACED_BOT_FIELD_FIRST -> Bitmap.Content.INTERLEAVED_FIELDS
             }
         )
+    }
 
-        var backendSpec = writerSpec
-        var blackWriterBitmap: Bitmap? = null
-        if (matte) {
-            val backendPxFmtCode = when (val depth = writerSpec.representation.pixelFormat.depth) {
-                8 -> AV_PIX_FMT_GBRAP
-                10 -> AV_PIX_FMT_GBRAP10
-                12 -> AV_PIX_FMT_GBRAP12
-                16 -> AV_PIX_FMT_GBRAP16
-                else -> throw IllegalArgumentException("No color format for depth $depth.")
-            }
-            val backendRep = Bitmap.Representation(
-                Bitmap.PixelFormat.of(backendPxFmtCode), ColorSpace.of(BT709, BLENDING), Bitmap.Alpha.PREMULTIPLIED
-            )
-            val rgbRep = Bitmap.Representation(
-                Bitmap.PixelFormat.of(AV_PIX_FMT_GBRPF32), colorSpace, Bitmap.Alpha.OPAQUE
-            )
-            backendSpec = writerSpec.copy(representation = backendRep)
-            blackWriterBitmap = Bitmap.allocate(writerSpec)
-            Bitmap.allocate(writerSpec.copy(representation = rgbRep)).zero()
-                .use { BitmapConverter.convert(it, blackWriterBitmap) }
+    /** With matte export, the backends render in a premultiplied RGB format from which the alpha is then extracted. */
+    private fun backendSpec(writerSpec: Bitmap.Spec): Bitmap.Spec {
+        if (config[TRANSPARENCY] != MATTE)
+            return writerSpec
+        val backendPxFmtCode = when (val depth = writerSpec.representation.pixelFormat.depth) {
+            8 -> AV_PIX_FMT_GBRAP
+            10 -> AV_PIX_FMT_GBRAP10
+            12 -> AV_PIX_FMT_GBRAP12
+            16 -> AV_PIX_FMT_GBRAP16
+            else -> throw IllegalArgumentException("No color format for depth $depth.")
         }
+        val backendRep = Bitmap.Representation(
+            Bitmap.PixelFormat.of(backendPxFmtCode), ColorSpace.of(BT709, BLENDING), Bitmap.Alpha.PREMULTIPLIED
+        )
+        return writerSpec.copy(representation = backendRep)
+    }
 
-        // We have a second thread materialize frames into a queue, and the current thread take frames from the queue
-        // and submitting them to the VideoWriter. While this doesn't give us a huge performance boost over doing
-        // everything sequentially in the same thread, we gain a bit when a slow encoder (like ProRes) meets an
-        // expensive-to-materialize portion of the credits (like a blend).
-        val queue = LinkedBlockingQueue<Any>(32)
-        val materializer = Thread({
-            try {
-                DeferredVideo.BitmapBackend(
-                    scaledVideo, listOf(STATIC), listOf(TAPES), grounding, backendSpec, ceiling
-                ).use { backend ->
-                    for (frameIdx in 0..<scaledVideo.numFrames) {
-                        val colorBitmap = backend.materializeFrame(frameIdx)!!
-                        if (!matte)
-                            queue.put(colorBitmap)
-                        else {
-                            val matteBitmap = Bitmap.allocate(writerSpec).zero()
-                            matteBitmap.blit(blackWriterBitmap!!)
-                            matteBitmap.blitComponent(colorBitmap, 3, 0)
-                            if (!yuv) {
-                                matteBitmap.blitComponent(colorBitmap, 3, 1)
-                                matteBitmap.blitComponent(colorBitmap, 3, 2)
+    /** Returns the number of segments encoded at the same time, and the number of materializers per segment. */
+    private fun parallelism(scaledVideo: DeferredVideo): Pair<Int, Int> {
+        val numCores = Runtime.getRuntime().availableProcessors()
+        // With interlaced export, each backend alternates between the two fields of interlaced tapes, which only works
+        // if the backend sees every frame. So in that case, we fall back to a single materializer.
+        val onlySequential = config[SCAN] != Scan.PROGRESSIVE && scaledVideo.collectTapeSpans(listOf(TAPES))
+            .any { it.embeddedTape.tape.spec.scan != Bitmap.Scan.PROGRESSIVE }
+        if (onlySequential)
+            return Pair(1, 1)
+        // For intra-only codecs, every frame can be decoded on its own, so independently encoded parts of the video can
+        // be losslessly concatenated. We exploit this by encoding multiple contiguous segments at the same time, which
+        // sidesteps the encoder being a sequential bottleneck.
+        val numSegments = if (!format.intraOnly) 1 else
+            minOf(numCores / 2, MAX_SEGMENTS, scaledVideo.numFrames / MIN_SEGMENT_FRAMES).coerceAtLeast(1)
+        return if (numSegments > 1) Pair(numSegments, 1) else Pair(1, (numCores / 2).coerceIn(1, MAX_MATERIALIZERS))
+    }
+
+    private fun findRepeatedFrames(scaledVideo: DeferredVideo): BooleanArray {
+        val layers = listOf(STATIC, TAPES)
+        if (config[SCAN] == Scan.PROGRESSIVE)
+            return scaledVideo.findRepeatedFrames(layers)
+        // An interlaced frame consists of two fields, which the backend renders from a video with doubled frame rate.
+        // Such a frame is certainly repeated if both of its fields and the latter field of the previous frame are.
+        val fieldRepeated = scaledVideo.copy(fpsScaling = 2).findRepeatedFrames(layers)
+        return BooleanArray(scaledVideo.numFrames) { frameIdx ->
+            frameIdx != 0 &&
+                    fieldRepeated[2 * frameIdx - 1] && fieldRepeated[2 * frameIdx] && fieldRepeated[2 * frameIdx + 1]
+        }
+    }
+
+    private fun render(progressCallback: (Int) -> Unit, settings: VideoWriterSettings) {
+        val yuv = settings.pixelFormat.family == Bitmap.PixelFormat.Family.YUV
+        val matte = config[TRANSPARENCY] == MATTE
+        val scaledVideo = scaleVideo()
+        val writerSpec = writerSpec(settings, scaledVideo.resolution)
+        val colorSpace = writerSpec.representation.colorSpace!!
+        val ceiling = if (colorSpace.transfer.isHDR) null else 1f
+        val grounding = if (config[TRANSPARENCY] == GROUNDED) styling.global.grounding else null
+
+        val backendSpec = backendSpec(writerSpec)
+        var blackWriterBitmap: Bitmap? = null
+
+        // We have multiple threads materialize frames into a reorder buffer, and the current thread take frames from
+        // the buffer in order and submit them to the VideoWriter. As a BitmapBackend is not thread-safe, each
+        // materializer owns its own backend and is responsible for every n-th block of consecutive frames. The blocks
+        // keep each backend's frame indices increasing (as is required by its sequential access mode), and at the same
+        // time ensure that all materializers work on roughly the same region of the video, so their memory-hungry
+        // page caches need not hold many distinct chunks at once.
+        // Frames that repeat their predecessor are neither materialized nor converted. Instead, the previous frame is
+        // encoded again, or with intra-only codecs, its encoded packet is even copied without encoding anything.
+        val repeated = findRepeatedFrames(scaledVideo)
+        val numFrames = scaledVideo.numFrames
+        val (numSegments, numMaterializers) = parallelism(scaledVideo)
+        // If only a single backend is running, e.g., because interlaced tapes force sequential materialization, the
+        // conversion to the writer spec is the bottleneck, so let it use the idle cores.
+        val parallelConversion = numSegments == 1 && numMaterializers == 1
+        fun encodeFrames(videoWriter: VideoWriter, frames: IntRange, numMaterializers: Int, frameWritten: () -> Unit) {
+            val reorderCapacity = REORDER_BUFFER_SLACK + numMaterializers * MATERIALIZER_BLOCK
+            val reorderBuffer = FrameReorderBuffer(reorderCapacity)
+            // Matte frames are closed by the current thread once encoded, so let the materializers recycle their
+            // buffers.
+            val mattePool = if (!matte) null else Bitmap.Pool(maxBytes = reorderCapacity * writerSpec.estimatedBytes)
+            val materializers = List(numMaterializers) { materializerIdx ->
+                Thread({
+                    try {
+                        DeferredVideo.BitmapBackend(
+                            scaledVideo, listOf(STATIC), listOf(TAPES), grounding, backendSpec, ceiling,
+                            parallelConversion = parallelConversion, metrics = metrics
+                        ).use { backend ->
+                            var blockStart = frames.first + materializerIdx * MATERIALIZER_BLOCK
+                            while (blockStart <= frames.last) {
+                                for (frameIdx in blockStart..minOf(blockStart + MATERIALIZER_BLOCK - 1, frames.last)) {
+                                    if (frameIdx != frames.first && repeated[frameIdx])
+                                        continue
+                                    val colorBitmap = backend.materializeFrame(frameIdx)!!
+                                    val bitmap = if (!matte) colorBitmap else metrics.measure(MATTE) {
+                                        val matteBitmap = mattePool!!.allocate(writerSpec).zero()
+                                        matteBitmap.blit(blackWriterBitmap!!)
+                                        matteBitmap.blitComponent(colorBitmap, 3, 0)
+                                        if (!yuv) {
+                                            matteBitmap.blitComponent(colorBitmap, 3, 1)
+                                            matteBitmap.blitComponent(colorBitmap, 3, 2)
+                                        }
+                                        colorBitmap.close()
+                                        matteBitmap
+                                    }
+                                    reorderBuffer.put(frameIdx - frames.first, bitmap)
+                                    if (Thread.interrupted())
+                                        throw InterruptedException()
+                                }
+                                blockStart += numMaterializers * MATERIALIZER_BLOCK
                             }
-                            colorBitmap.close()
-                            queue.put(matteBitmap)
                         }
-                        if (Thread.interrupted())
-                            break
+                    } catch (_: InterruptedException) {
+                        // Return
+                    } catch (e: Exception) {
+                        reorderBuffer.fail(e)
                     }
-                }
-            } catch (_: InterruptedException) {
-                // Return
-            } catch (e: Exception) {
-                queue.put(e)
+                }, "VideoFrameMaterializer")
             }
-        }, "VideoFrameMaterializer")
-        VideoWriter(
-            file, writerSpec, scaledVideo.fps, settings.codecName, settings.codecProfile, settings.codecOptions,
-            emptyMap()
-        ).use { videoWriter ->
+            var lastBitmap: Bitmap? = null
             try {
-                // Start the materializer only after the VideoWriter has been successfully created, to not waste compute
-                // when the VideoWriter creation fails and we have to fall back to other VideoWriterSettings.
-                materializer.start()
-                for (frameIdx in 0..<scaledVideo.numFrames) {
-                    when (val got = queue.take()) {
-                        is Bitmap -> videoWriter.write(got)
-                        else -> throw RuntimeException((got as Throwable).userNotification, got)
+                for (materializer in materializers)
+                    materializer.start()
+                for (frameIdx in frames) {
+                    if (frameIdx != frames.first && repeated[frameIdx]) {
+                        reorderBuffer.skip()
+                        metrics.measure(WRITE) {
+                            if (format.intraOnly) videoWriter.repeatLastFrame() else videoWriter.write(lastBitmap!!)
+                        }
+                    } else {
+                        lastBitmap?.close()
+                        lastBitmap = null
+                        metrics.sampleQueue("reorderBuffer", reorderBuffer.occupancy, reorderCapacity)
+                        val bitmap = reorderBuffer.take()
+                        metrics.measure(WRITE) { videoWriter.write(bitmap) }
+                        // Only hold onto the frame if it is going to be encoded again.
+                        if (!format.intraOnly && frameIdx != frames.last && repeated[frameIdx + 1])
+                            lastBitmap = bitmap
+                        else
+                            bitmap.close()
                     }
-                    progressCallback(MAX_RENDER_PROGRESS * (frameIdx + 1) / scaledVideo.numFrames)
+                    frameWritten()
                     if (Thread.interrupted())
                         throw InterruptedException()
                 }
             } finally {
-                materializer.interrupt()
-                materializer.join(1000L)
-                while ((queue.poll() as? Bitmap)?.also(Bitmap::close) != null) continue
+                lastBitmap?.close()
+                for (materializer in materializers)
+                    materializer.interrupt()
+                // Closing the buffer before joining also closes frames which materializers put after being interrupted.
+                reorderBuffer.close()
+                // The materializers respond to the interrupt once their current frame is done, so wait for them to make
+                // sure none of them still uses the matte pool.
+                for (materializer in materializers)
+                    materializer.join()
+                mattePool?.close()
             }
         }
 
-        blackWriterBitmap?.close()
+        try {
+            if (matte) {
+                val rgbRep = Bitmap.Representation(
+                    Bitmap.PixelFormat.of(AV_PIX_FMT_GBRPF32), colorSpace, Bitmap.Alpha.OPAQUE
+                )
+                blackWriterBitmap = Bitmap.allocate(writerSpec)
+                Bitmap.allocate(writerSpec.copy(representation = rgbRep)).zero()
+                    .use { BitmapConverter.convert(it, blackWriterBitmap) }
+            }
+
+            if (numSegments == 1) {
+                VideoWriter(
+                    file, writerSpec, scaledVideo.fps, settings.codecName, settings.codecProfile, settings.codecOptions,
+                    emptyMap(), repeatable = format.intraOnly
+                ).use { videoWriter ->
+                    // Start the materializers only after the VideoWriter has been successfully created, to not
+                    // waste compute when the VideoWriter creation fails and we have to fall back to other
+                    // VideoWriterSettings.
+                    var numWrittenFrames = 0
+                    encodeFrames(videoWriter, 0..<numFrames, numMaterializers) {
+                        progressCallback(MAX_RENDER_PROGRESS * ++numWrittenFrames / numFrames)
+                    }
+                }
+            } else {
+                // The concatenation is counted as the last tenth of the progress.
+                val encodeProgress = MAX_RENDER_PROGRESS * 9 / 10
+                val numWrittenFrames = AtomicInteger()
+                // Write the segments into a fresh directory next to the target, so that they reside on the same
+                // drive, but can never collide with files of the user.
+                val partDir = createTempDirectory(file.parent, ".${file.nameWithoutExtension}.segments")
+                val partFiles = List(numSegments) { segIdx -> partDir.resolve("part${segIdx + 1}.${file.extension}") }
+                val executor = Executors.newFixedThreadPool(numSegments) { Thread(it, "VideoSegmentEncoder") }
+                try {
+                    val futures = partFiles.mapIndexed { segIdx, partFile ->
+                        val frames = (numFrames * segIdx / numSegments)..<(numFrames * (segIdx + 1) / numSegments)
+                        executor.submit(Callable {
+                            VideoWriter(
+                                partFile, writerSpec, scaledVideo.fps, settings.codecName, settings.codecProfile,
+                                settings.codecOptions, emptyMap(), repeatable = format.intraOnly
+                            ).use { videoWriter ->
+                                encodeFrames(videoWriter, frames, numMaterializers = 1) {
+                                    numWrittenFrames.incrementAndGet()
+                                }
+                            }
+                        })
+                    }
+                    // The segment threads only count their written frames, and the current thread reports the progress,
+                    // so that the progress callback is never called concurrently.
+                    var unfinished = futures
+                    while (unfinished.isNotEmpty()) {
+                        for (future in unfinished)
+                            if (future.isDone)
+                                try {
+                                    future.get()
+                                } catch (e: ExecutionException) {
+                                    // Rethrow FFmpegExceptions unwrapped, so that we fall back to the next settings.
+                                    val cause = e.cause
+                                    throw if (cause is FFmpegException) cause else
+                                        RuntimeException(cause?.userNotification, cause)
+                                }
+                        unfinished = unfinished.filterNot { it.isDone }
+                        progressCallback(encodeProgress * numWrittenFrames.get() / numFrames)
+                        if (unfinished.isNotEmpty())
+                            Thread.sleep(SEGMENT_PROGRESS_INTERVAL_MS)
+                    }
+                    VideoConcatenator(file, scaledVideo.fps).use { concatenator ->
+                        for ((segIdx, partFile) in partFiles.withIndex()) {
+                            concatenator.append(partFile)
+                            progressCallback(
+                                encodeProgress + (MAX_RENDER_PROGRESS - encodeProgress) * (segIdx + 1) / numSegments
+                            )
+                            if (Thread.interrupted())
+                                throw InterruptedException()
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow()
+                    // The segment threads still have their part files open and might still use the black bitmap,
+                    // so wait until they have terminated. Unlike awaitTermination(), close() keeps waiting even
+                    // when interrupted.
+                    executor.close()
+                    for (partFile in partFiles)
+                        partFile.deleteIfExists()
+                    partDir.deleteIfExists()
+                }
+            }
+        } finally {
+            blackWriterBitmap?.close()
+        }
     }
 
 
     companion object {
 
+        private const val MAX_MATERIALIZERS = 8
+        private const val MATERIALIZER_BLOCK = 4
+        private const val REORDER_BUFFER_SLACK = 32
+        private const val MAX_SEGMENTS = 8
+        private const val MIN_SEGMENT_FRAMES = 250
+        private const val SEGMENT_PROGRESS_INTERVAL_MS = 100L
+
         val H264: RenderFormat = H26XFormat(
             "H.264", AV_CODEC_ID_H264, "libx264", AV_PROFILE_H264_HIGH, AV_PROFILE_H264_HIGH_10,
             listOf("23", "20", "17"), listOf("medium", "slow", "veryslow")
@@ -240,6 +443,8 @@ class VideoContainerRenderJob private constructor(
         codecId: Int,
         defaultFileExt: String,
         configAssortment: Config.Assortment,
+        /** Whether the codec only produces keyframes, which means that encoded videos can be freely concatenated. */
+        val intraOnly: Boolean = false,
         widthMod: Int = 1,
         heightMod: Int = 1,
         minWidth: Int? = null,
@@ -271,6 +476,96 @@ class VideoContainerRenderJob private constructor(
     }
 
 
+    /**
+     * Accepts frames from multiple threads in arbitrary order and hands them out in frame order. To bound memory
+     * consumption, putting a frame blocks until it lies less than [capacity] frames ahead of the next frame to take.
+     * This can't deadlock as long as each producer puts its frames in increasing order, because then the producer of
+     * the next frame to take is never blocked. Once the buffer is closed, it closes all frames it still holds as well
+     * as all frames that are put afterward.
+     */
+    internal class FrameReorderBuffer(private val capacity: Int) : AutoCloseable {
+
+        private val lock = ReentrantLock()
+        private val changed = lock.newCondition()
+        private val slots = arrayOfNulls<Bitmap>(capacity)
+        private var nextFrameIdx = 0
+        private var numFilled = 0
+        private var failure: Exception? = null
+        private var closed = false
+
+        /** The number of frames that have been put, but not taken yet. */
+        val occupancy: Int
+            get() = lock.withLock { numFilled }
+
+        fun put(frameIdx: Int, bitmap: Bitmap) {
+            try {
+                lock.withLock {
+                    while (!closed && frameIdx >= nextFrameIdx + capacity)
+                        changed.await()
+                    if (closed) {
+                        bitmap.close()
+                        return
+                    }
+                    slots[frameIdx % capacity] = bitmap
+                    numFilled++
+                    changed.signalAll()
+                }
+            } catch (e: InterruptedException) {
+                bitmap.close()
+                throw e
+            }
+        }
+
+        fun fail(e: Exception) {
+            lock.withLock {
+                if (failure == null)
+                    failure = e
+                changed.signalAll()
+            }
+        }
+
+        /** Advances past the next frame without taking it, which is used for frames that are never put. */
+        fun skip() {
+            lock.withLock {
+                nextFrameIdx++
+                changed.signalAll()
+            }
+        }
+
+        fun take(): Bitmap {
+            lock.withLock {
+                val slot = nextFrameIdx % capacity
+                while (true) {
+                    check(!closed) { "The frame reorder buffer is closed." }
+                    failure?.let { e -> throw RuntimeException(e.userNotification, e) }
+                    val bitmap = slots[slot]
+                    if (bitmap != null) {
+                        slots[slot] = null
+                        numFilled--
+                        nextFrameIdx++
+                        changed.signalAll()
+                        return bitmap
+                    }
+                    changed.await()
+                }
+            }
+        }
+
+        override fun close() {
+            lock.withLock {
+                closed = true
+                for (i in slots.indices) {
+                    slots[i]?.close()
+                    slots[i] = null
+                }
+                numFilled = 0
+                changed.signalAll()
+            }
+        }
+
+    }
+
+
     private class VideoWriterSettings(
         val codecName: String,
         val codecProfile: Int,
@@ -313,6 +608,7 @@ class VideoContainerRenderJob private constructor(
         allTransparenciesTimesColorProps() * fixed(DEPTH, 10) * choice(SCAN) * choice(PRORES_PROFILE) -
                 fixed(TRANSPARENCY, TRANSPARENT) *
                 choice(PRORES_PROFILE, PRORES_422_PROXY, PRORES_422_LT, PRORES_422, PRORES_422_HQ),
+        intraOnly = true,
         widthMod = 2
     ) {
         override fun videoWriterSettings(config: Config): List<VideoWriterSettings> {
@@ -349,6 +645,7 @@ class VideoContainerRenderJob private constructor(
         opaqueTransparenciesTimesColorProps() * fixed(SCAN, Scan.PROGRESSIVE) *
                 (choice(DNXHR_PROFILE, DNXHR_LB, DNXHR_SQ, DNXHR_HQ) * fixed(DEPTH, 8) +
                         choice(DNXHR_PROFILE, DNXHR_HQX, DNXHR_444) * fixed(DEPTH, 10)),
+        intraOnly = true,
         minWidth = 256,
         minHeight = 120
     ) {
@@ -378,6 +675,7 @@ class VideoContainerRenderJob private constructor(
                 choice(CINEFORM_PROFILE, CF_422_LOW, CF_422_MED, CF_422_HI, CF_422_FILM1, CF_422_FILM2, CF_422_FILM3) +
                 allTransparenciesTimesColorSpace() * fixed(DEPTH, 12) * fixed(SCAN, Scan.PROGRESSIVE) *
                 choice(CINEFORM_PROFILE, CF_444_LOW, CF_444_MED, CF_444_HI, CF_444_FILM1, CF_444_FILM2, CF_444_FILM3),
+        intraOnly = true,
         widthMod = 16,
         heightMod = 8,
         minHeight = 32
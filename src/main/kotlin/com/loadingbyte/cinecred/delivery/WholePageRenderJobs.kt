@@ -62,6 +62,23 @@ class WholePageSequenceRenderJob private constructor(
     override val prefix: Path
         get() = dir
 
+    override val demand: RenderJob.Demand
+        get() {
+            if (format == SVG)
+                return super.demand
+            // Pages are rasterized one after the other, each into a canvas bitmap and potentially a matte bitmap.
+            val spatialScaling = 2.0.pow(config[SPATIAL_SCALING_LOG2])
+            val rep = Canvas.compatibleRepresentation(ColorSpace.of(config.getOrDefault(PRIMARIES), BLENDING))
+            val maxPageBytes = pageDefImages.maxOfOrNull { pageDefImage ->
+                val res = Resolution(
+                    (pageDefImage.width * spatialScaling).roundToInt().coerceAtLeast(1),
+                    (pageDefImage.height.resolve() * spatialScaling).roundToInt().coerceAtLeast(1)
+                )
+                Bitmap.Spec(res, rep).estimatedBytes
+            } ?: 0L
+            return RenderJob.Demand(nativeBytes = 2 * maxPageBytes, cores = 1)
+        }
+
     override fun render(progressCallback: (Int) -> Unit) {
         if (dir.exists())
             dir.cleanDirectory()
@@ -174,7 +191,9 @@ class WholePageSequenceRenderJob private constructor(
                     choice(TRANSPARENCY, GROUNDED, TRANSPARENT) * choice(PRIMARIES) * fixed(TRANSFER, LINEAR)
                             * choice(HDR)
                             + fixed(TRANSPARENCY, MATTE)
-                    )
+                    ) -
+                    // B44 only compresses half floats and would store full floats uncompressed.
+                    fixed(DEPTH, 32) * fixed(EXR_COMPRESSION, BitmapWriter.EXR.Compression.B44)
         )
         private val SVG = Format(
             "svg", isRaster = false,
@@ -21,11 +21,16 @@ import kotlin.math.*
 private class StageLayout(val y: Y, val info: DrawnStageInfo)
 
 
-fun drawPages(styling: Styling, credits: Credits): Pair<List<DrawnPage>, List<RuntimeGroup?>> {
-    val global = styling.global
+fun drawPages(styling: Styling, credits: Credits): Pair<List<DrawnPage>, List<RuntimeGroup?>> =
+    drawPages(styling, credits.pages, credits.runtimeGroups)
+
 
-    val pages = credits.pages
-    val runtimeGroups = credits.runtimeGroups
+private fun drawPages(
+    styling: Styling,
+    pages: List<Page>,
+    runtimeGroups: List<RuntimeGroup>
+): Pair<List<DrawnPage>, List<RuntimeGroup?>> {
+    val global = styling.global
 
     // First generate a body and then a block image for each block. This has to be done for all blocks at the same time
     // because heads, bodies, and tails can harmonize various widths and heights between them.
@@ -72,6 +77,265 @@ fun drawPages(styling: Styling, credits: Credits): Pair<List<DrawnPage>, List<Ru
 }
 
 
+/**
+ * Remembers the pages that [drawPages] has drawn for one credits sequence, together with everything their drawing
+ * depended on. When the credits sequence is drawn again, e.g., because a style has been edited, only the pages whose
+ * dependencies have changed are actually redrawn, while all other pages are taken over from the previous drawing.
+ *
+ * Pages are not fully independent of each other: blocks harmonize their extents with blocks on other pages, and runtime
+ * matching distributes frames across pages. Hence, we partition the pages into groups which don't influence each other,
+ * and reuse or redraw each group as a whole.
+ *
+ * This class is not thread-safe, so don't use an instance for multiple concurrent drawings.
+ */
+class PageMemo {
+
+    private var entries: Map<GroupKey, Entry> = emptyMap()
+
+    fun drawPages(styling: Styling, credits: Credits): Pair<List<DrawnPage>, List<RuntimeGroup?>> {
+        val pages = credits.pages
+        val groups = partitionPages(styling, credits)
+        val referencedStyles = IdentityHashMap<ListedStyle, List<ListedStyle>>()
+        val keys = groups.map { group -> groupKey(styling, pages, group, referencedStyles) }
+
+        val drawnPages = arrayOfNulls<DrawnPage>(pages.size)
+        val crushedRuntimeGroups = mutableListOf<RuntimeGroup?>()
+        val newEntries = HashMap<GroupKey, Entry>()
+        fun take(group: Group, key: GroupKey, entry: Entry) {
+            for ((idx, pageIdx) in group.pageIdxs.withIndex()) {
+                val page = pages[pageIdx]
+                val drawnPage = entry.drawnPages[idx]
+                // A reused drawing stems from an older, but equivalent page object, so point it to the current one.
+                drawnPages[pageIdx] =
+                    if (drawnPage.page === page) drawnPage else DrawnPage(page, drawnPage.defImage, drawnPage.stageInfo)
+            }
+            for (runtimeGroupIdx in entry.crushedRuntimeGroupIdxs)
+                crushedRuntimeGroups.add(if (runtimeGroupIdx == -1) null else group.runtimeGroups[runtimeGroupIdx])
+            newEntries[key] = entry
+        }
+
+        // Reuse the groups whose dependencies are unchanged, and collect the others.
+        val dirtyGroups = mutableListOf<Pair<Group, GroupKey>>()
+        for ((group, key) in groups.zip(keys)) {
+            val entry = entries[key]
+            if (entry != null)
+                take(group, key, entry)
+            else
+                dirtyGroups.add(Pair(group, key))
+        }
+
+        // Draw all dirty groups in one go. As the groups don't influence each other, this yields the same result as
+        // drawing each group on its own.
+        if (dirtyGroups.isNotEmpty()) {
+            val dirtyPageIdxs = dirtyGroups.flatMap { (group, _) -> group.pageIdxs }.sorted()
+            val (freshDrawnPages, freshCrushedRuntimeGroups) = drawPages(
+                styling, dirtyPageIdxs.map(pages::get), dirtyGroups.flatMap { (group, _) -> group.runtimeGroups }
+            )
+            val freshDrawnPageLookup = freshDrawnPages.associateByTo(IdentityHashMap(), DrawnPage::page)
+            for ((group, key) in dirtyGroups) {
+                // The global runtime group is represented by null. It can only be crushed if the global runtime is to
+                // be matched, and in that case, all pages are in one group.
+                val crushedRuntimeGroupIdxs = freshCrushedRuntimeGroups.mapNotNull { crushed ->
+                    if (crushed == null) -1 else group.runtimeGroups.indexOfFirst { it === crushed }.takeIf { it != -1 }
+                }
+                val groupDrawnPages = group.pageIdxs.map { pageIdx -> freshDrawnPageLookup.getValue(pages[pageIdx]) }
+                take(group, key, Entry(groupDrawnPages, crushedRuntimeGroupIdxs))
+            }
+        }
+
+        // Only remember the current groups, as the older ones are unlikely to ever come back.
+        entries = newEntries
+        return Pair(drawnPages.map { it!! }, crushedRuntimeGroups)
+    }
+
+    /** Partitions the pages into groups whose drawings don't influence each other. */
+    private fun partitionPages(styling: Styling, credits: Credits): List<Group> {
+        val pages = credits.pages
+        val pageUnion = UnionFind(pages.size)
+
+        // If the global runtime is to be matched, all pages take part in the same runtime matching.
+        if (styling.global.runtimeFrames.value != null)
+            for (pageIdx in 1..<pages.size)
+                pageUnion.union(0, pageIdx)
+        // Likewise, all pages with stages in the same runtime group take part in the same runtime matching.
+        val stagePageIdxs = IdentityHashMap<Stage, Int>()
+        for ((pageIdx, page) in pages.withIndex())
+            for (stage in page.stages)
+                stagePageIdxs[stage] = pageIdx
+        for (runtimeGroup in credits.runtimeGroups)
+            for (stage in runtimeGroup.stages)
+                pageUnion.union(stagePageIdxs.getValue(runtimeGroup.stages[0]), stagePageIdxs.getValue(stage))
+
+        // A block can harmonize its extents with any other block whose content style has the same name or is connected
+        // to its content style via the "harmonize across styles" settings. We group the content styles into clusters
+        // that comprise all those connections, no matter whether harmonization is actually turned on. The blocks of
+        // styles which are absent from the styling form their own clusters.
+        val contentStyles = styling.contentStyles
+        val contentStyleIdxs = HashMap<String, Int>()
+        for ((idx, style) in contentStyles.withIndex())
+            contentStyleIdxs.putIfAbsent(style.name, idx)
+        val contentStyleUnion = UnionFind(contentStyles.size)
+        for ((idx, style) in contentStyles.withIndex()) {
+            contentStyleUnion.union(idx, contentStyleIdxs.getValue(style.name))
+            for (refNames in arrayOf(
+                style.gridHarmonizeColWidthsAcrossStyles, style.gridHarmonizeRowHeightAcrossStyles,
+                style.flowHarmonizeCellWidthAcrossStyles, style.flowHarmonizeCellHeightAcrossStyles,
+                style.headHarmonizeWidthAcrossStyles, style.tailHarmonizeWidthAcrossStyles
+            ))
+                for (refName in refNames)
+                    contentStyleIdxs[refName]?.let { refIdx -> contentStyleUnion.union(idx, refIdx) }
+        }
+        fun clusterOf(style: ContentStyle): Any =
+            contentStyleIdxs[style.name]?.let(contentStyleUnion::find) ?: style.name
+
+        // All pages with blocks in the same cluster are drawn together.
+        val clusterPageIdxs = HashMap<Any, Int>()
+        for ((pageIdx, page) in pages.withIndex())
+            for (stage in page.stages)
+                for (compound in stage.compounds)
+                    for (spine in compound.spines)
+                        for (block in spine.blocks) {
+                            val firstPageIdx = clusterPageIdxs.putIfAbsent(clusterOf(block.style), pageIdx)
+                            if (firstPageIdx != null)
+                                pageUnion.union(firstPageIdx, pageIdx)
+                        }
+
+        val groups = LinkedHashMap<Int, Group>()  // retains insertion order
+        for (pageIdx in pages.indices)
+            groups.computeIfAbsent(pageUnion.find(pageIdx)) { Group() }.pageIdxs.add(pageIdx)
+        for (runtimeGroup in credits.runtimeGroups)
+            groups.getValue(pageUnion.find(stagePageIdxs.getValue(runtimeGroup.stages[0]))).runtimeGroups
+                .add(runtimeGroup)
+        for (style in contentStyles)
+            clusterPageIdxs[clusterOf(style)]?.let { pageIdx ->
+                groups.getValue(pageUnion.find(pageIdx)).contentStyles.add(style)
+            }
+        return groups.values.toList()
+    }
+
+    /**
+     * Collects everything the drawing of the group depends on into a key object that compares by value. As the page
+     * objects are recreated each time the credits are read, the key describes the pages structurally.
+     */
+    private fun groupKey(
+        styling: Styling,
+        pages: List<Page>,
+        group: Group,
+        referencedStyles: MutableMap<ListedStyle, List<ListedStyle>>
+    ): GroupKey {
+        // To compare each style only once, the structural descriptions of the pages refer to styles by index.
+        val styles = ArrayList<ListedStyle>()
+        val styleIdxs = IdentityHashMap<ListedStyle, Int>()
+        fun idx(style: ListedStyle): Int = styleIdxs.getOrPut(style) { styles.add(style); styles.lastIndex }
+        fun strKey(str: StyledString): List<Any> = str.map { (run, letterStyle) -> Pair(run, idx(letterStyle)) }
+
+        val stageIdxs = IdentityHashMap<Stage, Int>()
+        val pageKeys = group.pageIdxs.map { pageIdx ->
+            val page = pages[pageIdx]
+            val stageKeys = page.stages.map { stage ->
+                stageIdxs[stage] = stageIdxs.size
+                val compoundKeys = stage.compounds.map { compound ->
+                    val spineKeys = compound.spines.map { spine ->
+                        val blockKeys = spine.blocks.map { block ->
+                            val bodyKeys = block.body.map { bodyElem ->
+                                when (bodyElem) {
+                                    is BodyElement.Nil -> listOf(0, idx(bodyElem.sty))
+                                    is BodyElement.Str -> listOf(1, bodyElem.lines.map(::strKey))
+                                    is BodyElement.Pic -> listOf(2, idx(bodyElem.sty))
+                                    is BodyElement.Tap -> listOf(3, idx(bodyElem.sty))
+                                    is BodyElement.Mis -> listOf(4)
+                                }
+                            }
+                            listOf(
+                                idx(block.style), block.head?.map(::strKey), bodyKeys, block.tail?.map(::strKey),
+                                block.vGapAfterPx, block.harmonizeHeadPartitionId, block.harmonizeBodyPartitionId,
+                                block.harmonizeTailPartitionId
+                            )
+                        }
+                        listOf(
+                            compound.spines.indexOfFirst { it === spine.hookTo }, spine.hookVAnchor,
+                            spine.selfVAnchor, spine.hOffsetPx, spine.vOffsetPx, blockKeys
+                        )
+                    }
+                    when (compound) {
+                        is Compound.Card -> listOf(compound.vAnchor, compound.hOffsetPx, compound.vOffsetPx, spineKeys)
+                        is Compound.Scroll -> listOf(compound.hOffsetPx, compound.vGapAfterPx, spineKeys)
+                    }
+                }
+                listOf(
+                    idx(stage.style), stage.cardRuntimeFrames, compoundKeys, stage.vGapAfterPx,
+                    stage.transitionAfterFrames, stage.transitionAfterStyle?.let(::idx)
+                )
+            }
+            listOf(stageKeys, page.gapAfterFrames)
+        }
+        val runtimeGroupKeys = group.runtimeGroups.map { runtimeGroup ->
+            Pair(runtimeGroup.stages.map { stage -> stageIdxs.getValue(stage) }, runtimeGroup.runtimeFrames)
+        }
+
+        // The blocks might harmonize with any content style from their clusters, even if that style is not used.
+        for (style in group.contentStyles)
+            idx(style)
+        // Add all styles that are transitively referenced by the styles collected so far.
+        var styleIdx = 0
+        while (styleIdx < styles.size) {
+            val refStyles = referencedStyles.computeIfAbsent(styles[styleIdx]) { findReferencedStyles(styling, it) }
+            for (refStyle in refStyles)
+                idx(refStyle)
+            styleIdx++
+        }
+        // Styles only compare the names of auxiliary files, but the files might have been replaced in the meantime.
+        val auxiliaries = styles.map { style ->
+            when (style) {
+                is LetterStyle -> style.font.font
+                is PictureStyle -> style.picture.loader
+                is TapeStyle -> style.tape.tape
+                else -> null
+            }
+        }
+
+        return GroupKey(styling.global, styles, auxiliaries, pageKeys, runtimeGroupKeys)
+    }
+
+
+    private class Group {
+        val pageIdxs = mutableListOf<Int>()
+        val runtimeGroups = mutableListOf<RuntimeGroup>()
+        val contentStyles = mutableListOf<ContentStyle>()
+    }
+
+    private data class GroupKey(
+        val global: Global,
+        val styles: List<ListedStyle>,
+        val auxiliaries: List<Any?>,
+        val pages: List<Any>,
+        val runtimeGroups: List<Any>
+    )
+
+    private class Entry(val drawnPages: List<DrawnPage>, val crushedRuntimeGroupIdxs: List<Int>)
+
+    private class UnionFind(size: Int) {
+
+        private val parents = IntArray(size) { it }
+
+        fun find(idx: Int): Int {
+            var i = idx
+            while (parents[i] != i) {
+                parents[i] = parents[parents[i]]
+                i = parents[i]
+            }
+            return i
+        }
+
+        fun union(idx1: Int, idx2: Int) {
+            parents[find(idx1)] = find(idx2)
+        }
+
+    }
+
+}
+
+
 private fun layoutStages(
     resolution: Resolution,
     drawnStages: Map<Stage, DrawnStage>,
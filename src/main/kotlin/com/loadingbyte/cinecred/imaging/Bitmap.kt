@@ -17,6 +17,8 @@ import java.lang.foreign.ValueLayout.*
 import java.nio.ByteOrder
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 import kotlin.math.max
 
 
@@ -36,22 +38,28 @@ class Bitmap private constructor(
      * The underlying [AVFrame]. Only access it while in an [ifNotClosed] or [requireNotClosed] block. And if possible,
      * please use [memorySegment] and [linesize] instead.
      */
-    val frame: AVFrame
+    val frame: AVFrame,
+    pool: Pool? = null
 ) : AutoCloseable {
 
     private val arena = Arena.ofShared()
     private val closureListeners = CopyOnWriteArrayList<Runnable>()
-    private val cleanable = CLEANER.register(this, CleanerAction(frame, arena, closureListeners))
+    private val cleanable = CLEANER.register(this, CleanerAction(spec, frame, arena, closureListeners, pool))
 
     // Use a static class to absolutely ensure that no unwanted references leak into this object.
     private class CleanerAction(
-        private val frame: AVFrame, private val arena: Arena, private val listeners: List<Runnable>
+        private val spec: Spec,
+        private val frame: AVFrame,
+        private val arena: Arena,
+        private val listeners: List<Runnable>,
+        private val pool: Pool?
     ) : Runnable {
         override fun run() {
             listeners.forEach(Runnable::run)
             // Close the arena first, so that access to memory segments is prohibited before we free the memory.
             arena.close()
-            av_frame_free(frame)
+            if (pool == null || !pool.recycle(spec, frame))
+                av_frame_free(frame)
         }
     }
 
@@ -569,8 +577,10 @@ class Bitmap private constructor(
          * Allocates a new bitmap with an [aligned][isAligned] buffer following the given spec. Be aware that the
          * content of the bitmap is undefined; if you need it to be zeroed, use [zero].
          */
-        fun allocate(spec: Spec): Bitmap {
-            return allocateWithoutBufAndSetup(spec) { frame ->
+        fun allocate(spec: Spec): Bitmap = allocateAligned(spec, null)
+
+        private fun allocateAligned(spec: Spec, pool: Pool?): Bitmap {
+            return allocateWithoutBufAndSetup(spec, pool) { frame ->
                 // Allocate the buffer.
                 av_frame_get_buffer(frame, BYTE_ALIGNMENT)
                     .ffmpegThrowIfErrnum("Could not allocate frame buffer")
@@ -589,7 +599,9 @@ class Bitmap private constructor(
             }
         }
 
-        private inline fun allocateWithoutBufAndSetup(spec: Spec, setup: (AVFrame) -> Unit): Bitmap {
+        private inline fun allocateWithoutBufAndSetup(
+            spec: Spec, pool: Pool? = null, setup: (AVFrame) -> Unit
+        ): Bitmap {
             val frame = av_frame_alloc()
                 .ffmpegThrowIfNull("Could not allocate frame struct")
             try {
@@ -599,7 +611,7 @@ class Bitmap private constructor(
                 av_frame_free(frame)
                 throw t
             }
-            return Bitmap(spec, frame)
+            return Bitmap(spec, frame, pool)
         }
 
         private fun applySpecToFrame(spec: Spec, frame: AVFrame) {
@@ -653,6 +665,79 @@ class Bitmap private constructor(
     }
 
 
+    /**
+     * Hands out bitmaps like [Bitmap.allocate], but once such a bitmap is closed, its buffer is kept around and handed
+     * out again for the next bitmap with the same spec. Loops that repeatedly allocate and close equally sized bitmaps
+     * hence run without touching the native allocator after a couple of iterations.
+     *
+     * A buffer is only recycled if no view or FFmpeg component still references it. At most [maxBytes] of idle buffers
+     * are retained; if a closed bitmap doesn't fit anymore, its buffer is just freed. Once the pool is closed, all idle
+     * buffers are freed, and bitmaps that are still out there are freed as usual when they are closed.
+     *
+     * This class is thread-safe.
+     */
+    class Pool(private val maxBytes: Long) : AutoCloseable {
+
+        private val lock = ReentrantLock()
+        private val idleFrames = HashMap<Spec, ArrayDeque<AVFrame>>()
+        private var idleBytes = 0L
+        private var hits = 0L
+        private var misses = 0L
+        private var closed = false
+
+        val stats: Stats
+            get() = lock.withLock { Stats(hits, misses, idleBytes) }
+
+        /**
+         * Allocates a bitmap with an [aligned][isAligned] buffer following the given spec, reusing the buffer of a
+         * previously closed bitmap if possible. As with [Bitmap.allocate], the content of the bitmap is undefined.
+         */
+        fun allocate(spec: Spec): Bitmap {
+            val frame = lock.withLock {
+                val frame = idleFrames[spec]?.removeLastOrNull()
+                if (frame == null) misses++ else {
+                    hits++
+                    idleBytes -= frame.buf(0).size()
+                }
+                frame
+            } ?: return allocateAligned(spec, this)
+            // A previous user might have stamped a timestamp onto the frame.
+            frame.pts(AV_NOPTS_VALUE)
+            return Bitmap(spec, frame, this)
+        }
+
+        override fun close() {
+            lock.withLock {
+                closed = true
+                for (frames in idleFrames.values)
+                    for (frame in frames)
+                        av_frame_free(frame)
+                idleFrames.clear()
+                idleBytes = 0L
+            }
+        }
+
+        /** Returns whether the pool took ownership of the frame; if not, the caller must free it. */
+        internal fun recycle(spec: Spec, frame: AVFrame): Boolean {
+            // If any other frame still references the buffer, we may not hand it out for overwriting.
+            val buf = frame.buf(0)
+            if (buf == null || frame.buf(1) != null || av_buffer_is_writable(buf) == 0)
+                return false
+            val size = buf.size()
+            lock.withLock {
+                if (closed || idleBytes + size > maxBytes)
+                    return false
+                idleFrames.getOrPut(spec, ::ArrayDeque).addLast(frame)
+                idleBytes += size
+            }
+            return true
+        }
+
+        class Stats(val hits: Long, val misses: Long, val idleBytes: Long)
+
+    }
+
+
     data class Spec(
         val resolution: Resolution,
         val representation: Representation,
@@ -672,6 +757,19 @@ class Bitmap private constructor(
         constructor(resolution: Resolution, representation: Representation) :
                 this(resolution, representation, Scan.PROGRESSIVE, Content.PROGRESSIVE_FRAME)
 
+        /** Returns the number of bytes that the picture data of a bitmap with this spec occupies, excluding padding. */
+        val estimatedBytes: Long
+            get() {
+                val pixelFormat = representation.pixelFormat
+                var bytes = 0L
+                for (plane in 0..<pixelFormat.planes) {
+                    val w = ceilDiv(resolution.widthPx, 1 shl pixelFormat.hChromaSubOfPlane(plane))
+                    val h = ceilDiv(resolution.heightPx, 1 shl pixelFormat.vChromaSubOfPlane(plane))
+                    bytes += w.toLong() * h * pixelFormat.stepOfPlane(plane)
+                }
+                return bytes
+            }
+
     }
 
 
@@ -1,6 +1,7 @@
 package com.loadingbyte.cinecred.imaging
 
 import com.loadingbyte.cinecred.common.CLEANER
+import com.loadingbyte.cinecred.common.GLOBAL_THREAD_POOL
 import com.loadingbyte.cinecred.common.Resolution
 import com.loadingbyte.cinecred.common.ceilDiv
 import com.loadingbyte.cinecred.imaging.Bitmap.Alpha.*
@@ -37,6 +38,7 @@ import java.lang.foreign.MemorySegment.NULL
 import java.lang.foreign.ValueLayout.*
 import java.lang.invoke.VarHandle
 import java.nio.ByteOrder
+import java.util.concurrent.ExecutionException
 import kotlin.math.max
 import kotlin.math.min
 import jdk.incubator.vector.ByteVector.SPECIES_PREFERRED as B
@@ -54,6 +56,8 @@ import jdk.incubator.vector.ShortVector.fromMemorySegment as vec
  * @param promiseOpaque Assumes that the source alpha channel is 1 everywhere. This admits certain optimizations.
  * @param approxTransfer Use faster, but less precise transfer characteristics conversion.
  * @param nearestNeighbor Use very fast nearest neighbor scaling.
+ * @param parallel Split the bitmap into horizontal bands and convert them on multiple threads at the same time. The
+ *     result is identical to the one of a sequential conversion. Has no effect if the conversion involves scaling.
  */
 class BitmapConverter(
     private val srcSpec: Bitmap.Spec,
@@ -62,7 +66,8 @@ class BitmapConverter(
     private val dstAligned: Boolean = true,
     promiseOpaque: Boolean = false,
     approxTransfer: Boolean = false,
-    nearestNeighbor: Boolean = false
+    nearestNeighbor: Boolean = false,
+    parallel: Boolean = false
 ) : AutoCloseable {
 
     private val stages = mutableListOf<Stage>()
@@ -79,6 +84,7 @@ class BitmapConverter(
     private val closureProtector = ClosureProtector()
     private val effSpecs: List<Bitmap.Spec>
     private val intermediates = mutableListOf<Bitmap>()
+    private val bands = mutableListOf<Band>()
 
     init {
         require(
@@ -111,6 +117,16 @@ class BitmapConverter(
 
         this.effSpecs = effSpecs
 
+        if (parallel)
+            planBands(srcAligned, dstAligned, promiseOpaque, approxTransfer, nearestNeighbor)
+        // In parallel mode, each band brings its own stages and intermediates, so the whole bitmap doesn't need any.
+        if (bands.isEmpty())
+            setupStages(stageTypes, promiseOpaque, approxTransfer, nearestNeighbor)
+    }
+
+    private fun setupStages(
+        stageTypes: List<StageType>, promiseOpaque: Boolean, approxTransfer: Boolean, nearestNeighbor: Boolean
+    ) {
         // Add stages one by one so if creating one throws an exception,
         // all the previously created ones will be closed by the cleaner.
         for ((i, stageType) in stageTypes.withIndex())
@@ -154,6 +170,49 @@ class BitmapConverter(
         }
     }
 
+    private fun planBands(
+        srcAligned: Boolean, dstAligned: Boolean, promiseOpaque: Boolean, approxTransfer: Boolean,
+        nearestNeighbor: Boolean
+    ) {
+        if (srcSpec.resolution != dstSpec.resolution)
+            return
+        val (width, height) = srcSpec.resolution
+        val numBands = min(Runtime.getRuntime().availableProcessors(), height / MIN_BAND_ROWS)
+        if (numBands < 2)
+            return
+        // Bands must start at rows that are valid view coordinates for both bitmaps, i.e., they must respect vertical
+        // chroma subsampling, and when the fields are interleaved, they must also not swap the field parity.
+        val vChromaSub =
+            max(srcSpec.representation.pixelFormat.vChromaSub, dstSpec.representation.pixelFormat.vChromaSub)
+        var rowAlignment = 1 shl vChromaSub
+        if (Bitmap.Content.INTERLEAVED_FIELDS.let { it == srcSpec.content || it == dstSpec.content })
+            rowAlignment = max(rowAlignment, 2)
+        // When chroma is resampled, zimg and swscale filter across rows. So that a band's output rows come out exactly
+        // as they would when converting the whole bitmap, each band reads some rows of context above and below it,
+        // converts into a scratch bitmap, and then only copies its own rows into the destination.
+        val halo = if (vChromaSub == 0) 0 else HALO_ROWS
+        val bandRows = ceilDiv(ceilDiv(height, numBands), rowAlignment) * rowAlignment
+        // Add bands one by one so if creating one throws an exception,
+        // all the previously created ones will be closed by their cleaners.
+        for (y in 0..<height step bandRows) {
+            val bandHeight = min(bandRows, height - y)
+            val haloTop = min(halo, y)
+            val haloBot = min(halo, height - y - bandHeight)
+            val res = Resolution(width, haloTop + bandHeight + haloBot)
+            val scratch = if (halo == 0) null else Bitmap.allocate(dstSpec.copy(resolution = res))
+            val converter = try {
+                BitmapConverter(
+                    srcSpec.copy(resolution = res), dstSpec.copy(resolution = res), srcAligned,
+                    dstAligned || scratch != null, promiseOpaque, approxTransfer, nearestNeighbor
+                )
+            } catch (t: Throwable) {
+                scratch?.close()
+                throw t
+            }
+            bands += Band(y, bandHeight, haloTop, converter, scratch)
+        }
+    }
+
     private fun isInplace(stageType: StageType, srcSpec: Bitmap.Spec, dstSpec: Bitmap.Spec): Boolean =
         stageType == ADD_ALPHA_CHANNEL || stageType == UN_PREMUL_OR_DROP_ALPHA_CHANNEL ||
                 stageType == SKCMS &&
@@ -165,6 +224,7 @@ class BitmapConverter(
         closureProtector.close()
         cleanable.clean()
         intermediates.forEach(Bitmap::close)
+        bands.forEach(Band::close)
     }
 
     fun convert(src: Bitmap, dst: Bitmap) {
@@ -176,17 +236,39 @@ class BitmapConverter(
         closureProtector.requireNotClosed {
             src.requireNotClosed {
                 dst.requireNotClosed {
-                    for ((i, stage) in stages.withIndex())
-                        withStageBitmap(i, src, dst) { stageSrc ->
-                            withStageBitmap(i + 1, src, dst) { stageDst ->
-                                stage.process(stageSrc, stageDst)
+                    if (bands.isNotEmpty())
+                        convertBands(src, dst)
+                    else
+                        for ((i, stage) in stages.withIndex())
+                            withStageBitmap(i, src, dst) { stageSrc ->
+                                withStageBitmap(i + 1, src, dst) { stageDst ->
+                                    stage.process(stageSrc, stageDst)
+                                }
                             }
-                        }
                 }
             }
         }
     }
 
+    private fun convertBands(src: Bitmap, dst: Bitmap) {
+        // The calling thread converts the first band itself, and pool threads convert the remaining ones.
+        val futures = bands.subList(1, bands.size).map { band -> GLOBAL_THREAD_POOL.submit { band.convert(src, dst) } }
+        var failure: Throwable? = null
+        try {
+            bands[0].convert(src, dst)
+        } catch (t: Throwable) {
+            failure = t
+        }
+        // Even if a band failed, wait for all others, as they are still accessing the bitmaps.
+        for (future in futures)
+            try {
+                future.get()
+            } catch (e: ExecutionException) {
+                if (failure == null) failure = e.cause
+            }
+        failure?.let { throw it }
+    }
+
     private inline fun withStageBitmap(idx: Int, src: Bitmap, dst: Bitmap, block: (Bitmap) -> Unit) {
         var bitmap: Bitmap
         var usingView = false
@@ -237,6 +319,40 @@ class BitmapConverter(
         private val EIGHTH_VLEN = VLEN / 8
         private val SIXTEENTH_VLEN = VLEN / 16
 
+        private const val MIN_BAND_ROWS = 64
+        // Lanczos reaches 3 samples in each direction, and resampling chroma can chain an upsampling and a downsampling
+        // filter on half-height interlaced fields, so this comfortably covers the rows any output row depends on.
+        private const val HALO_ROWS = 32
+
+    }
+
+
+    private class Band(
+        private val y: Int,
+        private val height: Int,
+        private val haloTop: Int,
+        private val converter: BitmapConverter,
+        private val scratch: Bitmap?
+    ) : AutoCloseable {
+
+        override fun close() {
+            converter.close()
+            scratch?.close()
+        }
+
+        fun convert(src: Bitmap, dst: Bitmap) {
+            val width = src.spec.resolution.widthPx
+            val srcHeight = converter.srcSpec.resolution.heightPx
+            src.view(0, y - haloTop, width, srcHeight, 1).use { srcBand ->
+                if (scratch == null)
+                    dst.view(0, y, width, height, 1).use { dstBand -> converter.convert(srcBand, dstBand) }
+                else {
+                    converter.convert(srcBand, scratch)
+                    dst.blit(scratch, 0, haloTop, width, height, 0, y, 1)
+                }
+            }
+        }
+
     }
 
 
@@ -990,8 +1106,8 @@ class BitmapConverter(
      * bitmaps, it neither expects native endianness nor proper alignment because the behavior of VideoReader bitmaps
      * in these regards cannot be controlled.
      *
-     * Be aware that this class has been extensively profiled, so whenever you make any change, run performance tests
-     * again to ensure you didn't make it worse!
+     * Be aware that this class has been extensively profiled, so whenever you make any change, run the
+     * BitmapConverterBenchmark again to ensure you didn't make it worse!
      */
     private object PlanarFloatStage : Stage {
 
@@ -1,6 +1,7 @@
 package com.loadingbyte.cinecred.imaging
 
 import com.loadingbyte.cinecred.common.FPS
+import com.loadingbyte.cinecred.common.GLOBAL_THREAD_POOL
 import com.loadingbyte.cinecred.common.Resolution
 import com.loadingbyte.cinecred.common.VERSION
 import com.loadingbyte.cinecred.common.ceilDiv
@@ -20,6 +21,8 @@ import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.file.Path
 import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.zip.Deflater
 import java.util.zip.DeflaterOutputStream
 import javax.imageio.*
@@ -29,6 +32,7 @@ import javax.imageio.stream.FileImageOutputStream
 import javax.imageio.stream.ImageOutputStream
 import javax.imageio.stream.MemoryCacheImageOutputStream
 import kotlin.io.path.outputStream
+import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToInt
 import java.awt.color.ColorSpace as AWTColorSpace
@@ -607,7 +611,7 @@ interface BitmapWriter {
         private val fps: FPS? = null
     ) : BitmapWriter {
 
-        enum class Compression { NONE, RLE, ZIPS, ZIP }
+        enum class Compression(val code: Int) { NONE(0), RLE(1), ZIPS(2), ZIP(3), PIZ(4), B44(6) }
 
         private val isGray = family == Bitmap.PixelFormat.Family.GRAY
         override val representation: Bitmap.Representation
@@ -664,61 +668,14 @@ interface BitmapWriter {
                     os.write(chunk.array())
                 }
             } else {
-                val chunks = mutableListOf<ByteBuffer>()
                 val chunkH = when (compression) {
                     Compression.NONE -> throw IllegalStateException()
                     Compression.RLE, Compression.ZIPS -> 1
                     Compression.ZIP -> 16
+                    Compression.PIZ, Compression.B44 -> 32
                 }
                 val numChunks = ceilDiv(h, chunkH)
-                val rawBytes = chunkH * rawLineBytes
-                val raw1 = ByteBuffer.allocate(rawBytes).order(ByteOrder.LITTLE_ENDIAN)
-                val raw2 = ByteArray(rawBytes)
-                for (c in 0..<numChunks) {
-                    val curChunkY = c * chunkH
-                    val curChunkH = min(chunkH, h - curChunkY)
-                    val curRawBytes = curChunkH * rawLineBytes
-                    // Copy
-                    raw1.clear()
-                    for (l in 0..<curChunkH)
-                        copyLine(bitmap, curChunkY + l, raw1)
-                    // Reorder
-                    raw1.rewind()
-                    var r21 = 0
-                    var r22 = curRawBytes / 2
-                    repeat(curRawBytes / 2) {
-                        raw2[r21++] = raw1.get()
-                        raw2[r22++] = raw1.get()
-                    }
-                    // Predictor
-                    var prev = raw2[0].toInt()
-                    for (i in 1..<curRawBytes) {
-                        val curr = raw2[i].toInt()
-                        val diff = curr - prev + 384
-                        prev = curr
-                        raw2[i] = diff.toByte()
-                    }
-                    // Compressor
-                    val chunk = ByteBuffer.allocate(8 + curRawBytes - 1).order(ByteOrder.LITTLE_ENDIAN).position(8)
-                    val fits = when (compression) {
-                        Compression.NONE -> throw IllegalStateException()
-                        Compression.RLE -> runLengthEncode(raw2, curRawBytes, chunk)
-                        Compression.ZIPS, Compression.ZIP -> {
-                            val d = Deflater()
-                            d.setInput(raw2, 0, curRawBytes)
-                            d.finish()
-                            d.deflate(chunk)
-                            d.end()
-                            d.finished()
-                        }
-                    }
-                    if (!fits)
-                        chunk.position(8).put(raw1.limit(curRawBytes))
-                    // Chunk header
-                    chunk.putInt(0, curChunkY)
-                    chunk.putInt(4, chunk.position() - 8)
-                    chunks += chunk
-                }
+                val chunks = compressChunks(bitmap, chunkH, numChunks)
                 val chunkOffsetTable = ByteBuffer.allocate(numChunks * 8).order(ByteOrder.LITTLE_ENDIAN)
                 var offset = headerBytes + chunkOffsetTable.capacity().toLong()
                 for (chunk in chunks) {
@@ -731,6 +688,124 @@ interface BitmapWriter {
             }
         }
 
+        /**
+         * Chunks are compressed independently of each other, so we distribute them across multiple threads. As each
+         * chunk ends up in its own buffer and the offset table is only assembled afterward, the output is the same as
+         * if the chunks were compressed one after another.
+         */
+        private fun compressChunks(bitmap: Bitmap, chunkH: Int, numChunks: Int): List<ByteBuffer> {
+            val chunks = arrayOfNulls<ByteBuffer>(numChunks)
+            val nextChunk = AtomicInteger()
+            val worker = Runnable {
+                ChunkCompressor(bitmap, chunkH).use { compressor ->
+                    while (true) {
+                        val c = nextChunk.getAndIncrement()
+                        if (c >= numChunks)
+                            break
+                        chunks[c] = compressor.compress(c)
+                    }
+                }
+            }
+            val numWorkers = min(Runtime.getRuntime().availableProcessors(), numChunks / MIN_CHUNKS_PER_WORKER)
+                .coerceAtLeast(1)
+            val futures = List(numWorkers - 1) { GLOBAL_THREAD_POOL.submit(worker) }
+            var failure: Throwable? = null
+            try {
+                worker.run()
+            } catch (t: Throwable) {
+                failure = t
+                // Let the other workers stop early.
+                nextChunk.set(numChunks)
+            }
+            // Even if a worker failed, wait for all others, as they are still accessing the bitmap.
+            for (future in futures)
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    if (failure == null) failure = e.cause
+                }
+            failure?.let { throw it }
+            return chunks.map { it!! }
+        }
+
+        /** Holds the scratch memory of one thread that compresses chunks. */
+        private inner class ChunkCompressor(private val bitmap: Bitmap, private val chunkH: Int) : AutoCloseable {
+
+            private val w = bitmap.spec.resolution.widthPx
+            private val h = bitmap.spec.resolution.heightPx
+            private val numChannels = representation.pixelFormat.planes
+            private val rawLineBytes = numChannels * w * (depth / 8)
+            private val raw1 = ByteBuffer.allocate(chunkH * rawLineBytes).order(ByteOrder.LITTLE_ENDIAN)
+            private val raw2 = ByteArray(chunkH * rawLineBytes)
+            private val deflater =
+                if (compression == Compression.ZIPS || compression == Compression.ZIP) Deflater() else null
+
+            override fun close() {
+                deflater?.end()
+            }
+
+            fun compress(c: Int): ByteBuffer {
+                val curChunkY = c * chunkH
+                val curChunkH = min(chunkH, h - curChunkY)
+                val curRawBytes = curChunkH * rawLineBytes
+                // Copy
+                raw1.clear()
+                for (l in 0..<curChunkH)
+                    copyLine(bitmap, curChunkY + l, raw1)
+                // Compressor
+                // A reader considers a chunk to be uncompressed if its data is as large as the raw lines, so compressed
+                // data must be strictly smaller. We enforce this by limiting the buffer while compressing, but give
+                // the buffer enough capacity to hold the raw lines in case compression doesn't pay off.
+                val chunk = ByteBuffer.allocate(8 + curRawBytes).order(ByteOrder.LITTLE_ENDIAN)
+                    .limit(8 + curRawBytes - 1).position(8)
+                val fits = when (compression) {
+                    Compression.NONE -> throw IllegalStateException()
+                    Compression.RLE, Compression.ZIPS, Compression.ZIP -> {
+                        reorderAndPredict(curRawBytes)
+                        if (compression == Compression.RLE)
+                            runLengthEncode(raw2, curRawBytes, chunk)
+                        else {
+                            val d = deflater!!
+                            d.reset()
+                            d.setInput(raw2, 0, curRawBytes)
+                            d.finish()
+                            d.deflate(chunk)
+                            d.finished()
+                        }
+                    }
+                    Compression.PIZ -> EXRPiz.compress(raw1, curRawBytes, w, curChunkH, numChannels, depth / 16, chunk)
+                    Compression.B44 -> depth == 16 && EXRB44.compress(raw1, w, curChunkH, numChannels, chunk)
+                }
+                chunk.limit(chunk.capacity())
+                if (!fits)
+                    chunk.position(8).put(raw1.position(0).limit(curRawBytes))
+                // Chunk header
+                chunk.putInt(0, curChunkY)
+                chunk.putInt(4, chunk.position() - 8)
+                return chunk
+            }
+
+            private fun reorderAndPredict(curRawBytes: Int) {
+                // Reorder
+                raw1.rewind()
+                var r21 = 0
+                var r22 = curRawBytes / 2
+                repeat(curRawBytes / 2) {
+                    raw2[r21++] = raw1.get()
+                    raw2[r22++] = raw1.get()
+                }
+                // Predictor
+                var prev = raw2[0].toInt()
+                for (i in 1..<curRawBytes) {
+                    val curr = raw2[i].toInt()
+                    val diff = curr - prev + 384
+                    prev = curr
+                    raw2[i] = diff.toByte()
+                }
+            }
+
+        }
+
         private fun copyLine(src: Bitmap, y: Int, dst: ByteBuffer) {
             val w = src.spec.resolution.widthPx
             for (plane in if (isGray) intArrayOf(0) else if (hasAlpha) intArrayOf(3, 1, 0, 2) else intArrayOf(1, 0, 2))
@@ -746,17 +821,19 @@ interface BitmapWriter {
                 }
         }
 
+        /** Writes up to the [stream]'s limit, and returns false if the encoded data doesn't fit. */
         private fun runLengthEncode(raw: ByteArray, rawBytes: Int, stream: ByteBuffer): Boolean {
             var i = 0
             var o = stream.position()
             val out = stream.array()
+            val limit = stream.limit()
             var run = 1
             var copy = 0
             while (i < rawBytes) {
                 while (i + run < rawBytes && raw[i] == raw[i + run] && run < 128)
                     run++
                 if (run >= 3) {
-                    if (o + 2 >= out.size)
+                    if (o + 2 > limit)
                         return false
                     out[o++] = (run - 1).toByte()
                     out[o++] = raw[i]
@@ -766,7 +843,7 @@ interface BitmapWriter {
                         copy += run
                     while (i + copy < rawBytes && copy < 127 && raw[i + copy] != raw[i + copy - 1])
                         copy++
-                    if (o + 1 + copy >= out.size)
+                    if (o + 1 + copy > limit)
                         return false
                     out[o++] = (-copy).toByte()
                     System.arraycopy(raw, i, out, o, copy)
@@ -802,7 +879,7 @@ interface BitmapWriter {
 
             buf.put("compression\u0000compression\u0000".toByteArray())
             buf.putInt(1)
-            buf.put(compression.ordinal.toByte())
+            buf.put(compression.code.toByte())
 
             buf.put("dataWindow\u0000box2i\u0000".toByteArray())
             buf.putInt(16)
@@ -865,6 +942,459 @@ interface BitmapWriter {
             return buf.position()
         }
 
+        companion object {
+            private const val MIN_CHUNKS_PER_WORKER = 16
+        }
+
+    }
+
+}
+
+
+/**
+ * OpenEXR's PIZ compression: the 16-bit words of each channel are mapped to a dense range of values, transformed by a
+ * Haar wavelet, and then Huffman-coded. This closely follows the reference implementation, as there is no other
+ * specification of the format.
+ */
+private object EXRPiz {
+
+    private const val USHORT_RANGE = 1 shl 16
+    private const val BITMAP_SIZE = USHORT_RANGE shr 3
+    private const val HUF_ENCSIZE = USHORT_RANGE + 1
+    private const val SHORT_ZEROCODE_RUN = 59
+    private const val LONG_ZEROCODE_RUN = 63
+    private const val SHORTEST_LONG_RUN = 2 + LONG_ZEROCODE_RUN - SHORT_ZEROCODE_RUN
+    private const val LONGEST_LONG_RUN = 255 + SHORTEST_LONG_RUN
+
+    /**
+     * Compresses the [raw] chunk, whose lines consist of [numChannels] consecutive runs of [w] little-endian samples
+     * with [sampleShorts] 16-bit words each, and appends the result to [out], but without exceeding its limit.
+     *
+     * @return Whether the compressed data fits into [out] and has hence been written completely.
+     */
+    fun compress(
+        raw: ByteBuffer, rawBytes: Int, w: Int, h: Int, numChannels: Int, sampleShorts: Int, out: ByteBuffer
+    ): Boolean {
+        // Gather the words of each channel into a contiguous block.
+        val n = rawBytes / 2
+        val lineShorts = w * sampleShorts
+        val data = ShortArray(n)
+        var i = 0
+        for (y in 0..<h)
+            for (c in 0..<numChannels) {
+                val start = (c * h + y) * lineShorts
+                for (k in start..<start + lineShorts)
+                    data[k] = raw.getShort(2 * i++)
+            }
+
+        // Find which words occur, and map them to a dense range, except for 0, which always maps to 0.
+        val bitmap = ByteArray(BITMAP_SIZE)
+        for (k in 0..<n) {
+            val v = data[k].toInt() and 0xFFFF
+            bitmap[v shr 3] = (bitmap[v shr 3].toInt() or (1 shl (v and 7))).toByte()
+        }
+        bitmap[0] = (bitmap[0].toInt() and 1.inv()).toByte()
+        var minNonZero = BITMAP_SIZE - 1
+        var maxNonZero = 0
+        for (k in 0..<BITMAP_SIZE)
+            if (bitmap[k].toInt() != 0) {
+                minNonZero = min(minNonZero, k)
+                maxNonZero = max(maxNonZero, k)
+            }
+        val lut = IntArray(USHORT_RANGE)
+        var numValues = 0
+        for (v in 0..<USHORT_RANGE)
+            if (v == 0 || (bitmap[v shr 3].toInt() and (1 shl (v and 7))) != 0)
+                lut[v] = numValues++
+        val maxValue = numValues - 1
+        for (k in 0..<n)
+            data[k] = lut[data[k].toInt() and 0xFFFF].toShort()
+
+        val limit = out.limit()
+        if (out.position() + 4 + max(0, maxNonZero - minNonZero + 1) + 4 > limit)
+            return false
+        out.putShort(minNonZero.toShort())
+        out.putShort(maxNonZero.toShort())
+        if (minNonZero <= maxNonZero)
+            out.put(bitmap, minNonZero, maxNonZero - minNonZero + 1)
+
+        // Apply the wavelet transform to each word of each channel separately.
+        for (c in 0..<numChannels)
+            for (j in 0..<sampleShorts)
+                wav2Encode(data, c * h * lineShorts + j, w, sampleShorts, h, lineShorts, maxValue)
+
+        // Huffman-code the result, prefixed by its length.
+        val lengthPos = out.position()
+        val sink = BitSink(out.array(), lengthPos + 4, limit)
+        hufCompress(data, sink)
+        if (sink.overflow)
+            return false
+        out.putInt(lengthPos, sink.pos - (lengthPos + 4))
+        out.position(sink.pos)
+        return true
+    }
+
+    private fun wav2Encode(a: ShortArray, start: Int, nx: Int, ox: Int, ny: Int, oy: Int, mx: Int) {
+        val w14 = mx < (1 shl 14)
+        val n = min(nx, ny)
+        var p = 1
+        var p2 = 2
+        // Hierarchical loop on the smaller dimension.
+        while (p2 <= n) {
+            var py = start
+            val ey = start + oy * (ny - p2)
+            val oy1 = oy * p
+            val oy2 = oy * p2
+            val ox1 = ox * p
+            val ox2 = ox * p2
+            while (py <= ey) {
+                var px = py
+                val ex = py + ox * (nx - p2)
+                while (px <= ex) {
+                    val p01 = px + ox1
+                    val p10 = px + oy1
+                    val p11 = p10 + ox1
+                    // 2D wavelet encoding
+                    val e0 = wenc(a[px], a[p01], w14)
+                    val e1 = wenc(a[p10], a[p11], w14)
+                    val e2 = wenc(lo(e0), lo(e1), w14)
+                    val e3 = wenc(hi(e0), hi(e1), w14)
+                    a[px] = lo(e2)
+                    a[p10] = hi(e2)
+                    a[p01] = lo(e3)
+                    a[p11] = hi(e3)
+                    px += ox2
+                }
+                // Encode the odd column.
+                if ((nx and p) != 0) {
+                    val p10 = px + oy1
+                    val e = wenc(a[px], a[p10], w14)
+                    a[p10] = hi(e)
+                    a[px] = lo(e)
+                }
+                py += oy2
+            }
+            // Encode the odd line.
+            if ((ny and p) != 0) {
+                var px = py
+                val ex = py + ox * (nx - p2)
+                while (px <= ex) {
+                    val p01 = px + ox1
+                    val e = wenc(a[px], a[p01], w14)
+                    a[p01] = hi(e)
+                    a[px] = lo(e)
+                    px += ox2
+                }
+            }
+            p = p2
+            p2 = p2 shl 1
+        }
+    }
+
+    /** Returns the low-pass word in the lower and the high-pass word in the upper 16 bits. */
+    private fun wenc(a: Short, b: Short, w14: Boolean): Int {
+        val l: Int
+        val h: Int
+        if (w14) {
+            val ai = a.toInt()
+            val bi = b.toInt()
+            l = (ai + bi) shr 1
+            h = ai - bi
+        } else {
+            val ao = (a.toInt() + 0x8000) and 0xFFFF
+            val bi = b.toInt() and 0xFFFF
+            var m = (ao + bi) shr 1
+            val d = ao - bi
+            if (d < 0)
+                m = (m + 0x8000) and 0xFFFF
+            l = m
+            h = d
+        }
+        return (l and 0xFFFF) or (h shl 16)
+    }
+
+    private fun lo(e: Int): Short = e.toShort()
+    private fun hi(e: Int): Short = (e ushr 16).toShort()
+
+    private fun hufCompress(data: ShortArray, sink: BitSink) {
+        if (data.isEmpty())
+            return
+        val freq = LongArray(HUF_ENCSIZE)
+        for (v in data)
+            freq[v.toInt() and 0xFFFF]++
+        var im = 0
+        while (freq[im] == 0L)
+            im++
+        var iM = im
+        for (v in im..<HUF_ENCSIZE)
+            if (freq[v] != 0L)
+                iM = v
+        // Add a pseudo-symbol, which the encoder uses for run-length encoding.
+        iM++
+        freq[iM] = 1L
+        val hcode = buildCanonicalCodeTable(freq, im, iM)
+
+        val headerPos = sink.pos
+        sink.skip(20)
+        val tablePos = sink.pos
+        packEncTable(hcode, im, iM, sink)
+        val tableLength = sink.pos - tablePos
+        val dataPos = sink.pos
+        encode(hcode, data, iM, sink)
+        val nBits = (sink.pos - dataPos) * 8 + sink.pendingBits
+        sink.flush()
+        sink.putIntLE(headerPos, im)
+        sink.putIntLE(headerPos + 4, iM)
+        sink.putIntLE(headerPos + 8, tableLength)
+        sink.putIntLE(headerPos + 12, nBits)
+        sink.putIntLE(headerPos + 16, 0)
     }
 
+    /** Returns an array that holds, for each symbol, its code shifted left by 6 bits and ORed with the code length. */
+    private fun buildCanonicalCodeTable(freq: LongArray, im: Int, iM: Int): LongArray {
+        // Conceptually, we build a Huffman tree by repeatedly merging the two least frequent nodes. Instead of actually
+        // building the tree, we link the leaves below each node into a list and increment their code lengths whenever
+        // the node is merged into a new one.
+        val hlink = IntArray(HUF_ENCSIZE) { it }
+        val heap = PriorityQueue<Int>(compareBy<Int> { freq[it] }.thenBy { it })
+        for (v in im..iM)
+            if (freq[v] != 0L)
+                heap.add(v)
+        val lengths = LongArray(HUF_ENCSIZE)
+        while (heap.size > 1) {
+            val mm = heap.poll()
+            val m = heap.poll()
+            freq[m] += freq[mm]
+            heap.add(m)
+            var j = m
+            while (true) {
+                lengths[j]++
+                if (hlink[j] == j) {
+                    hlink[j] = mm
+                    break
+                }
+                j = hlink[j]
+            }
+            j = mm
+            while (true) {
+                lengths[j]++
+                if (hlink[j] == j)
+                    break
+                j = hlink[j]
+            }
+        }
+        // Assign canonical codes: count the codes of each length, and then compute the lowest code of each length.
+        val n = LongArray(59)
+        for (l in lengths)
+            n[l.toInt()]++
+        var c = 0L
+        for (l in 58 downTo 1) {
+            val nc = (c + n[l]) shr 1
+            n[l] = c
+            c = nc
+        }
+        for (v in 0..<HUF_ENCSIZE) {
+            val l = lengths[v].toInt()
+            if (l > 0)
+                lengths[v] = l.toLong() or (n[l]++ shl 6)
+        }
+        return lengths
+    }
+
+    private fun packEncTable(hcode: LongArray, im: Int, iM: Int, sink: BitSink) {
+        var v = im
+        while (v <= iM) {
+            val l = (hcode[v] and 63).toInt()
+            if (l == 0) {
+                var zerun = 1
+                while (v < iM && zerun < LONGEST_LONG_RUN && (hcode[v + 1] and 63) == 0L) {
+                    v++
+                    zerun++
+                }
+                if (zerun >= 2) {
+                    if (zerun >= SHORTEST_LONG_RUN) {
+                        sink.bits(6, LONG_ZEROCODE_RUN.toLong())
+                        sink.bits(8, (zerun - SHORTEST_LONG_RUN).toLong())
+                    } else
+                        sink.bits(6, (SHORT_ZEROCODE_RUN + zerun - 2).toLong())
+                    v++
+                    continue
+                }
+            }
+            sink.bits(6, l.toLong())
+            v++
+        }
+        sink.flush()
+    }
+
+    private fun encode(hcode: LongArray, data: ShortArray, rlc: Int, sink: BitSink) {
+        var s = data[0].toInt() and 0xFFFF
+        var cs = 0
+        for (k in 1..<data.size) {
+            val v = data[k].toInt() and 0xFFFF
+            if (s == v && cs < 255)
+                cs++
+            else {
+                sendCode(hcode[s], cs, hcode[rlc], sink)
+                cs = 0
+            }
+            s = v
+        }
+        sendCode(hcode[s], cs, hcode[rlc], sink)
+    }
+
+    /** Outputs [runCount] + 1 instances of the symbol, either explicitly or run-length encoded if that is shorter. */
+    private fun sendCode(sCode: Long, runCount: Int, runCode: Long, sink: BitSink) {
+        val sLength = (sCode and 63).toInt()
+        if (sLength + (runCode and 63).toInt() + 8 < sLength * runCount) {
+            sink.code(sCode)
+            sink.code(runCode)
+            sink.bits(8, runCount.toLong())
+        } else
+            repeat(runCount + 1) { sink.code(sCode) }
+    }
+
+    /** Writes bits MSB-first into the array, but stops writing and raises the [overflow] flag when reaching [limit]. */
+    private class BitSink(private val buf: ByteArray, var pos: Int, private val limit: Int) {
+
+        var overflow = false; private set
+        var pendingBits = 0; private set
+        private var c = 0L
+
+        fun bits(nBits: Int, bits: Long) {
+            c = (c shl nBits) or bits
+            pendingBits += nBits
+            while (pendingBits >= 8) {
+                pendingBits -= 8
+                byte((c ushr pendingBits).toInt())
+            }
+        }
+
+        fun code(code: Long) = bits((code and 63).toInt(), code ushr 6)
+
+        fun flush() {
+            if (pendingBits > 0)
+                byte((c shl (8 - pendingBits)).toInt())
+            pendingBits = 0
+        }
+
+        fun skip(n: Int) {
+            if (pos + n > limit) overflow = true else pos += n
+        }
+
+        fun putIntLE(at: Int, value: Int) {
+            if (overflow) return
+            for (b in 0..<4)
+                buf[at + b] = (value ushr (8 * b)).toByte()
+        }
+
+        private fun byte(b: Int) {
+            if (pos < limit) buf[pos++] = b.toByte() else overflow = true
+        }
+
+    }
+
+}
+
+
+/**
+ * OpenEXR's lossy B44 compression for half-float data: each 4x4 block of a channel is stored in 14 bytes as one exact
+ * value plus quantized differences. This closely follows the reference implementation.
+ */
+private object EXRB44 {
+
+    /**
+     * Compresses the [raw] chunk, whose lines consist of [numChannels] consecutive runs of [w] little-endian half-float
+     * samples, and appends the result to [out], but without exceeding its limit.
+     *
+     * @return Whether the compressed data fits into [out] and has hence been written. This is never the case for
+     *   very narrow or flat chunks, where padding the 4x4 blocks costs more than the compression saves.
+     */
+    fun compress(raw: ByteBuffer, w: Int, h: Int, numChannels: Int, out: ByteBuffer): Boolean {
+        val numBlocks = ceilDiv(w, 4) * ceilDiv(h, 4)
+        if (numChannels * numBlocks * 14 > out.remaining())
+            return false
+        val plane = IntArray(w * h)
+        val s = IntArray(16)
+        val block = ByteArray(14)
+        for (c in 0..<numChannels) {
+            for (y in 0..<h)
+                for (x in 0..<w)
+                    plane[y * w + x] = raw.getShort(((y * numChannels + c) * w + x) * 2).toInt() and 0xFFFF
+            // If the width or height is not divisible by 4, pad by repeating the rightmost column and bottom row.
+            for (y in 0..<h step 4)
+                for (x in 0..<w step 4) {
+                    for (by in 0..<4)
+                        for (bx in 0..<4)
+                            s[by * 4 + bx] = plane[min(y + by, h - 1) * w + min(x + bx, w - 1)]
+                    pack(s, block)
+                    out.put(block)
+                }
+        }
+        return true
+    }
+
+    private fun pack(s: IntArray, b: ByteArray) {
+        // Map the halfs to unsigned integers with the same order; infinities and NaNs become 0.
+        val t = IntArray(16) { i ->
+            val v = s[i]
+            when {
+                (v and 0x7c00) == 0x7c00 -> 0x8000
+                (v and 0x8000) != 0 -> v.inv() and 0xFFFF
+                else -> v or 0x8000
+            }
+        }
+        val tMax = t.max()
+        // Find the smallest shift that lets all running differences fit into 6 bits.
+        val d = IntArray(16)
+        val r = IntArray(15)
+        var shift = -1
+        do {
+            shift++
+            for (i in 0..<16)
+                d[i] = shiftAndRound(tMax - t[i], shift)
+            r[0] = d[0] - d[4] + BIAS
+            r[1] = d[4] - d[8] + BIAS
+            r[2] = d[8] - d[12] + BIAS
+            r[3] = d[0] - d[1] + BIAS
+            r[4] = d[4] - d[5] + BIAS
+            r[5] = d[8] - d[9] + BIAS
+            r[6] = d[12] - d[13] + BIAS
+            r[7] = d[1] - d[2] + BIAS
+            r[8] = d[5] - d[6] + BIAS
+            r[9] = d[9] - d[10] + BIAS
+            r[10] = d[13] - d[14] + BIAS
+            r[11] = d[2] - d[3] + BIAS
+            r[12] = d[6] - d[7] + BIAS
+            r[13] = d[10] - d[11] + BIAS
+            r[14] = d[14] - d[15] + BIAS
+        } while (r.min() < 0 || r.max() > 0x3f)
+        // Adjust the first value so that the maximum value is represented as accurately as possible.
+        val t0 = (tMax - (d[0] shl shift)) and 0xFFFF
+        b[0] = (t0 shr 8).toByte()
+        b[1] = t0.toByte()
+        b[2] = ((shift shl 2) or (r[0] shr 4)).toByte()
+        b[3] = ((r[0] shl 4) or (r[1] shr 2)).toByte()
+        b[4] = ((r[1] shl 6) or r[2]).toByte()
+        b[5] = ((r[3] shl 2) or (r[4] shr 4)).toByte()
+        b[6] = ((r[4] shl 4) or (r[5] shr 2)).toByte()
+        b[7] = ((r[5] shl 6) or r[6]).toByte()
+        b[8] = ((r[7] shl 2) or (r[8] shr 4)).toByte()
+        b[9] = ((r[8] shl 4) or (r[9] shr 2)).toByte()
+        b[10] = ((r[9] shl 6) or r[10]).toByte()
+        b[11] = ((r[11] shl 2) or (r[12] shr 4)).toByte()
+        b[12] = ((r[12] shl 4) or (r[13] shr 2)).toByte()
+        b[13] = ((r[13] shl 6) or r[14]).toByte()
+    }
+
+    /** Computes x * 2^-shift and rounds to the nearest integer, with ties going to the even one. */
+    private fun shiftAndRound(x: Int, shift: Int): Int {
+        val x2 = x shl 1
+        val a = (1 shl shift) - 1
+        val b = (x2 shr (shift + 1)) and 1
+        return (x2 + a + b) shr (shift + 1)
+    }
+
+    private const val BIAS = 0x20
+
 }
@@ -15,6 +15,7 @@ import java.awt.BasicStroke
 import java.awt.Rectangle
 import java.awt.Shape
 import java.awt.geom.AffineTransform
+import java.awt.geom.Path2D
 import java.awt.geom.PathIterator
 import java.awt.geom.Point2D
 import java.awt.geom.Rectangle2D
@@ -22,6 +23,8 @@ import java.lang.foreign.Arena
 import java.lang.foreign.MemorySegment
 import java.lang.foreign.MemorySegment.NULL
 import java.lang.foreign.ValueLayout.*
+import java.lang.ref.WeakReference
+import java.nio.ByteOrder
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicLong
@@ -251,6 +254,79 @@ class Canvas private constructor(
         fillOrStrokeShape(shape, stroke, shader, alpha, matte, blurSigma, blendMode, transform, clip)
     }
 
+    /**
+     * Fills the outlines of glyphs of the given font case. Glyph `i` is placed at `(xs[i], ys[i])`, and the resulting
+     * arrangement is then transformed by [transform], so the effect is the same as filling the combined outline.
+     *
+     * Text in credits repeats the same glyphs over and over, so instead of filling each glyph as a path, this method
+     * rasterizes the coverage of each glyph only once per transform and subpixel offset, caches it, and from then on
+     * just blits it. To keep the number of variants down, glyph origins are snapped to a quarter of a pixel. Glyphs
+     * that are too large to sensibly cache are still filled as paths.
+     *
+     * Blitting composites each glyph on its own, so where translucent glyphs overlap, they would be blended twice. To
+     * keep the effect that of filling the combined outline, translucent glyphs are hence always filled as a path.
+     *
+     * This method may only be called on bitmap canvases.
+     */
+    fun fillGlyphs(
+        fontCase: Font.Case,
+        glyphs: IntArray,
+        xs: DoubleArray,
+        ys: DoubleArray,
+        shader: Shader.Solid,
+        alpha: Double = 1.0,
+        transform: AffineTransform? = null,
+        clip: List<Shape> = emptyList()
+    ) {
+        checkNotNull(bitmap) { "Only bitmap canvases can blit glyphs." }
+        if (alpha <= 0.0) return
+        if (alpha < 1.0 || shader.color.a < 1f) {
+            val path = Path2D.Float()
+            for (idx in glyphs.indices) {
+                val at = AffineTransform.getTranslateInstance(xs[idx], ys[idx])
+                path.append(fontCase.getGlyphOutline(glyphs[idx]).getPathIterator(at), false)
+            }
+            fillShape(path, shader, alpha, transform = transform, clip = clip)
+            return
+        }
+        val tr = transform ?: IDENTITY
+        val origin = DoubleArray(2)
+        var uncached: Path2D.Float? = null
+
+        applyTransformAndClip(null, clip)
+        val paint = SkPaint_New()
+        applyToPaint(paint, shader, alpha, null, null, colorSpace, ceiling, mutableListOf())
+        for (idx in glyphs.indices) {
+            val glyph = glyphs[idx]
+            origin[0] = xs[idx]
+            origin[1] = ys[idx]
+            tr.transform(origin, 0, origin, 0, 1)
+            // Split the glyph origin into an integer pixel position and a subpixel offset in quarter pixels.
+            val qx = Math.round(origin[0] * SUBPIXEL_STEPS)
+            val qy = Math.round(origin[1] * SUBPIXEL_STEPS)
+            val subX = Math.floorMod(qx, SUBPIXEL_STEPS.toLong()).toInt()
+            val subY = Math.floorMod(qy, SUBPIXEL_STEPS.toLong()).toInt()
+            val key = GlyphCoverageKey(fontCase, glyph, subX, subY, tr.scaleX, tr.shearY, tr.shearX, tr.scaleY)
+            val coverage = glyphCoverageCache.get(key) {
+                val cov = rasterizeGlyphCoverage(fontCase.getGlyphOutline(glyph), key)
+                SizedValue(cov, 64L + (cov.mask?.run { spec.resolution.run { widthPx * heightPx * 2L } } ?: 0L))
+            }
+            if (coverage.tooLarge) {
+                val path = uncached ?: Path2D.Float().also { uncached = it }
+                val at = AffineTransform.getTranslateInstance(xs[idx], ys[idx])
+                path.append(fontCase.getGlyphOutline(glyph).getPathIterator(at), false)
+                continue
+            }
+            val mask = coverage.mask ?: continue
+            val x = Math.floorDiv(qx, SUBPIXEL_STEPS.toLong()) + coverage.offsetX
+            val y = Math.floorDiv(qy, SUBPIXEL_STEPS.toLong()) + coverage.offsetY
+            callSkDrawImage(mask, false, SkFilterMode_Nearest(), paint, x.toFloat(), y.toFloat())
+        }
+        SkPaint_delete(paint)
+
+        uncached?.let { fillShape(it, shader, alpha, transform = transform, clip = clip) }
+    }
+
     fun fillStencil(
         stencil: Bitmap,
         shader: Shader,
@@ -476,7 +552,10 @@ class Canvas private constructor(
         prepBitmap.close()
     }
 
-    private fun callSkDrawImage(bitmap: Bitmap, promiseOpaque: Boolean, filterMode: Byte, paint: MemorySegment) {
+    // Only pass x/y coordinates if the paint has neither a shader nor a mask filter; see fillStencilOrDrawImage().
+    private fun callSkDrawImage(
+        bitmap: Bitmap, promiseOpaque: Boolean, filterMode: Byte, paint: MemorySegment, x: Float = 0f, y: Float = 0f
+    ) {
         val (w, h) = bitmap.spec.resolution
         val rep = bitmap.spec.representation
         val (colorType, alphaType) = colorAndAlphaTypeFor(rep.pixelFormat, rep.alpha, promiseOpaque)
@@ -485,7 +564,7 @@ class Canvas private constructor(
             if (isAlphaRep(rep)) NULL else rep.colorSpace!!.skiaHandle,
             bitmap.memorySegment(0),
             bitmap.linesize(0).toLong(),
-            0f, 0f, filterMode, paint
+            x, y, filterMode, paint
         )
     }
 
@@ -557,6 +636,42 @@ class Canvas private constructor(
 
         private val IDENTITY = AffineTransform()
 
+        private const val SUBPIXEL_STEPS = 4
+        // Glyphs larger than this many pixels in either dimension are rare and would bloat the cache, so we fill them.
+        private const val MAX_CACHED_GLYPH_SIZE = 256
+        private val MASK_REPRESENTATION = Bitmap.Representation(Bitmap.PixelFormat.of(AV_PIX_FMT_GRAY16LE))
+
+        private val glyphCoverageCache = DisposableCache<GlyphCoverageKey, GlyphCoverage>(DisposableCategory.FONT_CASES)
+
+        private fun rasterizeGlyphCoverage(outline: Shape, key: GlyphCoverageKey): GlyphCoverage {
+            val transform = AffineTransform(
+                key.m00, key.m10, key.m01, key.m11, key.subX / SUBPIXEL_STEPS.toDouble(),
+                key.subY / SUBPIXEL_STEPS.toDouble()
+            )
+            val box = outline.transformedBy(transform).bounds
+            if (box.isEmpty)
+                return GlyphCoverage(null, 0, 0, tooLarge = false)
+            if (box.width > MAX_CACHED_GLYPH_SIZE || box.height > MAX_CACHED_GLYPH_SIZE)
+                return GlyphCoverage(null, 0, 0, tooLarge = true)
+            // Let Skia fill the glyph in white, so that the alpha channel of the result is exactly the coverage which a
+            // regular fill of the glyph would have produced.
+            val res = Resolution(box.width, box.height)
+            val rgba = Bitmap.allocate(Bitmap.Spec(res, compatibleRepresentation(ColorSpace.SRGB))).use { bitmap ->
+                forBitmap(bitmap.zero()).use { canvas ->
+                    val tr = AffineTransform.getTranslateInstance(-box.x.toDouble(), -box.y.toDouble())
+                    tr.concatenate(transform)
+                    canvas.fillShape(outline, Shader.Solid(Color4f.WHITE), transform = tr)
+                }
+                bitmap.getF(box.width * 4)
+            }
+            val coverage = ShortArray(box.width * box.height) { idx ->
+                (rgba[idx * 4 + 3] * 65535f).roundToInt().coerceIn(0, 65535).toShort()
+            }
+            val mask = Bitmap.allocate(Bitmap.Spec(res, MASK_REPRESENTATION))
+            mask.put(coverage, box.width, byteOrder = ByteOrder.LITTLE_ENDIAN)
+            return GlyphCoverage(mask, box.x, box.y, tooLarge = false)
+        }
+
         private val VERB_LOOKUP = ByteArray(5).apply {
             set(PathIterator.SEG_MOVETO, SkPathVerb_Move())
             set(PathIterator.SEG_LINETO, SkPathVerb_Line())
@@ -1031,6 +1146,44 @@ class Canvas private constructor(
     }
 
 
+    private class GlyphCoverageKey(
+        fontCase: Font.Case,
+        private val glyph: Int,
+        val subX: Int,
+        val subY: Int,
+        val m00: Double,
+        val m10: Double,
+        val m01: Double,
+        val m11: Double
+    ) {
+
+        private val fontCase = WeakReference(fontCase)
+        private val hashCode = run {
+            var h = fontCase.hashCode()
+            h = 31 * h + glyph
+            h = 31 * h + subX
+            h = 31 * h + subY
+            h = 31 * h + m00.hashCode()
+            h = 31 * h + m10.hashCode()
+            h = 31 * h + m01.hashCode()
+            31 * h + m11.hashCode()
+        }
+
+        // If the font case is GCed, its keys stop being equal to anything, and the LRU eventually drops their entries.
+        override fun equals(other: Any?) = this === other ||
+                other is GlyphCoverageKey && glyph == other.glyph && subX == other.subX && subY == other.subY &&
+                m00 == other.m00 && m10 == other.m10 && m01 == other.m01 && m11 == other.m11 &&
+                fontCase.get().let { it != null && it == other.fontCase.get() }
+
+        override fun hashCode() = hashCode
+
+    }
+
+
+    /** The [mask] is to be drawn at the integer glyph position plus the offset. It is null for empty glyphs. */
+    private class GlyphCoverage(val mask: Bitmap?, val offsetX: Int, val offsetY: Int, val tooLarge: Boolean)
+
+
     class PreparedBitmap(
         val bitmap: Bitmap?,
         val promiseOpaque: Boolean,
@@ -1107,7 +1260,7 @@ class Canvas private constructor(
 
             }
 
-            private val cache = DisposableCache<String, Optional<PreparedBitmap>>()
+            private val cache = DisposableCache<String, Optional<PreparedBitmap>>(DisposableCategory.PICTURES)
             private val freeBitmaps = ConcurrentHashMap<Long, Bitmap>()
             private var freeCtr = AtomicLong()
 
@@ -35,24 +35,45 @@ import java.awt.BasicStroke
 import java.awt.Rectangle
 import java.awt.Shape
 import java.awt.geom.*
+import java.io.IOException
 import java.io.OutputStream
 import java.lang.Byte.toUnsignedInt
 import java.lang.foreign.MemorySegment
 import java.lang.foreign.ValueLayout.JAVA_BYTE
+import java.nio.file.attribute.BasicFileAttributes
 import java.text.DecimalFormat
 import java.text.DecimalFormatSymbols
 import java.util.*
 import java.util.concurrent.Future
 import javax.xml.XMLConstants.XML_NS_URI
+import kotlin.io.path.name
+import kotlin.io.path.readAttributes
+import kotlin.io.path.useDirectoryEntries
 import kotlin.math.*
 
 
 class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
 
     private val instructions = HashMap<Layer, MutableList<Instruction>>()
+    // Created when the image is first materialized, and dropped whenever the image is modified. Notice that the display
+    // lists of an image that draws another image become stale if that other image is modified afterward; as images are
+    // always composed bottom-up, that doesn't happen in practice.
+    @Volatile
+    private var displayLists: DisposableCache<Layer, DisplayList>? = null
 
     private fun addInstruction(layer: Layer, insn: Instruction) {
         instructions.computeIfAbsent(layer) { mutableListOf() }.add(insn)
+        displayLists?.let { it.close(); displayLists = null }
+    }
+
+    private fun displayList(layer: Layer): DisplayList {
+        val cache = displayLists ?: synchronized(this) {
+            displayLists ?: DisposableCache<Layer, DisplayList>().also { displayLists = it }
+        }
+        return cache.get(layer) {
+            val displayList = DisplayList.compile(this, layer)
+            SizedValue(displayList, displayList.estimatedBytes)
+        }
     }
 
     fun copy(universeScaling: Double = 1.0, elasticScaling: Double = 1.0): DeferredImage {
@@ -117,26 +138,36 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
     /**
      * Draws the content of this deferred image onto the given [Canvas]. The canvas must be backed by a bitmap. Raster
      * content is aligned with the canvas' pixel grid to prevent interpolation and retain as much quality as possible.
+     *
+     * The image is first scaled by [universeScaling] and then shifted down by [y]. Prefer these parameters over drawing
+     * this image into a temporary one, as only then, the display list compiled for this image is reused.
      */
-    fun materialize(canvas: Canvas, cache: CanvasMaterializationCache?, layers: List<Layer>) {
+    fun materialize(
+        canvas: Canvas, cache: CanvasMaterializationCache?, layers: List<Layer>,
+        y: Double = 0.0, universeScaling: Double = 1.0
+    ) {
         require(canvas.bitmap != null) { "To materialize to an SVG or PDF, use the specialized methods." }
         val backend = CanvasBackend(canvas, cache as CanvasMaterializationCacheImpl?)
         // If only a portion of the deferred image is materialized, cull the rest to improve performance.
         // Notice that because the culling rect is aligned with the pixel grid, we correctly include all content
         // that at least partially lies inside one of the surface's pixels.
         val culling = Rectangle2D.Double(0.0, 0.0, canvas.width, canvas.height)
-        materialize(backend, culling, layers)
+        for (layer in layers)
+            displayList(layer).replay(backend, y, universeScaling, culling)
     }
 
     /** Draws the content of this deferred image onto an SVG element. */
     fun materialize(svg: Element, layers: List<Layer>) {
-        materialize(SVGBackend(svg), null, layers)
+        val backend = SVGBackend(svg)
+        for (layer in layers)
+            displayList(layer).replay(backend, 0.0, 1.0, null)
     }
 
     /** Draws the content of this deferred onto a PDF page. */
     fun materialize(tracker: PDFTracker, page: PDPage, cs: PDPageContentStream, layers: List<Layer>) {
         val backend = PDFBackend(tracker as PDFTrackerImpl, page, cs)
-        materialize(backend, null, layers)
+        for (layer in layers)
+            displayList(layer).replay(backend, 0.0, 1.0, null)
     }
 
     fun collectPlacedTapes(layers: List<Layer>): List<PlacedTape> {
@@ -145,6 +176,17 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
         return backend.collected
     }
 
+    /**
+     * Returns a stable hash of everything that is drawn onto the given layers, which can be persisted to later find out
+     * whether a materialization of this image is still up-to-date. See [Fingerprinter].
+     */
+    fun fingerprint(layers: List<Layer>): Long {
+        val backend = FingerprintBackend()
+        backend.fp.putDouble(width).putDouble(height.resolve())
+        materialize(backend, null, layers)
+        return backend.fp.finish()
+    }
+
     private fun materialize(backend: MaterializationBackend, culling: Rectangle2D?, layers: List<Layer>) {
         for (layer in layers)
             Instruction.DrawDeferredImageLayer(0.0, 0.0.toY(), 1.0, 1.0, this, layer)
@@ -161,6 +203,9 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
 
         private val F = DecimalFormat("#.####", DecimalFormatSymbols(Locale.ROOT))
 
+        // Covers the constant safeguard that MaterializeShape adds to the blur radius when culling.
+        private const val CULLING_SLACK = 8.0
+
         private fun FloatArray.isFinite(end: Int): Boolean =
             allBetween(0, end, Float::isFinite)
 
@@ -383,6 +428,34 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
             resolutionBeforeRotation = Resolution(w, h)
         }
 
+        /** A stable hash of the tape files and all settings. See [Fingerprinter]. */
+        val fingerprint: Long by lazy {
+            val fp = Fingerprinter().putString(tape.fileOrDir.toString()).putBoolean(tape.fileSeq)
+            // Catch edits to the tape. As modifying a file inside a folder doesn't update the folder's modification
+            // time, we look at each file of an image sequence. If we can't, we don't know whether the tape changed.
+            try {
+                val files = if (!tape.fileSeq) listOf(tape.fileOrDir) else
+                    tape.fileOrDir.useDirectoryEntries { seq -> seq.sortedBy { it.name }.toList() }
+                fp.putInt(files.size)
+                for (file in files) {
+                    val attrs = file.readAttributes<BasicFileAttributes>()
+                    fp.putString(file.name).putLong(attrs.size()).putLong(attrs.lastModifiedTime().toMillis())
+                }
+            } catch (_: IOException) {
+                fp.putUnknown()
+            }
+            fp.putInt(resolution.widthPx).putInt(resolution.heightPx)
+                .putInt(crop.x).putInt(crop.y).putInt(crop.width).putInt(crop.height)
+                .putBoolean(flipH).putBoolean(flipV).putInt(rotation)
+                .putInt(leftMarginFrames).putInt(rightMarginFrames)
+                .putInt(fadeInFrames).putString(fadeInTransition.toString())
+                .putInt(fadeOutFrames).putString(fadeOutTransition.toString())
+                .putBoolean(loop).putInt(align.ordinal)
+            putTimecode(fp, range.start)
+            putTimecode(fp, range.endExclusive)
+            fp.finish()
+        }
+
         fun withResolution(width: Int?, height: Int?) = EmbeddedTape(
             tape, width, height, cropLeft, cropRight, cropTop, cropBottom, flipH, flipV, rotation, leftMarginFrames,
             rightMarginFrames, fadeInFrames, fadeInTransition, fadeOutFrames, fadeOutTransition, range, loop, align
@@ -409,6 +482,14 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
                 return Rectangle(cropLeft, cropTop, cropWidth, cropHeight)
             }
 
+            fun putTimecode(fp: Fingerprinter, timecode: Timecode) {
+                when (timecode) {
+                    is Timecode.Frames -> fp.putInt(0).putInt(timecode.frames)
+                    is Timecode.Clock -> fp.putInt(1).putLong(timecode.numerator).putLong(timecode.denominator)
+                    else -> fp.putInt(2).putString(timecode.toString())
+                }
+            }
+
             // Floors/ceils n to the next even number of the tape is interlaced.
             private fun ef(tape: Tape, n: Int) = if (tape.spec.scan == Bitmap.Scan.PROGRESSIVE) n else n / 2 * 2
             private fun ec(tape: Tape, n: Int) = if (tape.spec.scan == Bitmap.Scan.PROGRESSIVE) n else (n + 1) / 2 * 2
@@ -431,12 +512,249 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
         // has it while thread B replaces it with put...(), the bitmap could be closed while thread A is still using it.
         fun popPreparedPicture(picture: Picture): Canvas.PreparedBitmap? = prepPics.remove(picture)?.getAndClose()
         fun putPreparedPicture(picture: Picture, prepared: Canvas.PreparedBitmap) {
-            prepPics.put(picture, DisposableReference(prepared, prepared.bitmap?.bytes ?: 0))
+            val bytes = prepared.bitmap?.bytes ?: 0L
+            prepPics.put(picture, DisposableReference(prepared, bytes, DisposableCategory.PICTURES))
                 ?.getAndClose()?.bitmap?.close()
         }
     }
 
 
+    /**
+     * A bounding volume hierarchy over the vertical extents of a list of items, e.g., the operations of a display list.
+     * Because the drawers add content roughly from top to bottom, neighboring items occupy similar vertical ranges, so
+     * most subtrees are either entirely visible or can be skipped at once. Hence, culling a tall page to a small
+     * viewport only costs about O(log n + visible) instead of O(n).
+     *
+     * The extents are conservative, that is, they may be larger than what the items actually draw, so the items must
+     * still do their exact culling tests themselves.
+     */
+    private class CullingIndex<T : CullingIndex.Item>(private val items: List<T>) {
+
+        interface Item {
+            val minY: Double
+            val maxY: Double
+        }
+
+        // A complete binary tree stored in an array, with node i having the children 2i and 2i+1, and the leaves
+        // being the items in their original order. Unused leaves have an empty extent.
+        private val numLeaves = Integer.highestOneBit(max(items.size, 1) * 2 - 1)
+        private val nodeMinY = DoubleArray(2 * numLeaves) { Double.POSITIVE_INFINITY }
+        private val nodeMaxY = DoubleArray(2 * numLeaves) { Double.NEGATIVE_INFINITY }
+
+        init {
+            for ((idx, item) in items.withIndex()) {
+                nodeMinY[numLeaves + idx] = item.minY
+                nodeMaxY[numLeaves + idx] = item.maxY
+            }
+            for (node in numLeaves - 1 downTo 1) {
+                nodeMinY[node] = min(nodeMinY[2 * node], nodeMinY[2 * node + 1])
+                nodeMaxY[node] = max(nodeMaxY[2 * node], nodeMaxY[2 * node + 1])
+            }
+        }
+
+        val estimatedBytes: Long
+            get() = nodeMinY.size * 16L
+
+        /** Calls [action] for each item that might intersect the given range, in their original order. */
+        fun forEachIntersecting(minY: Double, maxY: Double, action: (T) -> Unit) {
+            visit(1, minY, maxY, action)
+        }
+
+        private fun visit(node: Int, minY: Double, maxY: Double, action: (T) -> Unit) {
+            // Notice that these comparisons are false for NaN extents, so such items are never culled here.
+            if (nodeMaxY[node] < minY || nodeMinY[node] > maxY)
+                return
+            if (node >= numLeaves) {
+                if (node - numLeaves < items.size)
+                    action(items[node - numLeaves])
+            } else {
+                visit(2 * node, minY, maxY, action)
+                visit(2 * node + 1, minY, maxY, action)
+            }
+        }
+
+    }
+
+
+    /**
+     * The instructions of one layer of an image, flattened into drawing order, with all nested images, scalings, and
+     * elastic Y coordinates resolved. The list is compiled in the coordinates of the image, so the same list serves
+     * every scaling and vertical shift; replaying it hence only needs to cull, transform, and then call the backend.
+     * To cull quickly, the display list keeps a [CullingIndex] over its operations.
+     */
+    private class DisplayList private constructor(private val ops: List<Op>) {
+
+        private val cullingIndex = CullingIndex(ops)
+
+        // This is only a rough estimate, as the texts and pictures are shared with the instructions anyway.
+        val estimatedBytes: Long
+            get() = ops.size * BYTES_PER_OP + cullingIndex.estimatedBytes
+
+        /**
+         * Replays the operations scaled by [scaling] and then shifted down by [y], skipping those that surely lie
+         * outside the [culling] rect.
+         */
+        fun replay(backend: MaterializationBackend, y: Double, scaling: Double, culling: Rectangle2D?) {
+            val tx = AffineTransform(scaling, 0.0, 0.0, scaling, 0.0, y)
+            if (culling == null || scaling <= 0.0)
+                for (op in ops)
+                    op.replay(backend, tx, culling)
+            else {
+                // Transform the culling rect into the coordinates of the image. As the extents of blurred shapes only
+                // include the blur radius, but not the safeguard that MaterializeShape adds on top of it, we widen the
+                // query by that safeguard.
+                val slack = CULLING_SLACK / scaling
+                val minY = (culling.minY - y) / scaling - slack
+                val maxY = (culling.maxY - y) / scaling + slack
+                cullingIndex.forEachIntersecting(minY, maxY) { op -> op.replay(backend, tx, culling) }
+            }
+        }
+
+        companion object {
+
+            private const val BYTES_PER_OP = 128L
+
+            fun compile(image: DeferredImage, layer: Layer) =
+                DisplayList(Recorder().apply {
+                    Instruction.DrawDeferredImageLayer(0.0, 0.0.toY(), 1.0, 1.0, image, layer)
+                        .materialize(this, 0.0, 0.0, 1.0, 1.0, null)
+                }.ops)
+
+        }
+
+        private class Recorder : MaterializationBackend {
+
+            val ops = mutableListOf<Op>()
+
+            override fun materializeShape(shape: Shape, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double) {
+                ops.add(Op.MaterializeShape(shape, coat, fill, dash, blurRadius))
+            }
+
+            override fun materializeText(x: Double, yBaseline: Double, scaling: Double, text: Text, coat: Coat) {
+                ops.add(Op.MaterializeText(x, yBaseline, scaling, text, coat))
+            }
+
+            override fun materializeEmbeddedPicture(
+                x: Double, y: Double, scaling: Double, embeddedPic: EmbeddedPicture, draft: Boolean
+            ) {
+                ops.add(Op.MaterializeEmbeddedPicture(x, y, scaling, embeddedPic, draft))
+            }
+
+            override fun materializeEmbeddedTape(
+                x: Double, y: Double, scaling: Double, embeddedTape: EmbeddedTape,
+                asyncThumbnail: Future<Picture.Raster?>
+            ) {
+                ops.add(Op.MaterializeEmbeddedTape(x, y, scaling, embeddedTape, asyncThumbnail))
+            }
+
+        }
+
+        /**
+         * A call to a [MaterializationBackend] that is yet to be transformed by a uniform scaling followed by a
+         * vertical shift. The culling tests are the same as the ones of the corresponding [Instruction]s, but as this
+         * no longer knows whether a shape is a line or a rect, it always tests the bounds of shapes, including their
+         * edges. This way, it might draw a bit more than necessary, but never too little.
+         */
+        private sealed interface Op : CullingIndex.Item {
+
+            fun replay(backend: MaterializationBackend, tx: AffineTransform, culling: Rectangle2D?)
+
+            class MaterializeShape(
+                private val shape: Shape, private val coat: Coat, private val fill: Boolean, private val dash: Boolean,
+                private val blurRadius: Double
+            ) : Op {
+                private val bounds = shape.bounds2D.apply {
+                    setRect(x - blurRadius, y - blurRadius, width + 2 * blurRadius, height + 2 * blurRadius)
+                }
+
+                override val minY get() = bounds.minY
+                override val maxY get() = bounds.maxY
+
+                override fun replay(backend: MaterializationBackend, tx: AffineTransform, culling: Rectangle2D?) {
+                    if (culling != null) {
+                        // It would be a bit complicated to exactly determine which pixels are affected after the blur,
+                        // so instead, we just add a safeguard buffer to better be sure that not a single blurred pixel
+                        // is accidentally culled.
+                        val s = tx.scaleY
+                        val y = tx.translateY
+                        val r = if (blurRadius == 0.0) 0.0 else 4.0
+                        if (s * bounds.maxX + r < culling.minX || y + s * bounds.maxY + r < culling.minY ||
+                            s * bounds.minX - r > culling.maxX || y + s * bounds.minY - r > culling.maxY
+                        )
+                            return
+                    }
+                    // Hand the transform to the backend instead of transforming the shape here, as that would copy
+                    // the shape on every replay.
+                    if (tx.isIdentity)
+                        backend.materializeShape(shape, coat, fill, dash, blurRadius)
+                    else
+                        backend.materializeShape(shape, tx, coat, fill, dash, blurRadius)
+                }
+            }
+
+            class MaterializeText(
+                private val x: Double, private val yBaseline: Double, private val scaling: Double,
+                private val text: Text, private val coat: Coat
+            ) : Op {
+                override val minY get() = yBaseline + scaling * text.bounds.minY
+                override val maxY get() = yBaseline + scaling * text.bounds.maxY
+
+                override fun replay(backend: MaterializationBackend, tx: AffineTransform, culling: Rectangle2D?) {
+                    val x = tx.scaleX * this.x
+                    val yBaseline = tx.translateY + tx.scaleY * this.yBaseline
+                    val scaling = tx.scaleX * this.scaling
+                    if (culling == null ||
+                        culling.intersects(
+                            x + scaling * text.bounds.x,
+                            yBaseline + scaling * text.bounds.y,
+                            scaling * text.bounds.width,
+                            scaling * text.bounds.height
+                        )
+                    )
+                        backend.materializeText(x, yBaseline, scaling, text, coat)
+                }
+            }
+
+            class MaterializeEmbeddedPicture(
+                private val x: Double, private val y: Double, private val scaling: Double,
+                private val embeddedPic: EmbeddedPicture, private val draft: Boolean
+            ) : Op {
+                override val minY get() = y
+                override val maxY get() = y + scaling * embeddedPic.height
+
+                override fun replay(backend: MaterializationBackend, tx: AffineTransform, culling: Rectangle2D?) {
+                    val x = tx.scaleX * this.x
+                    val y = tx.translateY + tx.scaleY * this.y
+                    val scaling = tx.scaleX * this.scaling
+                    if (culling == null ||
+                        culling.intersects(x, y, scaling * embeddedPic.width, scaling * embeddedPic.height)
+                    )
+                        backend.materializeEmbeddedPicture(x, y, scaling, embeddedPic, draft)
+                }
+            }
+
+            class MaterializeEmbeddedTape(
+                private val x: Double, private val y: Double, private val scaling: Double,
+                private val embeddedTape: EmbeddedTape, private val asyncThumbnail: Future<Picture.Raster?>
+            ) : Op {
+                override val minY get() = y
+                override val maxY get() = y + scaling * embeddedTape.resolution.heightPx
+
+                override fun replay(backend: MaterializationBackend, tx: AffineTransform, culling: Rectangle2D?) {
+                    val x = tx.scaleX * this.x
+                    val y = tx.translateY + tx.scaleY * this.y
+                    val scaling = tx.scaleX * this.scaling
+                    val (w, h) = embeddedTape.resolution
+                    if (culling == null || culling.intersects(x, y, scaling * w, scaling * h))
+                        backend.materializeEmbeddedTape(x, y, scaling, embeddedTape, asyncThumbnail)
+                }
+            }
+
+        }
+
+    }
+
+
     private sealed interface Instruction {
 
         fun materialize(
@@ -594,6 +912,19 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
 
         // The default implementations skip materialization.
         fun materializeShape(shape: Shape, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double) {}
+
+        /**
+         * Like the other overload, but the [shape], [coat], and [blurRadius] are first transformed by [transform], which
+         * may only scale uniformly and translate. Backends that can apply the transform while drawing should override
+         * this to avoid copying the shape.
+         */
+        fun materializeShape(
+            shape: Shape, transform: AffineTransform, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double
+        ) {
+            materializeShape(
+                shape.transformedBy(transform), coat.transform(transform), fill, dash, transform.scaleX * blurRadius
+            )
+        }
         fun materializeText(x: Double, yBaseline: Double, scaling: Double, text: Text, coat: Coat) {}
         fun materializeEmbeddedPicture(
             x: Double, y: Double, scaling: Double, embeddedPic: EmbeddedPicture, draft: Boolean
@@ -658,27 +989,42 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
         override fun materializeShape(shape: Shape, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double) {
             if (fill)
                 canvas.fillShape(shape, coat.toShader(), blurSigma = gaussianStdDev(blurRadius))
-            else {
-                val dashPattern = if (dash) floatArrayOf(4f, 8f) else null
-                // Note: A stroke width of 0f makes Skia draw hairlines, which we desire for our layout guides.
-                val stroke = BasicStroke(0f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER, 10f, dashPattern, 0f)
-                // Snap the shape's coordinates to the nearest pixel center. This makes our hairlines very crisp.
-                val pi = shape.getPathIterator(null)
-                val s = Path2D.Double(pi.windingRule)
-                val c = DoubleArray(6)
-                while (!pi.isDone) {
-                    when (pi.currentSegment(c)) {
-                        PathIterator.SEG_MOVETO -> s.moveTo(snap(c[0]), snap(c[1]))
-                        PathIterator.SEG_LINETO -> s.lineTo(snap(c[0]), snap(c[1]))
-                        PathIterator.SEG_QUADTO -> s.quadTo(snap(c[0]), snap(c[1]), snap(c[2]), snap(c[3]))
-                        PathIterator.SEG_CUBICTO ->
-                            s.curveTo(snap(c[0]), snap(c[1]), snap(c[2]), snap(c[3]), snap(c[4]), snap(c[5]))
-                        PathIterator.SEG_CLOSE -> s.closePath()
-                    }
-                    pi.next()
+            else
+                strokeHairline(shape.getPathIterator(null), coat, dash, blurRadius)
+        }
+
+        override fun materializeShape(
+            shape: Shape, transform: AffineTransform, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double
+        ) {
+            // When filling, the canvas transforms the shape, the coat, and the blur on its own. When stroking, we
+            // transform the shape's coordinates while snapping them anyway.
+            if (fill)
+                canvas.fillShape(shape, coat.toShader(), blurSigma = gaussianStdDev(blurRadius), transform = transform)
+            else
+                strokeHairline(
+                    shape.getPathIterator(transform), coat.transform(transform), dash, transform.scaleX * blurRadius
+                )
+        }
+
+        private fun strokeHairline(pi: PathIterator, coat: Coat, dash: Boolean, blurRadius: Double) {
+            val dashPattern = if (dash) floatArrayOf(4f, 8f) else null
+            // Note: A stroke width of 0f makes Skia draw hairlines, which we desire for our layout guides.
+            val stroke = BasicStroke(0f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER, 10f, dashPattern, 0f)
+            // Snap the shape's coordinates to the nearest pixel center. This makes our hairlines very crisp.
+            val s = Path2D.Double(pi.windingRule)
+            val c = DoubleArray(6)
+            while (!pi.isDone) {
+                when (pi.currentSegment(c)) {
+                    PathIterator.SEG_MOVETO -> s.moveTo(snap(c[0]), snap(c[1]))
+                    PathIterator.SEG_LINETO -> s.lineTo(snap(c[0]), snap(c[1]))
+                    PathIterator.SEG_QUADTO -> s.quadTo(snap(c[0]), snap(c[1]), snap(c[2]), snap(c[3]))
+                    PathIterator.SEG_CUBICTO ->
+                        s.curveTo(snap(c[0]), snap(c[1]), snap(c[2]), snap(c[3]), snap(c[4]), snap(c[5]))
+                    PathIterator.SEG_CLOSE -> s.closePath()
                 }
-                canvas.strokeShape(s, stroke, coat.toShader(), blurSigma = gaussianStdDev(blurRadius))
+                pi.next()
             }
+            canvas.strokeShape(s, stroke, coat.toShader(), blurSigma = gaussianStdDev(blurRadius))
         }
 
         private fun snap(coordinate: Double) = ceil(coordinate) - 0.5
@@ -705,7 +1051,19 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
                 translate(x, yBaseline)
                 scale(scaling)
             }
-            canvas.fillShape(text.outline, coat.toShader(), transform = transform)
+            val shader = coat.toShader()
+            // On raster canvases, opaque solid text is blitted from rasterized glyphs, which is much faster than
+            // filling the outline anew each time. This is the common case; translucent text, gradients, and vector
+            // canvases still fill the outline.
+            if (canvas.bitmap != null && shader is Canvas.Shader.Solid && shader.color.a == 1f) {
+                val n = text.glyphCount
+                val glyphs = IntArray(n, text::getGlyph)
+                val xs = DoubleArray(n, text::getManualGlyphPositionX)
+                val ys = DoubleArray(n, text::getManualGlyphPositionY)
+                transform.concatenate(text.manualTransform)
+                canvas.fillGlyphs(text.fontCase, glyphs, xs, ys, shader, transform = transform)
+            } else
+                canvas.fillShape(text.outline, shader, transform = transform)
         }
 
         override fun materializeEmbeddedPicture(
@@ -1578,4 +1936,65 @@ class DeferredImage(var width: Double = 0.0, var height: Y = 0.0.toY()) {
 
     }
 
+
+    private class FingerprintBackend : MaterializationBackend {
+
+        val fp = Fingerprinter()
+
+        override fun materializeShape(shape: Shape, coat: Coat, fill: Boolean, dash: Boolean, blurRadius: Double) {
+            fp.putInt(0).putShape(shape)
+            putCoat(coat)
+            fp.putBoolean(fill).putBoolean(dash).putDouble(blurRadius)
+        }
+
+        override fun materializeText(x: Double, yBaseline: Double, scaling: Double, text: Text, coat: Coat) {
+            val fontCase = text.fontCase
+            fp.putInt(1).putDouble(x).putDouble(yBaseline).putDouble(scaling)
+            fp.putFingerprint(fontCase.font.fingerprint).putDouble(fontCase.size)
+            for (variation in fontCase.variations.sortedBy(Font.Variation::tag))
+                fp.putString(variation.tag).putDouble(variation.value)
+            fp.putInt(text.glyphCount)
+            for (glyphIdx in 0..<text.glyphCount)
+                fp.putInt(text.getGlyph(glyphIdx))
+                    .putDouble(text.getManualGlyphPositionX(glyphIdx))
+                    .putDouble(text.getManualGlyphPositionY(glyphIdx))
+            fp.putTransform(text.manualTransform)
+            putCoat(coat)
+        }
+
+        override fun materializeEmbeddedPicture(
+            x: Double, y: Double, scaling: Double, embeddedPic: EmbeddedPicture, draft: Boolean
+        ) {
+            val crop = embeddedPic.crop
+            fp.putInt(2).putDouble(x).putDouble(y).putDouble(scaling).putBoolean(draft)
+                .putFingerprint(embeddedPic.picture.fingerprint)
+                .putDouble(embeddedPic.width).putDouble(embeddedPic.height).putTransform(embeddedPic.transform)
+                .putDouble(crop.x).putDouble(crop.y).putDouble(crop.width).putDouble(crop.height)
+        }
+
+        override fun materializeEmbeddedTape(
+            x: Double, y: Double, scaling: Double, embeddedTape: EmbeddedTape, asyncThumbnail: Future<Picture.Raster?>
+        ) {
+            fp.putInt(3).putDouble(x).putDouble(y).putDouble(scaling).putFingerprint(embeddedTape.fingerprint)
+        }
+
+        private fun putCoat(coat: Coat) {
+            when (coat) {
+                is Coat.Plain -> putColor(coat.color)
+                is Coat.Gradient -> {
+                    putColor(coat.color1)
+                    putColor(coat.color2)
+                    fp.putDouble(coat.point1.x).putDouble(coat.point1.y)
+                    fp.putDouble(coat.point2.x).putDouble(coat.point2.y)
+                }
+            }
+        }
+
+        private fun putColor(color: Color4f) {
+            fp.putFloat(color.r).putFloat(color.g).putFloat(color.b).putFloat(color.a)
+            fp.putString(color.colorSpace.toString())
+        }
+
+    }
+
 }
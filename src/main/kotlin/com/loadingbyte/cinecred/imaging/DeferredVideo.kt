@@ -2,6 +2,9 @@ package com.loadingbyte.cinecred.imaging
 
 import com.loadingbyte.cinecred.common.*
 import com.loadingbyte.cinecred.imaging.DeferredImage.EmbeddedTape.Align.*
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.CONVERT
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.MATERIALIZE
+import com.loadingbyte.cinecred.imaging.RenderMetrics.Stage.RENDER_CHUNK
 import com.loadingbyte.cinecred.imaging.Y.Companion.toY
 import org.bytedeco.ffmpeg.global.avutil.*
 import java.awt.Point
@@ -9,6 +12,7 @@ import java.awt.Rectangle
 import java.nio.ByteOrder
 import java.util.*
 import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.math.*
 
@@ -145,6 +149,63 @@ class DeferredVideo private constructor(
         }
     }
 
+    /**
+     * Returns a stable hash for each frame that covers everything the frame depicts on the given layers, namely the
+     * content of the playing images, their shift and alpha, and the frames read from tapes. Hence, if the fingerprint
+     * of a frame is the same as in a previous run, materializing it again would yield the same result. Notice that the
+     * fingerprints don't cover how a backend is configured, so callers need to account for that themselves.
+     */
+    fun fingerprintFrames(layers: List<DeferredImage.Layer>): LongArray {
+        val seed = Fingerprinter().putInt(width).putInt(height).finish()
+        val fingerprints = LongArray(numFrames) { seed }
+        for (insn in instructions) {
+            val imageFingerprint = insn.image.fingerprint(layers)
+            for (frameIdx in max(0, insn.firstFrameIdx)..min(numFrames - 1, insn.lastFrameIdx)) {
+                val i = frameIdx - insn.firstFrameIdx
+                fingerprints[frameIdx] = Fingerprinter()
+                    .putFingerprint(fingerprints[frameIdx]).putFingerprint(imageFingerprint)
+                    .putDouble(insn.shifts[i]).putDouble(insn.alphas[i]).finish()
+            }
+        }
+        for (span in collectTapeSpans(layers)) {
+            val fp = Fingerprinter().putFingerprint(span.embeddedTape.fingerprint)
+            DeferredImage.EmbeddedTape.putTimecode(fp, span.firstReadTimecode)
+            val spanFingerprint = fp.finish()
+            for (frameIdx in max(0, span.firstFrameIdx)..min(numFrames - 1, span.lastFrameIdx))
+                fingerprints[frameIdx] = Fingerprinter()
+                    .putFingerprint(fingerprints[frameIdx]).putFingerprint(spanFingerprint)
+                    .putInt(frameIdx - span.firstFrameIdx).finish()
+        }
+        return fingerprints
+    }
+
+    /**
+     * Returns for each frame whether it is guaranteed to look exactly like the previous frame, which is the case
+     * throughout static holds and blank flows. This is determined cheaply and conservatively by comparing which images
+     * are playing and their shifts and alphas, so some repeated frames may go unnoticed. Frames that show a tape are
+     * never considered repeated, and neither is the first frame.
+     */
+    fun findRepeatedFrames(layers: List<DeferredImage.Layer>): BooleanArray {
+        val repeated = BooleanArray(numFrames) { frameIdx -> frameIdx != 0 }
+        fun unrepeat(frameIdx: Int) {
+            if (frameIdx in 0..<numFrames) repeated[frameIdx] = false
+        }
+        for (insn in instructions) {
+            // When an image starts or stops playing, the frame changes.
+            unrepeat(insn.firstFrameIdx)
+            unrepeat(insn.lastFrameIdx + 1)
+            for (frameIdx in max(1, insn.firstFrameIdx + 1)..min(numFrames - 1, insn.lastFrameIdx)) {
+                val i = frameIdx - insn.firstFrameIdx
+                if (insn.shifts[i] != insn.shifts[i - 1] || insn.alphas[i] != insn.alphas[i - 1])
+                    repeated[frameIdx] = false
+            }
+        }
+        for (span in collectTapeSpans(layers))
+            for (frameIdx in span.firstFrameIdx..span.lastFrameIdx + 1)
+                unrepeat(frameIdx)
+        return repeated
+    }
+
     private val instructions: List<Instruction> by lazy {
         frozen = true
         val list = mutableListOf<Instruction>()
@@ -312,7 +373,9 @@ class DeferredVideo private constructor(
         private val canvasCeiling: Float? = 1f,
         private val cache: DeferredImage.CanvasMaterializationCache? = null,
         private val randomAccessDraftMode: Boolean = false,
-        private val blendInUserColorSpace: Boolean = false
+        private val blendInUserColorSpace: Boolean = false,
+        parallelConversion: Boolean = false,
+        private val metrics: RenderMetrics? = null
     ) : AutoCloseable {
 
         init {
@@ -344,13 +407,20 @@ class DeferredVideo private constructor(
             canvasIWorkSpec.copy(scan = Bitmap.Scan.PROGRESSIVE, content = Bitmap.Content.PROGRESSIVE_FRAME)
 
         private val canvasP2userP = BitmapConverter(
-            canvasPWorkSpec, userPWorkSpec, promiseOpaque = grounding != null, approxTransfer = randomAccessDraftMode
+            canvasPWorkSpec, userPWorkSpec, promiseOpaque = grounding != null, approxTransfer = randomAccessDraftMode,
+            parallel = parallelConversion
         )
         private val canvasI2userI = BitmapConverter(
-            canvasIWorkSpec, userIWorkSpec, promiseOpaque = grounding != null, approxTransfer = randomAccessDraftMode
+            canvasIWorkSpec, userIWorkSpec, promiseOpaque = grounding != null, approxTransfer = randomAccessDraftMode,
+            parallel = parallelConversion
         )
 
+        // Nearly every frame allocates a couple of intermediate bitmaps of the same few specs, and the frames we return
+        // are closed by the consumer shortly after, so recycling their buffers spares the native allocator a lot of work.
+        private val framePool = Bitmap.Pool(maxBytes = POOLED_FRAMES * canvasPWorkSpec.estimatedBytes)
+
         override fun close() {
+            framePool.close()
             canvasP2userP.close()
             canvasI2userI.close()
             blankCanvasPBitmap.close()
@@ -360,6 +430,13 @@ class DeferredVideo private constructor(
                 userData.close()
         }
 
+        /** A snapshot of counters that reveal how well the page cache performs, e.g., for benchmarking. */
+        val stats: Stats
+            get() = Stats(
+                pageCache.hits.get(), pageCache.misses.get(), pageCache.fallbacks.get(), pageCache.renderedChunks.get(),
+                pageCache.chunkRenderNanos.get(), pageCache.peakChunkBytes.get(), framePool.stats
+            )
+
         private var lastFrameIdx = -1
 
         /** The returned bitmap is permitted to be [Bitmap.close]d, but must not be modified. */
@@ -382,6 +459,25 @@ class DeferredVideo private constructor(
 
         private data class Frame(val bitmap: Bitmap, val writable: Boolean, val shift: Int)
 
+        /**
+         * @param pageCacheHits Page excerpts that were served from an already rendered chunk.
+         * @param pageCacheMisses Page excerpts whose chunk had to be rendered before they could be served.
+         * @param pageCacheFallbacks Page excerpts at a rare micro shift, which had to be materialized directly.
+         * @param chunkRenderNanos The time spent rendering chunks, both in the foreground and while preloading.
+         * @param peakChunkBytes The largest amount of memory that rendered chunks occupied at the same time. Renders
+         *     disposed of by the [DisposableTracker] are only discounted once their chunk is rendered again, so this is
+         *     an upper bound.
+         */
+        class Stats(
+            val pageCacheHits: Long,
+            val pageCacheMisses: Long,
+            val pageCacheFallbacks: Long,
+            val renderedChunks: Long,
+            val chunkRenderNanos: Long,
+            val peakChunkBytes: Long,
+            val framePool: Bitmap.Pool.Stats
+        )
+
         /* ******************************************************
            ********** OBTAIN STATIC PROGRESSIVE FRAMES **********
            ****************************************************** */
@@ -414,7 +510,10 @@ class DeferredVideo private constructor(
                 progressiveVideo,
                 userSpec.representation.pixelFormat.vChromaSub,
                 sequentialAccess = !randomAccessDraftMode,
-                preloading = true
+                preloading = true,
+                metrics,
+                // Only the random access draft mode used by the preview returns to chunks that it has already passed.
+                spiller = if (randomAccessDraftMode) RENDER_SPILLER else null
             ) {
                 override fun createRenders(
                     image: DeferredImage, baseShift: Int, microShifts: DoubleArray, height: Int
@@ -457,14 +556,14 @@ class DeferredVideo private constructor(
                             // Obtain the user bitmap.
                             val userBitmap = Bitmap.allocate(renderUserSpec)
                             if (grounding == null)
-                                renderCanvas2user.convert(transparentCanvasBitmap, userBitmap)
+                                measure(CONVERT) { renderCanvas2user.convert(transparentCanvasBitmap, userBitmap) }
                             else
                                 Bitmap.allocate(renderCanvasSpec).use { groundedCanvasBitmap ->
                                     Canvas.forBitmap(groundedCanvasBitmap, canvasCeiling).use { canvas ->
                                         canvas.fill(Canvas.Shader.Solid(grounding))
                                         canvas.drawImageFast(transparentCanvasBitmap)
                                     }
-                                    renderCanvas2user.convert(groundedCanvasBitmap, userBitmap)
+                                    measure(CONVERT) { renderCanvas2user.convert(groundedCanvasBitmap, userBitmap) }
                                 }
 
                             // When using the draft compositor, obtain the transparent draft bitmap. We also don't need
@@ -502,7 +601,7 @@ class DeferredVideo private constructor(
                     !useCanvasRep -> Frame(r.render.userBitmap, writable = false, shift = r.shift)
                     grounding == null -> Frame(r.render.transparCanvasOrDraftBitmap, writable = false, shift = r.shift)
                     else -> {
-                        val bitmap = Bitmap.allocate(canvasPWorkSpec)
+                        val bitmap = framePool.allocate(canvasPWorkSpec)
                         Canvas.forBitmap(bitmap, canvasCeiling).use { canvas ->
                             canvas.fill(Canvas.Shader.Solid(grounding))
                             canvas.drawImageFast(r.render.transparCanvasOrDraftBitmap, y = -r.shift)
@@ -511,7 +610,7 @@ class DeferredVideo private constructor(
                     }
                 }
                 blendInUserColorSpace -> {
-                    val bitmap = Bitmap.allocate(userPWorkSpec)
+                    val bitmap = framePool.allocate(userPWorkSpec)
                     bitmap.blit(blankUserPBitmap)
                     for (resp in pageCache.query(progressiveFrameIdx)) {
                         check(resp is PageCache.Response.Render)  // In draft mode, there are no micro shifts.
@@ -520,7 +619,7 @@ class DeferredVideo private constructor(
                     Frame(bitmap, writable = true, shift = 0)
                 }
                 else -> {
-                    val canvasBitmap = Bitmap.allocate(canvasPWorkSpec)
+                    val canvasBitmap = framePool.allocate(canvasPWorkSpec)
                     Canvas.forBitmap(canvasBitmap, canvasCeiling).use { canvas ->
                         if (grounding == null) canvasBitmap.zero() else canvas.fill(Canvas.Shader.Solid(grounding))
                         for (resp in pageCache.query(progressiveFrameIdx))
@@ -535,19 +634,20 @@ class DeferredVideo private constructor(
                                     )
                             }
                     }
-                    val bitmap = if (useCanvasRep) canvasBitmap else Bitmap.allocate(userPWorkSpec)
-                        .also { canvasP2userP.convert(canvasBitmap, it); canvasBitmap.close() }
+                    val bitmap = if (useCanvasRep) canvasBitmap else framePool.allocate(userPWorkSpec)
+                        .also { measure(CONVERT) { canvasP2userP.convert(canvasBitmap, it) }; canvasBitmap.close() }
                     Frame(bitmap, writable = true, shift = 0)
                 }
             }
         }
 
         private fun materialize(canvas: Canvas, defImg: DeferredImage, y: Double) {
-            val shiftedSrc = if (y == 0.0) defImg else
-                DeferredImage(canvas.width, canvas.height.toY()).apply { drawDeferredImage(defImg, y = y.toY()) }
-            shiftedSrc.materialize(canvas, cache, staticLayers)
+            measure(MATERIALIZE) { defImg.materialize(canvas, cache, staticLayers, y) }
         }
 
+        private fun <R> measure(stage: RenderMetrics.Stage, block: () -> R): R =
+            if (metrics == null) block() else metrics.measure(stage, block)
+
         /* *****************************************************
            ********** OBTAIN STATIC INTERLACED FRAMES **********
            ***************************************************** */
@@ -559,7 +659,7 @@ class DeferredVideo private constructor(
             val sndSrcParity = 1 - fstSrcParity
             val fstDstParity = if (userSpec.content == Bitmap.Content.INTERLEAVED_FIELDS) fstSrcParity else sndSrcParity
             val sndDstParity = 1 - fstDstParity
-            val interleaved = Bitmap.allocate(if (useCanvasRep) canvasIWorkSpec else userIWorkSpec)
+            val interleaved = framePool.allocate(if (useCanvasRep) canvasIWorkSpec else userIWorkSpec)
             // It is important to query the earlier frame first, and also to immediately blit it, because the cache is
             // free to close it as soon as a later frame is queried (since sequentialAccess is true).
             val (fst, fstWritable, fstShift) = obtainStaticProgressiveFrame(frameIdx * 2, useCanvasRep)
@@ -584,7 +684,7 @@ class DeferredVideo private constructor(
             if (tapeResponses.isEmpty())
                 return static
             val composite = if (static.writable) static.bitmap else
-                Bitmap.allocate(if (compInCanvasRep) canvasPWorkSpec else userPWorkSpec)
+                framePool.allocate(if (compInCanvasRep) canvasPWorkSpec else userPWorkSpec)
                     .apply { blit(static.bitmap, 0, static.shift, workWidth, workHeight, 0, 0, 1) }
             for (resp in tapeResponses) {
                 val userData = takeTapeUserData(resp)
@@ -593,8 +693,8 @@ class DeferredVideo private constructor(
                 }
                 dropTapeUserData(resp, frameIdx)
             }
-            val userComposite = if (!compInCanvasRep) composite else Bitmap.allocate(userPWorkSpec)
-                .also { canvasP2userP.convert(composite, it); composite.close() }
+            val userComposite = if (!compInCanvasRep) composite else framePool.allocate(userPWorkSpec)
+                .also { measure(CONVERT) { canvasP2userP.convert(composite, it) }; composite.close() }
             return Frame(userComposite, writable = true, shift = 0)
         }
 
@@ -609,8 +709,8 @@ class DeferredVideo private constructor(
             val sndDstParity = 1 - fstDstParity
             overlayInterlacedTapes(composite, frameIdx * 2, fstTapeResponses, fstSrcParity, fstDstParity)
             overlayInterlacedTapes(composite, frameIdx * 2 + 1, sndTapeResponses, sndSrcParity, sndDstParity)
-            val userComposite = if (!compInCanvasRep) composite else Bitmap.allocate(userIWorkSpec)
-                .also { canvasI2userI.convert(composite, it); composite.close() }
+            val userComposite = if (!compInCanvasRep) composite else framePool.allocate(userIWorkSpec)
+                .also { measure(CONVERT) { canvasI2userI.convert(composite, it) }; composite.close() }
             return Frame(userComposite, writable = true, shift = 0)
         }
 
@@ -1243,6 +1343,41 @@ class DeferredVideo private constructor(
             return size + n - (size and (n - 1))
         }
 
+
+        companion object {
+
+            private const val TYPICAL_MICRO_SHIFTS = 4
+            private const val POOLED_FRAMES = 4
+
+            private val RENDER_SPILLER = DisposableSpiller<List<Render>> { renders ->
+                val bitmaps = renders.flatMap { listOf(it.transparCanvasOrDraftBitmap, it.userBitmap) }
+                SpilledBitmaps.spill(bitmaps) { restored -> restored.chunked(2) { (a, b) -> Render(a, b) } }
+            }
+
+            /**
+             * Roughly estimates how much native memory a backend occupies while rendering. It is dominated by the page
+             * cache, which holds the current and the preloaded chunk, each rendered at a couple of micro shifts.
+             */
+            fun estimateNativeBytes(
+                video: DeferredVideo, userSpec: Bitmap.Spec, randomAccessDraftMode: Boolean = false
+            ): Long {
+                val canvasRepresentation = Canvas.compatibleRepresentation(
+                    ColorSpace.of(userSpec.representation.colorSpace!!.primaries, ColorSpace.Transfer.BLENDING)
+                )
+                val frameBytes = userSpec.estimatedBytes +
+                        Bitmap.Spec(userSpec.resolution, canvasRepresentation).estimatedBytes
+                val chunkRes = Resolution(userSpec.resolution.widthPx, PageCache.maxChunkHeight(video))
+                val chunkBytes = Bitmap.Spec(chunkRes, userSpec.representation).estimatedBytes +
+                        Bitmap.Spec(chunkRes, canvasRepresentation).estimatedBytes
+                val microShifts = if (randomAccessDraftMode) 1 else TYPICAL_MICRO_SHIFTS
+                // The blank bitmaps and the frame currently being composited, plus the two cached chunks and the idle
+                // buffers retained by the frame pool.
+                return 2 * frameBytes + 2 * microShifts * chunkBytes +
+                        POOLED_FRAMES * Bitmap.Spec(userSpec.resolution, canvasRepresentation).estimatedBytes
+            }
+
+        }
+
     }
 
 
@@ -1261,12 +1396,17 @@ class DeferredVideo private constructor(
      *
      * @param sequentialAccess If true, cached page chunks that lie before the currently queried frame are freed.
      * @param preloading If true, renders near the last queried frame are precomputed in a background thread.
+     * @param metrics If not null, the time spent in [createRenders] is recorded there.
+     * @param spiller If not null, chunks evicted by the [DisposableTracker] are spilled to it, and are restored from
+     *     there instead of being rendered anew when they are queried again.
      */
     private abstract class PageCache<R : AutoCloseable>(
         private val video: DeferredVideo,
         private val vChromaSub: Int,
         private val sequentialAccess: Boolean,
-        private val preloading: Boolean
+        private val preloading: Boolean,
+        private val metrics: RenderMetrics? = null,
+        private val spiller: DisposableSpiller<List<R>>? = null
     ) {
 
         private val chunkSpacing: Int
@@ -1274,6 +1414,14 @@ class DeferredVideo private constructor(
         private val firstChunkIndices = IntArray(video.instructions.size)
         private val lastChunkIndices = IntArray(video.instructions.size)
 
+        val hits = AtomicLong()
+        val misses = AtomicLong()
+        val fallbacks = AtomicLong()
+        val renderedChunks = AtomicLong()
+        val chunkRenderNanos = AtomicLong()
+        private val chunkBytes = AtomicLong()
+        val peakChunkBytes = AtomicLong()
+
         init {
             val yMask = -(1 shl vChromaSub)
 
@@ -1281,7 +1429,7 @@ class DeferredVideo private constructor(
             // time and then immediately the next chunk can be swapped in, without the need to stitch the two chunks.
             // We further add 2^vChromaSub to the height to make room for the micro shift (which is between 0 and
             // 2^vChromaSub) at the bottom.
-            val maxChunkHeight = max(video.height + MIN_CHUNK_BUFFER, MAX_CHUNK_PIXELS / video.width) and yMask
+            val maxChunkHeight = maxChunkHeight(video) and yMask
             chunkSpacing = (maxChunkHeight - (video.height + (1 shl vChromaSub))) and yMask
 
             // Declare chunks for all instructions.
@@ -1377,7 +1525,9 @@ class DeferredVideo private constructor(
                 for (i in chunkIdx - 1 downTo 0) {
                     val renders = chunks[i].microShiftedRenders.getAndSet(null)
                     // Stop when we encounter a chunk that was once loaded but has since been explicitly nulled before.
-                    if (renders != null) renders.getAndClose()?.forEach { it.close() } else break
+                    if (renders == null) break
+                    renders.getAndClose()?.forEach { it.close() }
+                    chunkBytes.addAndGet(-chunks[i].bytes)
                 }
 
             // In preloading mode, queue preloading of the surrounding chunks in a background thread.
@@ -1392,14 +1542,20 @@ class DeferredVideo private constructor(
             // rendering if another thread is already doing that right now.
             chunk.semaphore.acquire()
             var microShiftedRenders = chunk.microShiftedRenders.get()?.get()
-            if (microShiftedRenders != null) chunk.semaphore.release() else microShiftedRenders = loadChunk(chunk)
+            if (microShiftedRenders != null) {
+                chunk.semaphore.release()
+                hits.incrementAndGet()
+            } else {
+                microShiftedRenders = loadChunk(chunk)
+                misses.incrementAndGet()
+            }
             // Determine the micro shift for the given shift and select the corresponding cached render that can be
             // passed to the consumer with only integer shifting.
             val microShift = shift.mod((1 shl vChromaSub).toDouble())
             return when (val imageIdx = chunk.microShifts.indexOfFirst { abs(it - microShift) < EPS }) {
                 // If no cached render could be found for the micro shift at hand, directly pass the deferred image
                 // to the consumer. This is slower than using cached renders, but it's our only option.
-                -1 -> Response.Image(chunk.image, shift, alpha)
+                -1 -> Response.Image(chunk.image, shift, alpha).also { fallbacks.incrementAndGet() }
                 // Otherwise, pass the found cached render.
                 else -> Response.Render(
                     microShiftedRenders[imageIdx], round(shift - microShift).toInt() - chunk.shift, alpha
@@ -1413,10 +1569,13 @@ class DeferredVideo private constructor(
                 return
             // If the chunk has already been rendered previously, immediately release the rendering right.
             // Otherwise, start rendering in another thread.
-            if (chunk.microShiftedRenders.get().let { it?.get() != null })
+            if (chunk.microShiftedRenders.get().let { it?.peek() != null })
                 chunk.semaphore.release()
             else
-                GLOBAL_THREAD_POOL.submit(throwableAwareTask { loadChunk(chunk) })
+                GLOBAL_THREAD_POOL.submit(throwableAwareTask {
+                    // Restoring a spilled chunk is much faster than rendering it, but still too slow for this thread.
+                    if (chunk.microShiftedRenders.get()?.get() != null) chunk.semaphore.release() else loadChunk(chunk)
+                })
         }
 
         // Apart from code design, there is an important reason for why this method returns the renders: to ensure that
@@ -1424,8 +1583,18 @@ class DeferredVideo private constructor(
         // method returns.
         private fun loadChunk(chunk: Chunk<R>): List<R> {
             try {
-                val sizedValue = createRenders(chunk.image, chunk.shift, chunk.microShifts, chunk.height)
-                chunk.microShiftedRenders.set(DisposableReference(sizedValue))
+                val startTime = System.nanoTime()
+                val render = { createRenders(chunk.image, chunk.shift, chunk.microShifts, chunk.height) }
+                val sizedValue = if (metrics == null) render() else metrics.measure(RENDER_CHUNK, render)
+                chunkRenderNanos.addAndGet(System.nanoTime() - startTime)
+                renderedChunks.incrementAndGet()
+                // If the chunk was rendered before, its renders have since been disposed of to free up memory.
+                val ref = DisposableReference(sizedValue, DisposableCategory.PAGE_CHUNKS, spiller)
+                val prevRef = chunk.microShiftedRenders.getAndSet(ref)
+                val prevBytes = if (prevRef == null) 0L else chunk.bytes
+                chunk.bytes = sizedValue.bytes
+                val curBytes = chunkBytes.addAndGet(sizedValue.bytes - prevBytes)
+                peakChunkBytes.accumulateAndGet(curBytes) { a, b -> max(a, b) }
                 return sizedValue.value
             } finally {
                 chunk.semaphore.release()
@@ -1439,6 +1608,9 @@ class DeferredVideo private constructor(
             private const val MAX_CHUNK_PIXELS = 20_000_000
             private const val MAX_MICRO_SHIFTS = 16
             private const val MIN_MICRO_SHIFT_OCCURRENCES = 5
+
+            fun maxChunkHeight(video: DeferredVideo): Int =
+                max(video.height + MIN_CHUNK_BUFFER, MAX_CHUNK_PIXELS / video.width)
         }
 
 
@@ -1456,6 +1628,7 @@ class DeferredVideo private constructor(
         ) {
             val microShiftedRenders = AtomicReference<DisposableReference<List<R>>?>()
             val semaphore = Semaphore(1)
+            @Volatile var bytes = 0L
         }
 
     }
@@ -8,6 +8,9 @@ import sun.font.Script
 import java.awt.GraphicsEnvironment
 import java.awt.geom.Path2D
 import java.awt.geom.Rectangle2D
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
 import java.lang.foreign.Arena
 import java.lang.foreign.MemorySegment
 import java.lang.foreign.MemorySegment.NULL
@@ -16,117 +19,41 @@ import java.lang.ref.WeakReference
 import java.nio.channels.FileChannel
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
 import java.util.*
-import kotlin.io.path.Path
-import kotlin.io.path.exists
-import kotlin.io.path.isRegularFile
-import kotlin.io.path.listDirectoryEntries
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.io.path.*
 
 
-class Font private constructor(private val hbFace: MemorySegment) {
+class Font private constructor(private val face: Face, info: Info) {
 
-    val name: String = lookupName(HB_OT_NAME_ID_FULL_NAME(), HB_LANGUAGE_INVALID())
-    val family: String = lookupName(HB_OT_NAME_ID_FONT_FAMILY(), HB_LANGUAGE_INVALID())
+    private constructor(hbFace: MemorySegment) : this(Face(hbFace), Info.of(hbFace))
 
-    val familyMap: Map<Locale, String>
-    val subfamilyMap: Map<Locale, String>
-    val fullNameMap: Map<Locale, String>
-    val typographicFamilyMap: Map<Locale, String>
-    val typographicSubfamilyMap: Map<Locale, String>
-    val sampleTextMap: Map<Locale, String>
+    val name: String = info.name
+    val family: String = info.family
 
-    val axes: List<Axis>
-    val supportedFeatures: Set<String>
+    val familyMap: Map<Locale, String> = info.familyMap
+    val subfamilyMap: Map<Locale, String> = info.subfamilyMap
+    val fullNameMap: Map<Locale, String> = info.fullNameMap
+    val typographicFamilyMap: Map<Locale, String> = info.typographicFamilyMap
+    val typographicSubfamilyMap: Map<Locale, String> = info.typographicSubfamilyMap
+    val sampleTextMap: Map<Locale, String> = info.sampleTextMap
 
-    init {
-        CLEANER.register(this, FontCleanerAction(hbFace))
-
-        require(name.isNotBlank()) { "Font has no standard name." }
-
-        // Prepare the standard name maps, and a lookup from name ID to name map.
-        familyMap = HashMap()
-        subfamilyMap = HashMap()
-        fullNameMap = HashMap()
-        typographicFamilyMap = HashMap()
-        typographicSubfamilyMap = HashMap()
-        sampleTextMap = HashMap()
-        val nameMaps = hashMapOf(
-            HB_OT_NAME_ID_FONT_FAMILY() to familyMap,
-            HB_OT_NAME_ID_FONT_SUBFAMILY() to subfamilyMap,
-            HB_OT_NAME_ID_FULL_NAME() to fullNameMap,
-            HB_OT_NAME_ID_TYPOGRAPHIC_FAMILY() to typographicFamilyMap,
-            HB_OT_NAME_ID_TYPOGRAPHIC_SUBFAMILY() to typographicSubfamilyMap,
-            HB_OT_NAME_ID_SAMPLE_TEXT() to sampleTextMap
-        )
+    val axes: List<Axis> = info.axes
+    val supportedFeatures: Set<String> = info.supportedFeatures
 
-        // Fill the axes list.
-        axes = mutableListOf()
-        Arena.ofConfined().use { arena ->
-            val count = hb_ot_var_get_axis_count(hbFace)
-            if (count > 0) {
-                val cCount = arena.allocateFrom(JAVA_INT, count)
-                val cInfos = hb_ot_var_axis_info_t.allocateArray(count.toLong(), arena)
-                hb_ot_var_get_axis_infos(hbFace, 0, cCount, cInfos)
-                for (idx in 0L..<cCount.get(JAVA_INT, 0)) {
-                    val cInfo = hb_ot_var_axis_info_t.asSlice(cInfos, idx)
-                    val defaultValue = hb_ot_var_axis_info_t.default_value(cInfo).toDouble()
-                    val minValue = hb_ot_var_axis_info_t.min_value(cInfo).toDouble()
-                    val maxValue = hb_ot_var_axis_info_t.max_value(cInfo).toDouble()
-                    if (hb_ot_var_axis_info_t.flags(cInfo) and HB_OT_VAR_AXIS_FLAG_HIDDEN() == 0 &&
-                        minValue < maxValue && defaultValue in minValue..maxValue
-                    ) {
-                        // This map fill be populated by the name listing code down below.
-                        val axisNameMap = HashMap<Locale, String>()
-                        nameMaps[hb_ot_var_axis_info_t.name_id(cInfo)] = axisNameMap
-                        axes += Axis(
-                            code2tag(hb_ot_var_axis_info_t.tag(cInfo)), axisNameMap, defaultValue, minValue, maxValue
-                        )
-                    }
-                }
-            }
-        }
+    // The style of the default instance, as also reported by cases without variations.
+    val italic: Boolean = info.italic
+    val width: Double = info.width
+    val weight: Double = info.weight
 
-        // Fill the name maps.
-        val hbNameEntries: MemorySegment
-        val numNameEntries = Arena.ofConfined().use { arena ->
-            val cCount = arena.allocateFrom(JAVA_INT, 0)
-            hbNameEntries = hb_ot_name_list_names(hbFace, cCount)
-            if (hbNameEntries == NULL) 0 else cCount.get(JAVA_INT, 0)
-        }
-        for (idx in 0L..<numNameEntries) {
-            val hbNameEntry = hb_ot_name_entry_t.asSlice(hbNameEntries, idx)
-            val nameId = hb_ot_name_entry_t.name_id(hbNameEntry)
-            val language = hb_ot_name_entry_t.language(hbNameEntry)
-            nameMaps[nameId]
-                ?.put(Locale.forLanguageTag(hb_language_to_string(language).getString(0)), lookupName(nameId, language))
-        }
+    // System fonts only read their file once this is first accessed.
+    private val hbFace: MemorySegment get() = face.get()
 
-        // Fill the supported features set.
-        supportedFeatures = HashSet()
-        Arena.ofConfined().use { arena ->
-            for (tableTag in intArrayOf(HB_OT_TAG_GSUB(), HB_OT_TAG_GPOS())) {
-                val count = hb_ot_layout_table_get_feature_tags(hbFace, tableTag, 0, NULL, NULL)
-                if (count == 0)
-                    continue
-                val cCount = arena.allocateFrom(JAVA_INT, count)
-                var cTags = arena.allocate(JAVA_INT, count.toLong())
-                hb_ot_layout_table_get_feature_tags(hbFace, tableTag, 0, cCount, cTags)
-                for (idx in 0L..<cCount.get(JAVA_INT, 0))
-                    supportedFeatures += code2tag(cTags.getAtIndex(JAVA_INT, idx))
-            }
-        }
-    }
-
-    private fun lookupName(nameId: Int, language: MemorySegment): String {
-        Arena.ofConfined().use { arena ->
-            val len = hb_ot_name_get_utf8(hbFace, nameId, language, NULL, NULL)
-            if (len == 0)
-                return ""
-            val cSize = arena.allocateFrom(JAVA_INT, len + 1 /* account for null terminator */)
-            val cStr = arena.allocate(len + 1L)
-            hb_ot_name_get_utf8(hbFace, nameId, language, cSize, cStr)
-            return cStr.getString(0)
-        }
+    init {
+        CLEANER.register(this, face)
     }
 
     fun toByteArray(): ByteArray {
@@ -141,6 +68,22 @@ class Font private constructor(private val hbFace: MemorySegment) {
         }
     }
 
+    /**
+     * A stable hash of the font's name and binary data, which changes whenever the font file is edited. It is computed
+     * upon first access.
+     */
+    val fingerprint: Long by lazy {
+        Arena.ofConfined().use { arena ->
+            val hbBlob = hb_face_reference_blob(hbFace)
+            val cLen = arena.allocate(JAVA_INT)
+            val data = hb_blob_get_data(hbBlob, cLen).reinterpret(cLen.get(JAVA_INT, 0).toLong())
+            // A font collection shares the same blob among all its fonts, so we also need to hash the name.
+            val fingerprint = Fingerprinter().putString(name).putBytes(data).finish()
+            hb_blob_destroy(hbBlob)
+            fingerprint
+        }
+    }
+
     fun staticNonShapeableSubset(codepoints: Set<Int>, glyphs: Set<Int>, variations: Set<Variation>): Font? {
         val hbInput = hb_subset_input_create_or_fail()
         if (hbInput == NULL)
@@ -191,13 +134,37 @@ class Font private constructor(private val hbFace: MemorySegment) {
 
         /** @throws Exception */
         fun read(file: Path): List<Font> {
+            val hbBlob = readBlob(file)
+
+            // Create fonts from the blob. Notice that each new font increments the blob's reference count.
+            // When a font is collected by the GC, it's destroyed, which will also decrement the blob's reference count.
+            val fonts = buildList {
+                for (idx in 0..<hb_face_count(hbBlob)) {
+                    val hbFace = hb_face_create_or_fail(hbBlob, idx)
+                    if (hbFace != NULL)
+                        add(Font(hbFace))
+                }
+            }
+
+            // Now decrement the blob's reference count, such that it exactly equals the number of fonts.
+            // Hence, when the last hbFace is destroyed, the blob will also be destroyed.
+            // If no valid fonts have been found, this also closes the arena.
+            hb_blob_destroy(hbBlob)
+
+            return fonts
+        }
+
+        /**
+         * Returns a blob with a reference count of one.
+         *
+         * @throws Exception
+         */
+        private fun readBlob(file: Path): MemorySegment {
             // Note: We use shared arenas because the cleaner thread will call the close() method.
             val arena = Arena.ofShared()
-
-            val hbBlob: MemorySegment
             try {
-                // Read the file into an off-heap MemorySegment. Note that we don't mmap the file, because the user might
-                // change it under us.
+                // Read the file into an off-heap MemorySegment. Note that we don't mmap the file, because the user
+                // might change it under us.
                 val seg: MemorySegment
                 FileChannel.open(file, StandardOpenOption.READ).use { fc ->
                     seg = arena.allocate(fc.size())
@@ -214,29 +181,11 @@ class Font private constructor(private val hbFace: MemorySegment) {
                         runCatching { LOGGER.error("Cannot close native memory resource scope", t) }
                     }
                 }, arena)
-                hbBlob =
-                    hb_blob_create(seg, seg.byteSize().toInt(), HB_MEMORY_MODE_WRITABLE(), NULL, destroyBlobFunc)
+                return hb_blob_create(seg, seg.byteSize().toInt(), HB_MEMORY_MODE_WRITABLE(), NULL, destroyBlobFunc)
             } catch (t: Throwable) {
                 arena.close()
                 throw t
             }
-
-            // Create fonts from the blob. Notice that each new font increments the blob's reference count.
-            // When a font is collected by the GC, it's destroyed, which will also decrement the blob's reference count.
-            val fonts = buildList {
-                for (idx in 0..<hb_face_count(hbBlob)) {
-                    val hbFace = hb_face_create_or_fail(hbBlob, idx)
-                    if (hbFace != NULL)
-                        add(Font(hbFace))
-                }
-            }
-
-            // Now decrement the blob's reference count, such that it exactly equals the number of fonts.
-            // Hence, when the last hbFace is destroyed, the blob will also be destroyed.
-            // If no valid fonts have been found, this also closes the arena.
-            hb_blob_destroy(hbBlob)
-
-            return fonts
         }
 
         // Load the fonts that are bundled with this program.
@@ -244,11 +193,13 @@ class Font private constructor(private val hbFace: MemorySegment) {
             fontsDir.listDirectoryEntries().flatMap(::read)
         }
 
-        // Load the fonts that are present on the system. We only want to include TrueType/OpenType fonts, because:
+        // Find the fonts that are present on the system. We only want to include TrueType/OpenType fonts, because:
         //   - Logical fonts (e.g., "Dialog" and "Serif") and system-native fonts differ unpredictably between systems.
         //   - At various points in the code, notably ReflectionExt and PDF font embedding, we only support TTF/OTF.
-        val SYSTEM: List<Font> =
-            if (SystemInfo.isMacOS) {
+        // As there can be thousands of system fonts, we do not read them all at each program start. Instead, we look
+        // up their metadata in an index and only read a font's file once its glyphs or binary data are needed.
+        val SYSTEM: List<Font> = run {
+            val files = if (SystemInfo.isMacOS) {
                 // On macOS, the JDK only supplies us with "CFont" implementations, which do not let us access the
                 // underlying TTF/OTF structure, and not even contain a path to the originating font file. Hence, we
                 // need to manually read in all font files from the well-known font directories.
@@ -261,26 +212,127 @@ class Font private constructor(private val hbFace: MemorySegment) {
                     .filter(Path::exists)
                     .flatMap(Path::walkSafely)
                     .filter(Path::isRegularFile)
-                    // The createFonts() method can only successfully read TrueType/OpenType fonts, which is desired.
-                    // If a FontFormatException or IOException occurs, just skip over the problematic font file.
-                    .flatMap(::tryReadSystemFont)
-                    // Internal macOS fonts start with a dot; we do not want to include those.
-                    .filter { !it.family.startsWith('.') && !it.name.startsWith('.') }
                     .toList()
             } else {
                 GraphicsEnvironment.getLocalGraphicsEnvironment().allFonts
                     .filter(java.awt.Font::isTTFOrOTF)
                     .mapTo(HashSet(), java.awt.Font::getFontFile)
-                    .flatMap(::tryReadSystemFont)
+                    .toList()
             }
+            val fonts = indexSystemFonts(files)
+            // Internal macOS fonts start with a dot; we do not want to include those.
+            if (SystemInfo.isMacOS) fonts.filter { !it.family.startsWith('.') && !it.name.startsWith('.') } else fonts
+        }
 
-        private fun tryReadSystemFont(file: Path) =
+        private fun indexSystemFonts(files: List<Path>): List<Font> {
+            val indexFile = CONFIG_DIR.resolve(SYSTEM_INDEX_FILE_NAME)
+            val oldIndex = readSystemIndex(indexFile)
+            val newIndex = LinkedHashMap<String, SystemIndexEntry>()
+            var dirty = false
+            for (file in files) {
+                val key = file.toString()
+                val attrs = try {
+                    file.readAttributes<BasicFileAttributes>()
+                } catch (_: IOException) {
+                    continue
+                }
+                val size = attrs.size()
+                val lastModified = attrs.lastModifiedTime().toMillis()
+                val oldEntry = oldIndex[key]
+                newIndex[key] = if (oldEntry != null && oldEntry.size == size && oldEntry.lastModified == lastModified)
+                    oldEntry
+                else {
+                    // The file is new or has changed, so we have to read it once to extract its metadata. If a
+                    // FontFormatException or IOException occurs, we record that the file yields no fonts, so that we
+                    // do not try to read it again at each program start.
+                    val infos = try {
+                        readInfos(file)
+                    } catch (_: Exception) {
+                        LOGGER.warn("Skipping system font '{}' because it cannot be read.", file)
+                        emptyList()
+                    }
+                    dirty = true
+                    SystemIndexEntry(size, lastModified, infos)
+                }
+            }
+            // Also rewrite the index if some font files have been removed.
+            if (dirty || newIndex.size != oldIndex.size)
+                writeSystemIndex(indexFile, newIndex)
+            return newIndex.flatMap { (key, entry) ->
+                val file = Path(key)
+                entry.infos.map { (faceIdx, info) -> Font(Face(file, faceIdx), info) }
+            }
+        }
+
+        /** @throws Exception */
+        private fun readInfos(file: Path): List<Pair<Int, Info>> {
+            val hbBlob = readBlob(file)
             try {
-                read(file)
-            } catch (_: Exception) {
-                LOGGER.warn("Skipping system font '{}' because it cannot be read.", file)
-                emptyList()
+                return buildList {
+                    for (idx in 0..<hb_face_count(hbBlob)) {
+                        val hbFace = hb_face_create_or_fail(hbBlob, idx)
+                        if (hbFace != NULL)
+                            try {
+                                add(Pair(idx, Info.of(hbFace)))
+                            } finally {
+                                hb_face_destroy(hbFace)
+                            }
+                    }
+                }
+            } finally {
+                hb_blob_destroy(hbBlob)
+            }
+        }
+
+        private fun readSystemIndex(indexFile: Path): Map<String, SystemIndexEntry> {
+            if (!indexFile.isRegularFile())
+                return emptyMap()
+            return try {
+                DataInputStream(indexFile.inputStream().buffered()).use { input ->
+                    if (input.readInt() != SYSTEM_INDEX_MAGIC)
+                        return emptyMap()
+                    val index = HashMap<String, SystemIndexEntry>()
+                    repeat(input.readInt()) {
+                        val key = input.readUTF()
+                        val size = input.readLong()
+                        val lastModified = input.readLong()
+                        val infos = List(input.readInt()) { Pair(input.readInt(), Info.read(input)) }
+                        index[key] = SystemIndexEntry(size, lastModified, infos)
+                    }
+                    index
+                }
+            } catch (e: Exception) {
+                // Besides I/O errors, a corrupt index can also cause all sorts of other exceptions.
+                LOGGER.warn("Cannot read the system font index, so all system fonts will be read anew.", e)
+                emptyMap()
             }
+        }
+
+        private fun writeSystemIndex(indexFile: Path, index: Map<String, SystemIndexEntry>) {
+            try {
+                indexFile.parent.createDirectoriesSafely()
+                DataOutputStream(indexFile.outputStream().buffered()).use { output ->
+                    output.writeInt(SYSTEM_INDEX_MAGIC)
+                    output.writeInt(index.size)
+                    for ((key, entry) in index) {
+                        output.writeUTF(key)
+                        output.writeLong(entry.size)
+                        output.writeLong(entry.lastModified)
+                        output.writeInt(entry.infos.size)
+                        for ((faceIdx, info) in entry.infos) {
+                            output.writeInt(faceIdx)
+                            info.write(output)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                LOGGER.warn("Cannot write the system font index.", e)
+            }
+        }
+
+        private const val SYSTEM_INDEX_FILE_NAME = "system-font-index.bin"
+        // Change the last byte whenever the format of the index or the information it stores changes.
+        private const val SYSTEM_INDEX_MAGIC = 0x43464901
 
         private val nameToBundled = BUNDLED.associateBy(Font::name)
         private val nameToSystem = SYSTEM.associateBy(Font::name)
@@ -296,7 +348,7 @@ class Font private constructor(private val hbFace: MemorySegment) {
         val MANAGED_FEATURES = LIGATURES_FEATURES +
                 setOf(KERNING_FEATURE, SMALL_CAPS_FEATURE, PETITE_CAPS_FEATURE, CAPITAL_SPACING_FEATURE)
 
-        private val caseCache = DisposableCache<CaseKey, Case>()
+        private val caseCache = DisposableCache<CaseKey, Case>(DisposableCategory.FONT_CASES)
 
         private fun isValidTag(tag: String): Boolean =
             tag.length == 4 && tag.all { it.code in 0..255 }
@@ -353,6 +405,7 @@ class Font private constructor(private val hbFace: MemorySegment) {
 
         private val glyphBoundsCache: Array<Rectangle2D?>
         private val glyphOutlineCache: Array<Path2D.Float?>
+        private val shapingCache = DisposableCache<ShapingKey, ShapingResult>(DisposableCategory.FONT_CASES)
 
         init {
             hbFont = hb_font_create(font.hbFace)
@@ -471,6 +524,10 @@ class Font private constructor(private val hbFace: MemorySegment) {
             return path
         }
 
+        /**
+         * As long as the same arguments are passed, the result is taken from a cache, so HarfBuzz is only invoked for
+         * text that has not been shaped recently. The returned object may be shared; do not mutate it!
+         */
         fun shape(
             chars: CharArray,
             startCharIdx: Int,
@@ -484,71 +541,104 @@ class Font private constructor(private val hbFace: MemorySegment) {
             tracking: Double,
             startX: Double,
             startY: Double
+        ): ShapingResult {
+            // We always shape at the origin and only then move the result to the start point, so that the result does
+            // not depend on whether it came from the cache.
+            val key = ShapingKey(
+                String(chars, startCharIdx, charCount), ltr, script, locale, kerning, ligatures, features, tracking
+            )
+            val sr = shapingCache.get(key) {
+                val result = shapeAtOrigin(
+                    chars, startCharIdx, charCount, ltr, script, locale, kerning, ligatures, features, tracking
+                )
+                SizedValue(result, 64L + 2L * charCount + 40L * result.glyphs.size)
+            }
+            if (startX == 0.0 && startY == 0.0)
+                return sr
+            val positions = DoubleArray(sr.positions.size)
+            val boxes = DoubleArray(sr.boxes.size)
+            for (glyphIdx in sr.glyphs.indices) {
+                positions[glyphIdx * 2 + 0] = sr.positions[glyphIdx * 2 + 0] + startX
+                positions[glyphIdx * 2 + 1] = sr.positions[glyphIdx * 2 + 1] + startY
+                boxes[glyphIdx * 2 + 0] = sr.boxes[glyphIdx * 2 + 0] + startX
+                boxes[glyphIdx * 2 + 1] = sr.boxes[glyphIdx * 2 + 1] + startX
+            }
+            return ShapingResult(sr.glyphs, positions, boxes, sr.charIndices)
+        }
+
+        private fun shapeAtOrigin(
+            chars: CharArray,
+            startCharIdx: Int,
+            charCount: Int,
+            ltr: Boolean,
+            script: Int,
+            locale: Locale,
+            kerning: Boolean,
+            ligatures: Boolean,
+            features: List<Feature>,
+            tracking: Double
         ): ShapingResult {
             // Note: Whenever we allocate memory here, we do not have to check for allocation errors in the form of a
             // NULL pointer since (a) Java throws an OutOfMemoryError whenever some allocation we directly request fails
             // and (b) HarfBuzz returns empty singletons instead of NULL pointers whenever it can't allocate memory.
-            Arena.ofConfined().use { arena ->
-                // Create an HB buffer, configure it and fill it with the text.
-                val hbBuffer = hb_buffer_create()
-                hb_buffer_set_direction(hbBuffer, if (ltr) HB_DIRECTION_LTR() else HB_DIRECTION_RTL())
-                hb_buffer_set_script(hbBuffer, icuToHBScriptCode(script))
-                val lang = locale.toLanguageTag()
-                hb_buffer_set_language(hbBuffer, hb_language_from_string(arena.allocateFrom(lang), -1))
-                // Note: We need this cluster level for correctly identifying graphemes, which tracking shouldn't break.
-                hb_buffer_set_cluster_level(hbBuffer, HB_BUFFER_CLUSTER_LEVEL_MONOTONE_GRAPHEMES())
-
-                val charsSeg = arena.allocate(JAVA_CHAR, charCount.toLong())
-                MemorySegment.copy(chars, startCharIdx, charsSeg, JAVA_CHAR, 0L, charCount)
-                hb_buffer_add_utf16(hbBuffer, charsSeg, charCount, 0, charCount)
-
-                // Create an HB feature array and fill it.
-                val hbFeatures = hb_feature_t.allocateArray(1L + LIGATURES_FEATURES.size + features.size, arena)
-                var featureIdx = 0
-                configureFeature(hbFeatures, featureIdx++, KERNING_FEATURE, if (kerning) 1 else 0)
-                for (tag in LIGATURES_FEATURES)
-                    configureFeature(hbFeatures, featureIdx++, tag, if (ligatures) 1 else 0)
-                for (feat in features)
-                    if (isValidTag(feat.tag))
-                        configureFeature(hbFeatures, featureIdx++, feat.tag, feat.value)
-
-                // Run the HB shaping algorithm.
-                hb_shape(hbFont, hbBuffer, hbFeatures, featureIdx)
-
-                // Extract the shaping result.
-                val glyphCount = hb_buffer_get_length(hbBuffer)
-                val glyphInfo = hb_buffer_get_glyph_infos(hbBuffer, NULL)
-                val glyphPos = hb_buffer_get_glyph_positions(hbBuffer, NULL)
-
-                // Create the arrays into which we will store the shaping result.
-                val glyphs = IntArray(glyphCount)
-                val positions = DoubleArray(glyphCount * 2)
-                val boxes = DoubleArray(glyphCount * 2)
-                val charIndices = IntArray(glyphCount)
-
-                // Transfer the shaping result into those arrays.
-                var x = startX
-                var y = startY
-                for (glyphIdx in 0..<glyphCount) {
-                    val curGlyphInfo = hb_glyph_info_t.asSlice(glyphInfo, glyphIdx.toLong())
-                    val curGlyphPos = hb_glyph_position_t.asSlice(glyphPos, glyphIdx.toLong())
-                    glyphs[glyphIdx] = hb_glyph_info_t.codepoint(curGlyphInfo)
-                    charIndices[glyphIdx] = hb_glyph_info_t.cluster(curGlyphInfo)
-                    if (glyphIdx != 0 && charIndices[glyphIdx] != charIndices[glyphIdx - 1])
-                        x += tracking
-                    positions[glyphIdx * 2 + 0] = x + hb_glyph_position_t.x_offset(curGlyphPos) * IU
-                    positions[glyphIdx * 2 + 1] = y - hb_glyph_position_t.y_offset(curGlyphPos) * IU
-                    boxes[glyphIdx * 2 + 0] = x
-                    x += hb_glyph_position_t.x_advance(curGlyphPos) * IU
-                    y -= hb_glyph_position_t.y_advance(curGlyphPos) * IU
-                    boxes[glyphIdx * 2 + 1] = x
-                }
-
-                // Free the manually allocated memory.
-                hb_buffer_destroy(hbBuffer)
-
-                return ShapingResult(glyphs, positions, boxes, charIndices)
+            val scratch = SHAPING_SCRATCH.get()
+
+            // Configure the thread's HB buffer and fill it with the text.
+            val hbBuffer = scratch.hbBuffer
+            hb_buffer_clear_contents(hbBuffer)
+            hb_buffer_set_direction(hbBuffer, if (ltr) HB_DIRECTION_LTR() else HB_DIRECTION_RTL())
+            hb_buffer_set_script(hbBuffer, icuToHBScriptCode(script))
+            hb_buffer_set_language(hbBuffer, hbLanguage(locale))
+            // Note: We need this cluster level for correctly identifying graphemes, which tracking shouldn't break.
+            hb_buffer_set_cluster_level(hbBuffer, HB_BUFFER_CLUSTER_LEVEL_MONOTONE_GRAPHEMES())
+
+            val charsSeg = scratch.chars(charCount)
+            MemorySegment.copy(chars, startCharIdx, charsSeg, JAVA_CHAR, 0L, charCount)
+            hb_buffer_add_utf16(hbBuffer, charsSeg, charCount, 0, charCount)
+
+            // Fill the thread's HB feature array.
+            val hbFeatures = scratch.features(1 + LIGATURES_FEATURES.size + features.size)
+            var featureIdx = 0
+            configureFeature(hbFeatures, featureIdx++, KERNING_FEATURE, if (kerning) 1 else 0)
+            for (tag in LIGATURES_FEATURES)
+                configureFeature(hbFeatures, featureIdx++, tag, if (ligatures) 1 else 0)
+            for (feat in features)
+                if (isValidTag(feat.tag))
+                    configureFeature(hbFeatures, featureIdx++, feat.tag, feat.value)
+
+            // Run the HB shaping algorithm.
+            hb_shape(hbFont, hbBuffer, hbFeatures, featureIdx)
+
+            // Extract the shaping result.
+            val glyphCount = hb_buffer_get_length(hbBuffer)
+            val glyphInfo = hb_buffer_get_glyph_infos(hbBuffer, NULL)
+            val glyphPos = hb_buffer_get_glyph_positions(hbBuffer, NULL)
+
+            // Create the arrays into which we will store the shaping result.
+            val glyphs = IntArray(glyphCount)
+            val positions = DoubleArray(glyphCount * 2)
+            val boxes = DoubleArray(glyphCount * 2)
+            val charIndices = IntArray(glyphCount)
+
+            // Transfer the shaping result into those arrays.
+            var x = 0.0
+            var y = 0.0
+            for (glyphIdx in 0..<glyphCount) {
+                val curGlyphInfo = hb_glyph_info_t.asSlice(glyphInfo, glyphIdx.toLong())
+                val curGlyphPos = hb_glyph_position_t.asSlice(glyphPos, glyphIdx.toLong())
+                glyphs[glyphIdx] = hb_glyph_info_t.codepoint(curGlyphInfo)
+                charIndices[glyphIdx] = hb_glyph_info_t.cluster(curGlyphInfo)
+                if (glyphIdx != 0 && charIndices[glyphIdx] != charIndices[glyphIdx - 1])
+                    x += tracking
+                positions[glyphIdx * 2 + 0] = x + hb_glyph_position_t.x_offset(curGlyphPos) * IU
+                positions[glyphIdx * 2 + 1] = y - hb_glyph_position_t.y_offset(curGlyphPos) * IU
+                boxes[glyphIdx * 2 + 0] = x
+                x += hb_glyph_position_t.x_advance(curGlyphPos) * IU
+                y -= hb_glyph_position_t.y_advance(curGlyphPos) * IU
+                boxes[glyphIdx * 2 + 1] = x
             }
+
+            return ShapingResult(glyphs, positions, boxes, charIndices)
         }
 
         class ShapingResult(
@@ -558,12 +648,69 @@ class Font private constructor(private val hbFace: MemorySegment) {
             val charIndices: IntArray
         )
 
+        private data class ShapingKey(
+            val text: String,
+            val ltr: Boolean,
+            val script: Int,
+            val locale: Locale,
+            val kerning: Boolean,
+            val ligatures: Boolean,
+            val features: List<Feature>,
+            val tracking: Double
+        )
+
+        /**
+         * Native memory that a thread reuses for all its shaping calls, so that shaping a short string doesn't have to
+         * create an HB buffer and allocate native memory each time. It is freed once the thread has terminated.
+         */
+        private class ShapingScratch {
+
+            val hbBuffer: MemorySegment = hb_buffer_create()
+            private var charsSeg: MemorySegment = NULL
+            private var featuresSeg: MemorySegment = NULL
+            private var featuresCapacity = 0
+
+            init {
+                CLEANER.register(this, ShapingScratchCleanerAction(hbBuffer))
+            }
+
+            fun chars(count: Int): MemorySegment {
+                if (charsSeg.byteSize() < count * JAVA_CHAR.byteSize())
+                    charsSeg = Arena.ofAuto().allocate(JAVA_CHAR, count.coerceAtLeast(64).takeHighestOneBit() * 2L)
+                return charsSeg
+            }
+
+            fun features(count: Int): MemorySegment {
+                if (featuresCapacity < count) {
+                    featuresCapacity = count.coerceAtLeast(8).takeHighestOneBit() * 2
+                    featuresSeg = hb_feature_t.allocateArray(featuresCapacity.toLong(), Arena.ofAuto())
+                }
+                return featuresSeg
+            }
+
+        }
+
+        private class ShapingScratchCleanerAction(private val hbBuffer: MemorySegment) : Runnable {
+            override fun run() = hb_buffer_destroy(hbBuffer)
+        }
+
         companion object {
 
             // The HarfBuzz discretization unit. We compute with up to 16 binary digits of precision after the dot.
             private const val U = (1 shl 16).toDouble()
             private const val IU = 1.0 / U
 
+            private val SHAPING_SCRATCH = ThreadLocal.withInitial(::ShapingScratch)
+            // HarfBuzz interns languages, so the returned pointers stay valid forever.
+            private val hbLanguages = ConcurrentHashMap<Locale, MemorySegment>()
+
+            private fun hbLanguage(locale: Locale): MemorySegment =
+                hbLanguages.computeIfAbsent(locale) {
+                    Arena.ofConfined().use { arena ->
+                        hb_language_from_string(arena.allocateFrom(locale.toLanguageTag()), -1)
+                    }
+                }
+
             @Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
             private fun icuToHBScriptCode(code: Int) = when (code) {
                 Script.COMMON -> HB_SCRIPT_COMMON()
@@ -618,8 +765,8 @@ class Font private constructor(private val hbFace: MemorySegment) {
             private fun configureFeature(seg: MemorySegment, idx: Int, tag: String, value: Int) {
                 val feature = hb_feature_t.asSlice(seg, idx.toLong())
                 hb_feature_t.tag(feature, tag2code(tag))
-                if (value > 0)
-                    hb_feature_t.value(feature, value)
+                // Always write the value, as the feature array is reused and might still hold an old value.
+                hb_feature_t.value(feature, if (value > 0) value else 0)
                 hb_feature_t.start(feature, HB_FEATURE_GLOBAL_START())
                 hb_feature_t.end(feature, HB_FEATURE_GLOBAL_END())
             }
@@ -629,6 +776,192 @@ class Font private constructor(private val hbFace: MemorySegment) {
     }
 
 
+    /**
+     * Everything a font exposes without having to consult its face. For system fonts, this is persisted in an index,
+     * so that we do not need to read all of them at each program start.
+     */
+    private class Info(
+        val name: String,
+        val family: String,
+        val familyMap: Map<Locale, String>,
+        val subfamilyMap: Map<Locale, String>,
+        val fullNameMap: Map<Locale, String>,
+        val typographicFamilyMap: Map<Locale, String>,
+        val typographicSubfamilyMap: Map<Locale, String>,
+        val sampleTextMap: Map<Locale, String>,
+        val axes: List<Axis>,
+        val supportedFeatures: Set<String>,
+        val italic: Boolean,
+        val width: Double,
+        val weight: Double
+    ) {
+
+        /** @throws IOException */
+        fun write(output: DataOutputStream) {
+            output.writeUTF(name)
+            output.writeUTF(family)
+            for (nameMap in listOf(
+                familyMap, subfamilyMap, fullNameMap, typographicFamilyMap, typographicSubfamilyMap, sampleTextMap
+            ))
+                writeNameMap(output, nameMap)
+            output.writeInt(axes.size)
+            for (axis in axes) {
+                output.writeUTF(axis.tag)
+                writeNameMap(output, axis.nameMap)
+                output.writeDouble(axis.defaultValue)
+                output.writeDouble(axis.minValue)
+                output.writeDouble(axis.maxValue)
+            }
+            output.writeInt(supportedFeatures.size)
+            for (feature in supportedFeatures)
+                output.writeUTF(feature)
+            output.writeBoolean(italic)
+            output.writeDouble(width)
+            output.writeDouble(weight)
+        }
+
+
+        companion object {
+
+            fun of(hbFace: MemorySegment): Info {
+                val name = lookupName(hbFace, HB_OT_NAME_ID_FULL_NAME(), HB_LANGUAGE_INVALID())
+                val family = lookupName(hbFace, HB_OT_NAME_ID_FONT_FAMILY(), HB_LANGUAGE_INVALID())
+                require(name.isNotBlank()) { "Font has no standard name." }
+
+                // Prepare the standard name maps, and a lookup from name ID to name map.
+                val familyMap = HashMap<Locale, String>()
+                val subfamilyMap = HashMap<Locale, String>()
+                val fullNameMap = HashMap<Locale, String>()
+                val typographicFamilyMap = HashMap<Locale, String>()
+                val typographicSubfamilyMap = HashMap<Locale, String>()
+                val sampleTextMap = HashMap<Locale, String>()
+                val nameMaps = hashMapOf(
+                    HB_OT_NAME_ID_FONT_FAMILY() to familyMap,
+                    HB_OT_NAME_ID_FONT_SUBFAMILY() to subfamilyMap,
+                    HB_OT_NAME_ID_FULL_NAME() to fullNameMap,
+                    HB_OT_NAME_ID_TYPOGRAPHIC_FAMILY() to typographicFamilyMap,
+                    HB_OT_NAME_ID_TYPOGRAPHIC_SUBFAMILY() to typographicSubfamilyMap,
+                    HB_OT_NAME_ID_SAMPLE_TEXT() to sampleTextMap
+                )
+
+                // Fill the axes list.
+                val axes = mutableListOf<Axis>()
+                Arena.ofConfined().use { arena ->
+                    val count = hb_ot_var_get_axis_count(hbFace)
+                    if (count > 0) {
+                        val cCount = arena.allocateFrom(JAVA_INT, count)
+                        val cInfos = hb_ot_var_axis_info_t.allocateArray(count.toLong(), arena)
+                        hb_ot_var_get_axis_infos(hbFace, 0, cCount, cInfos)
+                        for (idx in 0L..<cCount.get(JAVA_INT, 0)) {
+                            val cInfo = hb_ot_var_axis_info_t.asSlice(cInfos, idx)
+                            val defaultValue = hb_ot_var_axis_info_t.default_value(cInfo).toDouble()
+                            val minValue = hb_ot_var_axis_info_t.min_value(cInfo).toDouble()
+                            val maxValue = hb_ot_var_axis_info_t.max_value(cInfo).toDouble()
+                            if (hb_ot_var_axis_info_t.flags(cInfo) and HB_OT_VAR_AXIS_FLAG_HIDDEN() == 0 &&
+                                minValue < maxValue && defaultValue in minValue..maxValue
+                            ) {
+                                // This map fill be populated by the name listing code down below.
+                                val axisNameMap = HashMap<Locale, String>()
+                                nameMaps[hb_ot_var_axis_info_t.name_id(cInfo)] = axisNameMap
+                                val tag = code2tag(hb_ot_var_axis_info_t.tag(cInfo))
+                                axes += Axis(tag, axisNameMap, defaultValue, minValue, maxValue)
+                            }
+                        }
+                    }
+                }
+
+                // Fill the name maps.
+                val hbNameEntries: MemorySegment
+                val numNameEntries = Arena.ofConfined().use { arena ->
+                    val cCount = arena.allocateFrom(JAVA_INT, 0)
+                    hbNameEntries = hb_ot_name_list_names(hbFace, cCount)
+                    if (hbNameEntries == NULL) 0 else cCount.get(JAVA_INT, 0)
+                }
+                for (idx in 0L..<numNameEntries) {
+                    val hbNameEntry = hb_ot_name_entry_t.asSlice(hbNameEntries, idx)
+                    val nameId = hb_ot_name_entry_t.name_id(hbNameEntry)
+                    val language = hb_ot_name_entry_t.language(hbNameEntry)
+                    val locale = Locale.forLanguageTag(hb_language_to_string(language).getString(0))
+                    nameMaps[nameId]?.put(locale, lookupName(hbFace, nameId, language))
+                }
+
+                // Fill the supported features set.
+                val supportedFeatures = HashSet<String>()
+                Arena.ofConfined().use { arena ->
+                    for (tableTag in intArrayOf(HB_OT_TAG_GSUB(), HB_OT_TAG_GPOS())) {
+                        val count = hb_ot_layout_table_get_feature_tags(hbFace, tableTag, 0, NULL, NULL)
+                        if (count == 0)
+                            continue
+                        val cCount = arena.allocateFrom(JAVA_INT, count)
+                        var cTags = arena.allocate(JAVA_INT, count.toLong())
+                        hb_ot_layout_table_get_feature_tags(hbFace, tableTag, 0, cCount, cTags)
+                        for (idx in 0L..<cCount.get(JAVA_INT, 0))
+                            supportedFeatures += code2tag(cTags.getAtIndex(JAVA_INT, idx))
+                    }
+                }
+
+                // Determine the style of the default instance. It doesn't depend on the font size.
+                val hbFont = hb_font_create(hbFace)
+                val italic = hb_style_get_value(hbFont, HB_STYLE_TAG_ITALIC()) != 0f
+                val width = hb_style_get_value(hbFont, HB_STYLE_TAG_WIDTH()).toDouble()
+                val weight = hb_style_get_value(hbFont, HB_STYLE_TAG_WEIGHT()).toDouble()
+                hb_font_destroy(hbFont)
+
+                return Info(
+                    name, family, familyMap, subfamilyMap, fullNameMap, typographicFamilyMap,
+                    typographicSubfamilyMap, sampleTextMap, axes, supportedFeatures, italic, width, weight
+                )
+            }
+
+            /** @throws IOException */
+            fun read(input: DataInputStream): Info {
+                val name = input.readUTF()
+                val family = input.readUTF()
+                val nameMaps = List(6) { readNameMap(input) }
+                val axes = List(input.readInt()) {
+                    val tag = input.readUTF()
+                    val nameMap = readNameMap(input)
+                    Axis(tag, nameMap, input.readDouble(), input.readDouble(), input.readDouble())
+                }
+                val supportedFeatures = HashSet<String>()
+                repeat(input.readInt()) { supportedFeatures += input.readUTF() }
+                return Info(
+                    name, family, nameMaps[0], nameMaps[1], nameMaps[2], nameMaps[3], nameMaps[4], nameMaps[5],
+                    axes, supportedFeatures, input.readBoolean(), input.readDouble(), input.readDouble()
+                )
+            }
+
+            private fun lookupName(hbFace: MemorySegment, nameId: Int, language: MemorySegment): String {
+                Arena.ofConfined().use { arena ->
+                    val len = hb_ot_name_get_utf8(hbFace, nameId, language, NULL, NULL)
+                    if (len == 0)
+                        return ""
+                    val cSize = arena.allocateFrom(JAVA_INT, len + 1 /* account for null terminator */)
+                    val cStr = arena.allocate(len + 1L)
+                    hb_ot_name_get_utf8(hbFace, nameId, language, cSize, cStr)
+                    return cStr.getString(0)
+                }
+            }
+
+            private fun writeNameMap(output: DataOutputStream, nameMap: Map<Locale, String>) {
+                output.writeInt(nameMap.size)
+                for ((locale, name) in nameMap) {
+                    output.writeUTF(locale.toLanguageTag())
+                    output.writeUTF(name)
+                }
+            }
+
+            private fun readNameMap(input: DataInputStream): Map<Locale, String> {
+                val nameMap = HashMap<Locale, String>()
+                repeat(input.readInt()) { nameMap[Locale.forLanguageTag(input.readUTF())] = input.readUTF() }
+                return nameMap
+            }
+
+        }
+
+    }
+
+
     private class CaseKey(font: Font, private val size: Double, private val variations: Set<Variation>) {
 
         private val font = WeakReference(font)
@@ -646,10 +979,50 @@ class Font private constructor(private val hbFace: MemorySegment) {
     }
 
 
+    /** The faces of one system font file, each with its index inside the file. */
+    private class SystemIndexEntry(val size: Long, val lastModified: Long, val infos: List<Pair<Int, Info>>)
+
+
     // Use a static classes to absolutely ensure that no unwanted references leak into these objects.
 
-    private class FontCleanerAction(private val hbFace: MemorySegment) : Runnable {
-        override fun run() = hb_face_destroy(hbFace)
+    /**
+     * Owns the HarfBuzz face of a font and destroys it when the font is cleaned up. The face of an indexed system font
+     * is only read from its file when it is first needed.
+     */
+    private class Face private constructor(
+        @Volatile private var hbFace: MemorySegment?,
+        private val file: Path?,
+        private val faceIdx: Int
+    ) : Runnable {
+
+        constructor(hbFace: MemorySegment) : this(hbFace, null, 0)
+        constructor(file: Path, faceIdx: Int) : this(null, file, faceIdx)
+
+        private val lock = ReentrantLock()
+
+        fun get(): MemorySegment = hbFace ?: lock.withLock { hbFace ?: open().also { hbFace = it } }
+
+        private fun open(): MemorySegment {
+            try {
+                val hbBlob = readBlob(file!!)
+                val hbFace = hb_face_create_or_fail(hbBlob, faceIdx)
+                // The face holds its own reference to the blob, so we can give up ours.
+                hb_blob_destroy(hbBlob)
+                if (hbFace != NULL)
+                    return hbFace
+            } catch (_: Exception) {
+                // Fall back to the empty face below.
+            }
+            // The file has been removed or replaced since we last indexed it. Instead of crashing somewhere down the
+            // line, we degrade to a font without any glyphs; the next program start will then drop it from the index.
+            LOGGER.warn("System font file '{}' can no longer be read, so it will render as empty.", file)
+            return hb_face_get_empty()
+        }
+
+        override fun run() {
+            hbFace?.let(::hb_face_destroy)
+        }
+
     }
 
     private class CaseCleanerAction(private val hbFont: MemorySegment) : Runnable {
@@ -518,8 +518,9 @@ class FormattedString private constructor(
         override val manualTransform = AffineTransform().apply {
             postTx?.let(::concatenate)
             val font = seg.userData.font
-            scale(font.hScaling, 1.0)
+            // Like in the outline, the offset is not subject to the horizontal scaling.
             translate(font.hOffsetPx, font.vOffsetPx)
+            scale(font.hScaling, 1.0)
         }
 
     }
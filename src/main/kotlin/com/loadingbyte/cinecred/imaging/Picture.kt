@@ -63,6 +63,9 @@ sealed interface Picture : AutoCloseable {
     /** A null return value means that the picture is fully blank. */
     fun nonBlankBounds(crop: Rectangle2D? = null, transform: AffineTransform? = null): Rectangle2D?
 
+    /** A stable hash of the picture's content, which is computed upon first access. See [Fingerprinter]. */
+    val fingerprint: Long
+
 
     class Raster(
         /**
@@ -74,7 +77,7 @@ sealed interface Picture : AutoCloseable {
         val bitmap: Bitmap
     ) : Picture {
 
-        private val nonBlankBoundaryPointsCache = DisposableCache<Rectangle, DoubleArray>()
+        private val nonBlankBoundaryPointsCache = DisposableCache<Rectangle, DoubleArray>(DisposableCategory.PICTURES)
 
         init {
             val pixFmtCode = bitmap.spec.representation.pixelFormat.code
@@ -85,6 +88,25 @@ sealed interface Picture : AutoCloseable {
         override val width get() = bitmap.spec.resolution.widthPx.toDouble()
         override val height get() = bitmap.spec.resolution.heightPx.toDouble()
 
+        override val fingerprint: Long by lazy {
+            val fp = Fingerprinter()
+            // If the bitmap has already been closed, we can't tell what it depicted.
+            bitmap.ifNotClosed {
+                val (w, h) = bitmap.spec.resolution
+                val pixelFormat = bitmap.spec.representation.pixelFormat
+                fp.putInt(w).putInt(h).putInt(pixelFormat.code)
+                // Hash row by row to skip the padding at the end of each row, which may contain arbitrary garbage.
+                for (plane in 0..<pixelFormat.planes) {
+                    val seg = bitmap.memorySegment(plane)
+                    val ls = bitmap.linesize(plane).toLong()
+                    val rowBytes = w.toLong() * pixelFormat.stepOfPlane(plane)
+                    for (y in 0..<h)
+                        fp.putBytes(seg.asSlice(y * ls, rowBytes))
+                }
+            } ?: fp.putUnknown()
+            fp.finish()
+        }
+
         // If the project that opened the picture has been closed and with it the picture (which is possible because
         // materialization happens in a background thread), just silently skip the operation.
         override fun drawTo(canvas: Canvas, transform: AffineTransform?, clip: List<Shape>) {
@@ -158,7 +180,7 @@ sealed interface Picture : AutoCloseable {
     sealed class Vector : Picture {
 
         @Volatile private var roughNonBlankBounds: Optional<Rectangle2D>? = null
-        private val nonBlankBoundaryPointsCache = DisposableCache<Rectangle2D, DoubleArray>()
+        private val nonBlankBoundaryPointsCache = DisposableCache<Rectangle2D, DoubleArray>(DisposableCategory.PICTURES)
 
         override fun close() {
             nonBlankBoundaryPointsCache.close()
@@ -209,7 +231,8 @@ sealed interface Picture : AutoCloseable {
         private val doc: Document,
         private val src: Canvas.SourceSVG,
         override val width: Double,
-        override val height: Double
+        override val height: Double,
+        override val fingerprint: Long
     ) : Vector() {
 
         private val lock = ReentrantLock()
@@ -359,7 +382,8 @@ sealed interface Picture : AutoCloseable {
                 } catch (e: IllegalArgumentException) {
                     throw IOException(e)
                 }
-                return SVG(doc, sourceSVG, sourceSVG.width, sourceSVG.height)
+                val fingerprint = Fingerprinter().putString(xml).finish()
+                return SVG(doc, sourceSVG, sourceSVG.width, sourceSVG.height, fingerprint)
             }
 
         }
@@ -370,11 +394,14 @@ sealed interface Picture : AutoCloseable {
     class PDF private constructor(
         private val doc: PDDocument,
         override val width: Double,
-        override val height: Double
+        override val height: Double,
+        computeFingerprint: () -> Long
     ) : Vector() {
 
         private val lock = ReentrantLock()
 
+        override val fingerprint: Long by lazy(computeFingerprint)
+
         // If the project that opened the picture has been closed and with it the picture (which is possible because
         // materialization happens in a background thread), just silently skip the operation.
         override fun drawTo(canvas: Canvas, transform: AffineTransform?, clip: List<Shape>) {
@@ -444,12 +471,22 @@ sealed interface Picture : AutoCloseable {
         companion object {
 
             /** @throws IOException */
-            fun load(bytes: ByteArray): PDF = wrap(org.apache.pdfbox.Loader.loadPDF(bytes))
+            fun load(bytes: ByteArray): PDF {
+                val fingerprint = Fingerprinter().putBytes(bytes).finish()
+                return wrap(org.apache.pdfbox.Loader.loadPDF(bytes)) { fingerprint }
+            }
 
             /** @throws IOException */
-            fun load(file: Path): PDF = wrap(org.apache.pdfbox.Loader.loadPDF(file.toFile()))
+            fun load(file: Path): PDF = wrap(org.apache.pdfbox.Loader.loadPDF(file.toFile())) {
+                // Hashing the file is only needed for incremental rendering, so we defer it until it's actually used.
+                try {
+                    file.inputStream().use { Fingerprinter().putStream(it).finish() }
+                } catch (_: IOException) {
+                    Fingerprinter.UNKNOWN
+                }
+            }
 
-            private fun wrap(doc: PDDocument): PDF {
+            private fun wrap(doc: PDDocument, computeFingerprint: () -> Long): PDF {
                 if (doc.numberOfPages == 0) {
                     doc.close()
                     throw IOException("PDF has 0 pages.")
@@ -459,7 +496,7 @@ sealed interface Picture : AutoCloseable {
                     doc.close()
                     throw IOException("PDF's crop box is vanishingly small.")
                 }
-                return PDF(doc, size.width, size.height)
+                return PDF(doc, size.width, size.height, computeFingerprint)
             }
 
         }
@@ -0,0 +1,171 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.google.gson.GsonBuilder
+import jdk.jfr.Category
+import jdk.jfr.Event
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.max
+import kotlin.math.min
+
+
+/**
+ * Records how much time a render pipeline spends in each of its [Stage]s, and how full its queues are, so that one can
+ * find out where the time of a slow export goes. Stages may nest; for example, rendering a chunk of a page involves
+ * materializing and converting it. Each measured stage is also emitted as a JFR event, which allows to correlate it
+ * with the other goings-on in the JVM, like garbage collection pauses.
+ *
+ * This class is thread-safe.
+ */
+class RenderMetrics(private val jobName: String) {
+
+    enum class Stage { MATERIALIZE, RENDER_CHUNK, CONVERT, MATTE, WRITE }
+
+    class StageStats(
+        val stage: Stage,
+        val count: Long,
+        val totalNanos: Long,
+        val p50Nanos: Long,
+        val p90Nanos: Long,
+        val p99Nanos: Long,
+        val maxNanos: Long
+    )
+
+    class QueueStats(val queue: String, val capacity: Int, val meanOccupancy: Double, val maxOccupancy: Int)
+
+    private val histograms = EnumMap<Stage, Histogram>(Stage::class.java)
+    private val gauges = ConcurrentHashMap<String, Gauge>()
+
+    init {
+        for (stage in Stage.entries)
+            histograms[stage] = Histogram()
+    }
+
+    fun <R> measure(stage: Stage, block: () -> R): R {
+        val event = StageEvent()
+        event.begin()
+        val startTime = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            histograms.getValue(stage).record(System.nanoTime() - startTime)
+            if (event.shouldCommit()) {
+                event.job = jobName
+                event.stage = stage.name
+                event.commit()
+            }
+        }
+    }
+
+    /** Records that the given queue currently holds [occupancy] out of at most [capacity] elements. */
+    fun sampleQueue(queue: String, occupancy: Int, capacity: Int) {
+        gauges.computeIfAbsent(queue) { Gauge(capacity) }.record(occupancy)
+    }
+
+    /** Only includes the stages that have been measured at least once. */
+    fun stageStats(): List<StageStats> =
+        histograms.mapNotNull { (stage, histogram) -> histogram.stats(stage) }
+
+    fun queueStats(): List<QueueStats> =
+        gauges.entries.sortedBy { it.key }.mapNotNull { (queue, gauge) -> gauge.stats(queue) }
+
+    fun toJSON(): String {
+        val root = mapOf(
+            "job" to jobName,
+            "stages" to stageStats().map { s ->
+                mapOf(
+                    "stage" to s.stage.name, "count" to s.count, "totalNanos" to s.totalNanos,
+                    "p50Nanos" to s.p50Nanos, "p90Nanos" to s.p90Nanos, "p99Nanos" to s.p99Nanos,
+                    "maxNanos" to s.maxNanos
+                )
+            },
+            "queues" to queueStats().map { q ->
+                mapOf(
+                    "queue" to q.queue, "capacity" to q.capacity, "meanOccupancy" to q.meanOccupancy,
+                    "maxOccupancy" to q.maxOccupancy
+                )
+            }
+        )
+        return GsonBuilder().setPrettyPrinting().create().toJson(root)
+    }
+
+
+    /** Counts durations in buckets whose bounds are powers of two, so percentiles are accurate up to a factor of 2. */
+    private class Histogram {
+
+        private val buckets = AtomicLongArray(64)
+        private val count = AtomicLong()
+        private val totalNanos = AtomicLong()
+        private val maxNanos = AtomicLong()
+
+        fun record(nanos: Long) {
+            buckets.incrementAndGet(63 - nanos.coerceAtLeast(1L).countLeadingZeroBits())
+            count.incrementAndGet()
+            totalNanos.addAndGet(nanos)
+            maxNanos.accumulateAndGet(nanos) { a, b -> max(a, b) }
+        }
+
+        fun stats(stage: Stage): StageStats? {
+            val n = count.get()
+            if (n == 0L)
+                return null
+            val max = maxNanos.get()
+            // Report the upper bound of the bucket that contains the percentile, but never exceed the actual maximum.
+            fun percentile(p: Double): Long {
+                val rank = (p * n).toLong().coerceIn(1L, n)
+                var seen = 0L
+                for (bucket in 0..<buckets.length()) {
+                    seen += buckets.get(bucket)
+                    if (seen >= rank)
+                        return if (bucket >= 62) max else min((2L shl bucket) - 1L, max)
+                }
+                return max
+            }
+            return StageStats(stage, n, totalNanos.get(), percentile(0.5), percentile(0.9), percentile(0.99), max)
+        }
+
+    }
+
+
+    private class Gauge(private val capacity: Int) {
+
+        private val samples = AtomicLong()
+        private val sum = AtomicLong()
+        private val maxOccupancy = AtomicLong()
+
+        fun record(occupancy: Int) {
+            samples.incrementAndGet()
+            sum.addAndGet(occupancy.toLong())
+            maxOccupancy.accumulateAndGet(occupancy.toLong()) { a, b -> max(a, b) }
+        }
+
+        fun stats(queue: String): QueueStats? {
+            val n = samples.get()
+            if (n == 0L)
+                return null
+            return QueueStats(queue, capacity, sum.get() / n.toDouble(), maxOccupancy.get().toInt())
+        }
+
+    }
+
+
+    @Name("com.loadingbyte.cinecred.RenderStage")
+    @Label("Render Stage")
+    @Category("Cinecred")
+    @StackTrace(false)
+    private class StageEvent : Event() {
+        @field:Label("Job")
+        @JvmField
+        var job: String? = null
+
+        @field:Label("Stage")
+        @JvmField
+        var stage: String? = null
+    }
+
+}
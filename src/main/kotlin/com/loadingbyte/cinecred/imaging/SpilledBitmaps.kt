@@ -0,0 +1,283 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.CLEANER
+import com.loadingbyte.cinecred.common.DisposableSpiller
+import com.loadingbyte.cinecred.common.LOGGER
+import com.loadingbyte.cinecred.common.SizedValue
+import com.loadingbyte.cinecred.common.SpilledValue
+import com.loadingbyte.cinecred.common.TOTAL_SYSTEM_MEMORY
+import java.io.IOException
+import java.lang.foreign.Arena
+import java.lang.foreign.MemorySegment
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.io.path.*
+import kotlin.math.min
+
+
+/**
+ * A [SpilledValue] whose bitmaps are written to a memory-mapped file in a scratch directory, from where they can be
+ * restored much faster than they could be rendered or decoded anew. The bitmaps are stored raw, as compressing them
+ * would cost about as much time as reading them back saves.
+ *
+ * The total size of all files is capped; when a new file doesn't fit, the least recently used files are deleted. A file
+ * is also deleted when its [SpilledBitmaps] is closed or garbage collected, and the whole scratch directory is deleted
+ * when the program exits. Should the program crash, the directory is deleted the next time any instance starts up.
+ */
+class SpilledBitmaps<V : Any> private constructor(
+    private val entry: Entry,
+    private val assemble: (List<Bitmap>) -> V
+) : SpilledValue<V> {
+
+    private val cleanable = CLEANER.register(this, CleanerAction(entry))
+
+    override val isRestorable: Boolean
+        get() = !entry.dropped
+
+    override fun restore(): SizedValue<V>? {
+        val bitmaps = Store.read(entry) ?: return null
+        return SizedValue(assemble(bitmaps), entry.bytes)
+    }
+
+    override fun close() {
+        cleanable.clean()
+    }
+
+    private class CleanerAction(private val entry: Entry) : Runnable {
+        override fun run() {
+            Store.drop(entry)
+        }
+    }
+
+
+    private class Entry(val specs: List<Bitmap.Spec>, val bytes: Long) {
+        // The following fields are only accessed while holding the store's lock, except for the volatile one.
+        var file: Path? = null
+        var linesizes: IntArray? = null
+        var pins = 0
+        @Volatile var dropped = false
+    }
+
+
+    private object Store {
+
+        private val executor = Executors.newSingleThreadExecutor { Thread(it, "BitmapSpill").apply { isDaemon = true } }
+        private val fileCounter = AtomicLong()
+
+        // These fields are only accessed while holding the lock.
+        private val lock = ReentrantLock()
+        private val entries = LinkedHashSet<Entry>()
+        private var usedBytes = 0L
+
+        // Only the executor thread initializes these, so they need not be guarded by the lock.
+        private var initialized = false
+        private var dir: Path? = null
+        private var maxBytes = 0L
+
+        fun write(entry: Entry, bitmaps: List<Bitmap>) {
+            executor.submit {
+                try {
+                    writeNow(entry, bitmaps)
+                } catch (e: Exception) {
+                    LOGGER.error("Cannot spill bitmaps to disk.", e)
+                    drop(entry)
+                }
+            }
+        }
+
+        private fun writeNow(entry: Entry, bitmaps: List<Bitmap>) {
+            val dir = initDir()
+            if (dir == null || entry.dropped || entry.bytes == 0L || entry.bytes > maxBytes) {
+                drop(entry)
+                return
+            }
+            val file = dir.resolve("${fileCounter.getAndIncrement()}.raw")
+            val linesizes = mutableListOf<Int>()
+            val complete = try {
+                FileChannel.open(file, CREATE_NEW, READ, WRITE).use { channel ->
+                    Arena.ofConfined().use { arena ->
+                        val seg = channel.map(FileChannel.MapMode.READ_WRITE, 0L, entry.bytes, arena)
+                        var offset = 0L
+                        bitmaps.all { bitmap ->
+                            bitmap.ifNotClosed {
+                                for (plane in 0..<bitmap.spec.representation.pixelFormat.planes) {
+                                    val planeSeg = bitmap.memorySegment(plane)
+                                    MemorySegment.copy(planeSeg, 0L, seg, offset, planeSeg.byteSize())
+                                    offset += planeSeg.byteSize()
+                                    linesizes.add(bitmap.linesize(plane))
+                                }
+                            } != null
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                file.deleteIfExists()
+                throw e
+            }
+            val deletableFiles = mutableListOf<Path>()
+            lock.withLock {
+                if (!complete || entry.dropped) {
+                    entry.dropped = true
+                    deletableFiles.add(file)
+                } else {
+                    entry.file = file
+                    entry.linesizes = linesizes.toIntArray()
+                    entries.add(entry)
+                    usedBytes += entry.bytes
+                    // Make room by deleting the least recently used files.
+                    while (usedBytes > maxBytes)
+                        dropLocked(entries.first())?.let(deletableFiles::add)
+                }
+            }
+            deletableFiles.forEach(::deleteFile)
+        }
+
+        fun read(entry: Entry): List<Bitmap>? {
+            val (file, linesizes) = lock.withLock {
+                val file = entry.file
+                if (file == null || entry.dropped)
+                    return null
+                // Mark the entry as recently used, and pin it so that its file is not deleted while we're reading.
+                entries.remove(entry)
+                entries.add(entry)
+                entry.pins++
+                Pair(file, entry.linesizes!!)
+            }
+            val bitmaps = mutableListOf<Bitmap>()
+            try {
+                FileChannel.open(file, READ).use { channel ->
+                    Arena.ofConfined().use { arena ->
+                        val seg = channel.map(FileChannel.MapMode.READ_ONLY, 0L, entry.bytes, arena)
+                        var offset = 0L
+                        var planeIdx = 0
+                        for (spec in entry.specs) {
+                            val bitmap = Bitmap.allocate(spec)
+                            bitmaps.add(bitmap)
+                            for (plane in 0..<spec.representation.pixelFormat.planes) {
+                                val srcLs = linesizes[planeIdx++].toLong()
+                                val dstSeg = bitmap.memorySegment(plane)
+                                val dstLs = bitmap.linesize(plane).toLong()
+                                val planeHeight = dstSeg.byteSize() / dstLs
+                                // The linesizes only differ if the original bitmap was not allocated by allocate().
+                                if (srcLs == dstLs)
+                                    MemorySegment.copy(seg, offset, dstSeg, 0L, dstSeg.byteSize())
+                                else {
+                                    val rowBytes = min(srcLs, dstLs)
+                                    for (y in 0L..<planeHeight)
+                                        MemorySegment.copy(seg, offset + y * srcLs, dstSeg, y * dstLs, rowBytes)
+                                }
+                                offset += planeHeight * srcLs
+                            }
+                        }
+                    }
+                }
+                return bitmaps
+            } catch (e: IOException) {
+                LOGGER.error("Cannot restore spilled bitmaps from '{}'.", file, e)
+                bitmaps.forEach(Bitmap::close)
+                drop(entry)
+                return null
+            } finally {
+                val unpinnedFile = lock.withLock { if (--entry.pins == 0 && entry.dropped) entry.file else null }
+                unpinnedFile?.let(::deleteFile)
+            }
+        }
+
+        fun drop(entry: Entry) {
+            val file = lock.withLock { dropLocked(entry) }
+            file?.let(::deleteFile)
+        }
+
+        /** Returns the file if it can be deleted right away, which the caller must do outside the lock. */
+        private fun dropLocked(entry: Entry): Path? {
+            if (entry.dropped)
+                return null
+            entry.dropped = true
+            if (entries.remove(entry))
+                usedBytes -= entry.bytes
+            val file = entry.file ?: return null
+            // If the file is pinned, the last reader will delete it.
+            return if (entry.pins == 0) file else null
+        }
+
+        private fun deleteFile(file: Path) {
+            executor.submit {
+                try {
+                    file.deleteIfExists()
+                } catch (e: IOException) {
+                    LOGGER.error("Cannot delete spilled bitmaps file '{}'.", file, e)
+                }
+            }
+        }
+
+        private fun initDir(): Path? {
+            if (initialized)
+                return dir
+            initialized = true
+            try {
+                val tmpDir = Path(System.getProperty("java.io.tmpdir"))
+                deleteStaleDirs(tmpDir)
+                val dir = createTempDirectory(tmpDir, DIR_PREFIX)
+                // Hold a lock on a file in the directory for as long as this instance is running, so that other
+                // instances can find out whether the directory is stale. The shutdown hook keeps the lock reachable.
+                val dirLock = FileChannel.open(dir.resolve(LOCK_FILE), CREATE_NEW, WRITE).lock()
+                Runtime.getRuntime().addShutdownHook(Thread({
+                    // Windows refuses to delete the lock file while it's open.
+                    dirLock.channel().close()
+                    dir.toFile().deleteRecursively()
+                }, "BitmapSpillCleaner"))
+                // Don't let the spilled bitmaps fill up the disk.
+                maxBytes = min(TOTAL_SYSTEM_MEMORY, dir.fileStore().usableSpace / 4)
+                this.dir = dir
+            } catch (e: IOException) {
+                LOGGER.error("Cannot create the directory for spilling bitmaps; will not spill any.", e)
+            }
+            return dir
+        }
+
+        private fun deleteStaleDirs(tmpDir: Path) {
+            for (staleDir in tmpDir.listDirectoryEntries("$DIR_PREFIX*"))
+                try {
+                    val lockFile = staleDir.resolve(LOCK_FILE)
+                    // If another instance still holds the lock, tryLock() returns null. A directory without a lock file
+                    // is either being created right now, or it was left behind by an instance that crashed before it
+                    // created the lock file or while it deleted the directory. Only in the latter cases is it older.
+                    val stale = if (lockFile.exists())
+                        FileChannel.open(lockFile, WRITE).use { it.tryLock() != null }
+                    else
+                        System.currentTimeMillis() - staleDir.getLastModifiedTime().toMillis() > LOCKLESS_GRACE_MS
+                    if (stale)
+                        staleDir.toFile().deleteRecursively()
+                } catch (_: IOException) {
+                    // The directory is being created or deleted right now, so leave it alone.
+                }
+        }
+
+        private const val DIR_PREFIX = "cinecred-spill-"
+        private const val LOCK_FILE = "lock"
+        private const val LOCKLESS_GRACE_MS = 10 * 60 * 1000L
+
+    }
+
+
+    companion object {
+
+        /**
+         * Writes the [bitmaps] to disk in the background. They must not be modified anymore, but they may be closed,
+         * in which case the spill is abandoned. When the bitmaps are restored, they are passed to [assemble], which
+         * must not capture the reference whose value is spilled; see [DisposableSpiller].
+         */
+        fun <V : Any> spill(bitmaps: List<Bitmap>, assemble: (List<Bitmap>) -> V): SpilledBitmaps<V> {
+            val entry = Entry(bitmaps.map(Bitmap::spec), bitmaps.sumOf(Bitmap::bytes))
+            Store.write(entry, bitmaps)
+            return SpilledBitmaps(entry, assemble)
+        }
+
+    }
+
+}
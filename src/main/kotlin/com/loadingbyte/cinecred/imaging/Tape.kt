@@ -145,6 +145,20 @@ class Tape private constructor(
         val getItemBytesContainer = { l: List<RasterPictureAndClock> -> l.sumOf { it.picture.bitmap.bytes } }
         val closeItemFileSeq = { o: Optional<Picture.Raster> -> o.getOrNull()?.close(); Unit }
         val closeItemContainer = { l: List<RasterPictureAndClock> -> l.forEach { e -> e.picture.close() } }
+        val spillItemsFileSeq = DisposableSpiller<List<Optional<Picture.Raster>>> { items ->
+            val present = items.map(Optional<*>::isPresent)
+            SpilledBitmaps.spill(items.mapNotNull { it.getOrNull()?.bitmap }) { bitmaps ->
+                val iter = bitmaps.iterator()
+                present.map { if (it) Optional.of(Picture.Raster(iter.next())) else Optional.empty() }
+            }
+        }
+        val spillItemsContainer = DisposableSpiller<List<List<RasterPictureAndClock>>> { items ->
+            val clocks = items.map { l -> l.map(RasterPictureAndClock::clock) }
+            SpilledBitmaps.spill(items.flatMap { l -> l.map { e -> e.picture.bitmap } }) { bitmaps ->
+                val iter = bitmaps.iterator()
+                clocks.map { l -> l.map { clock -> RasterPictureAndClock(Picture.Raster(iter.next()), clock) } }
+            }
+        }
         if (reinterpretParentPreview) {
             if (fileSeq)
                 fileSeqPreviewCache = MappingPreviewCache(parent.fileSeqPreviewCache!!, mapItem = { optional ->
@@ -164,7 +178,7 @@ class Tape private constructor(
                             ?.let { f -> toPreviewPicture(f).also { f.bitmap.close() } }
                             .let(Optional<*>::ofNullable)
                 }
-            }, getItemBytesFileSeq, closeItemFileSeq)
+            }, getItemBytesFileSeq, closeItemFileSeq, spillItemsFileSeq)
         else
             containerPreviewCache = LoadingPreviewCache(fileOrDir.name, 10, 1, createLoader = { startSeconds ->
                 val reader = VideoReader(fileOrPattern, Timecode.Clock(startSeconds.toLong(), 1L))
@@ -189,7 +203,7 @@ class Tape private constructor(
                         }
                     }
                 }
-            }, getItemBytesContainer, closeItemContainer)
+            }, getItemBytesContainer, closeItemContainer, spillItemsContainer)
     }
 
     private class RasterPictureAndClock(val picture: Picture.Raster, val clock: Timecode.Clock)
@@ -525,7 +539,7 @@ class Tape private constructor(
 
         // Note: If mapItem() just reinterprets a bitmap, then we're counting the size of the cached bitmaps twice, but
         // the only consequence is that we might clear old cache entries earlier.
-        private val cache = DisposableCache<Int, I>()
+        private val cache = DisposableCache<Int, I>(DisposableCategory.TAPE_PREVIEWS)
 
         override fun getItem(point: Int): CompletableFuture<I> =
             cache.getAsync(point) {
@@ -547,7 +561,8 @@ class Tape private constructor(
         private val inertia: Int,
         private val createLoader: (start: Int) -> Loader<I>,
         private val getItemBytes: (I) -> Long,
-        private val closeItem: (I) -> Unit
+        private val closeItem: (I) -> Unit,
+        private val spillItems: DisposableSpiller<List<I>>
     ) : PreviewCache<I> {
 
         interface Loader<I> : AutoCloseable {
@@ -581,7 +596,7 @@ class Tape private constructor(
         private fun addSlice(start: Int): CompletableFuture<I> {
             var stop = start + ahead
             slices.higher(BaseSlice(start))?.let { stop = min(stop, it.start) }
-            val slice = Slice<I>(start, stop, inertia, getItemBytes, closeItem)
+            val slice = Slice(start, stop, inertia, getItemBytes, closeItem, spillItems)
             val future = slice.getItemOrSplitSlice(start).future!!
             slices.add(slice)
             GLOBAL_THREAD_POOL.submit(throwableAwareTask {
@@ -616,7 +631,8 @@ class Tape private constructor(
             stop: Int,
             private val inertia: Int,
             private val getItemBytes: (I) -> Long,
-            private val closeItem: (I) -> Unit
+            private val closeItem: (I) -> Unit,
+            private val spillItems: DisposableSpiller<List<I>>
         ) : BaseSlice<I>(start), AutoCloseable {
 
             private val lock = ReentrantLock()
@@ -662,7 +678,9 @@ class Tape private constructor(
                     val items = this.items!!
                     items.add(item)
                     if (claim == stop - 1) {
-                        disposableItems = DisposableReference(items, bytes = items.sumOf(getItemBytes))
+                        val bytes = items.sumOf(getItemBytes)
+                        disposableItems =
+                            DisposableReference(items, bytes, DisposableCategory.TAPE_PREVIEWS, spillItems)
                         this.items = null
                     }
                     val idx = claim - start
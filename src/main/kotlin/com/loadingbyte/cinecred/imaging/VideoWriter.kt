@@ -3,12 +3,15 @@ package com.loadingbyte.cinecred.imaging
 import com.loadingbyte.cinecred.common.FPS
 import com.loadingbyte.cinecred.common.VERSION
 import com.loadingbyte.cinecred.imaging.Bitmap.Scan.*
+import org.bytedeco.ffmpeg.avcodec.AVCodec
 import org.bytedeco.ffmpeg.avcodec.AVCodecContext
+import org.bytedeco.ffmpeg.avcodec.AVPacket
 import org.bytedeco.ffmpeg.avformat.AVFormatContext
 import org.bytedeco.ffmpeg.avformat.AVIOContext
 import org.bytedeco.ffmpeg.avformat.AVStream
 import org.bytedeco.ffmpeg.avutil.AVDictionary
 import org.bytedeco.ffmpeg.avutil.AVFrame
+import org.bytedeco.ffmpeg.avutil.AVRational
 import org.bytedeco.ffmpeg.global.avcodec.*
 import org.bytedeco.ffmpeg.global.avformat.*
 import org.bytedeco.ffmpeg.global.avutil.*
@@ -33,7 +36,9 @@ class VideoWriter(
      * https://ffmpeg.org/doxygen/7.0/libavcodec_2options__table_8h_source.html
      */
     codecOptions: Map<String, String>,
-    muxerOptions: Map<String, String>
+    muxerOptions: Map<String, String>,
+    /** Whether [repeatLastFrame] may be called, which is only sound for intra-only codecs. */
+    private val repeatable: Boolean = false
 ) : AutoCloseable {
 
     private var oc: AVFormatContext? = null
@@ -43,6 +48,13 @@ class VideoWriter(
     // Pts of the next frame that will be generated.
     private var frameCounter = 0L
 
+    // For repeatLastFrame(): the pts of the last frame sent to the encoder, a copy of the last packet received from the
+    // encoder (with timestamps in the encoder timebase), and the source and own pts of each repeat whose source packet
+    // hasn't arrived yet.
+    private var lastEncodedPts = -1L
+    private var lastPkt: AVPacket? = null
+    private val pendingRepeats = ArrayDeque<Pair<Long, Long>>()
+
     init {
         require(spec.representation.alpha != Bitmap.Alpha.PREMULTIPLIED) { "FFmpeg does not support premul alpha." }
         require(
@@ -69,12 +81,7 @@ class VideoWriter(
         this.oc = oc
         avformat_alloc_output_context2(oc, null, null, fileOrPattern.pathString)
             .ffmpegThrowIfErrnum("Could not deduce output muxer from file extension")
-        // Will be freed by avformat_free_context().
-        oc.metadata(AVDictionary(null).also { metaDict ->
-            av_dict_set(metaDict, "encoding_tool", "Cinecred $VERSION", 0)
-            av_dict_set(metaDict, "company_name", "Cinecred", 0)
-            av_dict_set(metaDict, "product_name", "Cinecred $VERSION", 0)
-        })
+        setMetadata(oc)
 
         // Find the codec.
         val codec = avcodec_find_encoder_by_name(codecName)
@@ -180,13 +187,32 @@ class VideoWriter(
         bitmap.requireNotClosed { writeFrame(bitmap.frame) }
     }
 
+    /**
+     * Writes the previously written frame once more. Instead of encoding the frame again, this copies its encoded
+     * packet, which is only sound for intra-only codecs, where each packet can be decoded on its own.
+     */
+    fun repeatLastFrame() {
+        check(repeatable) { "This writer has not been set up to repeat frames." }
+        check(lastEncodedPts != -1L) { "There is no frame to repeat yet." }
+        val pts = frameCounter++
+        // Encoders may lag behind, in which case we repeat the packet once it arrives.
+        val lastPkt = this.lastPkt
+        if (lastPkt != null && lastPkt.pts() == lastEncodedPts)
+            writeRepeatedPacket(lastPkt, pts)
+        else
+            pendingRepeats.addLast(Pair(lastEncodedPts, pts))
+    }
+
     /** Encodes one video frame and sends it to the muxer. */
     private fun writeFrame(frame: AVFrame?) {
         val st = this.st!!
         val enc = this.enc!!
 
         // Send the frame to the encoder.
-        frame?.pts(frameCounter++)
+        if (frame != null) {
+            lastEncodedPts = frameCounter++
+            frame.pts(lastEncodedPts)
+        }
         avcodec_send_frame(enc, frame)
             .ffmpegThrowIfErrnum("Error while sending a frame to the encoder")
 
@@ -205,18 +231,49 @@ class VideoWriter(
                 // combinations to recognize the framerate. Relative to the encoder timebase (which is 1/fps) for now.
                 pkt.duration(1)
 
+                // Remember the packet in case the frame is repeated later. Only the muxed packets of intra-only codecs
+                // are ever repeated, so there's no need to worry about packet reordering, and for other codecs, there's
+                // no need to remember anything.
+                var lastPkt: AVPacket? = null
+                if (repeatable) {
+                    lastPkt = this.lastPkt ?: av_packet_alloc().ffmpegThrowIfNull("Could not allocate packet")
+                        .also { this.lastPkt = it }
+                    av_packet_unref(lastPkt)
+                    av_packet_ref(lastPkt, pkt)
+                        .ffmpegThrowIfErrnum("Could not reference packet")
+                }
+
                 // Now rescale output packet timestamp values (including duration) from codec to stream timebase.
                 av_packet_rescale_ts(pkt, enc.time_base(), st.time_base())
 
                 // Write the compressed frame to the media file.
                 av_interleaved_write_frame(oc, pkt)
                     .ffmpegThrowIfErrnum("Error while writing an encoded packet to the stream")
+
+                // If the frame has been repeated while the encoder was still busy with it, catch up on that now.
+                if (lastPkt != null)
+                    while (pendingRepeats.firstOrNull()?.first == lastPkt.pts())
+                        writeRepeatedPacket(lastPkt, pendingRepeats.removeFirst().second)
             } finally {
                 av_packet_unref(pkt)
             }
         }
     }
 
+    private fun writeRepeatedPacket(srcPkt: AVPacket, pts: Long) {
+        val pkt = av_packet_clone(srcPkt)
+            .ffmpegThrowIfNull("Could not clone packet")
+        try {
+            pkt.pts(pts)
+            pkt.dts(pts)
+            av_packet_rescale_ts(pkt, enc!!.time_base(), st!!.time_base())
+            av_interleaved_write_frame(oc, pkt)
+                .ffmpegThrowIfErrnum("Error while writing a repeated packet to the stream")
+        } finally {
+            av_packet_free(pkt)
+        }
+    }
+
     override fun close() {
         try {
             // Write a null frame to terminate the stream.
@@ -231,6 +288,8 @@ class VideoWriter(
     }
 
     private fun release() {
+        lastPkt.letIfNonNull(::av_packet_free)
+        lastPkt = null
         enc.letIfNonNull(::avcodec_free_context)
         enc = null
 
@@ -245,3 +304,142 @@ class VideoWriter(
     }
 
 }
+
+
+/**
+ * Losslessly concatenates video files that each contain a single video stream encoded with the same settings, by
+ * copying their packets into a new container without decoding and re-encoding them. As the packets are simply put one
+ * after the other, this is only sound for intra-only codecs.
+ */
+class VideoConcatenator(
+    private val file: Path,
+    /** The frame rate shared by all parts. */
+    private val fps: FPS
+) : AutoCloseable {
+
+    private var oc: AVFormatContext? = null
+    private var st: AVStream? = null
+
+    // Number of frames that have been copied from all previous parts.
+    private var frameCounter = 0L
+
+    /** Appends all frames of the given video file. */
+    fun append(part: Path) {
+        val ic = AVFormatContext(null)
+        try {
+            avformat_open_input(ic, part.pathString, null, null as AVDictionary?)
+                .ffmpegThrowIfErrnum("Could not open input file '${part.name}'")
+            avformat_find_stream_info(ic, null as AVDictionary?)
+                .ffmpegThrowIfErrnum("Could not find stream information in '${part.name}'")
+            val ist = ic.streams(
+                av_find_best_stream(ic, AVMEDIA_TYPE_VIDEO, -1, -1, null as AVCodec?, 0)
+                    .ffmpegThrowIfErrnum("Could not find a video stream in '${part.name}'")
+            )
+            if (oc == null)
+                setupSafely({ setup(ist) }, ::release)
+            copyPackets(ic, ist)
+        } finally {
+            avformat_close_input(ic)
+        }
+    }
+
+    private fun setup(ist: AVStream) {
+        // Allocate the format context.
+        val oc = AVFormatContext(null)
+        this.oc = oc
+        avformat_alloc_output_context2(oc, null, null, file.pathString)
+            .ffmpegThrowIfErrnum("Could not deduce output muxer from file extension")
+        setMetadata(oc)
+
+        // Add the video stream, which has the same parameters as the first part's stream.
+        val st = avformat_new_stream(oc, null)
+            .ffmpegThrowIfNull("Could not allocate stream")
+        this.st = st
+        st.id(oc.nb_streams() - 1)
+        avcodec_parameters_copy(st.codecpar(), ist.codecpar())
+            .ffmpegThrowIfErrnum("Could not copy the stream parameters")
+        // The codec tag is specific to the container, so let the muxer choose it anew.
+        st.codecpar().codec_tag(0)
+        st.time_base().apply { num(fps.denominator); den(fps.numerator) }
+        st.avg_frame_rate().apply { num(fps.numerator); den(fps.denominator) }
+
+        // Open the output file, if needed.
+        if (oc.oformat().flags() and AVFMT_NOFILE == 0) {
+            val pb = AVIOContext(null)
+            avio_open(pb, file.pathString, AVIO_FLAG_WRITE)
+                .ffmpegThrowIfErrnum("Could not open output file '${file.name}'")
+            oc.pb(pb)
+        }
+
+        // Write the stream header, if any.
+        avformat_write_header(oc, null as AVDictionary?)
+            .ffmpegThrowIfErrnum("Could not write stream header")
+    }
+
+    private fun copyPackets(ic: AVFormatContext, ist: AVStream) {
+        val oc = this.oc!!
+        val st = this.st!!
+        val frameTb = AVRational().num(fps.denominator).den(fps.numerator)
+        val offset = av_rescale_q(frameCounter, frameTb, st.time_base())
+        val pkt = av_packet_alloc()
+            .ffmpegThrowIfNull("Could not allocate packet")
+        try {
+            while (true) {
+                val ret = av_read_frame(ic, pkt)
+                if (ret == AVERROR_EOF)
+                    break
+                ret.ffmpegThrowIfErrnum("Error while reading a packet")
+                try {
+                    if (pkt.stream_index() != ist.index())
+                        continue
+                    // Move the packet's timestamps behind all frames of the previous parts.
+                    av_packet_rescale_ts(pkt, ist.time_base(), st.time_base())
+                    if (pkt.pts() != AV_NOPTS_VALUE) pkt.pts(pkt.pts() + offset)
+                    if (pkt.dts() != AV_NOPTS_VALUE) pkt.dts(pkt.dts() + offset)
+                    pkt.stream_index(st.index())
+                    pkt.pos(-1)
+                    frameCounter++
+                    av_interleaved_write_frame(oc, pkt)
+                        .ffmpegThrowIfErrnum("Error while writing a packet to the stream")
+                } finally {
+                    av_packet_unref(pkt)
+                }
+            }
+        } finally {
+            av_packet_free(pkt)
+        }
+    }
+
+    override fun close() {
+        try {
+            // Write the trailer, if any.
+            if (oc != null)
+                av_write_trailer(oc)
+                    .ffmpegThrowIfErrnum("Could not write stream trailer and close output file")
+        } finally {
+            release()
+        }
+    }
+
+    private fun release() {
+        oc.letIfNonNull { oc ->
+            // Close the output file, if needed.
+            if (oc.oformat().flags() and AVFMT_NOFILE == 0)
+                oc.pb().letIfNonNull(::avio_closep)
+
+            avformat_free_context(oc)
+        }
+        oc = null
+    }
+
+}
+
+
+private fun setMetadata(oc: AVFormatContext) {
+    // Will be freed by avformat_free_context().
+    oc.metadata(AVDictionary(null).also { metaDict ->
+        av_dict_set(metaDict, "encoding_tool", "Cinecred $VERSION", 0)
+        av_dict_set(metaDict, "company_name", "Cinecred", 0)
+        av_dict_set(metaDict, "product_name", "Cinecred $VERSION", 0)
+    })
+}
@@ -655,7 +655,118 @@ class ConstraintViolation(
     val msg: String?
 )
 
-fun verifyConstraints(styling: Styling): MutableList<ConstraintViolation> {
+/**
+ * Verifies the constraints of all styles in parallel. As an edit usually only changes a single style, the violations of
+ * each root style are cached in the [memo], and are only recomputed if the root style or one of the styles it references
+ * by name have been replaced, if the names of the root style's siblings have changed, or if the locale has changed.
+ */
+fun verifyConstraints(styling: Styling, memo: VerificationMemo? = null): MutableList<ConstraintViolation> =
+    (memo ?: VerificationMemo()).verify(styling)
+
+
+/**
+ * Remembers the constraint violations that [verifyConstraints] has found for each root style, together with everything
+ * their verification depended on. Keep one instance per project and pass it to each verification of that project's
+ * styling, so that no styling is retained after its project has been closed.
+ *
+ * This class is not thread-safe, so don't use an instance for multiple concurrent verifications.
+ */
+class VerificationMemo(private val effectivityMemo: EffectivityMemo = EffectivityMemo()) {
+
+    // It's sufficient to cache the results for only the last verification, as the next Styling is usually derived
+    // from the previous one.
+    private var cache: VerificationCache? = null
+
+    fun verify(styling: Styling): MutableList<ConstraintViolation> {
+        val rootStyles = buildList {
+            add(styling.global)
+            for (styleClass in ListedStyle.CLASSES)
+                addAll(styling.getListedStyles(styleClass))
+        }
+        val stylesByName = ListedStyle.CLASSES.associateWith { styleClass ->
+            styling.getListedStyles(styleClass).groupBy(ListedStyle::name)
+        }
+        val names =
+            ListedStyle.CLASSES.associateWith { styleClass -> styling.getListedStyles(styleClass).map { it.name } }
+        // The violation messages are localized, so they can't be reused once the locale has changed.
+        val locale = Locale.getDefault()
+
+        val prevCache = cache?.takeIf { it.locale == locale }
+        val namesChanged = ListedStyle.CLASSES.filterTo(HashSet()) { styleClass ->
+            prevCache == null || prevCache.names[styleClass] != names[styleClass]
+        }
+        val entries = rootStyles.mapInParallel { rootStyle ->
+            val deps = findVerificationDependencies(styling, stylesByName, rootStyle)
+            val prevEntry = prevCache?.entries?.get(rootStyle)
+            val namesUnchanged = rootStyle !is ListedStyle || rootStyle.javaClass !in namesChanged
+            if (prevEntry != null && namesUnchanged && identical(prevEntry.deps, deps))
+                prevEntry
+            else
+                VerificationCacheEntry(deps, verifyRootStyle(styling, rootStyle, effectivityMemo))
+        }
+        cache = VerificationCache(locale, names, rootStyles.zip(entries).toMap(IdentityHashMap()))
+
+        return entries.flatMapTo(mutableListOf()) { entry -> entry.violations }
+    }
+
+}
+
+private class VerificationCache(
+    val locale: Locale,
+    val names: Map<Class<out ListedStyle>, List<String>>,
+    val entries: Map<Style, VerificationCacheEntry>
+)
+
+private class VerificationCacheEntry(val deps: List<Any>, val violations: List<ConstraintViolation>)
+
+private fun identical(deps1: List<Any>, deps2: List<Any>): Boolean {
+    if (deps1.size != deps2.size)
+        return false
+    for (idx in deps1.indices) {
+        val dep1 = deps1[idx]
+        val dep2 = deps2[idx]
+        if (dep1 !== dep2 && (dep1 is Style || dep1 != dep2))
+            return false
+    }
+    return true
+}
+
+/**
+ * Collects everything besides the root style itself and the names of its siblings that might influence its
+ * verification: the global settings, same-named siblings, the styles which it and its nested styles reference by name,
+ * and whether the choices for those references are empty.
+ */
+private fun findVerificationDependencies(
+    styling: Styling,
+    stylesByName: Map<Class<out ListedStyle>, Map<String, List<ListedStyle>>>,
+    rootStyle: Style
+): List<Any> {
+    val deps = mutableListOf<Any>(styling.global)
+    if (rootStyle is ListedStyle)
+        stylesByName.getValue(rootStyle.javaClass)[rootStyle.name]?.let(deps::addAll)
+
+    fun <S : Style> addDeps(style: S) {
+        for (cst in getStyleConstraints(style.javaClass))
+            if (cst is StyleNameConstr<S, *>) {
+                deps.add(cst.choices(styling, style).isEmpty())
+                val candidates = stylesByName.getValue(cst.styleClass)
+                for (setting in cst.settings)
+                    for (ref in setting.extractSubjects(style))
+                        candidates[ref]?.let(deps::addAll)
+            }
+        for (setting in getStyleSettings(style.javaClass))
+            if (NestedStyle::class.java.isAssignableFrom(setting.type))
+                for (nestedStyle in setting.extractSubjects(style))
+                    addDeps(nestedStyle as NestedStyle)
+    }
+
+    addDeps(rootStyle)
+    return deps
+}
+
+private fun verifyRootStyle(
+    styling: Styling, rootStyle: Style, effectivityMemo: EffectivityMemo
+): List<ConstraintViolation> {
     val violations = mutableListOf<ConstraintViolation>()
 
     fun log(
@@ -666,7 +777,7 @@ fun verifyConstraints(styling: Styling): MutableList<ConstraintViolation> {
     }
 
     fun <S : Style> verifyStyle(rootStyle: Style, style: S, styleIdx: Int = 0, siblings: List<S> = emptyList()) {
-        val ignoreSettings = findIneffectiveSettings(styling, style).keys
+        val ignoreSettings = findIneffectiveSettings(styling, style, effectivityMemo).keys
 
         for (cst in getStyleConstraints(style.javaClass))
             when (cst) {
@@ -924,11 +1035,7 @@ fun verifyConstraints(styling: Styling): MutableList<ConstraintViolation> {
             }
     }
 
-    verifyStyle(styling.global, styling.global)
-    for (styleClass in ListedStyle.CLASSES)
-        for (style in styling.getListedStyles(styleClass))
-            verifyStyle(style, style)
-
+    verifyStyle(rootStyle, rootStyle)
     return violations
 }
 
@@ -15,6 +15,7 @@ import com.loadingbyte.cinecred.project.HarmonizeExtent.ACROSS_BLOCKS
 import com.loadingbyte.cinecred.project.HarmonizeExtent.OFF
 import com.loadingbyte.cinecred.project.PageBehavior.CARD
 import com.loadingbyte.cinecred.project.PageBehavior.SCROLL
+import java.util.*
 
 
 @Suppress("UNCHECKED_CAST")
@@ -455,7 +456,40 @@ class StyleEffectivitySpec<S : Style>(
 
 enum class Effectivity { TOTALLY_INEFFECTIVE, ALMOST_EFFECTIVE, EFFECTIVE }
 
-fun <S : Style> findIneffectiveSettings(styling: Styling, style: S): Map<StyleSetting<S, *>, Effectivity> {
+/** If a [memo] is passed, the result may be cached, so it must not be modified. */
+fun <S : Style> findIneffectiveSettings(
+    styling: Styling, style: S, memo: EffectivityMemo? = null
+): Map<StyleSetting<S, *>, Effectivity> =
+    memo?.findIneffectiveSettings(styling, style) ?: computeIneffectiveSettings(styling, style)
+
+
+/**
+ * Remembers the results of [findIneffectiveSettings] for the styling it has last been queried with, as both the verifier
+ * and the style editor query them repeatedly. Keep one instance per project, so that no styling is retained after its
+ * project has been closed.
+ *
+ * This class is thread-safe.
+ */
+class EffectivityMemo {
+
+    // It's sufficient to cache the results for only one Styling, as usually only one Styling of a project is in use at
+    // any given time.
+    @Volatile private var cache: Pair<Styling, MutableMap<Style, Map<*, Effectivity>>>? = null
+
+    fun <S : Style> findIneffectiveSettings(styling: Styling, style: S): Map<StyleSetting<S, *>, Effectivity> {
+        val map = cache?.let { (s, m) -> if (s === styling) m else null }
+            ?: Collections.synchronizedMap(IdentityHashMap<Style, Map<*, Effectivity>>())
+                .also { cache = Pair(styling, it) }
+        // Don't use computeIfAbsent(), as that would block the other threads which are concurrently verifying the
+        // styling.
+        @Suppress("UNCHECKED_CAST")
+        map[style]?.let { return it as Map<StyleSetting<S, *>, Effectivity> }
+        return computeIneffectiveSettings(styling, style).also { map[style] = it }
+    }
+
+}
+
+private fun <S : Style> computeIneffectiveSettings(styling: Styling, style: S): Map<StyleSetting<S, *>, Effectivity> {
     val result = HashMap<StyleSetting<S, *>, Effectivity>()
 
     if (style is PopupStyle)
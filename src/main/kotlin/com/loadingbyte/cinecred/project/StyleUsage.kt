@@ -19,22 +19,29 @@ fun findUsedStyles(credits: List<Credits>): Set<ListedStyle> {
 }
 
 
-private fun findUsedStyles(styling: Styling, usedStyles: MutableSet<ListedStyle>) {
-    fun <S : Style> processStyle(style: S) {
-        val ignoreSettings = findIneffectiveSettings(styling, style)
-        for (cst in getStyleConstraints(style.javaClass))
-            if (cst is StyleNameConstr<S, *> && !cst.clustering)
-                for (setting in cst.settings)
-                    if (setting !in ignoreSettings)
-                        for (ref in setting.extractSubjects(style))
-                            cst.choices(styling, style).find { choice -> choice.name == ref }?.let(usedStyles::add)
-    }
+/**
+ * Returns the styles which are referenced by the effective settings of the given style. Clustering references are not
+ * considered to be usages and are hence skipped.
+ */
+fun <S : Style> findReferencedStyles(styling: Styling, style: S): List<ListedStyle> {
+    val refStyles = mutableListOf<ListedStyle>()
+    val ignoreSettings = findIneffectiveSettings(styling, style)
+    for (cst in getStyleConstraints(style.javaClass))
+        if (cst is StyleNameConstr<S, *> && !cst.clustering)
+            for (setting in cst.settings)
+                if (setting !in ignoreSettings)
+                    for (ref in setting.extractSubjects(style))
+                        cst.choices(styling, style).find { choice -> choice.name == ref }?.let(refStyles::add)
+    return refStyles
+}
 
+
+private fun findUsedStyles(styling: Styling, usedStyles: MutableSet<ListedStyle>) {
     // Add styles referenced from other styles.
     // Note: Currently, we only look in ListedStyles, but as of now, that is sufficient for our use case.
     for (styleClass in ListedStyle.CLASSES)
         for (style in styling.getListedStyles(styleClass))
-            processStyle(style)
+            usedStyles.addAll(findReferencedStyles(styling, style))
 }
 
 
@@ -23,30 +23,124 @@ import jxl.write.WritableCellFormat
 import jxl.write.WritableFont
 import org.slf4j.LoggerFactory
 import java.io.IOException
+import java.io.Reader
+import java.io.StringReader
 import java.nio.file.Path
+import java.util.Objects
 import kotlin.io.path.*
+import kotlin.math.max
 
 
-class Spreadsheet private constructor(val name: String, val records: List<Record>) : Iterable<Spreadsheet.Record> {
+/**
+ * The cells are stored column by column, with empty cells represented by null and equal strings shared, so that even
+ * sheets with tens of thousands of records stay compact in memory. [Record]s are merely lightweight views.
+ */
+class Spreadsheet private constructor(
+    val name: String,
+    private val recordSizes: IntArray,
+    private val columns: Array<Array<String?>>
+) : Iterable<Spreadsheet.Record> {
 
-    val numRecords: Int get() = records.size
-    val numColumns: Int get() = records.maxOf { it.cells.size }
+    val numRecords: Int get() = recordSizes.size
+    val numColumns: Int get() = columns.size
 
-    operator fun get(recordNo: Int): Record = records[recordNo]
-    operator fun get(recordNo: Int, columnNo: Int): String = records[recordNo].cells[columnNo]
+    val records: List<Record> = object : AbstractList<Record>() {
+        override val size get() = numRecords
+        override fun get(index: Int) = Record(Objects.checkIndex(index, numRecords))
+    }
 
-    fun withName(name: String): Spreadsheet = Spreadsheet(name, records)
-    fun map(transform: (String) -> String): Spreadsheet =
-        Spreadsheet(name, records.map { Record(it.recordNo, it.cells.map(transform)) })
+    operator fun get(recordNo: Int): Record = records[recordNo]
+    operator fun get(recordNo: Int, columnNo: Int): String =
+        columns[Objects.checkIndex(columnNo, recordSizes[recordNo])][recordNo] ?: ""
+
+    /** Returns null if the record doesn't extend to the column. */
+    fun getOrNull(recordNo: Int, columnNo: Int): String? =
+        if (columnNo < recordSizes[recordNo]) columns[columnNo][recordNo] ?: "" else null
+
+    fun withName(name: String): Spreadsheet = Spreadsheet(name, recordSizes, columns)
+    fun map(transform: (String) -> String): Spreadsheet {
+        val builder = Builder(name)
+        for (record in records)
+            builder.addRecord(record.cells.map(transform))
+        return builder.build()
+    }
 
     override fun iterator(): Iterator<Record> = records.iterator()
 
     companion object {
-        operator fun invoke(name: String, matrix: List<List<String>>) = Spreadsheet(name, matrix.mapIndexed(::Record))
+        operator fun invoke(name: String, matrix: List<List<String>>): Spreadsheet {
+            val builder = Builder(name)
+            for (cells in matrix)
+                builder.addRecord(cells)
+            return builder.build()
+        }
+    }
+
+    inner class Record(val recordNo: Int) {
+
+        val cells: List<String> = object : AbstractList<String>() {
+            override val size get() = recordSizes[recordNo]
+            override fun get(index: Int) = this@Spreadsheet[recordNo, index]
+        }
+
+        fun isNotEmpty() = (0..<recordSizes[recordNo]).any { columnNo -> columns[columnNo][recordNo] != null }
+
     }
 
-    class Record(val recordNo: Int, val cells: List<String>) {
-        fun isNotEmpty() = cells.any { it.isNotEmpty() }
+    /** Collects cells in any order, so that readers can feed them in right as they encounter them. */
+    class Builder(private val name: String) {
+
+        private var numRecords = 0
+        private var capacity = 0
+        private var recordSizes = IntArray(0)
+        private val columns = mutableListOf<Array<String?>>()
+        private val pool = HashMap<String, String>()
+
+        /** Makes sure that there are at least [numRecords] records, and that each one has at least [numCells] cells. */
+        fun ensureSize(numRecords: Int, numCells: Int) {
+            growRecords(numRecords)
+            for (recordNo in 0..<numRecords)
+                recordSizes[recordNo] = max(recordSizes[recordNo], numCells)
+        }
+
+        operator fun set(recordNo: Int, columnNo: Int, cell: String) {
+            growRecords(recordNo + 1)
+            recordSizes[recordNo] = max(recordSizes[recordNo], columnNo + 1)
+            if (cell.isEmpty())
+                return
+            while (columns.size <= columnNo)
+                columns.add(arrayOfNulls(capacity))
+            columns[columnNo][recordNo] = pool.getOrPut(cell) { cell }
+        }
+
+        /** Appends a record with exactly the given cells, even if the trailing ones are empty. */
+        fun addRecord(cells: List<String>) {
+            val recordNo = numRecords
+            growRecords(recordNo + 1)
+            recordSizes[recordNo] = cells.size
+            for ((columnNo, cell) in cells.withIndex())
+                set(recordNo, columnNo, cell)
+        }
+
+        fun build(): Spreadsheet {
+            val sizes = recordSizes.copyOf(numRecords)
+            val numColumns = sizes.maxOrNull() ?: 0
+            return Spreadsheet(name, sizes, Array(numColumns) { columnNo ->
+                columns.getOrNull(columnNo)?.copyOf(numRecords) ?: arrayOfNulls(numRecords)
+            })
+        }
+
+        private fun growRecords(numRecords: Int) {
+            if (numRecords <= this.numRecords)
+                return
+            if (numRecords > capacity) {
+                capacity = max(numRecords, capacity * 2)
+                recordSizes = recordSizes.copyOf(capacity)
+                columns.replaceAll { it.copyOf(capacity) }
+            }
+            this.numRecords = numRecords
+        }
+
     }
 
 }
@@ -105,11 +199,12 @@ object XlsxFormat : SpreadsheetFormat {
             val sheet = workbook.worksheets[sheetIdx]
             val numRows = (sheet.lastRowNumber + 1).coerceAtMost(MAX_ROWS)
             val numCols = (sheet.lastColumnNumber + 1).coerceAtMost(MAX_COLS)
-            val matrix = List(numRows) { MutableList(numCols) { "" } }
+            val builder = Spreadsheet.Builder(sheet.sheetName)
+            builder.ensureSize(numRows, numCols)
             for (cell in sheet.cells.values)
                 if (cell.rowNumber < MAX_ROWS && cell.columnNumber < MAX_COLS)
-                    cell.value?.let { matrix[cell.rowNumber][cell.columnNumber] = it.toString() }
-            Spreadsheet(sheet.sheetName, matrix)
+                    cell.value?.let { builder[cell.rowNumber, cell.columnNumber] = it.toString() }
+            builder.build()
         },
         close = {}
     )
@@ -176,8 +271,12 @@ object XlsFormat : SpreadsheetFormat {
             val sheet = workbook.getSheet(sheetIdx)
             val numRows = sheet.rows.coerceAtMost(MAX_ROWS)
             val numCols = sheet.columns.coerceAtMost(MAX_COLS)
-            val matrix = List(numRows) { row -> List(numCols) { col -> sheet.getCell(col, row).contents } }
-            Spreadsheet(sheet.name, matrix)
+            val builder = Spreadsheet.Builder(sheet.name)
+            builder.ensureSize(numRows, numCols)
+            for (row in 0..<numRows)
+                for (col in 0..<numCols)
+                    builder[row, col] = sheet.getCell(col, row).contents
+            builder.build()
         },
         close = { workbook -> workbook.close() }
     )
@@ -244,8 +343,12 @@ object OdsFormat : SpreadsheetFormat {
             val sheet = workbook.getSheet(sheetIdx)
             val numRows = sheet.maxRows.coerceAtMost(MAX_ROWS)
             val numCols = sheet.maxColumns.coerceAtMost(MAX_COLS)
-            val matrix = List(numRows) { r -> List(numCols) { c -> sheet.getRange(r, c).value?.toString() ?: "" } }
-            Spreadsheet(sheet.name, matrix)
+            val builder = Spreadsheet.Builder(sheet.name)
+            builder.ensureSize(numRows, numCols)
+            for (row in 0..<numRows)
+                for (col in 0..<numCols)
+                    sheet.getRange(row, col).value?.let { builder[row, col] = it.toString() }
+            builder.build()
         },
         close = {}
     )
@@ -386,27 +489,30 @@ object CsvFormat : SpreadsheetFormat {
     override val label get() = l10n("projectIO.spreadsheet.csv")
 
     override fun read(file: Path, defaultName: String): Pair<List<Spreadsheet>, List<ParserMsg>> {
-        return Pair(listOf(read(file.readText(), defaultName)), emptyList())
+        // Stream the file instead of loading it in its entirety, as crew and backer lists can become quite long.
+        return Pair(listOf(file.bufferedReader().use { read(it, defaultName) }), emptyList())
     }
 
-    fun read(text: String, name: String): Spreadsheet {
-        // Trim the character which results from the byte order mark (BOM) added by Excel.
-        val trimmed = text.removePrefix(0xFEFF.toChar().toString())
-
-        // Parse the CSV file into a string matrix.
-        val matrix = CsvReader.builder().skipEmptyLines(false).build(StringArrayHandler.of(), trimmed).use { reader ->
-            buildList {
-                var row = 0
-                for (line in reader) {
-                    add(if (line.size <= MAX_ROWS) line.asList() else line.copyOf(MAX_ROWS).asList())
-                    if (++row == MAX_ROWS)
-                        break
-                }
-            }
+    fun read(text: String, name: String): Spreadsheet = read(StringReader(text), name)
+
+    /** Doesn't close the reader. */
+    private fun read(reader: Reader, name: String): Spreadsheet {
+        // Skip the character which results from the byte order mark (BOM) added by Excel.
+        val input = reader.buffered()
+        input.mark(1)
+        if (input.read() != 0xFEFF)
+            input.reset()
+
+        // Parse the CSV file record by record straight into a spreadsheet.
+        val builder = Spreadsheet.Builder(name)
+        val csvReader = CsvReader.builder().skipEmptyLines(false).build(StringArrayHandler.of(), input)
+        var row = 0
+        for (line in csvReader) {
+            builder.addRecord(if (line.size <= MAX_COLS) line.asList() else line.copyOf(MAX_COLS).asList())
+            if (++row == MAX_ROWS)
+                break
         }
-
-        // Create a spreadsheet.
-        return Spreadsheet(name, matrix)
+        return builder.build()
     }
 
     override fun write(file: Path, spreadsheet: Spreadsheet, look: SpreadsheetLook) {
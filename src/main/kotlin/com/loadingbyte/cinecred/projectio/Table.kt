@@ -5,6 +5,7 @@ import com.loadingbyte.cinecred.common.Severity.MIGRATE
 import com.loadingbyte.cinecred.common.Severity.WARN
 import com.loadingbyte.cinecred.project.Style
 import com.loadingbyte.cinecred.project.StyleSetting
+import java.util.Objects
 
 
 data class ParserMsg(
@@ -37,7 +38,8 @@ class Table(
 
     val numRows: Int
     private val headerRecord: List<String>
-    private val bodyRecords: List<Spreadsheet.Record>
+    // The table body is the range of records which starts at this record number; it is read straight off the sheet.
+    private val firstBodyRecordNo: Int
     private val colMap: Map<String, Int>
 
     init {
@@ -48,20 +50,18 @@ class Table(
             // If no table header can be found, log that and bail out.
             numRows = 0
             headerRecord = emptyList()
-            bodyRecords = emptyList()
+            firstBodyRecordNo = 0
             colMap = emptyMap()
             log += ParserMsg(fileName, spreadsheet.name, null, null, null, WARN, l10n("projectIO.table.noHeader"))
         } else {
             headerRecord = spreadsheet[headerRecordNo].cells.map { it.trim() }
 
             // Determine the records which make up the data rows of the table.
-            val rawBodyRecords = spreadsheet.drop(headerRecordNo + 1)
-            bodyRecords =
-                rawBodyRecords.subList(
-                    rawBodyRecords.indexOfFirst(Spreadsheet.Record::isNotEmpty).coerceAtLeast(0), // avoid crash upon -1
-                    rawBodyRecords.indexOfLast(Spreadsheet.Record::isNotEmpty) + 1
-                )
-            numRows = bodyRecords.size
+            val rawBodyRecords = spreadsheet.records.subList(headerRecordNo + 1, spreadsheet.numRecords)
+            val lastBodyRecordNo = headerRecordNo + 1 + rawBodyRecords.indexOfLast(Spreadsheet.Record::isNotEmpty)
+            firstBodyRecordNo = headerRecordNo + 1 + rawBodyRecords.indexOfFirst(Spreadsheet.Record::isNotEmpty)
+                .coerceAtLeast(0) // avoid crash upon -1
+            numRows = (lastBodyRecordNo - firstBodyRecordNo + 1).coerceAtLeast(0)
 
             // 1. Find the index of each expected column name. Emit warnings for legacy and missing columns.
             colMap = HashMap()
@@ -114,17 +114,17 @@ class Table(
         log(row, l10nColName, MIGRATE, l10n("projectIO.table.migration.put", l10nQuoted(value)), mds)
     }
 
-    fun getRecordNo(row: Int): Int = bodyRecords[row].recordNo
+    fun getRecordNo(row: Int): Int = firstBodyRecordNo + Objects.checkIndex(row, numRows)
     fun getColHeader(l10ColName: String): String? = colMap[l10ColName]?.let(headerRecord::get)
 
     fun isEmpty(row: Int, l10nColName: String): Boolean =
-        colMap[l10nColName]?.let { col -> bodyRecords[row].cells.getOrNull(col).isNullOrBlank() } != false
+        colMap[l10nColName]?.let { col -> spreadsheet.getOrNull(getRecordNo(row), col).isNullOrBlank() } != false
 
     fun getString(row: Int, l10nColName: String): String? {
         val col = colMap[l10nColName]
         if (col != null) {
             // If the column is present in the table, try to retrieve its value in this row.
-            val str = bodyRecords[row].cells.getOrNull(col)?.trim()
+            val str = spreadsheet.getOrNull(getRecordNo(row), col)?.trim()
             // If the column is present in this row and the value is non-empty, return it.
             if (!str.isNullOrEmpty())
                 return str
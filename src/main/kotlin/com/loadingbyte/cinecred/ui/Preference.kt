@@ -30,6 +30,7 @@ val WELCOME_HINT_TRACK_PENDING_PREFERENCE: Preference<Boolean> = BooleanPreferen
 val PROJECT_HINT_TRACK_PENDING_PREFERENCE: Preference<Boolean> = BooleanPreference("projectHintTrackPending", true)
 val APPLE_SCRIPT_FILE_CHOOSER: Preference<Boolean> = BooleanPreference("appleScriptFileChooser", false)
 val TAPE_PREVIEW_RESOLUTION: Preference<Int> = IntPreference("tapePreviewResolution", 128)
+val CACHE_BUDGET_PREFERENCE: Preference<DisposableBudget> = DisposableBudgetPreference("cacheBudget")
 val DECK_LINK_ID_PREFERENCE: Preference<String> = StringPreference("deckLinkId", "null")
 val DECK_LINK_MODE_PREFERENCE: Preference<String> = StringPreference("deckLinkMode", "null")
 val DECK_LINK_DEPTH_PREFERENCE: Preference<Int> = IntPreference("deckLinkDepth", 8)
@@ -103,6 +104,36 @@ private class PathListPreference(override val key: String) : AbstractPreference<
 }
 
 
+private class DisposableBudgetPreference(override val key: String) : AbstractPreference<DisposableBudget>() {
+
+    override fun doGet(): DisposableBudget {
+        val toml = PreferencesToml.get(key) as? Map<*, *> ?: return DisposableBudget.DEFAULT
+        val totalPercent = (toml["total"] as? Int ?: DisposableBudget.DEFAULT.totalPercent).coerceIn(1, 90)
+        val categoryPercents = DisposableCategory.entries.mapNotNull { category ->
+            val percent = toml[tomlKey(category)] as? Int ?: return@mapNotNull null
+            Pair(category, percent.coerceIn(1, 100))
+        }.toMap()
+        return DisposableBudget(totalPercent, categoryPercents)
+    }
+
+    override fun doSet(value: DisposableBudget) {
+        val toml = mutableMapOf<String, Any>("total" to value.totalPercent)
+        for ((category, percent) in value.categoryPercents)
+            toml[tomlKey(category)] = percent
+        PreferencesToml.set(key, toml)
+    }
+
+    private fun tomlKey(category: DisposableCategory) = when (category) {
+        DisposableCategory.PAGE_CHUNKS -> "pageChunks"
+        DisposableCategory.TAPE_PREVIEWS -> "tapePreviews"
+        DisposableCategory.PICTURES -> "pictures"
+        DisposableCategory.FONT_CASES -> "fontCases"
+        DisposableCategory.OTHER -> "other"
+    }
+
+}
+
+
 private class LocaleWishPreference(override val key: String) : AbstractPreference<LocaleWish>() {
 
     override fun doGet() = when (val str = PreferencesToml.get(key) as? String) {
@@ -0,0 +1,290 @@
+package com.loadingbyte.cinecred.ui
+
+import com.loadingbyte.cinecred.common.*
+import com.loadingbyte.cinecred.common.Severity.ERROR
+import com.loadingbyte.cinecred.common.Severity.WARN
+import com.loadingbyte.cinecred.drawer.*
+import com.loadingbyte.cinecred.imaging.Font
+import com.loadingbyte.cinecred.imaging.Picture
+import com.loadingbyte.cinecred.imaging.Tape
+import com.loadingbyte.cinecred.project.*
+import com.loadingbyte.cinecred.projectio.*
+import com.loadingbyte.cinecred.ui.comms.CreditsId
+import kotlinx.collections.immutable.PersistentList
+import kotlinx.collections.immutable.toPersistentList
+
+
+class ProcessedProject(
+    val log: List<ParserMsg>,
+    val constraintViolations: List<ConstraintViolation>,
+    /** If auxiliary references or popup styles had to be updated, this is not the same object as the input styling. */
+    val styling: Styling,
+    /** Null if the styling is erroneous. */
+    val drawnProject: DrawnProject?
+)
+
+
+/**
+ * Reads and draws all credits of a project. This function doesn't touch any UI, so it can be used both by the
+ * [ProjectController] and when rendering without a UI. It may take a long time, so don't call it from the UI thread.
+ *
+ * When the same project is processed repeatedly, e.g., after each styling edit, pass the same [pageMemos] and
+ * [verificationMemo] each time. Pages and verification results which are not affected by the changes since the last
+ * call are then reused instead of being drawn or verified anew.
+ */
+fun processProject(
+    creditsWorkbooks: List<ProjectIntake.CreditsWorkbook>,
+    projectFonts: Map<String, Font>,
+    pictureLoaders: Map<String, Picture.Loader>,
+    tapes: Map<String, Tape>,
+    origStyling: Styling,
+    pageMemos: MutableMap<CreditsId, PageMemo>? = null,
+    verificationMemo: VerificationMemo? = null
+): ProcessedProject {
+    var styling: Styling = origStyling
+
+    // Update references to auxiliary files (fonts, pictures, and tapes) in the styling.
+    updateAuxiliaryReferences(
+        styling.letterStyles, LetterStyle::font.st(),
+        FontRef::name, FontRef::font, ::FontRef, ::FontRef,
+        { name -> projectFonts[name] ?: Font.bundled(name) ?: Font.system(name) }
+    )?.let { styling = styling.copy(letterStyles = it) }
+    updateAuxiliaryReferences(
+        styling.pictureStyles, PictureStyle::picture.st(),
+        PictureRef::name, PictureRef::loader, ::PictureRef, ::PictureRef,
+        pictureLoaders::get
+    )?.let { styling = styling.copy(pictureStyles = it) }
+    updateAuxiliaryReferences(
+        styling.tapeStyles, TapeStyle::tape.st(),
+        TapeRef::name, TapeRef::tape, ::TapeRef, ::TapeRef,
+        tapes::get
+    )?.let { styling = styling.copy(tapeStyles = it) }
+
+    // The following verification needs picture and tape metadata. To avoid the verifier sequentially loading
+    // one after the other, we load all of them in parallel in advance.
+    loadMediaInBackground(styling)
+
+    // If the styling is erroneous, abort and notify the caller about the error.
+    val earlyConstraintViolations = verifyConstraints(styling, verificationMemo)
+    if (earlyConstraintViolations.any { it.severity == ERROR }) {
+        val error = ParserMsg(null, null, null, null, null, ERROR, l10n("ui.edit.stylingError"))
+        return ProcessedProject(listOf(error), earlyConstraintViolations, styling, null)
+    }
+
+    // Parse each spreadsheet of each credits workbook. As the spreadsheets are independent of each other, we read them
+    // in parallel, and then merge the results in their original order to keep the outcome deterministic.
+    val readStyling = styling
+    val readResults = creditsWorkbooks
+        .flatMap { creditsWorkbook -> creditsWorkbook.spreadsheets.map { Pair(creditsWorkbook.fileName, it) } }
+        .mapInParallel { (fileName, sheet) -> readCredits(fileName, sheet, readStyling, pictureLoaders, tapes) }
+    var readResultIdx = 0
+    val log = mutableListOf<ParserMsg>()
+    val runtimeGroupSources = HashMap<RuntimeGroup, RuntimeGroupSource>()
+    val creditsBooks = creditsWorkbooks.map { creditsWorkbook ->
+        val credits = mutableListOf<Credits>()  // retains insertion order
+        for (spreadsheet in creditsWorkbook.spreadsheets) {
+            val (curCredits, curLog, curRuntimeGroupSources) = readResults[readResultIdx++]
+            // If there is not a single page, that's an error.
+            if (curCredits.pages.isEmpty()) {
+                log += ParserMsg(
+                    creditsWorkbook.fileName, curCredits.spreadsheetName, null, null, null, ERROR,
+                    l10n("projectIO.credits.noPages")
+                )
+                continue
+            }
+            credits += curCredits
+            log += curLog
+            runtimeGroupSources += curCredits.runtimeGroups.zip(curRuntimeGroupSources)
+        }
+        CreditsBook(creditsWorkbook.fileName, creditsWorkbook.uri, credits.toPersistentList())
+    }
+
+    // The styling may be updated depending on the credits spreadsheet, namely in the following cases:
+    //   - If the sheet refers to a new picture/tape style, automatically add it.
+    //   - If the sheet no longer references an automatically added picture/tape style, remove it.
+    //   - If a page style has legacy settings which were not used to produce a migration message, clear them.
+    //     But only if there is at least one valid credits sequence, to not prematurely clear legacy settings
+    //     while, e.g., waiting for an online service.
+    val usedStyles = findUsedStyles(creditsBooks.flatMap(CreditsBook::credits))
+    addRemovePopupStyles(styling.pictureStyles, usedStyles)?.let { styling = styling.copy(pictureStyles = it) }
+    addRemovePopupStyles(styling.tapeStyles, usedStyles)?.let { styling = styling.copy(tapeStyles = it) }
+    if (creditsBooks.any { creditsBook -> creditsBook.credits.isNotEmpty() })
+        clearLegacyPageStyleSettings(styling.pageStyles, log)?.let { styling = styling.copy(pageStyles = it) }
+
+    // Each picture and tape that's referenced in the credits must be loaded during drawing, e.g. because we
+    // need to know the width and height. However, if we lazily loaded those files only once encountering them,
+    // we'd load them sequentially. This can take a very long time if many such files are used. To avoid this,
+    // we now trigger the loading of all files in parallel background threads.
+    // Even though we already called this method before, we need to call it again because the styling might have
+    // changed, e.g., with newly added popup styles.
+    loadMediaInBackground(styling)
+
+    // Draw pages and video for each credits spreadsheet. Once again, we draw the spreadsheets in parallel, and then
+    // merge the results in their original order. The video is omitted if a page turned out to be excessively large.
+    val drawStyling = styling
+    val drawResults = creditsBooks
+        .flatMap { creditsBook -> creditsBook.credits.map { curCredits -> Pair(creditsBook, curCredits) } }
+        .map { (creditsBook, curCredits) ->
+            // Look up the memos upfront, as the map must not be accessed concurrently.
+            val creditsId = CreditsId(creditsBook.fileName, curCredits.spreadsheetName)
+            Pair(curCredits, pageMemos?.getOrPut(creditsId) { PageMemo() })
+        }
+        .mapInParallel { (curCredits, pageMemo) ->
+            val (drawnPages, crushedRuntimeGroups) =
+                pageMemo?.drawPages(drawStyling, curCredits) ?: drawPages(drawStyling, curCredits)
+            val video = if (drawnPages.any { it.defImage.height.resolve() > 1_000_000.0 }) null else
+                drawVideo(drawStyling, drawnPages)
+            Triple(drawnPages, crushedRuntimeGroups, video)
+        }
+    var drawResultIdx = 0
+    val crushingStyles = HashMap<Style, MutableList<CreditsId>>()
+    val drawnCreditsBooks = creditsBooks.mapNotNull { creditsBook ->
+        val drawnCredits = creditsBook.credits.mapNotNull { curCredits ->
+            val creditsId = CreditsId(creditsBook.fileName, curCredits.spreadsheetName)
+            val (drawnPages, crushedRuntimeGroups, video) = drawResults[drawResultIdx++]
+
+            // For each crushed runtime group:
+            //   - If the group is defined in a sheet, either emit a log message,
+            //   - If the group stems from a style, record it so that we can show a warning in the styling UI.
+            for (crushedRuntimeGroup in crushedRuntimeGroups)
+                when (val source = crushedRuntimeGroup?.let(runtimeGroupSources::get)) {
+                    is RuntimeGroupSource.Style, null ->
+                        crushingStyles.computeIfAbsent(source?.style ?: styling.global) { mutableListOf() } += creditsId
+                    is RuntimeGroupSource.Sheet ->
+                        log += ParserMsg(
+                            creditsBook.fileName, curCredits.spreadsheetName, source.recordNo, source.colHeader,
+                            source.cellValue, WARN, l10n("ui.log.crushedVGaps")
+                        )
+                }
+
+            // Limit each page's height to prevent the program from crashing due to misconfiguration.
+            if (video == null) {
+                log += ParserMsg(
+                    creditsBook.fileName, curCredits.spreadsheetName, null, null, null, ERROR,
+                    l10n("ui.edit.excessivePageSizeError")
+                )
+                return@mapNotNull null
+            }
+
+            // Filter out credits which have 0 runtime to avoid edge cases downstream.
+            if (video.numFrames == 0) {
+                log += ParserMsg(
+                    creditsBook.fileName, curCredits.spreadsheetName, null, null, null, ERROR,
+                    l10n("ui.edit.zeroRuntimeError")
+                )
+                return@mapNotNull null
+            }
+
+            DrawnCredits(curCredits, drawnPages.toPersistentList(), video)
+        }
+        if (drawnCredits.isEmpty()) null else DrawnCreditsBook(creditsBook, drawnCredits.toPersistentList())
+    }
+
+    // Forget the memos of credits sequences which no longer exist.
+    if (pageMemos != null) {
+        val creditsIds = creditsBooks.flatMapTo(HashSet()) { creditsBook ->
+            creditsBook.credits.map { credits -> CreditsId(creditsBook.fileName, credits.spreadsheetName) }
+        }
+        pageMemos.keys.retainAll(creditsIds)
+    }
+
+    // Because the styling might have changed (e.g., with newly added popup styles), rerun the verification.
+    val constraintViolations = verifyConstraints(styling, verificationMemo)
+
+    // For each style that crushes a runtime group, show a warning in the styling UI.
+    for ((style, creditsIds) in crushingStyles) {
+        val sett = if (style is Global) Global::runtimeFrames.st() else PageStyle::scrollRuntimeFrames.st()
+        val sheets = l10nEnumQuoted(creditsIds.map { id -> "${id.fileName} \u2192 ${id.spreadsheetName}" })
+        val msg = l10n("ui.styling.page.crushedVGaps", sheets)
+        constraintViolations += ConstraintViolation(style, style, sett, 0, WARN, msg)
+    }
+
+    val project = Project(styling, creditsBooks.toPersistentList())
+    val drawnProject = DrawnProject(project, drawnCreditsBooks.toPersistentList())
+
+    return ProcessedProject(log, constraintViolations, styling, drawnProject)
+}
+
+
+private inline fun <S : Style, R : Any, A : Any> updateAuxiliaryReferences(
+    styles: List<S>,
+    refSetting: DirectStyleSetting<S, R>,
+    ref2name: (R) -> String,
+    ref2aux: (R) -> A?,
+    name2ref: (String) -> R,
+    aux2ref: (A) -> R,
+    name2aux: (String) -> A?,
+): PersistentList<S>? {
+    var updatedStyles: MutableList<S>? = null
+    for ((idx, style) in styles.withIndex()) {
+        val ref = refSetting.get(style)
+        val newAux = name2aux(ref2name(ref))
+        if (newAux !== ref2aux(ref)) {
+            val updatedRef = if (newAux != null) aux2ref(newAux) else name2ref(ref2name(ref))
+            if (updatedStyles == null)
+                updatedStyles = styles.toMutableList()
+            updatedStyles[idx] = style.copy(refSetting.notarize(updatedRef))
+        }
+    }
+    return updatedStyles?.toPersistentList()
+}
+
+
+private fun loadMediaInBackground(styling: Styling) {
+    for (style in styling.pictureStyles)
+        style.picture.loader?.loadInBackground()
+    for (style in styling.tapeStyles)
+        style.tape.tape?.loadMetadataInBackground()
+}
+
+
+private inline fun <reified S : PopupStyle> addRemovePopupStyles(
+    styles: List<S>, usedStyles: Set<ListedStyle>
+): PersistentList<S>? {
+    var updatedStyles: MutableList<S>? = null
+
+    // Remove automatically added styles that aren't used anymore.
+    for (idx in styles.lastIndex downTo 0) {
+        val style = styles[idx]
+        if (style.volatile && style !in usedStyles) {
+            if (updatedStyles == null)
+                updatedStyles = styles.toMutableList()
+            updatedStyles.removeAt(idx)
+        }
+    }
+
+    // Automatically add styles that have been generated by the credits reader.
+    for (usedStyle in usedStyles)
+        if (usedStyle is S && styles.none { it === usedStyle }) {
+            if (updatedStyles == null)
+                updatedStyles = styles.toMutableList()
+            updatedStyles.add(usedStyle)
+        }
+
+    return updatedStyles?.toPersistentList()
+}
+
+
+private fun clearLegacyPageStyleSettings(
+    styles: List<PageStyle>, log: List<ParserMsg>
+): PersistentList<PageStyle>? {
+    fun <SUBJ : Any> clearSetting(style: PageStyle, setting: DirectStyleSetting<PageStyle, SUBJ>): PageStyle =
+        style.copy(setting.notarize(setting.get(PRESET_PAGE_STYLE)))
+
+    val legacySettings = arrayOf(PageStyle::scrollMeltWithPrev.st(), PageStyle::scrollMeltWithNext.st())
+    val usedLegacySettings = log.mapNotNullTo(HashSet(), ParserMsg::migrationDataSource)
+
+    var clearedStyles: MutableList<PageStyle>? = null
+    for ((idx, style) in styles.withIndex()) {
+        var clearedStyle = style
+        for (st in legacySettings)
+            if (st.get(style) != st.get(PRESET_PAGE_STYLE) && MigrationDataSource(style, st) !in usedLegacySettings)
+                clearedStyle = clearSetting(clearedStyle, st)
+        if (clearedStyle !== style) {
+            if (clearedStyles == null)
+                clearedStyles = styles.toMutableList()
+            clearedStyles[idx] = clearedStyle
+        }
+    }
+    return clearedStyles?.toPersistentList()
+}
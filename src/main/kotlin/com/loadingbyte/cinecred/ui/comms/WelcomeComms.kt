@@ -1,5 +1,6 @@
 package com.loadingbyte.cinecred.ui.comms
 
+import com.loadingbyte.cinecred.common.DisposableBudget
 import com.loadingbyte.cinecred.common.FPS
 import com.loadingbyte.cinecred.common.Resolution
 import com.loadingbyte.cinecred.common.TimecodeFormat
@@ -128,6 +129,7 @@ interface WelcomeViewComms {
     fun preferences_start_setProjectHintTrackPending(pending: Boolean)
     fun preferences_start_setAppleScriptFileChooser(use: Boolean)
     fun preferences_start_setTapePreviewResolution(resolution: Int)
+    fun preferences_start_setCacheBudget(budget: DisposableBudget)
     fun preferences_start_setAccounts(accounts: List<Account>)
     fun preferences_start_setAccountRemovalLocked(account: Account, locked: Boolean)
     fun preferences_start_setWindowLayouts(layouts: List<WindowLayout>, defaultLayout: WindowLayout)
@@ -581,11 +581,14 @@ class PlaybackCtrl : PlaybackCtrlComms {
 
         private val videoBackendLock = ReentrantLock()
         private var videoBackend: DeferredVideo.BitmapBackend?
+        // Playback closes each padded frame shortly after it has been shown, so recycle their buffers.
+        private val paddingPool: Bitmap.Pool
 
         init {
             val content = if (scan == Bitmap.Scan.PROGRESSIVE) Bitmap.Content.PROGRESSIVE_FRAME else
                 Bitmap.Content.INTERLEAVED_FIELDS
             val spec = Bitmap.Spec(video.resolution, representation, scan, content)
+            paddingPool = Bitmap.Pool(maxBytes = POOLED_FRAMES * spec.copy(resolution = resolution).estimatedBytes)
             videoBackend = DeferredVideo.BitmapBackend(
                 video, listOf(STATIC), listOf(TAPES), grounding, spec,
                 cache = materializationCache, randomAccessDraftMode = true,
@@ -601,7 +604,7 @@ class PlaybackCtrl : PlaybackCtrlComms {
             val baseBitmap = videoBackendLock.withLock { videoBackend?.materializeFrame(frameIdx) } ?: return null
             if (baseBitmap.spec.resolution == resolution)
                 return frameConverter(baseBitmap)
-            val paddedBitmap = Bitmap.allocate(baseBitmap.spec.copy(resolution = resolution)).zero()
+            val paddedBitmap = paddingPool.allocate(baseBitmap.spec.copy(resolution = resolution)).zero()
             val (w, h) = resolution
             val (bw, bh) = baseBitmap.spec.resolution
             paddedBitmap.blitLeniently(baseBitmap, 0, 0, bw, bh, (w - bw) / 2, (h - bh) / 2)
@@ -614,6 +617,12 @@ class PlaybackCtrl : PlaybackCtrlComms {
                 videoBackend?.close()
                 videoBackend = null
             }
+            paddingPool.close()
+        }
+
+
+        companion object {
+            private const val POOLED_FRAMES = 4
         }
 
     }
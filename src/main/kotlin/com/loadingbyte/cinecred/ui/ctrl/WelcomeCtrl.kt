@@ -66,6 +66,10 @@ class WelcomeCtrl(private val masterCtrl: MasterCtrlComms) : WelcomeCtrlComms {
         welcomeView.preferences_start_setTapePreviewResolution(resolution)
         Tape.previewResolution = resolution
     }
+    private val cacheBudgetListener = { budget: DisposableBudget ->
+        welcomeView.preferences_start_setCacheBudget(budget)
+        setDisposableBudget(budget)
+    }
     private val accountListListener = {
         SwingUtilities.invokeLater {
             val accounts = SERVICES.flatMap(Service::accounts)
@@ -126,6 +130,7 @@ class WelcomeCtrl(private val masterCtrl: MasterCtrlComms) : WelcomeCtrlComms {
         welcomeView.preferences_start_setProjectHintTrackPending(PROJECT_HINT_TRACK_PENDING_PREFERENCE.get())
         appleScriptFileChooserListener(APPLE_SCRIPT_FILE_CHOOSER.get())
         tapePreviewResolutionListener(TAPE_PREVIEW_RESOLUTION.get())
+        cacheBudgetListener(CACHE_BUDGET_PREFERENCE.get())
         accountListListener()
         windowLayoutsListener(WINDOW_LAYOUTS_PREFERENCE.get())
         overlaysListener(OVERLAYS_PREFERENCE.get())
@@ -319,6 +324,7 @@ class WelcomeCtrl(private val masterCtrl: MasterCtrlComms) : WelcomeCtrlComms {
             PROJECT_HINT_TRACK_PENDING_PREFERENCE.addListener(projectHintTrackPendingListener)
             APPLE_SCRIPT_FILE_CHOOSER.addListener(appleScriptFileChooserListener)
             TAPE_PREVIEW_RESOLUTION.addListener(tapePreviewResolutionListener)
+            CACHE_BUDGET_PREFERENCE.addListener(cacheBudgetListener)
             // If enabled, check for updates and run the welcome hint track.
             tryCheckForUpdates()
             if (WELCOME_HINT_TRACK_PENDING_PREFERENCE.get())
@@ -356,6 +362,7 @@ class WelcomeCtrl(private val masterCtrl: MasterCtrlComms) : WelcomeCtrlComms {
         PROJECT_HINT_TRACK_PENDING_PREFERENCE.removeListener(projectHintTrackPendingListener)
         APPLE_SCRIPT_FILE_CHOOSER.removeListener(appleScriptFileChooserListener)
         TAPE_PREVIEW_RESOLUTION.removeListener(tapePreviewResolutionListener)
+        CACHE_BUDGET_PREFERENCE.removeListener(cacheBudgetListener)
         removeAccountListListener(accountListListener)
         WINDOW_LAYOUTS_PREFERENCE.removeListener(windowLayoutsListener)
         OVERLAYS_PREFERENCE.removeListener(overlaysListener)
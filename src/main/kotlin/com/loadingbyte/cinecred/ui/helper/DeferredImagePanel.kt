@@ -9,7 +9,6 @@ import com.loadingbyte.cinecred.common.scale
 import com.loadingbyte.cinecred.imaging.*
 import com.loadingbyte.cinecred.imaging.Canvas
 import com.loadingbyte.cinecred.imaging.DeferredImage.Layer
-import com.loadingbyte.cinecred.imaging.Y.Companion.toY
 import net.miginfocom.swing.MigLayout
 import java.awt.*
 import java.awt.event.ComponentAdapter
@@ -359,11 +358,9 @@ class DeferredImagePanel(
             val matWidth = max(1, (physicalImageScaling * image.width).roundToInt())
             val matHeight = max(1, (physicalStopY - physicalStartY).roundToInt())
             val materialized = drawToBufferedImage(matWidth, matHeight, grounding, bitmapJ2DBridge) { canvas ->
-                // Paint a scaled version of the deferred image onto the raster image.
-                DeferredImage(matWidth.toDouble(), matHeight.toDouble().toY()).apply {
-                    // If only a portion is materialized, scroll the deferred image to that portion.
-                    drawDeferredImage(image, y = (-physicalStartY).toY(), universeScaling = physicalImageScaling)
-                }.materialize(canvas, highResCache, layers)
+                // Paint a scaled version of the deferred image onto the raster image. If only a portion is
+                // materialized, scroll the deferred image to that portion.
+                image.materialize(canvas, highResCache, layers, -physicalStartY, physicalImageScaling)
             }
             SwingUtilities.invokeLater {
                 if (this.materializedContentVersion > contentVersion)
@@ -423,7 +420,7 @@ class DeferredImagePanel(
             val scaling = matWidth / image.width
             val matHeight = max(1, ceil(scaling * imageHeight).toInt())
             val materialized = drawToBufferedImage(matWidth, matHeight, grounding, bitmapJ2DBridge) { canvas ->
-                image.copy(universeScaling = scaling).materialize(canvas, lowResCache, layers)
+                image.materialize(canvas, lowResCache, layers, universeScaling = scaling)
             }
             SwingUtilities.invokeLater {
                 if (this.lowResMaterializedContentVersion > contentVersion)
@@ -53,11 +53,10 @@ class FontFamilies(fonts: Iterable<Font>) {
 
     init {
         list = object : FontSorter<Font, FontFamily>() {
-            private val fontCaseCache = HashMap<Font, Font.Case>()
-            private val Font.fontCase get() = fontCaseCache.computeIfAbsent(this, Font::case)
-            override val Font.weight get() = fontCase.weight
-            override val Font.width get() = fontCase.width
-            override val Font.italic get() = fontCase.italic
+            // Note: We do not resort to a case here, as that would force system fonts to read their files.
+            override val Font.weight get() = weight
+            override val Font.width get() = width
+            override val Font.italic get() = italic
             override val Font.familyMap get() = familyMap
             override val Font.subfamilyMap get() = subfamilyMap
             override val Font.fullNameMap get() = fullNameMap
@@ -84,7 +84,8 @@ class EditStylingPanel(private val ctrl: ProjectController) :
             pageStyleForm, contentStyleForm, letterStyleForm, transitionStyleForm, pictureStyleForm, tapeStyleForm
         ),
         getCurrentStyling = ::styling,
-        getCurrentStyleInActiveForm = { stylingTree.selected as Style? }
+        getCurrentStyleInActiveForm = { stylingTree.selected as Style? },
+        effectivityMemo = ctrl.effectivityMemo
     )
 
     // Cache the Styling which is currently stored in the tree, so that we don't have to repeatedly regenerate it.
@@ -18,8 +18,9 @@ class StyleFormAdjuster(
     private val getCurrentStyleInActiveForm: () -> Style?,
     // ========== ENCAPSULATION LEAKS ==========
     @Suppress("DEPRECATION")
-    private val styleIdxAndSiblingsOverride: StyleIdxAndSiblingsOverride? = null
+    private val styleIdxAndSiblingsOverride: StyleIdxAndSiblingsOverride? = null,
     // =========================================
+    private val effectivityMemo: EffectivityMemo? = null
 ) {
 
     // ========== ENCAPSULATION LEAKS ==========
@@ -128,7 +129,7 @@ class StyleFormAdjuster(
             siblingStyles = pair.second
         }
 
-        curForm.ineffectiveSettings = findIneffectiveSettings(styling, curStyle)
+        curForm.ineffectiveSettings = findIneffectiveSettings(styling, curStyle, effectivityMemo)
 
         curForm.setSwatchColors(swatchColors)
 
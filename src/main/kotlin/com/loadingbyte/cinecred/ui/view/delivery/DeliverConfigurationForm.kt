@@ -161,6 +161,8 @@ class DeliverConfigurationForm(private val deliveryCtrl: DeliveryCtrlComms) :
                         EXR.Compression.RLE -> l10n("ui.deliverConfig.profile.rle")
                         EXR.Compression.ZIPS -> "ZIPS"
                         EXR.Compression.ZIP -> "ZIP"
+                        EXR.Compression.PIZ -> "PIZ"
+                        EXR.Compression.B44 -> "B44"
                     }
                     is GenericProfile -> l10n("ui.deliverConfig.profile.generic.$prof")
                     is ProResProfile -> when (prof) {
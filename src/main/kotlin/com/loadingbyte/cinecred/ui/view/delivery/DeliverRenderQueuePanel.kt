@@ -4,6 +4,7 @@ import com.formdev.flatlaf.FlatClientProperties.*
 import com.loadingbyte.cinecred.common.l10n
 import com.loadingbyte.cinecred.common.userNotification
 import com.loadingbyte.cinecred.delivery.MAX_RENDER_PROGRESS
+import com.loadingbyte.cinecred.imaging.RenderMetrics
 import com.loadingbyte.cinecred.ui.comms.DeliveryCtrlComms
 import com.loadingbyte.cinecred.ui.comms.DeliveryViewComms
 import com.loadingbyte.cinecred.ui.comms.RenderJobInfo
@@ -11,6 +12,10 @@ import com.loadingbyte.cinecred.ui.comms.RenderJobStatus
 import com.loadingbyte.cinecred.ui.helper.*
 import com.loadingbyte.cinecred.ui.view.delivery.DeliverConfigurationForm.Companion.label
 import java.awt.Dimension
+import java.awt.Toolkit
+import java.awt.datatransfer.StringSelection
+import java.awt.event.MouseAdapter
+import java.awt.event.MouseEvent
 import java.text.DecimalFormat
 import java.time.Duration
 import java.util.*
@@ -66,6 +71,15 @@ class DeliverRenderQueuePanel(deliveryCtrl: DeliveryCtrlComms) : JScrollPane(),
                 getColumn(6).preferredWidth = 230
                 getColumn(7).apply { minWidth = 24; maxWidth = 24 }
             }
+            // Clicking the progress of a job copies its render metrics, so that users can attach them to bug reports.
+            addMouseListener(object : MouseAdapter() {
+                override fun mouseClicked(e: MouseEvent) {
+                    val rowIdx = rowAtPoint(e.point)
+                    if (rowIdx == -1 || columnAtPoint(e.point) != 6) return
+                    val metrics = jobTableModel.rows[rowIdx].info.job.metrics ?: return
+                    Toolkit.getDefaultToolkit().systemClipboard.setContents(StringSelection(metrics.toJSON()), null)
+                }
+            })
         }
 
         setViewportView(jobTable)
@@ -161,7 +175,12 @@ class DeliverRenderQueuePanel(deliveryCtrl: DeliveryCtrlComms) : JScrollPane(),
 
         override fun getTableCellRendererComponent(
             table: JTable, row: Any, isSelected: Boolean, hasFocus: Boolean, rowIdx: Int, colIdx: Int
-        ): JComponent = when (val status = (row as JobTableModel.Row).status) {
+        ): JComponent = getStatusComponent(table, row as JobTableModel.Row, isSelected, hasFocus, rowIdx, colIdx)
+            .apply { toolTipText = row.info.job.metrics?.let(::metricsTooltip) }
+
+        private fun getStatusComponent(
+            table: JTable, row: JobTableModel.Row, isSelected: Boolean, hasFocus: Boolean, rowIdx: Int, colIdx: Int
+        ): JComponent = when (val status = row.status) {
             is RenderJobStatus.Queued -> progressBar.apply {
                 model.value = 0
                 putClientProperty(STYLE, null)  // Unset explicit foreground color.
@@ -202,6 +221,28 @@ class DeliverRenderQueuePanel(deliveryCtrl: DeliveryCtrlComms) : JScrollPane(),
             ).apply { putClientProperty(STYLE, "foreground: $PALETTE_RED") }
         }
 
+        private fun metricsTooltip(metrics: RenderMetrics): String? {
+            val stageStats = metrics.stageStats()
+            if (stageStats.isEmpty())
+                return null
+            return buildString {
+                append("<html>")
+                for (s in stageStats) {
+                    val median = "%.2f".format(s.p50Nanos / 1e6)
+                    val p99 = "%.2f".format(s.p99Nanos / 1e6)
+                    val total = "%.1f".format(s.totalNanos / 1e9)
+                    append(l10n("ui.deliverRenderQueue.metrics.stage", s.stage.name, s.count, median, p99, total))
+                    append("<br>")
+                }
+                for (q in metrics.queueStats()) {
+                    val mean = "%.1f".format(q.meanOccupancy)
+                    append(l10n("ui.deliverRenderQueue.metrics.queue", q.queue, mean, q.maxOccupancy, q.capacity))
+                    append("<br>")
+                }
+                append("<br>").append(l10n("ui.deliverRenderQueue.metrics.copy")).append("</html>")
+            }
+        }
+
     }
 
 
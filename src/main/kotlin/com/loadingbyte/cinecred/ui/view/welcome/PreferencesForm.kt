@@ -5,6 +5,7 @@ import com.loadingbyte.cinecred.common.*
 import com.loadingbyte.cinecred.ui.*
 import com.loadingbyte.cinecred.ui.comms.WelcomeCtrlComms
 import com.loadingbyte.cinecred.ui.helper.*
+import java.text.DecimalFormat
 import java.util.*
 
 
@@ -60,6 +61,28 @@ class PreferencesForm(private val welcomeCtrl: WelcomeCtrlComms) :
         description = l10n("ui.preferences.tapePreviewResolution.desc")
     )
 
+    private val cacheBudgetWidget = addWidget(
+        l10n("ui.preferences.cacheBudget"),
+        ScrubberWidget(
+            Scrubber.NumericScheme(Int::class.javaObjectType, unit = "%"), Scrubber.NumberLimiter(1, 90),
+            sensitivity = 1.0, widthSpec = WidthSpec.LITTLE
+        ),
+        description = l10n(
+            "ui.preferences.cacheBudget.desc", DecimalFormat("0.0 GiB").format(TOTAL_SYSTEM_MEMORY / 1073741824.0)
+        )
+    )
+
+    // The remaining category holds a mixed bag of small values, so it's not worth capping it separately.
+    private val cacheCategoryBudgetWidgets = (DisposableCategory.entries - DisposableCategory.OTHER).associateWith {
+        addWidget(
+            l10n("ui.preferences.cacheBudget.category", l10n("ui.preferences.cacheCategory.${it.name}")),
+            ScrubberWidget(
+                Scrubber.NumericScheme(Int::class.javaObjectType, unit = "%"), Scrubber.NumberLimiter(1, 100),
+                sensitivity = 1.0, widthSpec = WidthSpec.LITTLE
+            )
+        )
+    }
+
     private var disableOnChange = false
 
     private fun <V : Any> load(widget: Widget<V>, value: V) {
@@ -91,6 +114,12 @@ class PreferencesForm(private val welcomeCtrl: WelcomeCtrlComms) :
                 forward(APPLE_SCRIPT_FILE_CHOOSER, appleScriptFileChooserWidget.value)
             tapePreviewResolutionWidget ->
                 forward(TAPE_PREVIEW_RESOLUTION, tapePreviewResolutionWidget.value)
+            cacheBudgetWidget, in cacheCategoryBudgetWidgets.values -> {
+                // Don't persist caps which let a category use up the whole budget anyway.
+                val categoryPercents = cacheCategoryBudgetWidgets
+                    .mapValues { (_, widget) -> widget.value }.filterValues { percent -> percent < 100 }
+                forward(CACHE_BUDGET_PREFERENCE, DisposableBudget(cacheBudgetWidget.value, categoryPercents))
+            }
             else -> throw IllegalStateException("Unknown widget, should never happen.")
         }
         super.onChange(widget)
@@ -117,4 +146,10 @@ class PreferencesForm(private val welcomeCtrl: WelcomeCtrlComms) :
 
     fun preferences_start_setTapePreviewResolution(resolution: Int) = load(tapePreviewResolutionWidget, resolution)
 
+    fun preferences_start_setCacheBudget(budget: DisposableBudget) {
+        load(cacheBudgetWidget, budget.totalPercent)
+        for ((category, widget) in cacheCategoryBudgetWidgets)
+            load(widget, budget.categoryPercents[category] ?: 100)
+    }
+
 }
@@ -4,7 +4,10 @@ import com.formdev.flatlaf.FlatClientProperties.STYLE
 import com.formdev.flatlaf.FlatClientProperties.STYLE_CLASS
 import com.formdev.flatlaf.icons.FlatAbstractIcon
 import com.formdev.flatlaf.ui.FlatRoundBorder
+import com.loadingbyte.cinecred.common.DisposableStats
 import com.loadingbyte.cinecred.common.Severity
+import com.loadingbyte.cinecred.common.disposableStatsToJSON
+import com.loadingbyte.cinecred.common.getDisposableStats
 import com.loadingbyte.cinecred.common.l10n
 import com.loadingbyte.cinecred.imaging.Color4f
 import com.loadingbyte.cinecred.project.Opt
@@ -17,9 +20,12 @@ import com.loadingbyte.cinecred.ui.comms.WelcomeCtrlComms
 import com.loadingbyte.cinecred.ui.helper.*
 import net.miginfocom.swing.MigLayout
 import java.awt.*
+import java.awt.datatransfer.StringSelection
 import java.nio.file.Path
+import java.text.DecimalFormat
 import java.util.*
 import javax.swing.*
+import javax.swing.table.AbstractTableModel
 import kotlin.io.path.Path
 import kotlin.jvm.optionals.getOrNull
 
@@ -116,6 +122,8 @@ class PreferencesPanel(private val welcomeCtrl: WelcomeCtrlComms) : JPanel() {
             add(JSeparator(), "growx, pushx, gapy unrel unrel")
             add(startAddDeliveryDestTemplButton)
             add(startDeliveryDestTemplatesPanel, "growx, pushx, gaptop rel")
+            add(JSeparator(), "growx, pushx, gapy unrel unrel")
+            add(CacheStatsPanel(), "growx, pushx")
         }
         val startWidgetsPanel = JPanel(MigLayout("insets 0 0 0 10, wrap, gapy 0")).apply {
             background = null
@@ -619,4 +627,84 @@ class PreferencesPanel(private val welcomeCtrl: WelcomeCtrlComms) : JPanel() {
 
     }
 
+
+
+    /** Shows live statistics of the caches, which are refreshed for as long as the panel is on screen. */
+    private class CacheStatsPanel : JPanel(MigLayout("insets 0, wrap")) {
+
+        private val tableModel = CacheStatsTableModel()
+        private val refreshTimer = javax.swing.Timer(1000) { tableModel.setStats(getDisposableStats()) }
+
+        init {
+            background = null
+            val table = JTable(tableModel).apply {
+                rowSelectionAllowed = false
+                isFocusable = false
+                tableHeader.reorderingAllowed = false
+            }
+            // Exporting the statistics lets users attach them to bug reports about memory usage.
+            val copyButton = JButton(l10n("ui.preferences.cacheStats.copy"), DUPLICATE_ICON).apply {
+                addActionListener {
+                    val json = disposableStatsToJSON(getDisposableStats())
+                    Toolkit.getDefaultToolkit().systemClipboard.setContents(StringSelection(json), null)
+                }
+            }
+            add(JLabel(l10n("ui.preferences.cacheStats")))
+            add(table.tableHeader, "growx, pushx, gaptop rel")
+            add(table, "growx, pushx")
+            add(copyButton, "gaptop rel")
+        }
+
+        override fun addNotify() {
+            super.addNotify()
+            tableModel.setStats(getDisposableStats())
+            refreshTimer.start()
+        }
+
+        override fun removeNotify() {
+            refreshTimer.stop()
+            super.removeNotify()
+        }
+
+    }
+
+
+    private class CacheStatsTableModel : AbstractTableModel() {
+
+        private var stats = emptyList<DisposableStats>()
+
+        fun setStats(stats: List<DisposableStats>) {
+            this.stats = stats
+            fireTableDataChanged()
+        }
+
+        override fun getRowCount() = stats.size
+        override fun getColumnCount() = 5
+
+        override fun getColumnName(colIdx: Int): String = when (colIdx) {
+            0 -> l10n("ui.preferences.cacheStats.category")
+            1 -> l10n("ui.preferences.cacheStats.entries")
+            2 -> l10n("ui.preferences.cacheStats.memory")
+            3 -> l10n("ui.preferences.cacheStats.hitRate")
+            4 -> l10n("ui.preferences.cacheStats.evictions")
+            else -> throw IllegalArgumentException()
+        }
+
+        private val mibFmt = DecimalFormat("0.0")
+        private val pctFmt = DecimalFormat("0.0 %")
+
+        override fun getValueAt(rowIdx: Int, colIdx: Int): Any {
+            val s = stats[rowIdx]
+            return when (colIdx) {
+                0 -> l10n("ui.preferences.cacheCategory.${s.category.name}")
+                1 -> s.entries
+                2 -> "${mibFmt.format(s.usedBytes / 1048576.0)} / ${mibFmt.format(s.maxBytes / 1048576.0)} MiB"
+                3 -> if (s.hits + s.misses == 0L) "\u2013" else pctFmt.format(s.hits / (s.hits + s.misses).toDouble())
+                4 -> "${s.evictions} (${mibFmt.format(s.evictedBytes / 1048576.0)} MiB)"
+                else -> throw IllegalArgumentException()
+            }
+        }
+
+    }
+
 }
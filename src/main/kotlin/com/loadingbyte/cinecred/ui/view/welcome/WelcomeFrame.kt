@@ -1,5 +1,6 @@
 package com.loadingbyte.cinecred.ui.view.welcome
 
+import com.loadingbyte.cinecred.common.DisposableBudget
 import com.loadingbyte.cinecred.common.VERSION
 import com.loadingbyte.cinecred.common.l10n
 import com.loadingbyte.cinecred.common.l10nQuoted
@@ -93,6 +94,8 @@ class WelcomeFrame(private val welcomeCtrl: WelcomeCtrlComms) : CcFrame(l10n("ui
         panel.preferencesPanel.startPreferencesForm.preferences_start_setAppleScriptFileChooser(use)
     override fun preferences_start_setTapePreviewResolution(resolution: Int) =
         panel.preferencesPanel.startPreferencesForm.preferences_start_setTapePreviewResolution(resolution)
+    override fun preferences_start_setCacheBudget(budget: DisposableBudget) =
+        panel.preferencesPanel.startPreferencesForm.preferences_start_setCacheBudget(budget)
     override fun preferences_start_setAccounts(accounts: List<Account>) =
         panel.preferencesPanel.preferences_start_setAccounts(accounts)
     override fun preferences_start_setAccountRemovalLocked(account: Account, locked: Boolean) =
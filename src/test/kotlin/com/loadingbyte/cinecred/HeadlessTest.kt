@@ -0,0 +1,243 @@
+package com.loadingbyte.cinecred
+
+import com.loadingbyte.cinecred.common.FPS
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.common.TimecodeFormat
+import com.loadingbyte.cinecred.imaging.Bitmap
+import com.loadingbyte.cinecred.imaging.BitmapWriter
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.SRGB
+import com.loadingbyte.cinecred.projectio.CsvFormat
+import com.loadingbyte.cinecred.projectio.Template
+import com.loadingbyte.cinecred.projectio.tryCopyTemplate
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.nio.file.Path
+import java.util.*
+import kotlin.io.path.*
+
+
+internal class HeadlessTest {
+
+    @Test
+    fun `parse single job from options`() {
+        val invocation = parseInvocation(
+            arrayOf(
+                "proj",
+                "--format", "ProRes", "--output", "out/credits.mov", "--pages", "2-3", "--resolution", "1280x720",
+                "--set", "fps-scaling=2", "--set", " transparency = matte ", "--credits-timeout", "30"
+            )
+        )
+        assertEquals(Path("proj").absolute(), invocation.projectDir)
+        assertEquals(30L, invocation.creditsTimeoutSeconds)
+        val spec = invocation.jobSpecs.single()
+        assertEquals("VIDEO", spec.category)
+        assertEquals("ProRes", spec.format)
+        assertEquals(Path("out/credits.mov").absolute().normalize(), spec.output)
+        assertEquals(1..2, spec.pages)
+        assertEquals(Resolution(1280, 720), spec.resolution)
+        assertEquals(mapOf("fps-scaling" to "2", "transparency" to "matte"), spec.properties)
+        assertNull(spec.credits)
+        assertNull(spec.spreadsheet)
+        assertNull(spec.pattern)
+    }
+
+    @Test
+    fun `wait for credits indefinitely by default`() {
+        val invocation = parseInvocation(arrayOf("proj", "--format", "PNG", "--output", "out"))
+        assertNull(invocation.creditsTimeoutSeconds)
+    }
+
+    @Test
+    fun `parse options into map`() {
+        val opts = parseOptions(arrayOf("proj", "--format", "PNG", "--set", "depth=16"))
+        assertEquals(mapOf("" to "proj", "format" to "PNG", "set:depth" to "16"), opts)
+    }
+
+    @Test
+    fun `reject malformed options`() {
+        for (args in listOf(
+            emptyArray<String>(),
+            arrayOf("--format", "PNG", "--output", "out"),
+            arrayOf("proj", "other", "--format", "PNG", "--output", "out"),
+            arrayOf("proj", "--format"),
+            arrayOf("proj", "--format", "PNG", "--set", "=16", "--output", "out"),
+            arrayOf("proj", "--output", "out"),
+            arrayOf("proj", "--format", "PNG"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--unknown", "x"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--pages", "a-b"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--pages", "1-2-3"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--resolution", "0x720"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--resolution", "1280"),
+            arrayOf("proj", "--format", "PNG", "--output", "out", "--credits-timeout", "0"),
+            arrayOf("proj", "--jobs", "jobs.toml", "--format", "PNG")
+        ))
+            assertThrows<UsageException>(args.joinToString(" ")) { parseInvocation(args) }
+    }
+
+    @Test
+    fun `parse jobs file`() {
+        val dir = createTempDirectory()
+        try {
+            val jobsFile = dir.resolve("jobs.toml")
+            jobsFile.writeText(
+                """
+                [[job]]
+                format = "ProRes"
+                output = "out/credits.mov"
+                credits = "Credits.csv"
+                spreadsheet = "Main"
+                pages = "2"
+
+                [job.set]
+                fps-scaling = 2
+                transparency = "matte"
+
+                [[job]]
+                category = "whole_page"
+                format = "PNG"
+                output = "pages"
+                pattern = "page-##.png"
+                """.trimIndent()
+            )
+            val invocation = parseInvocation(arrayOf("proj", "--jobs", jobsFile.toString(), "--credits-timeout", "5"))
+            assertEquals(5L, invocation.creditsTimeoutSeconds)
+            val (video, pages) = invocation.jobSpecs
+            assertEquals("VIDEO", video.category)
+            assertEquals(dir.resolve("out/credits.mov").absolute(), video.output)
+            assertEquals("Credits.csv", video.credits)
+            assertEquals("Main", video.spreadsheet)
+            assertEquals(1..1, video.pages)
+            assertEquals(mapOf("fps-scaling" to "2", "transparency" to "matte"), video.properties)
+            assertEquals("whole_page", pages.category)
+            assertEquals(dir.resolve("pages").absolute(), pages.output)
+            assertEquals("page-##.png", pages.pattern)
+            assertEquals(emptyMap<String, String>(), pages.properties)
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    @Test
+    fun `reject malformed jobs files`() {
+        val dir = createTempDirectory()
+        try {
+            val jobsFile = dir.resolve("jobs.toml")
+            for (text in listOf(
+                "",
+                "job = 1",
+                "[[job]]\noutput = \"out\"",
+                "[[job]]\nformat = \"PNG\"\noutput = \"out\"\nunknown = 1",
+                "[[job]]\nformat = \"PNG\"\noutput = \"out\"\nset = 1",
+                "[[job]\nformat = "
+            )) {
+                jobsFile.writeText(text)
+                assertThrows<UsageException>(text) { parseInvocation(arrayOf("proj", "--jobs", jobsFile.toString())) }
+            }
+            // A jobs file that doesn't exist is a usage error as well.
+            assertThrows<UsageException> {
+                parseInvocation(arrayOf("proj", "--jobs", dir.resolve("missing.toml").toString()))
+            }
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    @Test
+    fun `exit with usage code on bad arguments`() {
+        assertEquals(EXIT_USAGE, mainHeadless(arrayOf("proj", "--format")))
+        val dir = createTempDirectory()
+        try {
+            // The dir is not a project dir, as it doesn't contain a styling file.
+            assertEquals(EXIT_USAGE, mainHeadless(arrayOf(dir.toString(), "--format", "PNG", "--output", "out")))
+        } finally {
+            dir.deleteIfExists()
+        }
+    }
+
+    @Test
+    fun `exit with erroneous project code when the credits have no pages`() {
+        withProject(sample = false) { projectDir ->
+            val out = projectDir.resolve("out")
+            assertEquals(
+                EXIT_PROJECT_ERRONEOUS,
+                mainHeadless(arrayOf(projectDir.toString(), "--format", "PNG", "--output", out.toString(), *TIMEOUT))
+            )
+        }
+    }
+
+    @Test
+    fun `exit with job failed code when a job is invalid`() {
+        withProject(sample = true) { projectDir ->
+            val out = projectDir.resolve("out")
+            assertEquals(
+                EXIT_JOB_FAILED,
+                mainHeadless(arrayOf(projectDir.toString(), "--format", "NoSuchFormat", "--output", "$out", *TIMEOUT))
+            )
+            assertFalse(out.exists())
+        }
+    }
+
+    @Test
+    fun `render project with picture and tape`() {
+        withProject(sample = true) { projectDir ->
+            // Add an image sequence tape to the project.
+            setupNatives()
+            val tapeDir = projectDir.resolve("Blooper").createDirectories()
+            val bitmapWriter = BitmapWriter.PNG(Bitmap.PixelFormat.Family.RGB, hasAlpha = false, SRGB)
+            Bitmap.allocate(Bitmap.Spec(Resolution(64, 36), bitmapWriter.representation)).use { bitmap ->
+                bitmap.zero()
+                for (frameIdx in 0..<3)
+                    bitmapWriter.write(bitmap, tapeDir.resolve("$frameIdx.png"))
+            }
+            // Put a picture and the tape onto the first page, right below the director.
+            val creditsFile = projectDir.resolve("${projectDir.name}.csv")
+            val lines = creditsFile.readLines().toMutableList()
+            val directorIdx = lines.indexOfFirst { "Dirc Director" in it }
+            lines.addAll(directorIdx + 1, listOf(",{{Pic Cinecred H}},,,,,,,,", ",{{Video Blooper}},,,,,,,,"))
+            creditsFile.writeLines(lines)
+
+            // Render both the page and a video, which both need to access the picture and the tape, and hence require
+            // that the project's auxiliary files are still open when the jobs run.
+            val out = projectDir.resolve("out")
+            val jobsFile = projectDir.resolve("jobs.toml")
+            jobsFile.writeText(
+                """
+                [[job]]
+                category = "whole_page"
+                format = "PNG"
+                output = "out/pages"
+                pages = "1"
+
+                [[job]]
+                format = "PNG"
+                output = "out/video"
+                pages = "1"
+                resolution = "320x180"
+                """.trimIndent()
+            )
+            assertEquals(0, mainHeadless(arrayOf(projectDir.toString(), "--jobs", jobsFile.toString(), *TIMEOUT)))
+            assertTrue(out.resolve("pages").listDirectoryEntries("*.png").isNotEmpty())
+            assertTrue(out.resolve("video").listDirectoryEntries("*.png").isNotEmpty())
+        }
+    }
+
+    private fun withProject(sample: Boolean, action: (Path) -> Unit) {
+        val projectDir = createTempDirectory()
+        try {
+            val template = Template(
+                Locale.ENGLISH, Resolution(1280, 720), FPS(24, 1), TimecodeFormat.SMPTE_NON_DROP_FRAME, sample
+            )
+            tryCopyTemplate(projectDir, template, CsvFormat)
+            action(projectDir)
+        } finally {
+            projectDir.toFile().deleteRecursively()
+        }
+    }
+
+    companion object {
+        // Local credits never take long to load, so fail the test instead of hanging if something goes wrong.
+        private val TIMEOUT = arrayOf("--credits-timeout", "60")
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.loadingbyte.cinecred.common
+
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+
+internal class DisposableTrackerTest {
+
+    // The tracker's budget when it's set to 1%. Notice that the sizes of the values below are only declared, so the
+    // test doesn't actually occupy that much memory.
+    private val maxBytes = TOTAL_SYSTEM_MEMORY / 100
+
+    @BeforeEach
+    fun setup() {
+        // Drop all values left behind by other tests.
+        setDisposableBudget(DisposableBudget(0))
+        setDisposableBudget(DisposableBudget(1))
+    }
+
+    @AfterAll
+    fun teardown() {
+        setDisposableBudget(DisposableBudget.DEFAULT)
+    }
+
+    @Test
+    fun `hot value larger than the window survives in a full cache`() {
+        // Fill the entire budget with small values that are used a couple of times each.
+        val small = List(40) { DisposableReference(Any(), maxBytes / 40) }
+        repeat(3) { for (ref in small) ref.peek() }
+        // Add a value that is larger than the window, which is a tenth of the budget, and use it on every frame while
+        // other values come and go, like a page chunk during playback.
+        val large = DisposableReference(Any(), maxBytes / 4)
+        val churn = mutableListOf<DisposableReference<Any>>()
+        repeat(100) {
+            assertNotNull(large.peek())
+            churn += DisposableReference(Any(), maxBytes / 40)
+        }
+        assertNotNull(large.peek())
+        (small + churn + large).forEach(DisposableReference<*>::close)
+    }
+
+    @Test
+    fun `category over its cap gives up its least recently used values`() {
+        setDisposableBudget(DisposableBudget(1, mapOf(DisposableCategory.PAGE_CHUNKS to 50)))
+        val others = List(4) { DisposableReference(Any(), maxBytes / 10, DisposableCategory.OTHER) }
+        val chunks = List(5) { DisposableReference(Any(), maxBytes / 10, DisposableCategory.PAGE_CHUNKS) }
+        // Use the oldest chunk again, so that the second-oldest one becomes the least recently used.
+        assertNotNull(chunks[0].peek())
+        val extra = DisposableReference(Any(), maxBytes / 10, DisposableCategory.PAGE_CHUNKS)
+        assertNull(chunks[1].peek())
+        for (ref in listOf(chunks[0], chunks[2], chunks[3], chunks[4], extra) + others)
+            assertNotNull(ref.peek())
+        (others + chunks + extra).forEach(DisposableReference<*>::close)
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.loadingbyte.cinecred.common
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.awt.geom.AffineTransform
+import java.awt.geom.Rectangle2D
+
+
+internal class FingerprinterTest {
+
+    @Test
+    fun `equal inputs yield equal fingerprints`() {
+        fun fingerprint() = Fingerprinter()
+            .putInt(7).putLong(-3L).putBoolean(true).putDouble(1.5).putFloat(2.5f).putString("cinecred")
+            .putBytes(ByteArray(13) { it.toByte() }).putTransform(AffineTransform.getRotateInstance(0.3))
+            .putShape(Rectangle2D.Double(1.0, 2.0, 3.0, 4.0))
+            .finish()
+        assertEquals(fingerprint(), fingerprint())
+    }
+
+    @Test
+    fun `fingerprints are stable across runs`() {
+        // Fingerprints are persisted in manifests, so they must never change between program versions by accident.
+        assertEquals(-984022953546031927L, Fingerprinter().putInt(42).putString("abc").finish())
+    }
+
+    @Test
+    fun `different inputs yield different fingerprints`() {
+        val fingerprints = listOf(
+            Fingerprinter().finish(),
+            Fingerprinter().putInt(0).finish(),
+            Fingerprinter().putInt(1).finish(),
+            Fingerprinter().putInt(0).putInt(1).finish(),
+            Fingerprinter().putInt(1).putInt(0).finish(),
+            Fingerprinter().putString("ab").putString("c").finish(),
+            Fingerprinter().putString("a").putString("bc").finish(),
+            Fingerprinter().putBytes(ByteArray(8)).finish(),
+            Fingerprinter().putBytes(ByteArray(9)).finish(),
+            Fingerprinter().putDouble(0.0).finish(),
+            Fingerprinter().putDouble(-0.0).finish()
+        )
+        assertEquals(fingerprints.size, fingerprints.toSet().size)
+        assertFalse(Fingerprinter.UNKNOWN in fingerprints)
+    }
+
+    @Test
+    fun `stream and bytes yield the same fingerprint`() {
+        val bytes = ByteArray(1000) { (it * 31).toByte() }
+        assertEquals(Fingerprinter().putBytes(bytes).finish(), Fingerprinter().putStream(bytes.inputStream()).finish())
+    }
+
+    @Test
+    fun `unknown input makes the fingerprint unknown`() {
+        assertEquals(Fingerprinter.UNKNOWN, Fingerprinter().putInt(1).putUnknown().putInt(2).finish())
+    }
+
+    @Test
+    fun `unknown nested fingerprint propagates`() {
+        val known = Fingerprinter().putInt(1).finish()
+        assertNotEquals(Fingerprinter.UNKNOWN, Fingerprinter().putFingerprint(known).finish())
+        val unknown = Fingerprinter().putUnknown().finish()
+        val outer = Fingerprinter().putFingerprint(known).putFingerprint(unknown).finish()
+        assertEquals(Fingerprinter.UNKNOWN, outer)
+        assertEquals(Fingerprinter.UNKNOWN, Fingerprinter().putFingerprint(outer).putInt(3).finish())
+    }
+
+    @Test
+    fun `unknown fingerprints never match`() {
+        val known = Fingerprinter().putInt(1).finish()
+        assertTrue(Fingerprinter.matches(known, known))
+        assertFalse(Fingerprinter.matches(known, Fingerprinter().putInt(2).finish()))
+        assertFalse(Fingerprinter.matches(Fingerprinter.UNKNOWN, Fingerprinter.UNKNOWN))
+        assertFalse(Fingerprinter.matches(Fingerprinter.UNKNOWN, known))
+        assertFalse(Fingerprinter.matches(known, Fingerprinter.UNKNOWN))
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.loadingbyte.cinecred.delivery
+
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.delivery.VideoContainerRenderJob.FrameReorderBuffer
+import com.loadingbyte.cinecred.imaging.Bitmap
+import com.loadingbyte.cinecred.imaging.Bitmap.Alpha.STRAIGHT
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.SRGB
+import com.loadingbyte.cinecred.setupNatives
+import org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGBA
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+
+internal class FrameReorderBufferTest {
+
+    @BeforeAll
+    fun setup() {
+        setupNatives()
+    }
+
+    private fun allocate() = Bitmap.allocate(
+        Bitmap.Spec(Resolution(2, 2), Bitmap.Representation(Bitmap.PixelFormat.of(AV_PIX_FMT_RGBA), SRGB, STRAIGHT))
+    )
+
+    private val Bitmap.isClosed get() = ifNotClosed { Unit } == null
+
+    @Test
+    fun `takes frames in order regardless of put order`() {
+        val buffer = FrameReorderBuffer(4)
+        val bitmaps = List(4) { allocate() }
+        for (frameIdx in intArrayOf(2, 0, 3, 1))
+            buffer.put(frameIdx, bitmaps[frameIdx])
+        assertEquals(4, buffer.occupancy)
+        for (frameIdx in 0..<4)
+            assertSame(bitmaps[frameIdx], buffer.take())
+        assertEquals(0, buffer.occupancy)
+        bitmaps.forEach(Bitmap::close)
+        buffer.close()
+    }
+
+    @Test
+    fun `skip advances past frames that are never put`() {
+        val buffer = FrameReorderBuffer(2)
+        val bitmap0 = allocate()
+        val bitmap3 = allocate()
+        buffer.put(0, bitmap0)
+        assertSame(bitmap0, buffer.take())
+        buffer.skip()
+        buffer.skip()
+        // Frame 3 only fits into the buffer because the skips have moved the window forward.
+        buffer.put(3, bitmap3)
+        assertSame(bitmap3, buffer.take())
+        bitmap0.close()
+        bitmap3.close()
+        buffer.close()
+    }
+
+    @Test
+    fun `put blocks until the frame lies within capacity`() {
+        val buffer = FrameReorderBuffer(2)
+        val bitmaps = List(3) { allocate() }
+        buffer.put(0, bitmaps[0])
+        buffer.put(1, bitmaps[1])
+        val putDone = CountDownLatch(1)
+        val producer = Thread {
+            buffer.put(2, bitmaps[2])
+            putDone.countDown()
+        }
+        producer.start()
+        assertFalse(putDone.await(100, TimeUnit.MILLISECONDS))
+        assertSame(bitmaps[0], buffer.take())
+        assertTrue(putDone.await(10, TimeUnit.SECONDS))
+        producer.join()
+        assertSame(bitmaps[1], buffer.take())
+        assertSame(bitmaps[2], buffer.take())
+        bitmaps.forEach(Bitmap::close)
+        buffer.close()
+    }
+
+    @Test
+    fun `close closes held frames and frames put afterward`() {
+        val buffer = FrameReorderBuffer(4)
+        val held = allocate()
+        buffer.put(1, held)
+        buffer.close()
+        assertTrue(held.isClosed)
+        assertEquals(0, buffer.occupancy)
+        val late = allocate()
+        buffer.put(0, late)
+        assertTrue(late.isClosed)
+    }
+
+    @Test
+    fun `close releases a blocked put and closes its frame`() {
+        val buffer = FrameReorderBuffer(1)
+        val first = allocate()
+        val blocked = allocate()
+        buffer.put(0, first)
+        val producer = Thread { buffer.put(1, blocked) }
+        producer.start()
+        buffer.close()
+        producer.join(10_000L)
+        assertFalse(producer.isAlive)
+        assertTrue(first.isClosed)
+        assertTrue(blocked.isClosed)
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.loadingbyte.cinecred.delivery
+
+import com.loadingbyte.cinecred.common.Fingerprinter
+import com.loadingbyte.cinecred.delivery.ImageSequenceRenderJob.Companion.readManifest
+import com.loadingbyte.cinecred.delivery.ImageSequenceRenderJob.Companion.writeManifest
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+import java.nio.file.Path
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.readBytes
+import kotlin.io.path.writeBytes
+
+
+internal class ImageSequenceManifestTest {
+
+    @Test
+    fun `manifest round-trips fingerprints`() {
+        withManifestFile { file ->
+            val fingerprints = longArrayOf(
+                Fingerprinter().putInt(1).finish(), Fingerprinter.UNKNOWN, Long.MIN_VALUE, Long.MAX_VALUE, -1L
+            )
+            writeManifest(file, fingerprints)
+            val read = readManifest(file)
+            assertArrayEquals(fingerprints, read)
+            // Even after the round trip, an unknown fingerprint must never match, so that its frame is re-rendered.
+            assertFalse(Fingerprinter.matches(fingerprints[1], read!![1]))
+            assertTrue(Fingerprinter.matches(fingerprints[0], read[0]))
+        }
+    }
+
+    @Test
+    fun `empty manifest round-trips`() {
+        withManifestFile { file ->
+            writeManifest(file, LongArray(0))
+            assertArrayEquals(LongArray(0), readManifest(file))
+        }
+    }
+
+    @Test
+    fun `missing manifest is null`() {
+        withManifestFile { file -> assertNull(readManifest(file)) }
+    }
+
+    @Test
+    fun `foreign file is not a manifest`() {
+        withManifestFile { file ->
+            file.writeBytes(ByteArray(64) { 7 })
+            assertNull(readManifest(file))
+        }
+    }
+
+    @Test
+    fun `truncated manifest throws`() {
+        withManifestFile { file ->
+            writeManifest(file, longArrayOf(1L, 2L, 3L))
+            file.writeBytes(file.readBytes().copyOf(8 + 2 * 8 + 3))
+            assertThrows<IOException> { readManifest(file) }
+        }
+    }
+
+    private fun withManifestFile(action: (Path) -> Unit) {
+        val dir = createTempDirectory()
+        try {
+            action(dir.resolve("manifest"))
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+}
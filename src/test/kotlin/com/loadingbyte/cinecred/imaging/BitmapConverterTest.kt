@@ -0,0 +1,86 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.common.ceilDiv
+import com.loadingbyte.cinecred.imaging.Bitmap.Content.INTERLEAVED_FIELDS
+import com.loadingbyte.cinecred.imaging.Bitmap.Content.PROGRESSIVE_FRAME
+import com.loadingbyte.cinecred.imaging.Bitmap.Scan.INTERLACED_TOP_FIELD_FIRST
+import com.loadingbyte.cinecred.imaging.Bitmap.Scan.PROGRESSIVE
+import com.loadingbyte.cinecred.imaging.Bitmap.YUVCoefficients.Companion.BT709_NCL
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.BT709
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.SRGB
+import com.loadingbyte.cinecred.setupNatives
+import org.bytedeco.ffmpeg.global.avutil.*
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.Arguments.arguments
+import org.junit.jupiter.params.provider.MethodSource
+import java.lang.foreign.ValueLayout.JAVA_BYTE
+import java.util.*
+
+
+internal class BitmapConverterTest {
+
+    @BeforeAll
+    fun setup() {
+        setupNatives()
+    }
+
+    @ParameterizedTest
+    @MethodSource("cases")
+    fun `parallel conversion matches sequential conversion`(
+        dstPixFmtCode: Int, srcRes: Resolution, dstRes: Resolution, dstScan: Bitmap.Scan
+    ) {
+        val srcRep = Bitmap.Representation(Bitmap.PixelFormat.of(AV_PIX_FMT_RGB48LE), SRGB, Bitmap.Alpha.OPAQUE)
+        val dstPixFmt = Bitmap.PixelFormat.of(dstPixFmtCode)
+        val dstRep = Bitmap.Representation(
+            dstPixFmt, Bitmap.Range.LIMITED, BT709, BT709_NCL,
+            if (dstPixFmt.hasChromaSub) AVCHROMA_LOC_LEFT else AVCHROMA_LOC_UNSPECIFIED, Bitmap.Alpha.OPAQUE
+        )
+        val srcSpec = Bitmap.Spec(srcRes, srcRep)
+        val dstContent = if (dstScan == PROGRESSIVE) PROGRESSIVE_FRAME else INTERLEAVED_FIELDS
+        val dstSpec = Bitmap.Spec(dstRes, dstRep, dstScan, dstContent)
+
+        Bitmap.allocate(srcSpec).use { src ->
+            // Noise is the worst case for filters that reach across band borders.
+            val random = Random(srcRes.heightPx.toLong())
+            val seg = src.memorySegment(0)
+            val ls = src.linesize(0).toLong()
+            for (y in 0..<srcRes.heightPx)
+                for (x in 0..<srcRes.widthPx * 6)
+                    seg.set(JAVA_BYTE, y * ls + x, random.nextInt().toByte())
+            val sequential = convert(src, dstSpec, parallel = false)
+            val parallel = convert(src, dstSpec, parallel = true)
+            for (plane in 0..<dstPixFmt.planes)
+                assertArrayEquals(sequential[plane], parallel[plane], "Plane $plane differs.")
+        }
+    }
+
+    fun cases() = listOf(
+        // The heights are not multiples of any plausible band height, so the last band is shorter than the others.
+        arguments(AV_PIX_FMT_YUV422P10LE, Resolution(640, 1003), Resolution(640, 1003), PROGRESSIVE),
+        arguments(AV_PIX_FMT_YUV422P10LE, Resolution(640, 1003), Resolution(640, 1003), INTERLACED_TOP_FIELD_FIRST),
+        arguments(AV_PIX_FMT_YUV420P10LE, Resolution(640, 1002), Resolution(640, 1002), PROGRESSIVE),
+        arguments(AV_PIX_FMT_YUV420P, Resolution(640, 998), Resolution(640, 998), PROGRESSIVE),
+        // A scaled route, which is never split into bands, but must still yield the same result.
+        arguments(AV_PIX_FMT_YUV422P10LE, Resolution(960, 1003), Resolution(640, 669), PROGRESSIVE)
+    )
+
+    /** Returns the rows of each plane without the padding at their ends. */
+    private fun convert(src: Bitmap, dstSpec: Bitmap.Spec, parallel: Boolean): List<ByteArray> =
+        Bitmap.allocate(dstSpec).use { dst ->
+            dst.zero()
+            BitmapConverter(src.spec, dstSpec, parallel = parallel).use { it.convert(src, dst) }
+            val pixFmt = dstSpec.representation.pixelFormat
+            val (w, h) = dstSpec.resolution
+            List(pixFmt.planes) { plane ->
+                val rowBytes = ceilDiv(w, 1 shl pixFmt.hChromaSubOfPlane(plane)) * pixFmt.stepOfPlane(plane)
+                val rows = ceilDiv(h, 1 shl pixFmt.vChromaSubOfPlane(plane))
+                val seg = dst.memorySegment(plane)
+                val ls = dst.linesize(plane).toLong()
+                ByteArray(rowBytes * rows) { i -> seg.get(JAVA_BYTE, i / rowBytes * ls + i % rowBytes) }
+            }
+        }
+
+}
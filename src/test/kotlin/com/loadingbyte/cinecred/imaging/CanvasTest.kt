@@ -0,0 +1,62 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.imaging.ColorSpace.Companion.SRGB
+import com.loadingbyte.cinecred.setupNatives
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.Arguments.arguments
+import org.junit.jupiter.params.provider.MethodSource
+import java.awt.geom.AffineTransform
+import java.awt.geom.Path2D
+
+
+internal class CanvasTest {
+
+    @BeforeAll
+    fun setup() {
+        setupNatives()
+    }
+
+    @ParameterizedTest
+    @MethodSource("translucentCases")
+    fun `translucent glyphs look like their filled outline`(colorAlpha: Float, alpha: Double) {
+        val fontCase = Font.BUNDLED.first().case(48.0)
+        // Place the glyphs so close to each other that they overlap.
+        val glyphs = IntArray(8) { 36 + it }
+        val xs = DoubleArray(glyphs.size) { 10.0 + it * 12.3 }
+        val ys = DoubleArray(glyphs.size) { 60.0 + (it % 2) * 0.4 }
+        val shader = Canvas.Shader.Solid(Color4f(0.9f, 0.4f, 0.1f, colorAlpha, SRGB))
+        val transform = AffineTransform.getScaleInstance(1.1, 1.1)
+
+        val blitted = render { canvas ->
+            canvas.fillGlyphs(fontCase, glyphs, xs, ys, shader, alpha, transform)
+        }
+        val filled = render { canvas ->
+            val outline = Path2D.Float()
+            for (idx in glyphs.indices) {
+                val at = AffineTransform.getTranslateInstance(xs[idx], ys[idx])
+                outline.append(fontCase.getGlyphOutline(glyphs[idx]).getPathIterator(at), false)
+            }
+            canvas.fillShape(outline, shader, alpha, transform = transform)
+        }
+        assertArrayEquals(filled, blitted)
+    }
+
+    fun translucentCases() = listOf(
+        arguments(0.5f, 1.0),
+        arguments(1f, 0.5),
+        arguments(0.7f, 0.8)
+    )
+
+    private fun render(draw: (Canvas) -> Unit): FloatArray {
+        val spec = Bitmap.Spec(Resolution(160, 90), Canvas.compatibleRepresentation(SRGB))
+        Bitmap.allocate(spec).use { bitmap ->
+            bitmap.zero()
+            Canvas.forBitmap(bitmap).use(draw)
+            return bitmap.getF(160 * 4)
+        }
+    }
+
+}
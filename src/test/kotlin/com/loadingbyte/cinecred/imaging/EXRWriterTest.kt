@@ -0,0 +1,100 @@
+package com.loadingbyte.cinecred.imaging
+
+import com.loadingbyte.cinecred.common.Resolution
+import com.loadingbyte.cinecred.common.Timecode
+import com.loadingbyte.cinecred.imaging.BitmapWriter.EXR.Compression
+import com.loadingbyte.cinecred.setupNatives
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.Arguments.arguments
+import org.junit.jupiter.params.provider.MethodSource
+import java.lang.Float.float16ToFloat
+import java.lang.Float.floatToFloat16
+import java.util.*
+import kotlin.io.path.createTempDirectory
+
+
+internal class EXRWriterTest {
+
+    @BeforeAll
+    fun setup() {
+        setupNatives()
+    }
+
+    @ParameterizedTest
+    @MethodSource("cases")
+    fun `round-trip EXR`(compression: Compression, depth: Int, content: Content, width: Int, height: Int) {
+        val writer = BitmapWriter.EXR(
+            Bitmap.PixelFormat.Family.RGB, hasAlpha = false, ColorSpace.Primaries.BT709, depth, compression
+        )
+        val spec = Bitmap.Spec(Resolution(width, height), writer.representation)
+        val random = Random(width * 31L + height)
+        val expected = Array(3) { plane ->
+            FloatArray(width * height) { i -> content.sample(plane, i % width, i / width, depth, random) }
+        }
+        val dir = createTempDirectory()
+        try {
+            Bitmap.allocate(spec).use { bitmap ->
+                for (plane in 0..<3) {
+                    val seg = bitmap.memorySegment(plane)
+                    val ls = bitmap.linesize(plane).toLong()
+                    for (y in 0..<height)
+                        for (x in 0..<width)
+                            seg.putFloatLE(y * ls + x * 4L, expected[plane][y * width + x])
+                }
+                writer.write(bitmap, dir.resolve("0.exr"))
+            }
+            VideoReader(dir.resolve("%d.exr"), Timecode.Frames(0)).use { reader ->
+                reader.read()!!.bitmap.use { bitmap ->
+                    assertEquals(Resolution(width, height), bitmap.spec.resolution)
+                    for (plane in 0..<3) {
+                        val seg = bitmap.memorySegment(plane)
+                        val ls = bitmap.linesize(plane).toLong()
+                        for (y in 0..<height)
+                            for (x in 0..<width) {
+                                val exp = expected[plane][y * width + x]
+                                assertEquals(exp, seg.getFloatLE(y * ls + x * 4L), "Plane $plane at ($x, $y)")
+                            }
+                    }
+                }
+            }
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    fun cases() = listOf(
+        // Compressible content.
+        arguments(Compression.PIZ, 16, Content.GRADIENT, 67, 70),
+        arguments(Compression.PIZ, 32, Content.GRADIENT, 67, 70),
+        // B44 is lossy in general, but exact for 4x4 blocks of equal values, even when they are padded.
+        arguments(Compression.B44, 16, Content.BLOCKS, 64, 64),
+        arguments(Compression.B44, 16, Content.BLOCKS, 67, 70),
+        arguments(Compression.RLE, 16, Content.BLOCKS, 67, 70),
+        arguments(Compression.ZIP, 32, Content.GRADIENT, 67, 70),
+        // Incompressible content, which must be stored uncompressed.
+        arguments(Compression.PIZ, 32, Content.NOISE, 67, 70),
+        arguments(Compression.RLE, 32, Content.NOISE, 67, 70),
+        arguments(Compression.ZIPS, 32, Content.NOISE, 67, 70),
+        arguments(Compression.ZIP, 16, Content.NOISE, 67, 70),
+        // B44 can't compress images that are too narrow to benefit from its 4x4 blocks.
+        arguments(Compression.B44, 16, Content.GRADIENT, 1, 70),
+        arguments(Compression.B44, 16, Content.NOISE, 1, 33)
+    )
+
+    enum class Content {
+        GRADIENT, BLOCKS, NOISE;
+
+        fun sample(plane: Int, x: Int, y: Int, depth: Int, random: Random): Float {
+            val value = when (this) {
+                GRADIENT -> (x + 2 * y + 50 * plane) / 256f
+                BLOCKS -> ((x / 4) * 7 + (y / 4) * 3 + plane) / 32f
+                NOISE -> Float.fromBits(random.nextInt(0x3f800000))
+            }
+            // With 16-bit depth, only use values that are exactly representable as half floats.
+            return if (depth == 16) float16ToFloat(floatToFloat16(value)) else value
+        }
+    }
+
+}